@@ -0,0 +1,254 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+/*
+ * A small benchmark harness, in the spirit of JMH, for the benchmarks in
+ * this directory.
+ *
+ * Each benchmark is a named operation with parameters. It is set up once,
+ * then run for a few warmup iterations of a fixed length of time, so the
+ * JIT has compiled it, and then for a few measured iterations. For each
+ * measured iteration, the harness records the time per operation and, if
+ * the JVM can count the bytes a thread allocates (HotSpot can), the bytes
+ * allocated per operation, which is what JMH's GC profiler reports as
+ * gc.alloc.rate.norm. Results are the mean over the measured iterations,
+ * with the half-width of a 99.9% confidence interval as the error.
+ *
+ * Every operation returns a value which the harness folds into a result
+ * that it prints at the end, so the JIT can't decide the work is dead.
+ *
+ * Results can be saved to a file, and a file saved by an earlier run (on the
+ * code before a change, say) can be given as a baseline: every result is
+ * then printed next to the baseline's, with the change in percent.
+ *
+ * Options, which every benchmark program takes:
+ *   -f <regex>     only run benchmarks whose name matches
+ *   -wi <n>        warmup iterations (default 3)
+ *   -i <n>         measured iterations (default 5)
+ *   -t <ms>        length of each iteration (default 500)
+ *   -o <file>      save the results to a file
+ *   -b <file>      compare the results with a file saved by an earlier run
+ */
+public class ReldatBench {
+	/*
+	 * One benchmark: setUp() is called once, then run() many times, each time
+	 * with the number of operations to do. run() returns a value that depends
+	 * on the work it did.
+	 */
+	public static abstract class Benchmark {
+		private final String name;
+		private final String params;
+
+		public Benchmark(String name, String params) {
+			this.name = name;
+			this.params = params;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public String getParams() {
+			return this.params;
+		}
+
+		public void setUp() throws Exception {
+		}
+
+		public abstract long run(int ops) throws Exception;
+	}
+
+	// Student's t for a 99.9% two-sided interval, by degrees of freedom (1 to 10, then a large sample)
+	private static final double[] T_999 = { 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59 };
+	private static final double T_999_LARGE = 3.29;
+
+	private Pattern filter = null;
+	private int warmupIterations = 3;
+	private int iterations = 5;
+	private long iterationNanos = 500 * 1000000L;
+	private String outputFile = null;
+	private String baselineFile = null;
+
+	private ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+	private ArrayList<String> results = new ArrayList<String>();
+	private HashMap<String, Double> baseline = new HashMap<String, Double>();
+	private long blackhole = 0;
+
+	// Counts the bytes each thread allocates, if the JVM supports it
+	private com.sun.management.ThreadMXBean allocations = null;
+
+	public ReldatBench(String[] args) {
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "-f":
+					this.filter = Pattern.compile(args[i + 1]);
+					break;
+				case "-wi":
+					this.warmupIterations = Integer.parseInt(args[i + 1]);
+					break;
+				case "-i":
+					this.iterations = Math.max(Integer.parseInt(args[i + 1]), 1);
+					break;
+				case "-t":
+					this.iterationNanos = Long.parseLong(args[i + 1]) * 1000000L;
+					break;
+				case "-o":
+					this.outputFile = args[i + 1];
+					break;
+				case "-b":
+					this.baselineFile = args[i + 1];
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			this.allocations = (com.sun.management.ThreadMXBean) threads;
+
+			if (this.allocations.isThreadAllocatedMemorySupported())
+				this.allocations.setThreadAllocatedMemoryEnabled(true);
+			else
+				this.allocations = null;
+		}
+	}
+
+	public void add(Benchmark benchmark) {
+		if (this.filter == null || this.filter.matcher(benchmark.getName()).find())
+			this.benchmarks.add(benchmark);
+	}
+
+	/*
+	 * Run every benchmark added, print the results, and save them if asked to.
+	 */
+	public void run() throws Exception {
+		if (this.baselineFile != null)
+			this.readBaseline();
+
+		System.out.printf("%-28s %-18s %12s %10s %12s%s%n", "benchmark", "params", "ns/op", "error", "B/op", (this.baselineFile == null) ? "" : String.format(" %12s %8s", "base ns/op", "change"));
+
+		for (Benchmark benchmark : this.benchmarks)
+			this.measure(benchmark);
+
+		if (this.outputFile != null) {
+			try (PrintWriter out = new PrintWriter(new FileWriter(this.outputFile))) {
+				for (String result : this.results)
+					out.println(result);
+			}
+		}
+
+		// Printed so that nothing the benchmarks computed is dead code
+		System.out.println("(blackhole " + this.blackhole + ")");
+	}
+
+	private void measure(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+
+		// Find a number of operations per call that takes about a millisecond
+		int ops = 1;
+
+		while (ops < (1 << 24)) {
+			long start = System.nanoTime();
+			this.blackhole += benchmark.run(ops);
+
+			if (System.nanoTime() - start >= 1000000L)
+				break;
+
+			ops *= 2;
+		}
+
+		for (int i = 0; i < this.warmupIterations; i++)
+			this.iteration(benchmark, ops);
+
+		double[] nanosPerOp = new double[this.iterations];
+		double bytesPerOp = 0;
+
+		for (int i = 0; i < this.iterations; i++) {
+			long[] iteration = this.iteration(benchmark, ops);
+			nanosPerOp[i] = (double) iteration[0] / iteration[1];
+			bytesPerOp += (double) iteration[2] / iteration[1];
+		}
+
+		bytesPerOp /= this.iterations;
+
+		double mean = 0;
+
+		for (double value : nanosPerOp)
+			mean += value;
+
+		mean /= nanosPerOp.length;
+
+		double variance = 0;
+
+		for (double value : nanosPerOp)
+			variance += (value - mean) * (value - mean);
+
+		double error = 0;
+
+		if (nanosPerOp.length > 1) {
+			variance /= nanosPerOp.length - 1;
+			double t = (nanosPerOp.length - 1 <= T_999.length) ? T_999[nanosPerOp.length - 2] : T_999_LARGE;
+			error = t * Math.sqrt(variance / nanosPerOp.length);
+		}
+
+		String bytes = (this.allocations == null) ? "n/a" : String.format("%.1f", bytesPerOp);
+		String comparison = "";
+		String key = benchmark.getName() + " " + benchmark.getParams();
+
+		if (this.baselineFile != null) {
+			Double base = this.baseline.get(key);
+			comparison = (base == null) ? String.format(" %12s %8s", "-", "-") : String.format(" %12.2f %+7.1f%%", base, (mean - base) / base * 100);
+		}
+
+		System.out.printf("%-28s %-18s %12.2f %10.2f %12s%s%n", benchmark.getName(), benchmark.getParams(), mean, error, bytes, comparison);
+		this.results.add(key + "\t" + mean + "\t" + error + "\t" + bytes);
+	}
+
+	/*
+	 * Call the benchmark until an iteration's time is up. Returns the time
+	 * taken, the operations done and the bytes allocated.
+	 */
+	private long[] iteration(Benchmark benchmark, int ops) throws Exception {
+		long thread = Thread.currentThread().getId();
+		long allocatedBefore = (this.allocations == null) ? 0 : this.allocations.getThreadAllocatedBytes(thread);
+		long done = 0;
+		long start = System.nanoTime();
+		long elapsed;
+
+		do {
+			this.blackhole += benchmark.run(ops);
+			done += ops;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < this.iterationNanos);
+
+		long allocated = (this.allocations == null) ? 0 : this.allocations.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+		return new long[] { elapsed, done, allocated };
+	}
+
+	/*
+	 * Read the ns/op of every result in a file saved by an earlier run.
+	 */
+	private void readBaseline() throws IOException {
+		try (BufferedReader in = new BufferedReader(new FileReader(this.baselineFile))) {
+			String line;
+
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t");
+
+				if (fields.length >= 2)
+					this.baseline.put(fields[0], Double.parseDouble(fields[1]));
+			}
+		}
+	}
+}
@@ -0,0 +1,402 @@
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import reldat.ReldatChunkReader;
+import reldat.ReldatCodec;
+import reldat.ReldatHeader;
+import reldat.ReldatMappedFile;
+import reldat.ReldatPacket;
+import reldat.ReldatPacketView;
+import reldat.ReldatReceiveRing;
+import reldat.ReldatSack;
+import reldat.ReldatSendWindow;
+import reldat.ReldatSerial;
+import reldat.checksum.ReldatChecksum;
+import reldat.checksum.ReldatChecksums;
+
+/*
+ * Benchmarks of the reldat package's hot paths, run with ReldatBench, so
+ * that a change to the package can be measured against a baseline saved
+ * from the code before it.
+ *
+ *   header.toBytes, header.bytesToHeader    ReldatHeader to and from bytes
+ *   packet.toBytes, packet.bytesToPacket    ReldatPacket to and from bytes (checked)
+ *   checksum                                a payload's checksum
+ *   codec.encode, view.verify               encoding a packet into a send buffer, and
+ *                                           checking one in place in a receive buffer
+ *   send.packetize                          reading a packet's worth of a source and encoding
+ *                                           it, as the connection does for each data packet
+ *   send.mapped                             the same for a file, sent from a mapping of it:
+ *                                           slicing a packet's worth of it and encoding the
+ *                                           header (the slice goes out in a gathering write)
+ *   receive.flushBuffer                     putting a window of packets that arrived in
+ *                                           reverse order back in order and writing them out
+ *   ack.match                               applying a selective ACK to the send window and
+ *                                           refilling it, as handling an ACK does
+ *
+ * Payload sizes run from an empty packet to a full one of the original
+ * 1000 bytes, and then one of a jumbo frame (as negotiated with a server
+ * that accepts large datagrams), and window sizes from 16 to 4096 packets. One operation is one packet (or ACK).
+ * Encoding and verifying are run with both header versions; the compact one
+ * is marked v2.
+ *
+ * Usage: java -cp <classes> ReldatHotPathBench [-f <regex>] [-wi <n>] [-i <n>] [-t <ms>] [-o <file>] [-b <baseline file>]
+ */
+public class ReldatHotPathBench {
+	private static final int[] PAYLOAD_SIZES = { 0, 128, ReldatPacket.PACKET_PAYLOAD_SIZE, 8972 - ReldatHeader.PACKET_HEADER_SIZE };
+	private static final int[] WINDOW_SIZES = { 16, 256, 4096 };
+	private static final byte[] CHECKSUMS = { ReldatChecksums.MD5, ReldatChecksums.CRC32C };
+	private static final int[] HEADER_VERSIONS = { ReldatHeader.VERSION_1, ReldatHeader.VERSION_2 };
+	private static final byte[] NO_DATA = new byte[0];
+
+	public static void main(String[] args) throws Exception {
+		ReldatBench bench = new ReldatBench(args);
+
+		for (int size : PAYLOAD_SIZES) {
+			final byte[] payload = payload(size);
+			final String params = "payload=" + size;
+
+			bench.add(new ReldatBench.Benchmark("header.toBytes", params) {
+				private ReldatHeader header = new ReldatHeader(ReldatHeader.DATA_FLAG, 1, 0, payload);
+
+				public long run(int ops) {
+					long result = 0;
+
+					for (int i = 0; i < ops; i++)
+						result += this.header.toBytes()[i & 7];
+
+					return result;
+				}
+			});
+
+			bench.add(new ReldatBench.Benchmark("header.bytesToHeader", params) {
+				private byte[] bytes = new ReldatHeader(ReldatHeader.DATA_FLAG, 1, 0, payload).toBytes();
+
+				public long run(int ops) {
+					long result = 0;
+
+					for (int i = 0; i < ops; i++)
+						result += ReldatHeader.bytesToHeader(this.bytes).getPayloadSize();
+
+					return result;
+				}
+			});
+
+			bench.add(new ReldatBench.Benchmark("packet.toBytes", params) {
+				private ReldatPacket packet = new ReldatPacket(payload, ReldatHeader.DATA_FLAG, 1, 0);
+
+				public long run(int ops) {
+					long result = 0;
+
+					for (int i = 0; i < ops; i++)
+						result += this.packet.toBytes().length;
+
+					return result;
+				}
+			});
+
+			for (final byte checksumId : CHECKSUMS) {
+				final String checksumParams = params + " " + ReldatChecksums.get(checksumId).getName();
+
+				bench.add(new ReldatBench.Benchmark("packet.bytesToPacket", checksumParams) {
+					private byte[] bytes = new ReldatPacket(payload, ReldatHeader.DATA_FLAG, 1, 0, checksumId).toBytes();
+
+					public long run(int ops) throws Exception {
+						long result = 0;
+
+						for (int i = 0; i < ops; i++)
+							result += ReldatPacket.bytesToPacket(this.bytes, checksumId).getData().length;
+
+						return result;
+					}
+				});
+
+				bench.add(new ReldatBench.Benchmark("checksum", checksumParams) {
+					private ReldatChecksum checksum = ReldatChecksums.create(checksumId);
+					private ByteBuffer buffer = ByteBuffer.wrap(payload);
+					private byte[] result = new byte[ReldatHeader.CHECKSUM_SIZE];
+
+					public long run(int ops) {
+						long sum = 0;
+
+						for (int i = 0; i < ops; i++) {
+							this.checksum.checksum(this.buffer, 0, payload.length, this.result);
+							sum += this.result[0];
+						}
+
+						return sum;
+					}
+				});
+
+				for (final int version : HEADER_VERSIONS) {
+					final String versionParams = (version == ReldatHeader.VERSION_1) ? checksumParams : checksumParams + " v" + version;
+
+					bench.add(new ReldatBench.Benchmark("codec.encode", versionParams) {
+						private ReldatCodec codec = new ReldatCodec(ReldatChecksums.create(checksumId));
+						private ByteBuffer buffer = ReldatCodec.allocateBuffer(true, ReldatPacket.MAX_DATAGRAM_SIZE);
+						private ByteBuffer data = ByteBuffer.wrap(payload);
+
+						public void setUp() {
+							this.codec.setHeaderVersion(version);
+						}
+
+						public long run(int ops) {
+							long result = 0;
+
+							for (int i = 0; i < ops; i++) {
+								this.buffer.clear();
+								result += this.codec.encode(this.buffer, ReldatHeader.DATA_FLAG, i, 0, this.data);
+							}
+
+							return result;
+						}
+					});
+
+					bench.add(new ReldatBench.Benchmark("view.verify", versionParams) {
+						private ReldatPacketView view = new ReldatPacketView(ReldatChecksums.create(checksumId));
+						private ByteBuffer buffer = ReldatCodec.allocateBuffer(true, ReldatPacket.MAX_DATAGRAM_SIZE);
+
+						public void setUp() {
+							ReldatCodec codec = new ReldatCodec(ReldatChecksums.create(checksumId));
+							codec.setHeaderVersion(version);
+							codec.encode(this.buffer, ReldatHeader.DATA_FLAG, 1, 0, ByteBuffer.wrap(payload));
+							this.buffer.flip();
+						}
+
+						public long run(int ops) throws Exception {
+							long result = 0;
+
+							for (int i = 0; i < ops; i++) {
+								this.view.wrap(this.buffer).verify();
+								result += this.view.getPayloadSize();
+							}
+
+							return result;
+						}
+					});
+				}
+			}
+		}
+
+		for (final byte checksumId : CHECKSUMS) {
+			bench.add(new ReldatBench.Benchmark("send.packetize", ReldatChecksums.get(checksumId).getName()) {
+				private byte[] source = payload(1024 * 1024);
+				private ReldatChunkReader reader = new ReldatChunkReader();
+				private ByteBuffer chunk = ByteBuffer.allocate(ReldatPacket.PACKET_PAYLOAD_SIZE);
+				private ReldatCodec codec = new ReldatCodec(ReldatChecksums.create(checksumId));
+				private ByteBuffer buffer = ReldatCodec.allocateBuffer(true);
+
+				public void setUp() {
+					this.reader.reset(Channels.newChannel(new ByteArrayInputStream(this.source)));
+				}
+
+				public long run(int ops) throws Exception {
+					long result = 0;
+
+					for (int i = 0; i < ops; i++) {
+						this.chunk.clear();
+
+						// Start the source over once it runs out
+						if (this.reader.readChunk(this.chunk) <= 0) {
+							this.setUp();
+							this.reader.readChunk(this.chunk);
+						}
+
+						this.chunk.flip();
+						this.buffer.clear();
+						result += this.codec.encode(this.buffer, ReldatHeader.DATA_FLAG, i, 0, this.chunk);
+					}
+
+					return result;
+				}
+			});
+
+			bench.add(new ReldatBench.Benchmark("send.mapped", ReldatChecksums.get(checksumId).getName()) {
+				private FileChannel file;
+				private ReldatMappedFile source;
+				private ReldatCodec codec = new ReldatCodec(ReldatChecksums.create(checksumId));
+				private ByteBuffer buffer = ReldatCodec.allocateBuffer(true);
+
+				public void setUp() throws Exception {
+					if (this.file == null) {
+						Path path = Files.createTempFile("reldat-bench", ".txt");
+						path.toFile().deleteOnExit();
+						Files.write(path, payload(1024 * 1024));
+						this.file = FileChannel.open(path, StandardOpenOption.READ);
+					}
+
+					this.file.position(0);
+					this.source = new ReldatMappedFile(this.file);
+				}
+
+				public long run(int ops) throws Exception {
+					long result = 0;
+
+					for (int i = 0; i < ops; i++) {
+						// Start the file over once it runs out
+						if (!this.source.hasRemaining())
+							this.setUp();
+
+						ReldatPacket packet = new ReldatPacket(NO_DATA, this.source.nextSlice(ReldatPacket.PACKET_PAYLOAD_SIZE), ReldatHeader.DATA_FLAG, i, 0, checksumId);
+						this.buffer.clear();
+						result += this.codec.encodeHead(this.buffer, packet, 0);
+					}
+
+					return result;
+				}
+			});
+		}
+
+		for (final int window : WINDOW_SIZES) {
+			final String params = "window=" + window;
+
+			bench.add(new ReldatBench.Benchmark("receive.flushBuffer", params) {
+				private ReldatReceiveRing ring = new ReldatReceiveRing(window);
+				private ReldatPacketView view = new ReldatPacketView();
+				private ByteBuffer buffer = ReldatCodec.allocateBuffer(true);
+				private DiscardChannel sink = new DiscardChannel();
+
+				public void setUp() throws Exception {
+					new ReldatCodec().encode(this.buffer, ReldatHeader.DATA_FLAG, 0, 0, ByteBuffer.wrap(payload(ReldatPacket.PACKET_PAYLOAD_SIZE)));
+					this.buffer.flip();
+					this.view.wrap(this.buffer);
+
+					// Fill the ring once, so its pages are allocated before it's timed
+					for (int i = window - 1; i > 0; i--)
+						this.ring.store(i, this.view, 0);
+
+					this.ring.advance();
+					this.ring.deliver(this.sink);
+				}
+
+				public long run(int ops) throws Exception {
+					long delivered = 0;
+
+					for (int done = 0; done < ops; done += window) {
+						// Every packet of the window but the first arrives, last one first; then
+						// the first arrives, goes straight out, and the rest follow it. The last
+						// window may be cut short, so that ops packets are handled in all
+						int next = this.ring.getNext();
+
+						for (int i = Math.min(window, ops - done) - 1; i > 0; i--)
+							this.ring.store(next + i, this.view, 0);
+
+						this.view.writePayload(this.sink);
+						this.ring.advance();
+						delivered += this.ring.deliver(this.sink) + 1;
+					}
+
+					return delivered + this.sink.written;
+				}
+			});
+
+			bench.add(new ReldatBench.Benchmark("ack.match", params) {
+				private ReldatSendWindow unAcked = new ReldatSendWindow(window);
+				private ReldatPacket[] packets = new ReldatPacket[window];
+				private ReldatSack sack = new ReldatSack();
+				private ReldatPacketView view = new ReldatPacketView();
+				private ByteBuffer buffer = ReldatCodec.allocateBuffer(true);
+				private int cumulativeAckOffset;
+				private int nextSeq = 0;
+
+				public void setUp() {
+					for (int i = 0; i < window; i++)
+						this.packets[i] = new ReldatPacket(new byte[0], ReldatHeader.DATA_FLAG, i, 0);
+
+					// A selective ACK whose cumulative ACK is rewritten for each packet ACKed;
+					// its one block always covers the packet after the one ACKed next
+					ByteBuffer payload = ByteBuffer.allocate(12);
+					payload.putInt(0).putInt(0).putInt(0).flip();
+					new ReldatCodec().encode(this.buffer, ReldatHeader.ACK_FLAG, 0, 0, payload);
+					this.buffer.flip();
+					this.view.wrap(this.buffer);
+					this.cumulativeAckOffset = this.view.getPayloadOffset();
+
+					this.unAcked.reset(0);
+
+					while (this.unAcked.size() < window)
+						this.send();
+				}
+
+				private void send() {
+					this.unAcked.add(new ReldatPacket(this.packets[this.nextSeq % window].getData(), ReldatHeader.DATA_FLAG, this.nextSeq, 0), this.nextSeq);
+					this.nextSeq++;
+				}
+
+				public long run(int ops) {
+					long result = 0;
+
+					for (int i = 0; i < ops; i++) {
+						int base = this.unAcked.getBase();
+
+						this.buffer.putInt(this.cumulativeAckOffset, base + 1);
+						this.buffer.putInt(this.cumulativeAckOffset + 4, base + 2);
+						this.buffer.putInt(this.cumulativeAckOffset + 8, base + 3);
+
+						if (!this.sack.read(this.view))
+							throw new IllegalStateException("Not a selective ACK");
+
+						// As ReldatConnection.handlePacket() does
+						while (!this.unAcked.isEmpty() && ReldatSerial.lessThan(this.unAcked.getBase(), this.sack.getCumulativeAck())) {
+							result += this.unAcked.getSendTime(this.unAcked.getBase());
+							this.unAcked.remove(this.unAcked.getBase());
+						}
+
+						for (int block = 0; block < this.sack.getBlockCount(); block++) {
+							int end = this.sack.getBlockEnd(block);
+
+							for (int seqNum = this.unAcked.nextOutstanding(this.sack.getBlockStart(block)); ReldatSerial.lessThan(seqNum, end) && seqNum != this.unAcked.getNext(); seqNum = this.unAcked.nextOutstanding(seqNum + 1))
+								this.unAcked.remove(seqNum);
+						}
+
+						while (this.unAcked.getNext() - this.unAcked.getBase() < window)
+							this.send();
+					}
+
+					return result;
+				}
+			});
+		}
+
+		bench.run();
+	}
+
+	/*
+	 * Lowercase text, like the files the client sends.
+	 */
+	private static byte[] payload(int size) {
+		byte[] payload = new byte[size];
+
+		for (int i = 0; i < size; i++)
+			payload[i] = (byte) ('a' + i % 26);
+
+		return payload;
+	}
+
+	/*
+	 * A sink that counts what is written to it and throws it away.
+	 */
+	private static class DiscardChannel implements WritableByteChannel {
+		private long written = 0;
+
+		public int write(ByteBuffer src) {
+			int length = src.remaining();
+			src.position(src.limit());
+			this.written += length;
+			return length;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,441 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import reldat.ReldatHeader;
+
+/*
+ * A UDP proxy, running on a thread of its own in this JVM, that impairs the
+ * datagrams it forwards the way a bad network path would: it can drop,
+ * duplicate, reorder, delay, jitter and corrupt them, and cap the path's
+ * bandwidth and its MTU.
+ *
+ * Clients send to the proxy's port instead of the server's. Each client
+ * address gets a channel of its own on the server side, so the server sees
+ * one address per client and replies to it as it would to the client; the
+ * proxy sends those replies on to the client from its own port. Clients
+ * therefore need the server to be symmetric (see ReldatOptions).
+ *
+ * Each direction has its own Impairment. A datagram goes through it in this
+ * order: it is lost if it's larger than the path's MTU; it may be lost; it waits its turn on the (bandwidth-capped) link,
+ * and is lost if the link's queue is full; it is delayed by the path's delay
+ * plus up to the jitter, plus the reorder delay if it is picked to be
+ * reordered (so later datagrams overtake it); it may have a bit flipped; and
+ * it may be sent twice. Random choices come from a seeded generator, so a
+ * run can be repeated.
+ *
+ * Counters of what happened to the datagrams in each direction can be read
+ * once the proxy has been closed.
+ */
+public class ReldatImpairmentProxy implements Runnable {
+	// Directions, for the counters
+	public static final int UPSTREAM = 0;
+	public static final int DOWNSTREAM = 1;
+
+	// Counters kept per direction
+	public static final int RECEIVED = 0;
+	public static final int FORWARDED = 1;
+	public static final int LOST = 2;
+	public static final int QUEUE_DROPPED = 3;
+	public static final int DUPLICATED = 4;
+	public static final int REORDERED = 5;
+	public static final int CORRUPTED = 6;
+	public static final int DATA_PACKETS = 7;
+	public static final int RETRANSMISSIONS = 8;
+	public static final int OVERSIZED = 9;
+	public static final int BYTES = 10;
+
+	private static final int COUNTERS = 11;
+
+	// Size of each channel's socket receive buffer, so a window of large datagrams
+	// isn't dropped by the kernel before the proxy gets to it (the system may cap it)
+	private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/*
+	 * How one direction of the path is impaired. Probabilities are per
+	 * datagram; times are in milliseconds; a bandwidth of 0 is unlimited.
+	 */
+	public static class Impairment {
+		private double loss = 0;
+		private double duplication = 0;
+		private double reordering = 0;
+		private double corruption = 0;
+		private double delayMillis = 0;
+		private double jitterMillis = 0;
+		private double reorderDelayMillis = 5;
+		private long bytesPerSecond = 0;
+		private int queueBytes = 64 * 1024;
+		private int maxDatagramSize = 0;
+
+		public void setLoss(double loss) {
+			this.loss = loss;
+		}
+
+		public void setDuplication(double duplication) {
+			this.duplication = duplication;
+		}
+
+		/*
+		 * Hold the given share of datagrams back by an extra delay, so the ones
+		 * after them arrive first.
+		 */
+		public void setReordering(double reordering, double delayMillis) {
+			this.reordering = reordering;
+			this.reorderDelayMillis = delayMillis;
+		}
+
+		/*
+		 * Flip one random bit in the given share of datagrams.
+		 */
+		public void setCorruption(double corruption) {
+			this.corruption = corruption;
+		}
+
+		/*
+		 * Delay every datagram by the given time plus a random amount up to the
+		 * jitter. Jitter reorders datagrams sent closer together than it.
+		 */
+		public void setDelay(double delayMillis, double jitterMillis) {
+			this.delayMillis = delayMillis;
+			this.jitterMillis = jitterMillis;
+		}
+
+		/*
+		 * Cap the link at the given bandwidth, with a drop-tail queue of the given
+		 * size in front of it.
+		 */
+		public void setBandwidth(long bytesPerSecond, int queueBytes) {
+			this.bytesPerSecond = bytesPerSecond;
+			this.queueBytes = queueBytes;
+		}
+
+		/*
+		 * Drop every datagram larger than the given size (0 for no limit), as a
+		 * path with a smaller MTU than the ends think it has would.
+		 */
+		public void setMaxDatagramSize(int maxDatagramSize) {
+			this.maxDatagramSize = maxDatagramSize;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder description = new StringBuilder();
+
+			if (this.loss > 0)
+				description.append(String.format(" loss=%.1f%%", this.loss * 100));
+
+			if (this.duplication > 0)
+				description.append(String.format(" dup=%.1f%%", this.duplication * 100));
+
+			if (this.reordering > 0)
+				description.append(String.format(" reorder=%.1f%%/%.0fms", this.reordering * 100, this.reorderDelayMillis));
+
+			if (this.corruption > 0)
+				description.append(String.format(" corrupt=%.1f%%", this.corruption * 100));
+
+			if (this.delayMillis > 0 || this.jitterMillis > 0)
+				description.append(String.format(" delay=%.0fms+-%.0fms", this.delayMillis, this.jitterMillis));
+
+			if (this.bytesPerSecond > 0)
+				description.append(String.format(" rate=%.1fMbit/s queue=%dKB", this.bytesPerSecond * 8 / 1e6, this.queueBytes / 1024));
+
+			if (this.maxDatagramSize > 0)
+				description.append(String.format(" mtu=%d", this.maxDatagramSize));
+
+			return (description.length() == 0) ? "none" : description.substring(1);
+		}
+	}
+
+	/*
+	 * A datagram waiting for its delay to pass, and where it goes then.
+	 */
+	private static class Delayed implements Comparable<Delayed> {
+		private final long releaseAt;
+		private final long order;
+		private final byte[] data;
+		private final DatagramChannel channel;
+		private final SocketAddress target;
+		private final int direction;
+
+		public Delayed(long releaseAt, long order, byte[] data, DatagramChannel channel, SocketAddress target, int direction) {
+			this.releaseAt = releaseAt;
+			this.order = order;
+			this.data = data;
+			this.channel = channel;
+			this.target = target;
+			this.direction = direction;
+		}
+
+		public int compareTo(Delayed other) {
+			if (this.releaseAt != other.releaseAt)
+				return (this.releaseAt < other.releaseAt) ? -1 : 1;
+
+			return Long.compare(this.order, other.order);
+		}
+	}
+
+	private final InetSocketAddress serverAddress;
+	private final Impairment[] impairments = new Impairment[2];
+	private final Random random;
+
+	private final Selector selector;
+	private final DatagramChannel front;
+
+	// Server-side channel of each client, by the client's address
+	private final HashMap<SocketAddress, DatagramChannel> flows = new HashMap<SocketAddress, DatagramChannel>();
+
+	// Datagrams waiting to be sent, in the order they're due, and a tiebreaker that keeps it stable
+	private final PriorityQueue<Delayed> pending = new PriorityQueue<Delayed>();
+	private long nextOrder = 0;
+
+	// When each direction's link finishes sending what it has queued (bandwidth cap only)
+	private final long[] linkFreeAt = new long[2];
+
+	private final long[][] counters = new long[2][COUNTERS];
+
+	// Big enough for any UDP datagram, so nothing is truncated whatever the packet size
+	private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+	private volatile boolean stopping = false;
+	private Thread thread;
+
+	/*
+	 * Open a proxy on an ephemeral loopback port that forwards to the given
+	 * server address. Call start() to start forwarding.
+	 */
+	public ReldatImpairmentProxy(InetSocketAddress serverAddress, Impairment upstream, Impairment downstream, long seed) throws IOException {
+		this.serverAddress = serverAddress;
+		this.impairments[UPSTREAM] = upstream;
+		this.impairments[DOWNSTREAM] = downstream;
+		this.random = new Random(seed);
+
+		this.selector = Selector.open();
+		this.front = DatagramChannel.open();
+		this.front.bind(new InetSocketAddress("127.0.0.1", 0));
+		this.front.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+		this.front.configureBlocking(false);
+		this.front.register(this.selector, SelectionKey.OP_READ);
+	}
+
+	/*
+	 * The port clients should send to.
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) this.front.getLocalAddress()).getPort();
+	}
+
+	public void start() {
+		this.thread = new Thread(this, "reldat-impairment-proxy");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/*
+	 * Stop forwarding (dropping whatever is still delayed) and close every channel.
+	 */
+	public void close() throws InterruptedException {
+		this.stopping = true;
+		this.selector.wakeup();
+		this.thread.join();
+	}
+
+	/*
+	 * A counter (RECEIVED, LOST, ...) for a direction (UPSTREAM or DOWNSTREAM).
+	 * Only read it once the proxy has been closed.
+	 */
+	public long getCounter(int direction, int counter) {
+		return this.counters[direction][counter];
+	}
+
+	public void run() {
+		try {
+			while (!this.stopping) {
+				long now = System.nanoTime();
+				this.release(now);
+
+				// Sleep until the next datagram is due, or something arrives
+				if (this.pending.isEmpty()) {
+					this.selector.select();
+				} else {
+					long wait = this.pending.peek().releaseAt - now;
+
+					if (wait >= 1000000L)
+						this.selector.select(wait / 1000000L);
+					else
+						this.selector.selectNow();
+				}
+
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (key.channel() == this.front)
+						this.receiveFromClients();
+					else
+						this.receiveFromServer((DatagramChannel) key.channel(), (SocketAddress) key.attachment());
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		try {
+			for (DatagramChannel flow : this.flows.values())
+				flow.close();
+
+			this.front.close();
+			this.selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void receiveFromClients() throws IOException {
+		SocketAddress client;
+
+		while ((client = this.receive(this.front)) != null) {
+			DatagramChannel flow = this.flows.get(client);
+
+			if (flow == null) {
+				flow = DatagramChannel.open();
+				flow.bind(new InetSocketAddress("127.0.0.1", 0));
+				flow.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+				flow.connect(this.serverAddress);
+				flow.configureBlocking(false);
+				flow.register(this.selector, SelectionKey.OP_READ, client);
+				this.flows.put(client, flow);
+			}
+
+			this.impair(UPSTREAM, flow, this.serverAddress);
+		}
+	}
+
+	private void receiveFromServer(DatagramChannel flow, SocketAddress client) throws IOException {
+		while (this.receive(flow) != null)
+			this.impair(DOWNSTREAM, this.front, client);
+	}
+
+	/*
+	 * Read a datagram into the buffer. Returns its sender, or null if there was none.
+	 */
+	private SocketAddress receive(DatagramChannel channel) throws IOException {
+		this.buffer.clear();
+		SocketAddress sender;
+
+		try {
+			sender = channel.receive(this.buffer);
+		} catch (PortUnreachableException e) {
+			// The server isn't listening (yet, or any more); the datagram that found that out is lost
+			return null;
+		}
+
+		this.buffer.flip();
+		return sender;
+	}
+
+	/*
+	 * Put the datagram in the buffer through a direction's impairments, and
+	 * queue whatever comes out of them.
+	 */
+	private void impair(int direction, DatagramChannel channel, SocketAddress target) {
+		Impairment impairment = this.impairments[direction];
+		long[] counters = this.counters[direction];
+		long now = System.nanoTime();
+		int length = this.buffer.remaining();
+
+		counters[RECEIVED]++;
+		counters[BYTES] += length;
+
+		// Data packets, and how many of them are retransmissions, as seen before any are lost
+		if (length > 0) {
+			byte flags = this.buffer.get(this.buffer.position() + ReldatHeader.FLAGS_OFFSET);
+
+			if ((flags & (ReldatHeader.DATA_FLAG | ReldatHeader.EOD_FLAG)) != 0) {
+				counters[DATA_PACKETS]++;
+
+				if ((flags & ReldatHeader.RETRANSMIT_FLAG) != 0)
+					counters[RETRANSMISSIONS]++;
+			}
+		}
+
+		if (impairment.maxDatagramSize > 0 && length > impairment.maxDatagramSize) {
+			counters[OVERSIZED]++;
+			return;
+		}
+
+		if (this.random.nextDouble() < impairment.loss) {
+			counters[LOST]++;
+			return;
+		}
+
+		long departure = now;
+
+		if (impairment.bytesPerSecond > 0) {
+			long start = Math.max(now, this.linkFreeAt[direction]);
+			long queued = (start - now) * impairment.bytesPerSecond / 1000000000L;
+
+			if (queued + length > impairment.queueBytes) {
+				counters[QUEUE_DROPPED]++;
+				return;
+			}
+
+			this.linkFreeAt[direction] = start + length * 1000000000L / impairment.bytesPerSecond;
+			departure = this.linkFreeAt[direction];
+		}
+
+		double delayMillis = impairment.delayMillis + this.random.nextDouble() * impairment.jitterMillis;
+
+		if (this.random.nextDouble() < impairment.reordering) {
+			counters[REORDERED]++;
+			delayMillis += impairment.reorderDelayMillis;
+		}
+
+		byte[] data = new byte[length];
+		this.buffer.get(data);
+
+		if (length > 0 && this.random.nextDouble() < impairment.corruption) {
+			counters[CORRUPTED]++;
+			data[this.random.nextInt(length)] ^= (byte) (1 << this.random.nextInt(8));
+		}
+
+		long releaseAt = departure + (long) (delayMillis * 1000000);
+		this.pending.add(new Delayed(releaseAt, this.nextOrder++, data, channel, target, direction));
+
+		if (this.random.nextDouble() < impairment.duplication) {
+			counters[DUPLICATED]++;
+			this.pending.add(new Delayed(releaseAt, this.nextOrder++, data, channel, target, direction));
+		}
+	}
+
+	/*
+	 * Send every datagram whose delay has passed.
+	 */
+	private void release(long now) throws IOException {
+		while (!this.pending.isEmpty() && this.pending.peek().releaseAt <= now) {
+			Delayed datagram = this.pending.poll();
+
+			// A full socket buffer is one more way for the path to lose a datagram
+			try {
+				if (datagram.channel.send(ByteBuffer.wrap(datagram.data), datagram.target) > 0) {
+					this.counters[datagram.direction][FORWARDED]++;
+					continue;
+				}
+			} catch (PortUnreachableException e) {
+				// Reported for an earlier datagram to a server that isn't listening
+			}
+
+			this.counters[datagram.direction][QUEUE_DROPPED]++;
+		}
+	}
+}
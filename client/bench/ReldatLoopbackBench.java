@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import reldat.ReldatByteSink;
+import reldat.ReldatConnection;
+import reldat.ReldatEventLog;
+import reldat.ReldatHeader;
+import reldat.ReldatPacket;
+import reldat.ReldatRtoEstimator;
+import reldat.ReldatSession;
+import reldat.ReldatSessionRuntime;
+
+/*
+ * Runs the client end to end, on loopback, against a ReldatLoopbackServer
+ * behind a ReldatImpairmentProxy, under a series of scenarios: a clean
+ * path, then paths with delay, loss, reordering, duplication, corruption
+ * and a bandwidth cap, and finally all of them at once; then a path whose
+ * MTU is smaller than the datagrams the ends negotiate, which only works if
+ * the client probes for the datagram size (-probe on) or offers no more than
+ * 1472 bytes (-d).
+ *
+ * In each scenario, a number of transfers each open a connection, send a
+ * payload and get it back in upper case, and disconnect (as a
+ * ReldatSession). For each scenario it reports:
+ *
+ *   ok          transfers that completed with the right data, out of those run
+ *   goodput     payload bytes moved (both ways) per second of transfer time
+ *   p50 ... max transfer completion times (from the first data packet to the
+ *               server's EOD), in milliseconds
+ *   retx c>s    share of the client's data packets that were retransmissions
+ *   retx s>c    the same for the server's
+ *   overhead    bytes on the wire (both ways, headers, ACKs, handshakes and
+ *               retransmissions included) per payload byte, less one
+ *
+ * Clients offer datagrams of up to -d bytes (1472 by default; at most
+ * 65507, which loopback carries), and the server accepts any size. The
+ * server accepts compact headers unless -v is 1. Both ends use Reno
+ * congestion control unless -cc is cubic.
+ *
+ * Payloads come from memory unless -file says otherwise: with -file mapped,
+ * each transfer sends a temporary file with the payload in it the way files
+ * are sent (from a mapping of it, with gathering writes), and with -file
+ * read it reads the same file into the connection's buffers instead.
+ *
+ * The same seed gives the same impairments, so runs before and after a
+ * change can be compared.
+ *
+ * Usage: java -cp <classes> ReldatLoopbackBench [-s <scenario regex>] [-n <transfers>] [-b <bytes>] [-w <window>] [-c <concurrent transfers>] [-m basic|sack|streams] [-d <max datagram size>] [-probe on|off] [-v 1|2] [-file off|read|mapped] [-cc reno|cubic] [-seed <n>]
+ */
+public class ReldatLoopbackBench {
+	// Floor of the retransmission timeout on paths with the delay and queues of a wide-area
+	// network, where round trips swing too far for the default floor (which is meant for LANs)
+	private static final long WAN_MIN_RTO = 200000000L;
+
+	/*
+	 * A named set of impairments, applied to both directions, and the floor
+	 * of the retransmission timeout for both ends.
+	 */
+	private static class Scenario {
+		private final String name;
+		private final ReldatImpairmentProxy.Impairment impairment = new ReldatImpairmentProxy.Impairment();
+		private long minRto = ReldatRtoEstimator.DEFAULT_MIN_RTO;
+
+		public Scenario(String name) {
+			this.name = name;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Pattern filter = null;
+		int transfers = 20;
+		int payloadSize = 256 * 1024;
+		int windowSize = 64;
+		int concurrency = 1;
+		String mode = "sack";
+		int datagramSize = ReldatConnection.DEFAULT_DATAGRAM_SIZE;
+		boolean probe = false;
+		int headerVersion = ReldatHeader.VERSION_2;
+		String source = "off";
+		String congestionControl = "reno";
+		long seed = 3251;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "-s":
+					filter = Pattern.compile(args[i + 1]);
+					break;
+				case "-n":
+					transfers = Integer.parseInt(args[i + 1]);
+					break;
+				case "-b":
+					payloadSize = Integer.parseInt(args[i + 1]);
+					break;
+				case "-w":
+					windowSize = Integer.parseInt(args[i + 1]);
+					break;
+				case "-c":
+					concurrency = Math.max(Integer.parseInt(args[i + 1]), 1);
+					break;
+				case "-m":
+					mode = args[i + 1];
+					break;
+				case "-d":
+					datagramSize = Integer.parseInt(args[i + 1]);
+					break;
+				case "-probe":
+					probe = args[i + 1].equals("on");
+					break;
+				case "-v":
+					headerVersion = Integer.parseInt(args[i + 1]);
+					break;
+				case "-file":
+					source = args[i + 1];
+					break;
+				case "-cc":
+					congestionControl = args[i + 1];
+					break;
+				case "-seed":
+					seed = Long.parseLong(args[i + 1]);
+					break;
+				default:
+					usage();
+			}
+		}
+
+		if (!mode.equals("basic") && !mode.equals("sack") && !mode.equals("streams"))
+			usage();
+
+		if (!source.equals("off") && !source.equals("read") && !source.equals("mapped"))
+			usage();
+
+		if (!congestionControl.equals("reno") && !congestionControl.equals("cubic"))
+			usage();
+
+		// Lowercase letters, so we know what the server sends back
+		byte[] payload = new byte[payloadSize];
+		Random random = new Random(seed);
+
+		for (int i = 0; i < payload.length; i++)
+			payload[i] = (byte) ('a' + random.nextInt(26));
+
+		byte[] expected = new String(payload).toUpperCase().getBytes();
+
+		Path file = null;
+
+		if (!source.equals("off")) {
+			file = Files.createTempFile("reldat-bench", ".txt");
+			file.toFile().deleteOnExit();
+			Files.write(file, payload);
+		}
+
+		PrintStream out = System.out;
+		out.println(String.format("%d transfers of %d bytes, window %d, %d at a time, server options: %s, datagrams up to %d bytes%s, v%d headers, %s%s", transfers, payloadSize, windowSize,
+				concurrency, mode, datagramSize, probe ? " (probed)" : "", headerVersion, congestionControl, (file == null) ? "" : ", sent from a file (" + source + ")"));
+		out.println();
+		out.println(String.format("%-10s %7s %10s %9s %9s %9s %9s %9s %9s %9s  %s", "scenario", "ok", "MB/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "retx c>s", "retx s>c", "overhead", "impairments (each way)"));
+
+		// Impairments make connections log warnings (retried handshakes, say), which would get in the way of the report
+		ReldatEventLog.setLevel(ReldatEventLog.OFF);
+
+		// Warm up the JIT on a clean path first, so the first scenario isn't measuring the interpreter
+		run(new Scenario("warmup"), mode, windowSize, datagramSize, probe, headerVersion, congestionControl, file, source.equals("mapped"), Math.min(transfers, 5), concurrency, payload, expected, seed);
+
+		for (Scenario scenario : scenarios()) {
+			if (filter != null && !filter.matcher(scenario.name).find())
+				continue;
+
+			out.println(run(scenario, mode, windowSize, datagramSize, probe, headerVersion, congestionControl, file, source.equals("mapped"), transfers, concurrency, payload, expected, seed));
+		}
+
+		System.exit(0);
+	}
+
+	private static void usage() {
+		System.out.println("Usage: java ReldatLoopbackBench [-s <scenario regex>] [-n <transfers>] [-b <bytes>] [-w <window>] [-c <concurrent transfers>] [-m basic|sack|streams] [-d <max datagram size>] [-probe on|off] [-v 1|2] [-file off|read|mapped] [-cc reno|cubic] [-seed <n>]");
+		System.exit(0);
+	}
+
+	private static List<Scenario> scenarios() {
+		ArrayList<Scenario> scenarios = new ArrayList<Scenario>();
+		Scenario scenario;
+
+		scenarios.add(new Scenario("clean"));
+
+		scenario = new Scenario("delay");
+		scenario.impairment.setDelay(10, 2);
+		scenario.minRto = WAN_MIN_RTO;
+		scenarios.add(scenario);
+
+		scenario = new Scenario("loss1");
+		scenario.impairment.setLoss(0.01);
+		scenarios.add(scenario);
+
+		scenario = new Scenario("loss5");
+		scenario.impairment.setLoss(0.05);
+		scenarios.add(scenario);
+
+		scenario = new Scenario("reorder");
+		scenario.impairment.setReordering(0.1, 5);
+		scenarios.add(scenario);
+
+		scenario = new Scenario("duplicate");
+		scenario.impairment.setDuplication(0.1);
+		scenarios.add(scenario);
+
+		scenario = new Scenario("corrupt");
+		scenario.impairment.setCorruption(0.02);
+		scenarios.add(scenario);
+
+		scenario = new Scenario("bandwidth");
+		scenario.impairment.setBandwidth(10000000 / 8, 64 * 1024);
+		scenario.impairment.setDelay(5, 0);
+		scenario.minRto = WAN_MIN_RTO;
+		scenarios.add(scenario);
+
+		scenario = new Scenario("wan");
+		scenario.impairment.setLoss(0.01);
+		scenario.impairment.setDelay(20, 5);
+		scenario.impairment.setReordering(0.02, 10);
+		scenario.impairment.setDuplication(0.01);
+		scenario.impairment.setCorruption(0.005);
+		scenario.impairment.setBandwidth(20000000 / 8, 128 * 1024);
+		scenario.minRto = WAN_MIN_RTO;
+		scenarios.add(scenario);
+
+		scenario = new Scenario("mtu");
+		scenario.impairment.setMaxDatagramSize(ReldatPacket.ETHERNET_DATAGRAM_SIZE);
+		scenarios.add(scenario);
+
+		return scenarios;
+	}
+
+	/*
+	 * Run one scenario's transfers and return its line of the report.
+	 */
+	private static String run(Scenario scenario, String mode, int windowSize, int datagramSize, boolean probe, int headerVersion, String congestionControl, Path file, boolean mapFiles, int transfers, int concurrency, byte[] payload, byte[] expected, long seed) throws IOException, InterruptedException {
+		ReldatLoopbackServer server = new ReldatLoopbackServer(0, windowSize);
+		server.setSackEnabled(!mode.equals("basic"));
+		server.setMaxStreams(mode.equals("streams") ? 64 : 0);
+		server.setCompactHeaders(headerVersion == ReldatHeader.VERSION_2);
+		server.setCongestionControl(congestionControl);
+		server.setMinRto(scenario.minRto);
+		server.start();
+
+		ReldatImpairmentProxy proxy = new ReldatImpairmentProxy(new InetSocketAddress("127.0.0.1", server.getPort()), scenario.impairment, scenario.impairment, seed);
+		proxy.start();
+
+		ReldatSessionRuntime runtime = new ReldatSessionRuntime(1);
+		List<byte[]> payloads = Collections.singletonList(payload);
+		ArrayList<CheckedSession> sessions = new ArrayList<CheckedSession>();
+
+		// Transfers run in batches of the given size, each batch once the last has finished
+		for (int started = 0; started < transfers; ) {
+			for (int i = 0; i < concurrency && started < transfers; i++, started++) {
+				CheckedSession session = new CheckedSession("127.0.0.1", proxy.getPort(), windowSize, payloads, expected, file);
+				session.setMaxDatagramSize(datagramSize, probe);
+				session.setMapFiles(mapFiles);
+				session.setCongestionControl(congestionControl);
+				session.setMinRto(scenario.minRto);
+				sessions.add(session);
+				runtime.submit(session);
+			}
+
+			runtime.awaitIdle();
+		}
+
+		runtime.shutdown();
+		proxy.close();
+		server.close();
+
+		long[] times = new long[sessions.size()];
+		int completed = 0;
+		long bytes = 0;
+		long nanos = 0;
+		long payloadBytes = 0;
+
+		for (CheckedSession session : sessions) {
+			payloadBytes += session.getBytesSent() + session.getBytesReceived();
+
+			if (session.getConversationsCompleted() == 0 || !session.matched)
+				continue;
+
+			times[completed++] = session.getConversationNanos();
+			bytes += session.getBytesSent() + session.getBytesReceived();
+			nanos += session.getConversationNanos();
+		}
+
+		times = Arrays.copyOf(times, completed);
+		Arrays.sort(times);
+
+		double goodput = (nanos == 0) ? 0 : bytes / (nanos / 1e9) / (1024 * 1024);
+		String ok = completed + "/" + sessions.size();
+
+		long wireBytes = proxy.getCounter(ReldatImpairmentProxy.UPSTREAM, ReldatImpairmentProxy.BYTES) + proxy.getCounter(ReldatImpairmentProxy.DOWNSTREAM, ReldatImpairmentProxy.BYTES);
+		double overhead = (payloadBytes == 0) ? 0 : 100.0 * (wireBytes - payloadBytes) / payloadBytes;
+
+		return String.format("%-10s %7s %10.2f %9.1f %9.1f %9.1f %9.1f %8.2f%% %8.2f%% %8.2f%%  %s", scenario.name, ok, goodput,
+				percentile(times, 0.5), percentile(times, 0.9), percentile(times, 0.99), percentile(times, 1.0),
+				ratio(proxy, ReldatImpairmentProxy.UPSTREAM), ratio(proxy, ReldatImpairmentProxy.DOWNSTREAM), overhead, scenario.impairment);
+	}
+
+	/*
+	 * The given percentile of the sorted times, in milliseconds (nearest rank).
+	 */
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+
+		int rank = (int) Math.ceil(p * sorted.length);
+		return sorted[Math.max(rank, 1) - 1] / 1e6;
+	}
+
+	/*
+	 * Retransmissions as a percentage of the data packets sent in one direction.
+	 */
+	private static double ratio(ReldatImpairmentProxy proxy, int direction) {
+		long packets = proxy.getCounter(direction, ReldatImpairmentProxy.DATA_PACKETS);
+		return (packets == 0) ? 0 : 100.0 * proxy.getCounter(direction, ReldatImpairmentProxy.RETRANSMISSIONS) / packets;
+	}
+
+	/*
+	 * A session that checks the server sent back the payload in upper case,
+	 * and sends it from a file with the payload in it if there is one.
+	 */
+	private static class CheckedSession extends ReldatSession {
+		private final byte[] expected;
+		private final Path file;
+		private FileChannel source = null;
+		private boolean matched = false;
+
+		public CheckedSession(String host, int port, int windowSize, List<byte[]> payloads, byte[] expected, Path file) {
+			super(host, port, windowSize, payloads);
+			this.expected = expected;
+			this.file = file;
+		}
+
+		@Override
+		protected ReadableByteChannel openSource(int index) throws IOException {
+			if (this.file == null)
+				return super.openSource(index);
+
+			this.closeSource();
+			this.source = FileChannel.open(this.file, StandardOpenOption.READ);
+			return this.source;
+		}
+
+		@Override
+		protected void conversationFinished(int index, ReldatByteSink received) {
+			this.matched = Arrays.equals(received.toByteArray(), this.expected);
+			this.closeSource();
+		}
+
+		private void closeSource() {
+			if (this.source == null)
+				return;
+
+			try {
+				this.source.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			this.source = null;
+		}
+	}
+}
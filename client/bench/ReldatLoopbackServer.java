@@ -0,0 +1,916 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import reldat.ReldatCodec;
+import reldat.ReldatHeader;
+import reldat.ReldatLossDetector;
+import reldat.ReldatOptions;
+import reldat.ReldatPacket;
+import reldat.ReldatPacketView;
+import reldat.ReldatReceiveRing;
+import reldat.ReldatRtoEstimator;
+import reldat.ReldatSack;
+import reldat.ReldatSendWindow;
+import reldat.ReldatSeqRanges;
+import reldat.ReldatSerial;
+import reldat.ReldatStream;
+import reldat.ReldatTimerWheel;
+import reldat.checksum.ReldatChecksum;
+import reldat.checksum.ReldatChecksums;
+import reldat.congestion.ReldatCongestionController;
+import reldat.congestion.ReldatCongestionControllers;
+import reldat.exception.HeaderCorruptedException;
+import reldat.exception.PayloadCorruptedException;
+
+/*
+ * A RELDAT server written in Java, to run in the same JVM as the clients
+ * that test against it. Like server/reldat-server.py, it sends back the
+ * data of every conversation in upper case; unlike it, it accepts every
+ * option the client offers (the checksum algorithm, selective ACKs,
+ * multiplexed streams, symmetric addressing, larger datagrams and compact
+ * headers; see ReldatOptions), and it
+ * talks to many clients at once, from one port, telling them apart by
+ * their addresses.
+ *
+ * It is a stand-in for testing, so it is kept simple: every data packet is
+ * ACKed straight away, data is sent back as soon as it is in order, and
+ * its own sending uses Reno (or CUBIC) congestion control and the client's RTO
+ * estimator. Selective ACKs, multiplexed streams and compact headers can
+ * be turned off, to test the client against a server without them.
+ *
+ * It runs on a thread of its own, or in the foreground from the command line:
+ *
+ *   java -cp <classes> ReldatLoopbackServer <port> <max receive window size in packets> [nosack] [nostreams] [v1] [cubic] [mtu=<max datagram size in bytes>]
+ */
+public class ReldatLoopbackServer implements Runnable {
+	// A client is forgotten once it has been silent this long, or has left a packet un-ACKed this many times
+	private static final long IDLE_TIMEOUT_NANOS = 30 * 1000000000L;
+	private static final int MAX_RETRANSMISSIONS = 6;
+
+	// Retransmission timer wheel settings, as in ReldatConnection
+	private static final long TIMER_TICK_NANOS = 1000000L;
+	private static final int TIMER_SLOTS = 256;
+
+	// Size of the channel's socket receive buffer (the system may cap it)
+	private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private final int windowSize;
+	private boolean sackEnabled = true;
+	private int maxStreams = ReldatOptions.DEFAULT_MAX_STREAMS;
+	private int maxDatagramSize = ReldatPacket.MAX_DATAGRAM_SIZE;
+	private boolean compactHeaders = true;
+	private String congestionControl = "reno";
+	private long minRto = ReldatRtoEstimator.DEFAULT_MIN_RTO;
+
+	private final Selector selector;
+	private final DatagramChannel channel;
+	private final SelectionKey key;
+
+	// Datagrams the channel had no room for, in the order they were sent, waiting for it to be writable
+	private final ArrayDeque<Unsent> unsent = new ArrayDeque<Unsent>();
+
+	// Every client we're talking to, by address
+	private final HashMap<SocketAddress, Peer> peers = new HashMap<SocketAddress, Peer>();
+	private final ArrayList<Peer> closedPeers = new ArrayList<Peer>();
+
+	// Reusable buffers (for the largest datagram any client may negotiate), and a view and
+	// selective ACK shared by every client
+	private final ByteBuffer receiveBuffer = ReldatCodec.allocateBuffer(true, ReldatPacket.MAX_DATAGRAM_SIZE);
+	private final ByteBuffer sendBuffer = ReldatCodec.allocateBuffer(true, ReldatPacket.MAX_DATAGRAM_SIZE);
+	private final ByteBuffer sackPayload = ByteBuffer.allocate(4 + 8 * ReldatSack.MAX_BLOCKS);
+	private final ByteBuffer probePadding = ByteBuffer.allocate(ReldatPacket.MAX_DATAGRAM_SIZE);
+	private final ReldatPacketView packetView = new ReldatPacketView();
+	private final ReldatChecksum handshakeChecksum = ReldatChecksums.create(ReldatChecksums.MD5);
+	private final ReldatSack sack = new ReldatSack();
+	private final int[] expiredSeqs = new int[64];
+
+	// Counts of what happened, read once the server has been closed
+	private long connections = 0;
+	private long corruptedPackets = 0;
+
+	private volatile boolean stopping = false;
+	private Thread thread;
+
+	/*
+	 * Open a server on the given loopback port (0 for any) with the given
+	 * receive window. Call start() to start serving.
+	 */
+	public ReldatLoopbackServer(int port, int windowSize) throws IOException {
+		this.windowSize = windowSize;
+		this.selector = Selector.open();
+		this.channel = DatagramChannel.open();
+		this.channel.bind(new InetSocketAddress("127.0.0.1", port));
+
+		// Clients may negotiate datagrams of up to 64 KB, so leave room for plenty of them
+		this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+		this.channel.configureBlocking(false);
+		this.key = this.channel.register(this.selector, SelectionKey.OP_READ);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: java ReldatLoopbackServer <port> <max receive window size in packets> [nosack] [nostreams] [v1] [cubic] [mtu=<max datagram size in bytes>]");
+			System.exit(0);
+		}
+
+		ReldatLoopbackServer server = new ReldatLoopbackServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("nosack"))
+				server.setSackEnabled(false);
+			else if (args[i].equals("nostreams"))
+				server.setMaxStreams(0);
+			else if (args[i].equals("v1"))
+				server.setCompactHeaders(false);
+			else if (args[i].equals("cubic"))
+				server.setCongestionControl("cubic");
+			else if (args[i].startsWith("mtu="))
+				server.setMaxDatagramSize(Integer.parseInt(args[i].substring(4)));
+		}
+
+		System.out.println("Listening on port " + server.getPort() + ".");
+		server.run();
+	}
+
+	/*
+	 * Whether to accept selective ACKs when a client offers them.
+	 */
+	public void setSackEnabled(boolean sackEnabled) {
+		this.sackEnabled = sackEnabled;
+	}
+
+	/*
+	 * Number of streams a client may have open at once, or 0 to not accept
+	 * multiplexed streams.
+	 */
+	public void setMaxStreams(int maxStreams) {
+		this.maxStreams = maxStreams;
+	}
+
+	/*
+	 * Largest datagram to accept when a client offers a larger one
+	 * (MAX_PACKET_SIZE keeps every client to the original size).
+	 */
+	public void setMaxDatagramSize(int maxDatagramSize) {
+		this.maxDatagramSize = ReldatOptions.clampDatagramSize(maxDatagramSize);
+	}
+
+	/*
+	 * Whether to accept compact (version 2) headers when a client offers them.
+	 */
+	public void setCompactHeaders(boolean compactHeaders) {
+		this.compactHeaders = compactHeaders;
+	}
+
+	/*
+	 * Congestion control algorithm for the server's own sending, by name
+	 * (see ReldatCongestionControllers.create()); Reno by default.
+	 */
+	public void setCongestionControl(String name) {
+		ReldatCongestionControllers.create(name);
+		this.congestionControl = name;
+	}
+
+	/*
+	 * Floor of the retransmission timeout for the server's own sending, in
+	 * nanoseconds (see ReldatRtoEstimator).
+	 */
+	public void setMinRto(long minRto) {
+		this.minRto = minRto;
+	}
+
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) this.channel.getLocalAddress()).getPort();
+	}
+
+	public void start() {
+		this.thread = new Thread(this, "reldat-loopback-server");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/*
+	 * Stop serving, forgetting every client, and close the server's channel.
+	 */
+	public void close() throws InterruptedException {
+		this.stopping = true;
+		this.selector.wakeup();
+		this.thread.join();
+	}
+
+	/*
+	 * Number of clients that opened a connection, and of corrupted packets
+	 * dropped. Only read them once the server has been closed.
+	 */
+	public long getConnections() {
+		return this.connections;
+	}
+
+	public long getCorruptedPackets() {
+		return this.corruptedPackets;
+	}
+
+	public void run() {
+		try {
+			while (!this.stopping) {
+				long now = System.nanoTime();
+				long deadline = Long.MAX_VALUE;
+
+				for (Peer peer : this.peers.values()) {
+					peer.onTimer(now);
+					deadline = Math.min(deadline, peer.getNextDeadline());
+				}
+
+				this.forgetClosedPeers();
+
+				// Sleep until a client sends something or a timer is due
+				long wait = deadline - System.nanoTime();
+
+				if (deadline == Long.MAX_VALUE)
+					this.selector.select();
+				else if (wait >= 1000000L)
+					this.selector.select(wait / 1000000L);
+				else
+					this.selector.selectNow();
+
+				this.selector.selectedKeys().clear();
+				this.sendUnsent();
+				this.receive();
+				this.forgetClosedPeers();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		try {
+			this.channel.close();
+			this.selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Read and handle every datagram waiting on the channel.
+	 */
+	private void receive() throws IOException {
+		while (true) {
+			this.receiveBuffer.clear();
+			SocketAddress address = this.channel.receive(this.receiveBuffer);
+
+			if (address == null)
+				return;
+
+			this.receiveBuffer.flip();
+
+			Peer peer = this.peers.get(address);
+			this.packetView.setChecksum((peer == null) ? this.handshakeChecksum : peer.checksum);
+
+			try {
+				this.packetView.wrap(this.receiveBuffer).verify();
+			} catch (HeaderCorruptedException | PayloadCorruptedException e) {
+				this.corruptedPackets++;
+				continue;
+			}
+
+			if (this.packetView.isOpen() && !this.packetView.isACK()) {
+				if (peer == null) {
+					peer = new Peer(address);
+					this.peers.put(address, peer);
+					this.connections++;
+				}
+
+				peer.onOpen(this.packetView);
+			} else if (peer != null) {
+				peer.onPacket(this.packetView);
+			}
+		}
+	}
+
+	/*
+	 * Send the given datagram to the given address, or, if the channel has
+	 * no room for it (or for the ones before it), keep a copy to send once
+	 * it has.
+	 */
+	private void sendDatagram(ByteBuffer datagram, SocketAddress address) throws IOException {
+		if (this.unsent.isEmpty() && this.channel.send(datagram, address) > 0)
+			return;
+
+		ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+		copy.put(datagram).flip();
+		this.unsent.add(new Unsent(copy, address));
+		this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/*
+	 * Send as many of the datagrams the channel had no room for as it now
+	 * takes.
+	 */
+	private void sendUnsent() throws IOException {
+		while (!this.unsent.isEmpty()) {
+			Unsent datagram = this.unsent.peek();
+
+			if (this.channel.send(datagram.data, datagram.address) == 0)
+				return;
+
+			this.unsent.poll();
+		}
+
+		this.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void forgetClosedPeers() {
+		for (Peer peer : this.closedPeers)
+			this.peers.remove(peer.address);
+
+		this.closedPeers.clear();
+	}
+
+	/*
+	 * The server's end of one client's connection.
+	 */
+	private class Peer {
+		private final SocketAddress address;
+		private long lastHeard = System.nanoTime();
+		private boolean closed = false;
+
+		// Options accepted in the handshake, the client's window, and the packet that accepted them
+		private ReldatOptions options;
+		private int clientWindowSize;
+		private int openSeq;
+		private byte[] openAckPayload;
+		private ReldatChecksum checksum = handshakeChecksum;
+		private final ReldatCodec codec = new ReldatCodec();
+
+		// Largest payload we send the client: that of the datagram size accepted in the
+		// handshake, until the client settles on a smaller one (see onNudge())
+		private int sendPayloadSize;
+
+		// Receiving: the client's data is put in order here (without multiplexing), or in
+		// each stream's window, then sent back; and what to describe in selective ACKs
+		private ReldatReceiveRing receiveRing;
+		private Echo echo;
+		private final HashMap<Integer, PeerStream> streams = new HashMap<Integer, PeerStream>();
+		private final HashSet<Integer> finishedStreams = new HashSet<Integer>();
+		private final ReldatSeqRanges receivedSeqs = new ReldatSeqRanges();
+		private int receiveFloor;
+
+		// Sending: packets queued to go out in order (with their sequence numbers), packets
+		// in flight, and their timers
+		private final ArrayDeque<ReldatPacket> queue = new ArrayDeque<ReldatPacket>();
+		private ReldatSendWindow unAcked;
+		private final ReldatTimerWheel timers = new ReldatTimerWheel(TIMER_TICK_NANOS, TIMER_SLOTS);
+		private final ReldatRtoEstimator rtoEstimator = new ReldatRtoEstimator(ReldatRtoEstimator.DEFAULT_INITIAL_RTO, minRto, ReldatRtoEstimator.DEFAULT_MAX_RTO);
+		private final ReldatLossDetector lossDetector = new ReldatLossDetector(this.rtoEstimator);
+		private long lossDeadline = Long.MAX_VALUE;
+		private final ReldatCongestionController congestionController = ReldatCongestionControllers.create(congestionControl);
+		private int nextSeq = 0;
+		private int highestSeqSent = -1;
+		private int recoverySeq = -1;
+		private boolean recoveryTimedOut = false;
+
+		// Without multiplexing: whether the client's EOD has arrived, and whether ours has been queued (and its sequence number)
+		private boolean clientEod = false;
+		private boolean eodQueued = false;
+		private int eodSeq = 0;
+
+		// Our CLOSE, once the client has sent its own, and when it's to be re-sent
+		private ReldatPacket close = null;
+		private int closeSends = 0;
+		private long closeDeadline = Long.MAX_VALUE;
+
+		public Peer(SocketAddress address) {
+			this.address = address;
+		}
+
+		/*
+		 * The client's OPEN: accept what it offered (within what the server
+		 * allows), and reply with OPEN | ACK. A repeated OPEN gets the same reply.
+		 */
+		public void onOpen(ReldatPacketView view) throws IOException {
+			this.lastHeard = System.nanoTime();
+
+			if (this.options == null) {
+				byte[] payload = new byte[view.getPayloadSize()];
+				view.copyPayload(payload, 0);
+
+				this.options = ReldatOptions.fromOffer(view.getAcknowledgementNumber(), maxDatagramSize);
+				this.options.setSackEnabled(this.options.isSackEnabled() && sackEnabled);
+				this.options.setMaxStreams(Math.min(this.options.getMaxStreams(), maxStreams));
+
+				if (!compactHeaders)
+					this.options.setHeaderVersion(ReldatHeader.VERSION_1);
+
+				this.clientWindowSize = ReldatOptions.parseWindowSize(new String(payload, StandardCharsets.UTF_8));
+				this.openSeq = view.getSequenceNumber();
+				this.openAckPayload = this.options.encodeAccepted(windowSize).getBytes(StandardCharsets.UTF_8);
+				this.sendPayloadSize = this.options.getMaxPayloadSize();
+
+				this.checksum = ReldatChecksums.create(this.options.getChecksumId());
+				this.codec.setChecksum(this.checksum);
+				this.codec.setHeaderVersion(this.options.getHeaderVersion());
+				this.congestionController.setMaxWindow(this.clientWindowSize);
+				this.unAcked = new ReldatSendWindow(this.clientWindowSize);
+				this.unAcked.reset(this.nextSeq);
+
+				// The client's data starts right after its OPEN
+				this.receiveRing = new ReldatReceiveRing(windowSize, this.options.getMaxPayloadSize());
+				this.receiveRing.reset(this.openSeq + 1);
+				this.receiveFloor = this.openSeq + 1;
+				this.echo = new Echo(this, -1);
+			}
+
+			this.send((byte) (ReldatHeader.OPEN_FLAG | ReldatHeader.ACK_FLAG), this.openSeq, 0, ByteBuffer.wrap(this.openAckPayload));
+		}
+
+		public void onPacket(ReldatPacketView view) throws IOException {
+			this.lastHeard = System.nanoTime();
+
+			if (view.isClose()) {
+				this.onClose(view);
+			} else if (view.isACK() && !view.isNudge()) {
+				this.onAck(view);
+			} else if (view.isNudge() && !view.isACK()) {
+				this.onNudge(view);
+			} else if (view.isData() || view.isEOD()) {
+				if (this.options.isMultiplexed())
+					this.onStreamPacket(view);
+				else
+					this.onData(view);
+			}
+
+			this.pump(System.nanoTime());
+		}
+
+		/*
+		 * The client's probe of a datagram size (a NUDGE padded out to exactly
+		 * that size, with the size as its sequence number), answered with a
+		 * NUDGE | ACK padded the same way; or the size it settled on (an
+		 * unpadded NUDGE), answered unpadded, after which we send nothing
+		 * larger. Sizes above the one accepted in the handshake are ignored.
+		 */
+		private void onNudge(ReldatPacketView view) throws IOException {
+			int size = view.getSequenceNumber();
+
+			if (size < ReldatPacket.MAX_PACKET_SIZE || size > this.options.getMaxDatagramSize())
+				return;
+
+			int padding = 0;
+
+			if (view.getLength() == size)
+				padding = size - this.codec.getHeaderSize((byte) (ReldatHeader.NUDGE_FLAG | ReldatHeader.ACK_FLAG), 0, size);
+			else
+				this.sendPayloadSize = this.options.getMaxPayloadSize(size);
+
+			probePadding.clear().limit(padding);
+			this.send((byte) (ReldatHeader.NUDGE_FLAG | ReldatHeader.ACK_FLAG), 0, size, probePadding);
+		}
+
+		/*
+		 * A data or end-of-data packet without multiplexing.
+		 */
+		private void onData(ReldatPacketView view) throws IOException {
+			int seqNum = view.getSequenceNumber();
+
+			if (view.isEOD()) {
+				// The client only sends it once all of its data has been ACKed, so it's all been sent back
+				if (!this.clientEod && seqNum == this.receiveRing.getNext()) {
+					this.clientEod = true;
+					this.echo.flush();
+					this.receiveRing.skipTo(seqNum + 1);
+				}
+
+				this.receivedSeqs.add(seqNum);
+				this.send((byte) (ReldatHeader.ACK_FLAG | ReldatHeader.EOD_FLAG), 0, seqNum, ByteBuffer.allocate(0));
+				return;
+			}
+
+			// New data after the client's EOD starts a new conversation, which the client only
+			// does once it has our EOD, so that's been received even if its ACK was lost
+			if (this.clientEod && this.eodQueued && !ReldatSerial.lessThan(seqNum, this.receiveRing.getNext())) {
+				this.unAcked.remove(this.eodSeq);
+				this.timers.cancel(this.eodSeq);
+				this.clientEod = false;
+				this.eodQueued = false;
+			}
+
+			if (this.receiveRing.isBeyondWindow(seqNum))
+				return;
+
+			if (seqNum == this.receiveRing.getNext()) {
+				view.writePayload(this.echo);
+				this.receiveRing.advance();
+				this.receiveRing.deliver(this.echo);
+			} else {
+				this.receiveRing.store(seqNum, view, 0);
+			}
+
+			this.acknowledge(view, false);
+		}
+
+		/*
+		 * A data or end-of-data packet of a multiplexed stream.
+		 */
+		private void onStreamPacket(ReldatPacketView view) throws IOException {
+			if (view.getPayloadSize() < ReldatStream.HEADER_SIZE)
+				return;
+
+			ByteBuffer buffer = view.getBuffer();
+			int id = buffer.getInt(view.getPayloadOffset());
+			int streamSeq = buffer.getInt(view.getPayloadOffset() + 4);
+
+			if (!this.finishedStreams.contains(id)) {
+				PeerStream stream = this.streams.get(id);
+
+				if (stream == null) {
+					stream = new PeerStream(new ReldatReceiveRing(windowSize, this.options.getMaxPayloadSize()), new Echo(this, id));
+					this.streams.put(id, stream);
+				}
+
+				if (view.isEOD()) {
+					stream.eodSeq = streamSeq;
+				} else if (stream.receiveRing.isBeyondWindow(streamSeq)) {
+					return;
+				} else if (streamSeq == stream.receiveRing.getNext()) {
+					view.writePayload(stream.echo, ReldatStream.HEADER_SIZE);
+					stream.receiveRing.advance();
+					stream.receiveRing.deliver(stream.echo);
+				} else {
+					stream.receiveRing.store(streamSeq, view, ReldatStream.HEADER_SIZE);
+				}
+
+				// Once everything up to the stream's EOD is in, send the rest back, then our EOD
+				if (stream.eodSeq >= 0 && stream.receiveRing.getNext() == stream.eodSeq) {
+					stream.echo.flush();
+					this.queue(ReldatHeader.EOD_FLAG, stream.echo.payload(0));
+					this.streams.remove(id);
+					this.finishedStreams.add(id);
+				}
+			}
+
+			this.acknowledge(view, view.isEOD());
+		}
+
+		/*
+		 * ACK a packet the client sent, with a selective ACK if they're on.
+		 */
+		private void acknowledge(ReldatPacketView view, boolean isEOD) throws IOException {
+			int seqNum = view.getSequenceNumber();
+
+			if (!this.options.isSackEnabled()) {
+				this.send((byte) (ReldatHeader.ACK_FLAG | (isEOD ? ReldatHeader.EOD_FLAG : 0)), 0, seqNum, ByteBuffer.allocate(0));
+				return;
+			}
+
+			// The data packet's ACK number is the client's lowest un-ACKed sequence number
+			this.receiveFloor = ReldatSerial.max(this.receiveFloor, view.getAcknowledgementNumber());
+			this.receivedSeqs.removeBelow(this.receiveFloor);
+			this.receivedSeqs.add(seqNum);
+
+			sack.set(this.receivedSeqs.firstMissing(this.receiveFloor), this.receivedSeqs, seqNum);
+			sackPayload.clear();
+			sack.writeTo(sackPayload);
+			sackPayload.flip();
+			this.send(ReldatHeader.ACK_FLAG, 0, seqNum, sackPayload);
+		}
+
+		/*
+		 * An ACK of our data, EOD or CLOSE.
+		 */
+		private void onAck(ReldatPacketView view) {
+			int ackNum = view.getAcknowledgementNumber();
+
+			if (this.unAcked == null)
+				return;
+
+			// ACKed again: if we re-sent it, both copies arrived (see ReldatLossDetector)
+			if (!this.unAcked.contains(ackNum) && this.lossDetector.onAckedAgain(ackNum, System.nanoTime()))
+				this.congestionController.undo();
+
+			if (this.options.isSackEnabled() && sack.read(view)) {
+				while (!this.unAcked.isEmpty() && ReldatSerial.lessThan(this.unAcked.getBase(), sack.getCumulativeAck()))
+					this.ackPacket(this.unAcked.getBase(), ackNum);
+
+				for (int block = 0; block < sack.getBlockCount(); block++) {
+					int end = sack.getBlockEnd(block);
+
+					for (int seqNum = this.unAcked.nextOutstanding(sack.getBlockStart(block)); ReldatSerial.lessThan(seqNum, end) && seqNum != this.unAcked.getNext(); seqNum = this.unAcked.nextOutstanding(seqNum + 1))
+						this.ackPacket(seqNum, ackNum);
+				}
+
+				this.retransmitHoles();
+			} else if (this.unAcked.contains(ackNum)) {
+				this.ackPacket(ackNum, ackNum);
+			}
+		}
+
+		private void ackPacket(int seqNum, int ackNum) {
+			long now = System.nanoTime();
+
+			if (seqNum == ackNum && this.unAcked.getRetransmissions(seqNum) == 0)
+				this.rtoEstimator.sample(now - this.unAcked.getSendTime(seqNum));
+
+			this.lossDetector.onAcked(seqNum, this.unAcked.getSendTime(seqNum), this.unAcked.getRetransmissions(seqNum), now);
+
+			this.unAcked.remove(seqNum);
+			this.timers.cancel(seqNum);
+			this.congestionController.onAck(now, this.rtoEstimator.getSmoothedRtt());
+		}
+
+		/*
+		 * Re-send (once) the packets selective ACKs show to be lost, as
+		 * ReldatConnection does, stopping at the first that isn't lost yet.
+		 */
+		private void retransmitHoles() {
+			long now = System.nanoTime();
+			this.lossDeadline = Long.MAX_VALUE;
+
+			for (int seqNum = this.unAcked.nextOutstanding(this.unAcked.getBase()); seqNum != this.unAcked.getNext(); seqNum = this.unAcked.nextOutstanding(seqNum + 1)) {
+				if (this.unAcked.getRetransmissions(seqNum) != 0)
+					continue;
+
+				long lossTime = this.lossDetector.getLossTime(this.unAcked.getSendTime(seqNum));
+
+				if (lossTime > now) {
+					this.lossDeadline = lossTime;
+					return;
+				}
+
+				this.retransmit(seqNum, now, false);
+			}
+		}
+
+		/*
+		 * The client's CLOSE, or its ACK of ours.
+		 */
+		private void onClose(ReldatPacketView view) throws IOException {
+			if (view.isACK()) {
+				if (this.close != null && view.getAcknowledgementNumber() == this.close.getHeader().getSequenceNumber())
+					this.finish();
+
+				return;
+			}
+
+			this.send((byte) (ReldatHeader.CLOSE_FLAG | ReldatHeader.ACK_FLAG), 0, view.getSequenceNumber(), ByteBuffer.allocate(0));
+
+			if (this.close == null)
+				this.close = new ReldatPacket(new byte[0], ReldatHeader.CLOSE_FLAG, this.nextSeq++, 0, this.options.getChecksumId());
+
+			this.sendClose();
+		}
+
+		private void sendClose() throws IOException {
+			if (this.closeSends++ >= MAX_RETRANSMISSIONS) {
+				this.finish();
+				return;
+			}
+
+			this.closeDeadline = System.nanoTime() + this.rtoEstimator.getTimeout(this.closeSends - 1);
+			sendBuffer.clear();
+			this.codec.encode(sendBuffer, this.close);
+			this.flush();
+		}
+
+		/*
+		 * Queue a packet to be sent once the window has room for it.
+		 */
+		private void queue(byte flags, byte[] payload) {
+			this.queue.add(new ReldatPacket(payload, flags, this.nextSeq++, 0, this.options.getChecksumId()));
+		}
+
+		/*
+		 * Send as many queued packets as the window has room for, and, once the
+		 * client's EOD has arrived and all of our data has been ACKed, our EOD.
+		 */
+		private void pump(long now) {
+			if (this.unAcked == null)
+				return;
+
+			int window = Math.min(this.congestionController.getWindow(), this.clientWindowSize);
+
+			while (!this.queue.isEmpty() && this.unAcked.size() < window && this.queue.peek().getHeader().getSequenceNumber() - this.unAcked.getBase() < this.clientWindowSize) {
+				ReldatPacket pkt = this.queue.poll();
+				int seqNum = pkt.getHeader().getSequenceNumber();
+
+				this.unAcked.add(pkt, now);
+				this.highestSeqSent = seqNum;
+				this.sendData(pkt, false);
+				this.timers.schedule(seqNum, now + this.rtoEstimator.getTimeout());
+			}
+
+			if (!this.options.isMultiplexed() && this.clientEod && !this.eodQueued && this.queue.isEmpty() && this.unAcked.isEmpty()) {
+				this.eodQueued = true;
+				this.eodSeq = this.nextSeq;
+				this.queue(ReldatHeader.EOD_FLAG, new byte[0]);
+				this.pump(now);
+			}
+		}
+
+		public void onTimer(long now) {
+			if (now - this.lastHeard > IDLE_TIMEOUT_NANOS) {
+				this.finish();
+				return;
+			}
+
+			try {
+				if (this.closeDeadline <= now)
+					this.sendClose();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			if (this.lossDeadline <= now && this.unAcked != null)
+				this.retransmitHoles();
+
+			int expired;
+
+			while ((expired = this.timers.expire(now, expiredSeqs)) > 0) {
+				for (int i = 0; i < expired; i++) {
+					if (!this.unAcked.contains(expiredSeqs[i]))
+						continue;
+
+					if (this.unAcked.getRetransmissions(expiredSeqs[i]) >= MAX_RETRANSMISSIONS) {
+						this.finish();
+						return;
+					}
+
+					this.retransmit(expiredSeqs[i], now, true);
+				}
+			}
+
+			this.pump(now);
+		}
+
+		public long getNextDeadline() {
+			return Math.min(Math.min(Math.min(this.timers.nextDeadline(), this.lossDeadline), this.closeDeadline), this.lastHeard + IDLE_TIMEOUT_NANOS);
+		}
+
+		/*
+		 * Re-send a packet, because its timer expired or because selective ACKs
+		 * show it missing, cutting the congestion window as ReldatConnection does.
+		 */
+		private void retransmit(int seqNum, long now, boolean timeout) {
+			if (timeout && (ReldatSerial.greaterThan(seqNum, this.recoverySeq) || !this.recoveryTimedOut)) {
+				this.lossDetector.onCut(ReldatSerial.greaterThan(seqNum, this.recoverySeq));
+				this.congestionController.onTimeout(now, this.unAcked.size());
+				this.recoverySeq = this.highestSeqSent;
+				this.recoveryTimedOut = true;
+			} else if (!timeout && ReldatSerial.greaterThan(seqNum, this.recoverySeq)) {
+				this.lossDetector.onCut(true);
+				this.congestionController.onLoss(now);
+				this.recoverySeq = this.highestSeqSent;
+				this.recoveryTimedOut = false;
+			}
+
+			ReldatPacket pkt = this.unAcked.get(seqNum);
+			pkt.addFlag(ReldatHeader.RETRANSMIT_FLAG);
+			this.unAcked.countRetransmission(seqNum);
+			this.sendData(pkt, true);
+			this.lossDetector.onRetransmit(seqNum, this.unAcked.getSendTime(seqNum), this.unAcked.getRetransmissions(seqNum), !timeout);
+			this.timers.schedule(seqNum, now + this.rtoEstimator.getTimeout(this.unAcked.getRetransmissions(seqNum)));
+		}
+
+		/*
+		 * Send a data or EOD packet; with SACK, its ACK number is our lowest un-ACKed sequence number.
+		 */
+		private void sendData(ReldatPacket pkt, boolean isRetransmission) {
+			int ackNum = this.options.isSackEnabled() ? this.unAcked.getBase() : 0;
+
+			try {
+				this.send(pkt.getHeader().getFlags(), pkt.getHeader().getSequenceNumber(), ackNum, ByteBuffer.wrap(pkt.getData()));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void send(byte flags, int seqNum, int ackNum, ByteBuffer payload) throws IOException {
+			sendBuffer.clear();
+			this.codec.encode(sendBuffer, flags, seqNum, ackNum, payload);
+			this.flush();
+		}
+
+		/*
+		 * Send what's in the send buffer to the client. If the channel is full, the
+		 * datagram waits for it to have room, rather than being lost.
+		 */
+		private void flush() throws IOException {
+			sendBuffer.flip();
+			sendDatagram(sendBuffer, this.address);
+		}
+
+		private void finish() {
+			if (this.closed)
+				return;
+
+			this.closed = true;
+			this.timers.clear();
+			this.lossDeadline = Long.MAX_VALUE;
+			this.closeDeadline = Long.MAX_VALUE;
+			closedPeers.add(this);
+		}
+	}
+
+	/*
+	 * A datagram waiting for the channel to have room for it.
+	 */
+	private static class Unsent {
+		private final ByteBuffer data;
+		private final SocketAddress address;
+
+		public Unsent(ByteBuffer data, SocketAddress address) {
+			this.data = data;
+			this.address = address;
+		}
+	}
+
+	/*
+	 * The server's end of one multiplexed stream.
+	 */
+	private static class PeerStream {
+		private final ReldatReceiveRing receiveRing;
+		private final Echo echo;
+		private int eodSeq = -1;
+
+		public PeerStream(ReldatReceiveRing receiveRing, Echo echo) {
+			this.receiveRing = receiveRing;
+			this.echo = echo;
+		}
+	}
+
+	/*
+	 * Where a client's data goes once it's in order: it is put in upper case
+	 * and cut into packets as large as the client takes, which are queued to
+	 * be sent back. A stream's packets start with the stream header.
+	 */
+	private static class Echo implements WritableByteChannel {
+		private final Peer peer;
+		private final int streamId;
+		private final int headerSize;
+		private final byte[] chunk;
+		private int chunkSize = 0;
+		private int nextStreamSeq = 0;
+
+		public Echo(Peer peer, int streamId) {
+			this.peer = peer;
+			this.streamId = streamId;
+			this.headerSize = (streamId >= 0) ? ReldatStream.HEADER_SIZE : 0;
+			this.chunk = new byte[peer.options.getMaxPayloadSize() - this.headerSize];
+		}
+
+		public int write(ByteBuffer src) {
+			int length = src.remaining();
+
+			while (src.hasRemaining()) {
+				byte b = src.get();
+				this.chunk[this.chunkSize++] = (b >= 'a' && b <= 'z') ? (byte) (b - 32) : b;
+
+				if (this.chunkSize >= this.peer.sendPayloadSize - this.headerSize)
+					this.flush();
+			}
+
+			return length;
+		}
+
+		/*
+		 * Queue whatever is left over as a packet of its own.
+		 */
+		public void flush() {
+			if (this.chunkSize > 0)
+				this.peer.queue(ReldatHeader.DATA_FLAG, this.payload(this.chunkSize));
+
+			this.chunkSize = 0;
+		}
+
+		/*
+		 * A payload made of the stream header (if any) and the first length bytes of the chunk.
+		 */
+		private byte[] payload(int length) {
+			ByteBuffer payload = ByteBuffer.allocate(this.headerSize + length);
+
+			if (this.headerSize > 0)
+				payload.putInt(this.streamId).putInt(this.nextStreamSeq++);
+
+			payload.put(this.chunk, 0, length);
+			return payload.array();
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+}
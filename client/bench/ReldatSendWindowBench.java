@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import reldat.ReldatHeader;
+import reldat.ReldatPacket;
+import reldat.ReldatSendWindow;
+
+/*
+ * Measures the cost of tracking un-ACKed packets on the send side, per
+ * packet, for windows of 16 up to 65536 packets.
+ *
+ * Each run keeps a full window of packets outstanding: every ACK removes a
+ * packet (and looks up its retransmission count and send time, as
+ * ReldatConnection does to time the round trip), and a new packet takes its
+ * place. ACKs arrive mostly in order, with some packets overtaken by up to a
+ * quarter of a window, like the ACKs of a lossy path with selective ACKs.
+ *
+ * ReldatSendWindow is compared with the old bookkeeping: an ArrayList of
+ * packets searched by sequence number, boxed HashMaps of retransmission
+ * counts and send times, and a contains() check on the list before each
+ * packet is sent. The old approach is O(window) per packet, so it is only
+ * run up to a smaller maximum window.
+ *
+ * Usage: java -Xmx2g -cp <classes> ReldatSendWindowBench [max window] [max legacy window]
+ */
+public class ReldatSendWindowBench {
+	// Packets sent per run
+	private static final int PACKETS = 1 << 20;
+
+	public static void main(String[] args) {
+		int maxWindow = args.length > 0 ? Integer.parseInt(args[0]) : 65536;
+		int maxLegacyWindow = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+
+		// Packets with empty payloads; building them isn't part of what's measured
+		ReldatPacket[] packets = new ReldatPacket[PACKETS];
+
+		for (int i = 0; i < PACKETS; i++)
+			packets[i] = new ReldatPacket(new byte[0], ReldatHeader.DATA_FLAG, i, 0);
+
+		// Warm up the JIT
+		for (int i = 0; i < 3; i++) {
+			runWindow(packets, ackOrder(16, i), 16);
+			runWindow(packets, ackOrder(1024, i), 1024);
+			runLegacy(packets, ackOrder(16, i), 16, PACKETS / 4);
+		}
+
+		System.out.printf("%8s  %-20s %12s%n", "window", "tracking", "ns/packet");
+
+		for (int window = 16; window <= maxWindow; window *= 4) {
+			int[] order = ackOrder(window, window);
+
+			report(window, "ReldatSendWindow", runWindow(packets, order, window), PACKETS);
+
+			if (window <= maxLegacyWindow) {
+				// Fewer packets for big windows, so the run doesn't take all day
+				int legacyPackets = Math.min(PACKETS, Math.max(PACKETS / window * 64, 4 * window));
+				report(window, "ArrayList+HashMap", runLegacy(packets, order, window, legacyPackets), legacyPackets);
+			}
+		}
+	}
+
+	private static void report(int window, String tracking, long nanos, int packets) {
+		System.out.printf("%8d  %-20s %12.1f%n", window, tracking, (double) nanos / packets);
+	}
+
+	/*
+	 * The order the packets are ACKed in: in order, except that some are
+	 * swapped with a packet up to a quarter of a window later.
+	 */
+	private static int[] ackOrder(int window, long seed) {
+		Random random = new Random(seed);
+		int[] order = new int[PACKETS];
+		int reach = Math.max(window / 4, 1);
+
+		for (int i = 0; i < PACKETS; i++)
+			order[i] = i;
+
+		for (int i = 0; i < PACKETS; i++) {
+			if (random.nextInt(10) == 0) {
+				int j = Math.min(i + random.nextInt(reach), PACKETS - 1);
+				int swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+			}
+		}
+
+		return order;
+	}
+
+	private static long runWindow(ReldatPacket[] packets, int[] order, int window) {
+		ReldatSendWindow unAcked = new ReldatSendWindow(window);
+		long checksum = 0;
+		int sent = 0;
+
+		long start = System.nanoTime();
+
+		for (int acked = 0; acked < PACKETS; acked++) {
+			while (sent < PACKETS && unAcked.size() < window)
+				unAcked.add(packets[sent++], sent);
+
+			int seqNum = order[acked];
+			checksum += unAcked.getSendTime(seqNum) + unAcked.getRetransmissions(seqNum);
+			unAcked.remove(seqNum);
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		if (!unAcked.isEmpty() || checksum == 0)
+			throw new IllegalStateException("Send window not drained");
+
+		return elapsed;
+	}
+
+	private static long runLegacy(ReldatPacket[] packets, int[] order, int window, int count) {
+		ArrayList<ReldatPacket> unAcked = new ArrayList<ReldatPacket>();
+		HashMap<Integer, Integer> retransmissions = new HashMap<Integer, Integer>();
+		HashMap<Integer, Long> sendTimes = new HashMap<Integer, Long>();
+		long checksum = 0;
+		int sent = 0;
+
+		long start = System.nanoTime();
+
+		for (int acked = 0; acked < count; acked++) {
+			while (sent < PACKETS && unAcked.size() < window) {
+				ReldatPacket pkt = packets[sent++];
+
+				if (!unAcked.contains(pkt)) {
+					retransmissions.put(pkt.getHeader().getSequenceNumber(), 0);
+					sendTimes.put(pkt.getHeader().getSequenceNumber(), (long) sent);
+					unAcked.add(pkt);
+				}
+			}
+
+			int seqNum = order[acked];
+
+			for (int i = 0; i < unAcked.size(); i++) {
+				if (unAcked.get(i).getHeader().getSequenceNumber() == seqNum) {
+					unAcked.remove(i);
+					break;
+				}
+			}
+
+			checksum += sendTimes.remove(seqNum) + retransmissions.remove(seqNum);
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		if (checksum == 0)
+			throw new IllegalStateException("Nothing was ACKed");
+
+		return elapsed;
+	}
+}
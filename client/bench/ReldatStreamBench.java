@@ -0,0 +1,171 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import reldat.ReldatByteSink;
+import reldat.ReldatChunkReader;
+import reldat.ReldatPacket;
+
+/*
+ * Measures how the client's file reading and received-data collection scale
+ * with the size of the file, without a network in the way.
+ *
+ * For each size, a file of that many bytes of text is read in packet-sized
+ * chunks (ReldatChunkReader over a FileChannel, the way transfer() reads its
+ * source), and the chunks are written to a ReldatByteSink (the way
+ * conversation() collects the server's data) and to a file (the way the
+ * client writes out a transformed file). For small sizes, the old approach
+ * (readLine() appended to a String, and each packet's data appended to a
+ * String) is timed too, for comparison. Linear scaling shows up as a flat
+ * ns/byte column.
+ *
+ * Usage: java -Xmx3g -cp <classes> ReldatStreamBench [max size in MB] [max legacy size in MB]
+ */
+public class ReldatStreamBench {
+	private static final int MB = 1024 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		int maxMb = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int maxLegacyMb = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+		Path dir = Files.createTempDirectory("reldat-bench");
+
+		System.out.printf("%8s  %-22s %10s %10s%n", "size", "method", "ms", "ns/byte");
+
+		for (int sizeMb = 1; sizeMb <= maxMb; sizeMb *= 4) {
+			long size = (long) sizeMb * MB;
+			Path input = dir.resolve("input-" + sizeMb + ".txt");
+			Path output = dir.resolve("output-" + sizeMb + ".txt");
+
+			writeTextFile(input, size);
+
+			// Warm up the JIT once on the smallest size
+			if (sizeMb == 1) {
+				readToSink(input, size);
+				readToFile(input, output);
+			}
+
+			report(sizeMb, "chunks -> byte sink", readToSink(input, size), size);
+			report(sizeMb, "chunks -> file", readToFile(input, output), size);
+
+			if (sizeMb <= maxLegacyMb)
+				report(sizeMb, "legacy string +=", readLegacy(input), size);
+
+			Files.delete(input);
+			Files.deleteIfExists(output);
+		}
+
+		Files.delete(dir);
+	}
+
+	private static void report(int sizeMb, String method, long nanos, long size) {
+		System.out.printf("%6d MB  %-22s %10d %10.2f%n", sizeMb, method, nanos / 1000000, (double) nanos / size);
+	}
+
+	/*
+	 * Fill a file with lines of printable text.
+	 */
+	private static void writeTextFile(Path path, long size) throws IOException {
+		ByteBuffer block = ByteBuffer.allocateDirect(ReldatChunkReader.DEFAULT_BLOCK_SIZE);
+
+		for (int i = 0; block.hasRemaining(); i++)
+			block.put((byte) (i % 80 == 79 ? '\n' : 'a' + i % 26));
+
+		FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+		for (long written = 0; written < size; ) {
+			block.clear();
+			block.limit((int) Math.min(block.capacity(), size - written));
+
+			while (block.hasRemaining())
+				written += out.write(block);
+		}
+
+		out.close();
+	}
+
+	private static long readToSink(Path input, long size) throws IOException {
+		long start = System.nanoTime();
+
+		FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+		ReldatChunkReader reader = new ReldatChunkReader();
+		ReldatByteSink sink = new ReldatByteSink();
+		ByteBuffer chunk = ByteBuffer.allocate(ReldatPacket.PACKET_PAYLOAD_SIZE);
+
+		reader.reset(in);
+
+		while (reader.readChunk(chunk) > 0) {
+			chunk.flip();
+			sink.write(chunk);
+			chunk.clear();
+		}
+
+		in.close();
+		long elapsed = System.nanoTime() - start;
+
+		if (sink.size() != size)
+			throw new IllegalStateException("Collected " + sink.size() + " bytes instead of " + size);
+
+		return elapsed;
+	}
+
+	private static long readToFile(Path input, Path output) throws IOException {
+		long start = System.nanoTime();
+
+		FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+		FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		ReldatChunkReader reader = new ReldatChunkReader();
+		ByteBuffer chunk = ByteBuffer.allocate(ReldatPacket.PACKET_PAYLOAD_SIZE);
+
+		reader.reset(in);
+
+		while (reader.readChunk(chunk) > 0) {
+			chunk.flip();
+
+			while (chunk.hasRemaining())
+				out.write(chunk);
+
+			chunk.clear();
+		}
+
+		in.close();
+		out.close();
+
+		return System.nanoTime() - start;
+	}
+
+	/*
+	 * The client's old way of doing the same work: read the file a line at a
+	 * time onto the end of a String, then build the received data by appending
+	 * each packet's worth of it to another String.
+	 */
+	private static long readLegacy(Path input) throws IOException {
+		long start = System.nanoTime();
+
+		String newStr = "";
+		BufferedReader br = new BufferedReader(new FileReader(input.toFile()));
+		String sCurrentLine = null;
+
+		while ((sCurrentLine = br.readLine()) != null)
+			newStr += sCurrentLine + "\n";
+
+		br.close();
+
+		String totalData = "";
+
+		for (int i = 0; i < newStr.length(); i += ReldatPacket.PACKET_PAYLOAD_SIZE)
+			totalData += newStr.substring(i, Math.min(i + ReldatPacket.PACKET_PAYLOAD_SIZE, newStr.length()));
+
+		long elapsed = System.nanoTime() - start;
+
+		if (totalData.length() != newStr.length())
+			throw new IllegalStateException("Legacy path lost data");
+
+		return elapsed;
+	}
+}
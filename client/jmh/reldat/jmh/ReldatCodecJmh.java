@@ -0,0 +1,115 @@
+package reldat.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import reldat.ReldatCodec;
+import reldat.ReldatHeader;
+import reldat.ReldatPacket;
+import reldat.ReldatPacketView;
+import reldat.checksum.ReldatChecksum;
+import reldat.checksum.ReldatChecksums;
+import reldat.exception.HeaderCorruptedException;
+import reldat.exception.PayloadCorruptedException;
+
+/*
+ * The codec benchmarks of ReldatHotPathBench under JMH, built by the jmh
+ * profile in client/pom.xml: a payload's checksum, encoding a data packet
+ * into a send buffer, and checking one in place in a receive buffer. The
+ * parameters are the same: payloads from an empty packet to a full one of
+ * the original 1000 bytes and one of a jumbo frame, both checksum
+ * algorithms, and both header versions.
+ *
+ * ReldatHotPathBench covers the rest of the hot paths, and runs without JMH.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class ReldatCodecJmh {
+	/*
+	 * A payload of lowercase text, like the files the client sends, and the
+	 * checksum algorithm to cover it with.
+	 */
+	@State(Scope.Thread)
+	public static class Payload {
+		@Param({ "0", "128", "955", "8927" })
+		public int size;
+
+		// ReldatChecksums.MD5 and ReldatChecksums.CRC32C
+		@Param({ "0", "1" })
+		public byte checksumId;
+
+		private ByteBuffer data;
+		private ReldatChecksum checksum;
+		private byte[] result = new byte[ReldatHeader.CHECKSUM_SIZE];
+
+		@Setup
+		public void setUp() {
+			byte[] payload = new byte[this.size];
+
+			for (int i = 0; i < this.size; i++)
+				payload[i] = (byte) ('a' + i % 26);
+
+			this.data = ByteBuffer.wrap(payload);
+			this.checksum = ReldatChecksums.create(this.checksumId);
+		}
+	}
+
+	/*
+	 * A codec for the payload's checksum algorithm and the given header
+	 * version, a send buffer to encode into, and a receive buffer holding
+	 * the payload already encoded, to check.
+	 */
+	@State(Scope.Thread)
+	public static class Codec {
+		@Param({ "1", "2" })
+		public int headerVersion;
+
+		private ReldatCodec codec;
+		private ByteBuffer sendBuffer = ReldatCodec.allocateBuffer(true, ReldatPacket.MAX_DATAGRAM_SIZE);
+		private ReldatPacketView view;
+		private ByteBuffer receiveBuffer = ReldatCodec.allocateBuffer(true, ReldatPacket.MAX_DATAGRAM_SIZE);
+
+		@Setup
+		public void setUp(Payload payload) {
+			this.codec = new ReldatCodec(ReldatChecksums.create(payload.checksumId));
+			this.codec.setHeaderVersion(this.headerVersion);
+			this.view = new ReldatPacketView(ReldatChecksums.create(payload.checksumId));
+
+			this.codec.encode(this.receiveBuffer, ReldatHeader.DATA_FLAG, 1, 0, payload.data);
+			this.receiveBuffer.flip();
+		}
+	}
+
+	@Benchmark
+	public byte checksum(Payload payload) {
+		payload.checksum.checksum(payload.data, 0, payload.size, payload.result);
+		return payload.result[0];
+	}
+
+	@Benchmark
+	public int encode(Payload payload, Codec codec) {
+		codec.sendBuffer.clear();
+		return codec.codec.encode(codec.sendBuffer, ReldatHeader.DATA_FLAG, 1, 0, payload.data);
+	}
+
+	@Benchmark
+	public int verify(Codec codec) throws HeaderCorruptedException, PayloadCorruptedException {
+		codec.view.wrap(codec.receiveBuffer).verify();
+		return codec.view.getPayloadSize();
+	}
+}
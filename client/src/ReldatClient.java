@@ -1,17 +1,22 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import reldat.ReldatConnection;
+import reldat.ReldatEventLog;
+import reldat.ReldatReceiveRing;
+import reldat.ReldatStream;
+import reldat.ReldatStripedTransfer;
+import reldat.congestion.ReldatCongestionControllers;
 
 public class ReldatClient {
 	public static void main(String[] args) {
-		if(args.length != 2)
+		if(args.length < 2 || args.length > 4)
 			usage();
 
 		// Match the first arg against the format: <IPv4 address>:<port>
@@ -32,27 +37,39 @@ public class ReldatClient {
 		// Arg 2 is the max window size
 		int maxReceiveWindowSize = Integer.parseInt(args[1]);
 
+		// If the window is too big to buffer, print usage and exit
+		if(maxReceiveWindowSize < 1 || maxReceiveWindowSize > ReldatReceiveRing.MAX_WINDOW)
+			usage();
+
 		// Create a new RELDAT connection using the specified max window size
 		ReldatConnection reldatConn = new ReldatConnection(maxReceiveWindowSize);
 
+		// Optional arg 3 is the largest datagram to offer the server, and arg 4 asks to probe for it
+		if(args.length > 2)
+			reldatConn.setMaxDatagramSize(Integer.parseInt(args[2]), args.length > 3 && args[3].equals("probe"));
+
 		try {
 			// If we successfully connect to a host, enter the command loop
 			if (reldatConn.connect(ipAddress, port))
-				commandLoop(reldatConn);
+				commandLoop(reldatConn, ipAddress, maxReceiveWindowSize);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		
-		// Explicitly exit to terminate the command thread if it doesn't successfully join()
+		// Print the last of the connection's events, then explicitly exit to
+		// terminate the command thread if it doesn't successfully join()
+		ReldatEventLog.flush();
 		System.exit(0);
 	}
 
 	private static void usage() {
-		System.out.println( "Usage: java ReldatClient <host IP address>:<host port> <max receive window size in packets>" );
+		System.out.println( "Usage: java ReldatClient <host IP address>:<host port> <max receive window size in packets> [<max datagram size in bytes> [probe]]" );
 		System.exit( 0 );
 	}
 
-	private static void commandLoop(ReldatConnection reldatConn) {
+	private static void commandLoop(ReldatConnection reldatConn, String ipAddress, int maxReceiveWindowSize) {
+		// The connection's events are printed in the background; let them catch up before each prompt
+		ReldatEventLog.flush();
 		System.out.print( "> " );
 
 		// Create a new thread so we can read in commands without blocking
@@ -60,7 +77,8 @@ public class ReldatClient {
 		Thread cmdInput  = new Thread(cr);
 		cmdInput.start();
 		
-		String transformedData = "";
+		// Whether the server is still reachable
+		boolean serverAlive = true;
 		
 		connectionLoop: {
 			while (true) {
@@ -77,29 +95,54 @@ public class ReldatClient {
 							// Just break out of this loop to enter the disconnect phase
 							break connectionLoop;
 						case "transform":
-							// Get the filename
-							String fileName = commandMatch.group(2);
+							// Get the filenames
+							String fileNames = commandMatch.group(2);
 							
-							// Ensure the filename is valid
-							if (fileName == null || fileName.isEmpty())
-								System.out.println("  Usage: transform <file>");
+							// Ensure there is at least one filename
+							if (fileNames == null || fileNames.trim().isEmpty())
+								System.out.println("  Usage: transform <file> [<file> ...]");
 							else {
-								String messageToSend = null;
-
-								try {
-									messageToSend = readFileToString(fileName);
-									transformedData = reldatConn.conversation(messageToSend);
-
-									// If null was returned, then we lost connection to the server, so quit
-									if (transformedData == null)
-										break connectionLoop;
-									
-									outputTransformed(fileName, transformedData);
-								} catch (FileNotFoundException e) {
-									System.out.println("  File not found: " + fileName);
-								}
+								serverAlive = transformFiles(reldatConn, fileNames.trim().split("\\s+"));
+
+								// If the transfer failed, then we lost connection to the server, so quit
+								if (!serverAlive)
+									break connectionLoop;
 							}
 
+							break;
+						case "stripe":
+							// Get the filename and the server ports to stripe it across
+							String[] stripeArgs = (commandMatch.group(2) == null) ? new String[0] : commandMatch.group(2).trim().split("\\s+");
+
+							if (stripeArgs.length < 2 || (stripeArgs[0].equals("-c") && stripeArgs.length < 4))
+								System.out.println("  Usage: stripe [-c <chunk size in bytes>] <file> <port> [<port> ...]");
+							else
+								stripeFile(ipAddress, maxReceiveWindowSize, stripeArgs);
+
+							break;
+						case "log":
+							// Change which of the connection's events are printed
+							String level = commandMatch.group(2);
+							
+							if (level == null || ReldatEventLog.parseLevel(level.trim(), -1) < 0)
+								System.out.println("  Usage: log off|warn|info|debug");
+							else
+								ReldatEventLog.setLevel(ReldatEventLog.parseLevel(level.trim(), -1));
+							
+							break;
+						case "cc":
+							// Switch congestion control algorithms; it takes effect with the next transfer's packets
+							String algorithm = commandMatch.group(2);
+							
+							if (algorithm == null || !algorithm.trim().matches("(?i)reno|cubic"))
+								System.out.println("  Usage: cc reno|cubic (currently " + reldatConn.getCongestionController().getName() + ")");
+							else
+								reldatConn.setCongestionController(ReldatCongestionControllers.create(algorithm.trim()));
+							
+							break;
+						case "stats":
+							// Print the connection's metrics so far
+							System.out.println(reldatConn.getMetrics().snapshot());
 							break;
 						default:
 							// All other commands are unrecognized
@@ -107,13 +150,18 @@ public class ReldatClient {
 								"Unrecognized command " +
 								command +
 								". Valid commands are:\n" +
+								"    cc\n" +
 								"    disconnect\n" +
+								"    log\n" +
+								"    stats\n" +
+								"    stripe\n" +
 								"    transform"
 							);
 
 							break;
 					}
 
+					ReldatEventLog.flush();
 					System.out.print("> ");
 				}
 				
@@ -129,41 +177,217 @@ public class ReldatClient {
 			// Do nothing, because we're going to exit anyway
 		}
 		
-		// The return value of the method that gives us transformed data
-		// can return null if the server crashed. If that happens, we know
-		// not to try to disconnect from the (unreachable) server.
-		if (transformedData != null)
+		// The method that transforms a file returns false if the server
+		// crashed. If that happens, we know not to try to disconnect
+		// from the (unreachable) server.
+		if (serverAlive)
 			reldatConn.disconnect();
 	}
 	
 	/*
-	 * Read the contents of a file into RAM.
+	 * Transform each of the given files. If the server accepted multiplexed streams,
+	 * the files are transformed at the same time, as many at once as the connection
+	 * allows, over the one connection; otherwise they're transformed one after another.
+	 * Returns false if the server became unreachable.
 	 */
-	private static String readFileToString(String filename) throws FileNotFoundException {
-		String newStr = "";
-
-		BufferedReader br = new BufferedReader(new FileReader(filename));
-		String sCurrentLine = null;
+	private static boolean transformFiles(ReldatConnection reldatConn, String[] fileNames) {
+		if (!reldatConn.isMultiplexed()) {
+			for (String fileName : fileNames) {
+				if (!transformFile(reldatConn, fileName))
+					return false;
+			}
+			
+			return true;
+		}
 		
-		try {
-			while ((sCurrentLine = br.readLine()) != null) {
-				// readLine() trims newlines, so re-append them
-				newStr += sCurrentLine + "\n";
+		HashMap<ReldatStream, FileTransform> running = new HashMap<ReldatStream, FileTransform>();
+		boolean serverAlive = true;
+		int next = 0;
+		
+		while (serverAlive && (next < fileNames.length || !running.isEmpty())) {
+			// Start as many transforms as the connection has room for
+			while (next < fileNames.length && reldatConn.getOpenStreams() < reldatConn.getMaxStreams()) {
+				FileTransform transform = new FileTransform(fileNames[next++]);
+				
+				if (transform.open())
+					running.put(reldatConn.openStream(transform.in, transform.out), transform);
 			}
 			
-			br.close();
+			// Then wait for one of them to finish
+			ReldatStream stream = reldatConn.awaitStream();
+			
+			if (stream == null)
+				break;
+			
+			FileTransform transform = running.remove(stream);
+			
+			try {
+				serverAlive = reldatConn.finishStream(stream);
+				
+				if (serverAlive)
+					System.out.println("Created filed with transformed data: " + transform.newFilename);
+			} catch (IOException e) {
+				System.err.println("Could not transform file: " + transform.fileName + " (" + e.getMessage() + ")");
+			}
+			
+			transform.close();
+		}
+		
+		// If the server went away, the rest of the transforms went with it
+		for (FileTransform transform : running.values())
+			transform.close();
+		
+		return serverAlive;
+	}
+	
+	/*
+	 * Stream a file to the server and the transformed data it sends back to a new file,
+	 * <filename>-received.<extension>, without reading either file into RAM. Returns
+	 * false if the server became unreachable.
+	 */
+	private static boolean transformFile(ReldatConnection reldatConn, String fileName) {
+		FileTransform transform = new FileTransform(fileName);
+		boolean serverAlive = true;
+
+		if (!transform.open())
+			return true;
+
+		try {
+			serverAlive = reldatConn.transfer(transform.in, transform.out);
+
+			if (serverAlive)
+				System.out.println("Created filed with transformed data: " + transform.newFilename);
 		} catch (IOException e) {
-			e.printStackTrace();
+			System.err.println("Could not transform file: " + fileName + " (" + e.getMessage() + ")");
 		}
 
-        return newStr;
+		transform.close();
+		return serverAlive;
 	}
 	
 	/*
-	 * Given a filename in the form of <filename>.<extension> and a string,
-	 * write the string to the file <filename>-received.<extension>.
+	 * Transform one file over several connections at once, one per server port
+	 * given after the filename (see ReldatStripedTransfer), and report the
+	 * aggregate throughput. The command's own connection isn't used.
 	 */
-	private static void outputTransformed(String originalFilename, String transformedData) {
+	private static void stripeFile(String ipAddress, int maxReceiveWindowSize, String[] stripeArgs) {
+		int chunkSize = ReldatStripedTransfer.DEFAULT_CHUNK_SIZE;
+		int first = 0;
+
+		// An optional chunk size comes before the filename
+		if (stripeArgs[0].equals("-c")) {
+			chunkSize = parseNumber(stripeArgs[1], Integer.MAX_VALUE);
+
+			if (chunkSize <= 0) {
+				System.out.println("  Invalid chunk size: " + stripeArgs[1]);
+				return;
+			}
+
+			first = 2;
+		}
+
+		String fileName = stripeArgs[first];
+		int[] ports = new int[stripeArgs.length - first - 1];
+
+		for (int i = 0; i < ports.length; i++) {
+			ports[i] = parseNumber(stripeArgs[first + i + 1], 65535);
+
+			if (ports[i] <= 0) {
+				System.out.println("  Invalid port: " + stripeArgs[first + i + 1]);
+				return;
+			}
+		}
+
+		String newFilename = receivedFilename(fileName);
+		ReldatStripedTransfer striped = new ReldatStripedTransfer(ipAddress, ports, maxReceiveWindowSize);
+		striped.setChunkSize(chunkSize);
+
+		try {
+			if (!striped.transfer(Paths.get(fileName), Paths.get(newFilename))) {
+				System.out.println("  Could not transform file: " + fileName + " (every server became unreachable)");
+				return;
+			}
+		} catch (NoSuchFileException e) {
+			System.out.println("  File not found: " + fileName);
+			return;
+		} catch (IOException e) {
+			System.err.println("Could not transform file: " + fileName + " (" + e.getMessage() + ")");
+			return;
+		}
+
+		System.out.println("Created filed with transformed data: " + newFilename);
+		System.out.println(String.format(
+			"  %d bytes in %.3f s over %d stripes (%.2f MB/s)",
+			striped.getBytesSent(),
+			striped.getElapsedNanos() / 1e9,
+			striped.getStripeCount(),
+			striped.getThroughput() / (1024 * 1024)
+		));
+	}
+
+	/*
+	 * Parse a positive number no bigger than max, or return -1 if it isn't one.
+	 */
+	private static int parseNumber(String number, int max) {
+		try {
+			int value = Integer.parseInt(number);
+			return (value > 0 && value <= max) ? value : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * A file being transformed: the file itself, and the file the transformed
+	 * data goes to.
+	 */
+	private static class FileTransform {
+		private String fileName;
+		private String newFilename;
+		private FileChannel in = null;
+		private FileChannel out = null;
+		
+		public FileTransform(String fileName) {
+			this.fileName = fileName;
+			this.newFilename = receivedFilename(fileName);
+		}
+		
+		/*
+		 * Open both files. Returns false (and prints why) if either can't be opened.
+		 */
+		public boolean open() {
+			try {
+				this.in = FileChannel.open(Paths.get(this.fileName), StandardOpenOption.READ);
+				this.out = FileChannel.open(Paths.get(this.newFilename), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				return true;
+			} catch (NoSuchFileException e) {
+				System.out.println("  File not found: " + this.fileName);
+			} catch (IOException e) {
+				System.err.println("Could not transform file: " + this.fileName + " (" + e.getMessage() + ")");
+			}
+			
+			this.close();
+			return false;
+		}
+		
+		public void close() {
+			try {
+				if (this.in != null)
+					this.in.close();
+
+				if (this.out != null)
+					this.out.close();
+			} catch (IOException e) {
+				System.err.println("Could not write file: " + this.newFilename);
+			}
+		}
+	}
+
+	/*
+	 * Given a filename in the form of <filename>.<extension>,
+	 * return the filename <filename>-received.<extension>.
+	 */
+	private static String receivedFilename(String originalFilename) {
 		// Get the filename and extension from the original filename
 		String[] tokens = originalFilename.split("\\.(?=[^\\.]+$)");
 		
@@ -174,13 +398,6 @@ public class ReldatClient {
 		if(tokens.length == 2)
 			newFilename += "." + tokens[1];
 
-		try {
-			BufferedWriter bw = new BufferedWriter(new FileWriter(newFilename));
-			bw.write(transformedData);
-			bw.close();
-			System.out.println("Created filed with transformed data: " + newFilename);
-		} catch (IOException e) {
-			System.err.println("Could not write file: " + newFilename);
-		}
+		return newFilename;
 	}
 }
@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import reldat.ReldatByteSink;
+import reldat.ReldatEventLog;
+import reldat.ReldatSession;
+import reldat.ReldatSessionRuntime;
+
+/*
+ * Puts load on a RELDAT server: runs many client sessions against it at once
+ * on a ReldatSessionRuntime, each of which connects, transforms the same
+ * payload a number of times and disconnects, then reports how the server
+ * coped. Every transformed payload is checked against what the server
+ * should have sent back.
+ */
+public class ReldatLoadGenerator {
+	public static void main(String[] args) {
+		if (args.length < 3 || args.length > 6)
+			usage();
+
+		// Match the first arg against the format: <IPv4 address>:<port>[-<last port>]
+		Pattern hostRegex = Pattern.compile("^(\\d{1,3}[.]\\d{1,3}[.]\\d{1,3}[.]\\d{1,3}):(\\d{1,5})(?:-(\\d{1,5}))?$");
+		Matcher hostMatch = hostRegex.matcher(args[0]);
+
+		if (!hostMatch.matches())
+			usage();
+
+		String ipAddress = hostMatch.group(1);
+		int firstPort = Integer.parseInt(hostMatch.group(2));
+		int lastPort = (hostMatch.group(3) == null) ? firstPort : Integer.parseInt(hostMatch.group(3));
+
+		if (lastPort > 65535 || lastPort < firstPort)
+			usage();
+
+		int windowSize = Integer.parseInt(args[1]);
+		int sessionCount = Integer.parseInt(args[2]);
+		int conversations = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+		int payloadSize = (args.length > 4) ? Integer.parseInt(args[4]) : 1000;
+		int threads = (args.length > 5) ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+
+		// Lowercase letters, so we know what the server's transformation gives back
+		byte[] payload = new byte[payloadSize];
+		Random random = new Random(3251);
+
+		for (int i = 0; i < payload.length; i++)
+			payload[i] = (byte) ('a' + random.nextInt(26));
+
+		byte[] expected = new String(payload).toUpperCase().getBytes();
+		List<byte[]> payloads = Collections.nCopies(conversations, payload);
+
+		// Every session would log its connect and disconnect; with this many of them, only failures are of interest
+		ReldatEventLog.setLevel(ReldatEventLog.WARN);
+
+		ArrayList<CheckedSession> sessions = new ArrayList<CheckedSession>(sessionCount);
+
+		for (int i = 0; i < sessionCount; i++)
+			sessions.add(new CheckedSession(ipAddress, firstPort + i % (lastPort - firstPort + 1), windowSize, payloads, expected));
+
+		long start = System.nanoTime();
+
+		try {
+			ReldatSessionRuntime runtime = new ReldatSessionRuntime(threads);
+
+			for (CheckedSession session : sessions)
+				runtime.submit(session);
+
+			runtime.awaitIdle();
+			runtime.shutdown();
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		long elapsed = System.nanoTime() - start;
+		ReldatEventLog.flush();
+
+		report(sessions, threads, elapsed);
+		System.exit(0);
+	}
+
+	private static void usage() {
+		System.out.println("Usage: java ReldatLoadGenerator <host IP address>:<host port>[-<last host port>] <max receive window size in packets> <sessions> [<conversations per session> [<bytes per conversation> [<threads>]]]");
+		System.exit(0);
+	}
+
+	private static void report(List<CheckedSession> sessions, int threads, long elapsed) {
+		int succeeded = 0;
+		int connected = 0;
+		int mismatches = 0;
+		long conversations = 0;
+		long connectNanos = 0;
+		long maxConnectNanos = 0;
+		long conversationNanos = 0;
+		long maxConversationNanos = 0;
+		long bytes = 0;
+
+		for (CheckedSession session : sessions) {
+			if (session.isSuccessful())
+				succeeded++;
+
+			if (session.isConnected()) {
+				connected++;
+				connectNanos += session.getConnectNanos();
+				maxConnectNanos = Math.max(maxConnectNanos, session.getConnectNanos());
+			}
+
+			mismatches += session.mismatches;
+			conversations += session.getConversationsCompleted();
+			conversationNanos += session.getConversationNanos();
+			maxConversationNanos = Math.max(maxConversationNanos, session.getMaxConversationNanos());
+			bytes += session.getBytesSent() + session.getBytesReceived();
+		}
+
+		double seconds = elapsed / 1e9;
+
+		System.out.println(String.format("Sessions:      %d on %d threads, %d succeeded, %d failed", sessions.size(), threads, succeeded, sessions.size() - succeeded));
+		System.out.println(String.format("Connect:       mean %.2f ms, max %.2f ms", (connected == 0) ? 0 : connectNanos / 1e6 / connected, maxConnectNanos / 1e6));
+		System.out.println(String.format("Conversations: %d in %.3f s (%.1f/s), %d with wrong data", conversations, seconds, conversations / seconds, mismatches));
+		System.out.println(String.format("Latency:       mean %.2f ms, max %.2f ms", (conversations == 0) ? 0 : conversationNanos / 1e6 / conversations, maxConversationNanos / 1e6));
+		System.out.println(String.format("Throughput:    %.2f MB/s, both ways", bytes / seconds / (1024 * 1024)));
+	}
+
+	/*
+	 * A session that counts the conversations in which the server sent back
+	 * something other than the transformed payload.
+	 */
+	private static class CheckedSession extends ReldatSession {
+		private final byte[] expected;
+		private int mismatches = 0;
+
+		public CheckedSession(String host, int port, int windowSize, List<byte[]> payloads, byte[] expected) {
+			super(host, port, windowSize, payloads);
+			this.expected = expected;
+		}
+
+		@Override
+		protected void conversationFinished(int index, ReldatByteSink received) {
+			if (!Arrays.equals(received.toByteArray(), this.expected))
+				this.mismatches++;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package reldat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*
+ * A channel that collects everything written to it in memory.
+ *
+ * The data is kept in a single byte array that doubles in size whenever it
+ * runs out of room, so collecting n bytes takes O(n) time in total, no
+ * matter how small the writes are. Nothing is decoded until the data is
+ * asked for as a string.
+ */
+public class ReldatByteSink implements WritableByteChannel {
+	// Capacity of a new sink, unless one is given
+	private static final int DEFAULT_CAPACITY = 8192;
+
+	// Largest array the JVM will reliably allocate
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	private byte[] data;
+	private int size = 0;
+	private boolean open = true;
+
+	public ReldatByteSink() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ReldatByteSink(int initialCapacity) {
+		this.data = new byte[Math.max(initialCapacity, 1)];
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		int length = src.remaining();
+
+		this.ensureCapacity(length);
+		src.get(this.data, this.size, length);
+		this.size += length;
+
+		return length;
+	}
+
+	public void write(byte[] src, int offset, int length) {
+		this.ensureCapacity(length);
+		System.arraycopy(src, offset, this.data, this.size, length);
+		this.size += length;
+	}
+
+	/*
+	 * Number of bytes written so far.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/*
+	 * Forget everything written so far, keeping the memory for reuse.
+	 */
+	public void clear() {
+		this.size = 0;
+	}
+
+	/*
+	 * A copy of everything written so far.
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(this.data, this.size);
+	}
+
+	/*
+	 * Write everything written so far to a channel, without copying it first.
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer view = ByteBuffer.wrap(this.data, 0, this.size);
+
+		while (view.hasRemaining())
+			channel.write(view);
+	}
+
+	/*
+	 * Everything written so far, decoded with the given charset.
+	 */
+	public String toString(Charset charset) {
+		return new String(this.data, 0, this.size, charset);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	@Override
+	public void close() {
+		this.open = false;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (extra <= this.data.length - this.size)
+			return;
+
+		if (extra > MAX_CAPACITY - this.size)
+			throw new OutOfMemoryError("ReldatByteSink cannot hold more than " + MAX_CAPACITY + " bytes");
+
+		// Double the array (or grow it just enough, if that's more)
+		long doubled = Math.min((long) this.data.length * 2, MAX_CAPACITY);
+		this.data = Arrays.copyOf(this.data, (int) Math.max(doubled, this.size + extra));
+	}
+}
@@ -0,0 +1,89 @@
+package reldat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/*
+ * Reads a channel in large blocks and hands the data out in smaller chunks,
+ * like packet payloads.
+ *
+ * Reading a file one 955-byte payload at a time costs a system call per
+ * packet; reading it a block at a time into a (direct) staging buffer and
+ * slicing payloads out of that costs one per block. The reader never gets
+ * more than one block ahead of the chunks it has handed out.
+ */
+public class ReldatChunkReader {
+	// Default size of the blocks read from the channel
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	private ReadableByteChannel channel;
+	private ByteBuffer block;
+	private boolean endOfStream = false;
+
+	public ReldatChunkReader(int blockSize) {
+		this.block = ByteBuffer.allocateDirect(blockSize);
+		this.block.flip();
+	}
+
+	public ReldatChunkReader() {
+		this(DEFAULT_BLOCK_SIZE);
+	}
+
+	/*
+	 * Start reading from a new channel, discarding anything left over from the last one.
+	 */
+	public void reset(ReadableByteChannel channel) {
+		this.channel = channel;
+		this.endOfStream = false;
+		this.block.clear().flip();
+	}
+
+	/*
+	 * Fill the given buffer from the channel. Only the last chunk of the channel
+	 * comes up short. Returns the number of bytes read, or -1 once the channel
+	 * has no more data.
+	 */
+	public int readChunk(ByteBuffer dst) throws IOException {
+		int start = dst.position();
+
+		while (dst.hasRemaining()) {
+			if (!this.block.hasRemaining() && !this.fill())
+				break;
+
+			if (this.block.remaining() <= dst.remaining()) {
+				dst.put(this.block);
+			} else {
+				int limit = this.block.limit();
+				this.block.limit(this.block.position() + dst.remaining());
+				dst.put(this.block);
+				this.block.limit(limit);
+			}
+		}
+
+		int read = dst.position() - start;
+		return (read == 0 && this.endOfStream) ? -1 : read;
+	}
+
+	/*
+	 * Read the next block from the channel. Returns false at the end of the channel.
+	 * As with ReldatConnection's sources, the channel must be a blocking one.
+	 */
+	private boolean fill() throws IOException {
+		if (this.endOfStream)
+			return false;
+
+		this.block.clear();
+
+		// Take whatever one read gives us (a file fills the whole block)
+		while (this.block.position() == 0) {
+			if (this.channel.read(this.block) < 0) {
+				this.endOfStream = true;
+				break;
+			}
+		}
+
+		this.block.flip();
+		return this.block.hasRemaining();
+	}
+}
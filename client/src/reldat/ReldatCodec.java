@@ -0,0 +1,241 @@
+package reldat;
+
+import java.nio.ByteBuffer;
+
+import reldat.checksum.ReldatChecksum;
+import reldat.checksum.ReldatChecksums;
+
+/*
+ * Encodes RELDAT packets directly into a caller-supplied ByteBuffer.
+ *
+ * Unlike ReldatPacket.toBytes(), encoding a packet with a codec does not
+ * allocate: the header fields, both checksums and the payload are written
+ * straight into the destination buffer, which may be heap or direct and is
+ * meant to be reused for every packet sent. A codec keeps its own checksum
+ * state and scratch space, so an instance must not be shared between threads.
+ *
+ * Packets are encoded with the original header (version 1) until the
+ * handshake switches the codec to the compact one (version 2; see
+ * ReldatHeader). OPEN packets always get the original header.
+ */
+public class ReldatCodec {
+	// Checksum algorithm for every packet, and the one used for OPEN packets
+	// (which are exchanged before any other algorithm has been negotiated)
+	private ReldatChecksum checksum;
+	private ReldatChecksum handshakeChecksum;
+
+	// Scratch space checksums are written into before being copied into the buffer
+	private byte[] scratch = new byte[ReldatHeader.CHECKSUM_SIZE];
+
+	// Header version of every packet but OPEN packets
+	private int headerVersion = ReldatHeader.VERSION_1;
+
+	/*
+	 * Create a codec that checksums every packet with MD5.
+	 */
+	public ReldatCodec() {
+		this(ReldatChecksums.create(ReldatChecksums.MD5));
+	}
+
+	public ReldatCodec(ReldatChecksum checksum) {
+		this.checksum = checksum;
+		this.handshakeChecksum = (checksum.getId() == ReldatChecksums.MD5) ? checksum : ReldatChecksums.create(ReldatChecksums.MD5);
+	}
+
+	/*
+	 * Switch to the checksum algorithm negotiated during the handshake.
+	 */
+	public void setChecksum(ReldatChecksum checksum) {
+		this.checksum = checksum;
+	}
+
+	public ReldatChecksum getChecksum() {
+		return checksum;
+	}
+
+	/*
+	 * Switch to the header version negotiated during the handshake.
+	 */
+	public void setHeaderVersion(int headerVersion) {
+		this.headerVersion = headerVersion;
+	}
+
+	public int getHeaderVersion() {
+		return headerVersion;
+	}
+
+	/*
+	 * Size of the header a packet with the given fields is encoded with.
+	 */
+	public int getHeaderSize(byte flags, int seqNum, int ackNum) {
+		if (!this.isCompact( flags ))
+			return ReldatHeader.PACKET_HEADER_SIZE;
+
+		return ReldatHeader.compactHeaderSize( seqNum, ackNum );
+	}
+
+	private boolean isCompact(byte flags) {
+		return headerVersion == ReldatHeader.VERSION_2 && (flags & ReldatHeader.OPEN_FLAG) == 0;
+	}
+
+	/*
+	 * Allocate a buffer large enough to hold any RELDAT packet of the
+	 * original size. Direct buffers avoid a copy when handed to a
+	 * DatagramChannel.
+	 */
+	public static ByteBuffer allocateBuffer(boolean direct) {
+		return allocateBuffer( direct, ReldatPacket.MAX_PACKET_SIZE );
+	}
+
+	/*
+	 * Allocate a buffer for packets of up to the given (negotiated) size.
+	 */
+	public static ByteBuffer allocateBuffer(boolean direct, int maxPacketSize) {
+		return direct ? ByteBuffer.allocateDirect( maxPacketSize ) : ByteBuffer.allocate( maxPacketSize );
+	}
+
+	/*
+	 * Write a packet with the given fields into the buffer at its current
+	 * position, advancing the position past the end of the packet. The
+	 * payload is read from its position to its limit; its position is left
+	 * unchanged so the same payload can be encoded again on retransmission.
+	 * Returns the number of bytes written.
+	 */
+	public int encode(ByteBuffer buffer, byte flags, int seqNum, int ackNum, ByteBuffer payload) {
+		if (this.isCompact( flags ))
+			return this.encodeCompact( buffer, flags, seqNum, ackNum, payload, null );
+
+		ReldatChecksum checksum = ((flags & ReldatHeader.OPEN_FLAG) != 0) ? this.handshakeChecksum : this.checksum;
+		int start = buffer.position();
+		int payloadStart = payload.position();
+		int payloadSize = payload.remaining();
+
+		buffer.put( flags );
+		buffer.putInt( seqNum );
+		buffer.putInt( ackNum );
+		buffer.putInt( payloadSize );
+
+		// Payload checksum
+		checksum.checksum( payload, payloadStart, payloadSize, scratch );
+		buffer.put( scratch );
+
+		// Header checksum, generated from everything written so far
+		checksum.checksum( buffer, start, ReldatHeader.HEADER_CHECKSUM_OFFSET, scratch );
+		buffer.put( scratch );
+
+		buffer.put( payload );
+		payload.position( payloadStart );
+
+		return buffer.position() - start;
+	}
+
+	/*
+	 * Write a packet with a compact header (see ReldatHeader). The header
+	 * is written with room for the checksum, then the payload after it,
+	 * and the checksum of both goes in last. If the payload goes on in a
+	 * slice of a mapped file, the checksum covers that too, but the slice
+	 * isn't written.
+	 */
+	private int encodeCompact(ByteBuffer buffer, byte flags, int seqNum, int ackNum, ByteBuffer payload, ByteBuffer mappedData) {
+		int start = buffer.position();
+		int payloadStart = payload.position();
+		int payloadSize = payload.remaining();
+		int seqCode = ReldatHeader.compactLengthCode( seqNum );
+		int ackCode = ReldatHeader.compactLengthCode( ackNum );
+
+		buffer.put( (byte) (flags | ReldatHeader.COMPACT_FLAG) );
+		buffer.put( ReldatHeader.compactDescriptor( seqCode, ackCode, false ) );
+		putCompact( buffer, seqNum, ReldatHeader.compactLength( seqCode ) );
+		putCompact( buffer, ackNum, ReldatHeader.compactLength( ackCode ) );
+
+		int checksumOffset = buffer.position();
+		buffer.position( checksumOffset + ReldatHeader.COMPACT_CHECKSUM_SIZE );
+		buffer.put( payload );
+		payload.position( payloadStart );
+
+		checksum.update( buffer, start, checksumOffset - start );
+		checksum.update( buffer, checksumOffset + ReldatHeader.COMPACT_CHECKSUM_SIZE, payloadSize );
+
+		if (mappedData != null)
+			checksum.update( mappedData, 0, mappedData.capacity() );
+
+		checksum.finish( scratch );
+
+		for (int i = 0; i < ReldatHeader.COMPACT_CHECKSUM_SIZE; i++)
+			buffer.put( checksumOffset + i, scratch[i] );
+
+		return buffer.position() - start;
+	}
+
+	/*
+	 * Write the low length bytes of a number, most significant first.
+	 */
+	private static void putCompact(ByteBuffer buffer, int value, int length) {
+		for (int shift = (length - 1) * 8; shift >= 0; shift -= 8)
+			buffer.put( (byte) (value >>> shift) );
+	}
+
+	/*
+	 * Write an already-built packet into the buffer at its current position.
+	 * With the original header, the checksums stored in the packet are copied
+	 * rather than regenerated; a compact header is encoded from the packet's fields.
+	 */
+	public int encode(ByteBuffer buffer, ReldatPacket packet) {
+		ReldatHeader header = packet.getHeader();
+
+		if (this.isCompact( header.getFlags() ))
+			return this.encode( buffer, packet, header.getAcknowledgementNumber() );
+
+		return packet.writeTo( buffer );
+	}
+
+	/*
+	 * Write an already-built packet into the buffer with a different ACK
+	 * number than the one it was built with, e.g. a data packet's lowest
+	 * un-ACKed sequence number, which changes each time it's re-sent.
+	 */
+	public int encode(ByteBuffer buffer, ReldatPacket packet, int ackNum) {
+		int written = this.encodeHead( buffer, packet, ackNum );
+		ByteBuffer mappedData = packet.getMappedData();
+
+		if (mappedData != null) {
+			mappedData.clear();
+			buffer.put( mappedData );
+			written += mappedData.capacity();
+		}
+
+		return written;
+	}
+
+	/*
+	 * Write all of an already-built packet, with the given ACK number, but
+	 * the part of its payload that is a slice of a mapped file: that is sent
+	 * as it is, after what's written here, in a gathering write. The
+	 * checksums cover it all the same. With the original header, the
+	 * payload checksum stored in the packet is reused (it doesn't depend on
+	 * the header, so it's only generated once however often the packet is
+	 * sent), and the header checksum is regenerated.
+	 */
+	public int encodeHead(ByteBuffer buffer, ReldatPacket packet, int ackNum) {
+		ReldatHeader header = packet.getHeader();
+		byte flags = header.getFlags();
+
+		if (this.isCompact( flags ))
+			return this.encodeCompact( buffer, flags, header.getSequenceNumber(), ackNum, ByteBuffer.wrap( packet.getData() ), packet.getMappedData() );
+
+		ReldatChecksum checksum = ((flags & ReldatHeader.OPEN_FLAG) != 0) ? this.handshakeChecksum : this.checksum;
+		int start = buffer.position();
+
+		buffer.put( flags );
+		buffer.putInt( header.getSequenceNumber() );
+		buffer.putInt( ackNum );
+		buffer.putInt( header.getPayloadSize() );
+		buffer.put( header.getPayloadChecksum() );
+
+		checksum.checksum( buffer, start, ReldatHeader.HEADER_CHECKSUM_OFFSET, scratch );
+		buffer.put( scratch );
+		buffer.put( packet.getData() );
+
+		return buffer.position() - start;
+	}
+}
@@ -1,26 +1,53 @@
 package reldat;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import reldat.checksum.ReldatChecksum;
+import reldat.checksum.ReldatChecksums;
+import reldat.congestion.ReldatCongestionController;
+import reldat.congestion.ReldatCongestionControllers;
 import reldat.exception.HeaderCorruptedException;
 import reldat.exception.PayloadCorruptedException;
+import reldat.metrics.ReldatMetrics;
 
 public class ReldatConnection {
+	// Number of connections created so far; each is numbered in the event log
+	private static final AtomicInteger connectionCount = new AtomicInteger(0);
+	
+	// This connection's number in the event log (see ReldatEventLog)
+	private final int id = connectionCount.incrementAndGet();
+	
 	// Maximum number of times we can retransmit a packet before we decide the server is unreachable
 	public static final int MAX_RETRANSMISSION_NO = 3;
 	
-	// Number of seconds before we decide we haven't received anything from the server
+	// Number of seconds listen() waits before we decide we haven't received anything from the server.
+	// (How long we wait for ACKs and handshake replies is up to the RTO estimator.)
 	public static final int PACKET_TIMEOUT = 1;
+	
+	private static final long PACKET_TIMEOUT_NANOS = PACKET_TIMEOUT * 1000000000L;
+	
+	// Resolution and size of the retransmission timer wheel: ticks well under the RTO's floor, and
+	// one revolution covers a LAN's timeouts (longer ones wait in their slot for a revolution or more)
+	private static final long TIMER_TICK_NANOS = 1000000L;
+	private static final int TIMER_SLOTS = 256;
 
 	// Our maximum window size
 	private int srcMaxWindowSize;
@@ -34,50 +61,227 @@ public class ReldatConnection {
 	// The port the connection between us and the server is on
 	private int port;
 	
-	// The UDP socket we send data to the server with
-	private DatagramSocket outSocket;
+	// The server's address and port, as a single socket address
+	private InetSocketAddress dstAddress;
+	
+	// The non-blocking UDP channel we send data to and read data from the server with
+	private DatagramChannel channel;
+	
+	// While the connection is opening, a second channel bound to the server's port number, where a
+	// server that doesn't accept symmetric addressing sends its replies (null if another connection
+	// on this host has that port), and the channel the packet being handled arrived on
+	private DatagramChannel legacyChannel;
+	private DatagramChannel receivingChannel;
+	
+	// The event loop that drives I/O and timers for this connection
+	private ReldatEventLoop eventLoop;
+	
+	// Whether we created the event loop ourselves (and so should close it on disconnect)
+	private boolean ownsEventLoop;
+	
+	// Kept by the event loop: whether the connection is registered with it, where it is in its
+	// heap of deadlines (-1 if it isn't), and whether it's on its list of connections to
+	// reschedule and on its ready list
+	boolean loopRegistered = false;
+	int loopHeapIndex = -1;
+	boolean loopRescheduled = false;
+	boolean loopReady = false;
+	
+	// Retransmission timers of un-ACKed packets, keyed by sequence number
+	private ReldatTimerWheel timers = new ReldatTimerWheel(TIMER_TICK_NANOS, TIMER_SLOTS);
+	
+	// Sequence numbers of the timers that expired in one pass of the wheel
+	private int[] expiredSeqs = new int[64];
+	
+	// Estimates our retransmission timeout from the round-trip times we measure
+	private ReldatRtoEstimator rtoEstimator = new ReldatRtoEstimator();
+	
+	// Decides when a packet that later packets have overtaken is lost, and when a retransmission was spurious
+	private ReldatLossDetector lossDetector = new ReldatLossDetector(this.rtoEstimator);
+	
+	// When the oldest overtaken packet that isn't lost yet will be (see retransmitHoles())
+	private long lossDeadline = ReldatEventLoop.NO_DEADLINE;
+	
+	// Reusable selective ACK, for both the ACKs we build and the ones we read,
+	// and the sequence numbers we've received that we describe in our ACKs
+	private ReldatSack sack = new ReldatSack();
+	private ByteBuffer sackPayload = ByteBuffer.allocate(4 + 8 * ReldatSack.MAX_BLOCKS);
+	private ReldatSeqRanges receivedSeqs = new ReldatSeqRanges();
+	
+	// The server's lowest un-ACKed sequence number, as of the newest data packet we've received from it
+	private int receiveFloor = 0;
 	
-	// The UDP socket we read data from the server with
-	private DatagramSocket inSocket;
+	// Delayed ACKs (with SACK only): data packets are ACKed once every ackEvery packets,
+	// or ackDelayNanos (DEFAULT_ACK_DELAY milliseconds by default, and at most a quarter of a round trip)
+	// after the first un-ACKed one arrived, whichever comes first
+	public static final int DEFAULT_ACK_EVERY = 2;
+	public static final int DEFAULT_ACK_DELAY = 20;
 	
-	// Dictionary that maps ReldatPackets to timestamps
-	private HashMap<ReldatPacket, Long> timers = new HashMap<ReldatPacket, Long>();
+	private int ackEvery = DEFAULT_ACK_EVERY;
+	private long ackDelayNanos = DEFAULT_ACK_DELAY * 1000000L;
 	
-	// Dictionary that maps packet sequence numbers to retransmission counts
-	private HashMap<Integer, Integer> retransmissions = new HashMap<Integer, Integer>();
+	// Data packets received since our last ACK, the newest of them, and when we have to ACK them by
+	private int pendingAcks = 0;
+	private int pendingAckSeq = 0;
+	private long ackDeadline = ReldatEventLoop.NO_DEADLINE;
 	
-	// List of packets that have not been acknowledged by the server
-	private ArrayList<ReldatPacket> unAcked = new ArrayList<ReldatPacket>();
+	// Counters, gauges and latency histograms of everything the connection does (see ReldatMetrics)
+	private ReldatMetrics metrics = new ReldatMetrics();
 	
-	// Counter that keeps track of the sequence number of the last packet we sent
+	// Decides how many packets may be in flight at once (never more than the server's window)
+	private ReldatCongestionController congestionController = ReldatCongestionControllers.create(ReldatCongestionControllers.RENO);
+	
+	// Highest sequence number we've sent data with, and the value it had when we last cut the
+	// congestion window. Losses of packets sent before that cut belong to the same loss episode.
+	private int highestSeqSent = -1;
+	private int recoverySeq = -1;
+	
+	// When we last sent a data packet (System.nanoTime()), or 0 if we never have
+	private long lastDataSentAt = 0;
+	
+	// Whether a retransmission timer has expired in the current loss episode (which cuts the
+	// window further than a fast retransmission does, but only once per episode)
+	private boolean recoveryTimedOut = false;
+	
+	// Packets that have not been acknowledged by the server, with their retransmission counts and
+	// the time they were first sent, indexed by sequence number. Its base is the start of the send window.
+	private ReldatSendWindow unAcked = new ReldatSendWindow(64);
+	
+	// Sequence numbers below this one have been considered for fast retransmission by retransmitHoles()
+	private int holeScanSeq = 0;
+	
+	// Sequence number of the next packet we send. It wraps around from 2^32 - 1 to 0, so
+	// sequence numbers are only ever compared with ReldatSerial, never with < and >.
 	private int currentSeq;
 
-	// The buffer containing packets we received from the server
-	private ReldatPacket[] receiveBuffer;
+	// Packets from the server that arrived ahead of a gap, waiting to be written out in order, and
+	// the sequence number of the next data packet to write out. The server numbers its data packets
+	// and end-of-data packets from one counter, starting at 0, so the data it sends in a conversation
+	// starts right after its previous end-of-data packet. (Multiplexed streams have windows of their own.)
+	private ReldatReceiveRing receiveRing;
+	
+	// Options negotiated with the server during the handshake
+	private ReldatOptions options = new ReldatOptions();
+	
+	// Largest datagram we offer to send and receive (see ReldatOptions), and whether to probe for the
+	// largest one that actually gets through once the server has accepted one above MAX_PACKET_SIZE
+	public static final int DEFAULT_DATAGRAM_SIZE = ReldatPacket.ETHERNET_DATAGRAM_SIZE;
+	
+	private int maxDatagramSize = DEFAULT_DATAGRAM_SIZE;
+	private boolean probeDatagramSize = false;
+	
+	// Datagram sizes a probe tries, largest first, after the size the server accepted: 16 KB, a
+	// jumbo frame, 4 KB and an Ethernet frame (each less its IP and UDP headers); then MAX_PACKET_SIZE,
+	// which every path carries. Each size is given PROBE_ATTEMPTS tries.
+	private static final int[] PROBE_SIZES = { 16384, 8972, 4096, ReldatPacket.ETHERNET_DATAGRAM_SIZE };
+	private static final int PROBE_ATTEMPTS = 2;
+	
+	// Size the probe in progress is trying
+	private int probeSize = 0;
+	
+	// Reusable (direct) send buffer; every outgoing packet is encoded straight into it.
+	// (Buffers are sized for the original MAX_PACKET_SIZE until the handshake settles on a size.)
+	private ByteBuffer sendBuffer = ReldatCodec.allocateBuffer(true);
+	private ReldatCodec codec = new ReldatCodec();
+	
+	// Reusable (direct) buffer for the header (and stream header) of a packet whose payload is
+	// sent straight from a mapped file, and the buffers of the gathering write that sends both
+	private ByteBuffer headBuffer = ByteBuffer.allocateDirect(ReldatHeader.PACKET_HEADER_SIZE + ReldatStream.HEADER_SIZE);
+	private ByteBuffer[] gatherBuffers = new ByteBuffer[2];
+	
+	// Empty payload for packets that carry no data
+	private static final ByteBuffer NO_PAYLOAD = ByteBuffer.allocate(0);
+	private static final byte[] NO_DATA = new byte[0];
+	
+	// Reusable (direct) receive buffer, and a view that decodes packets in place
+	private ByteBuffer datagramBuffer = ReldatCodec.allocateBuffer(true);
+	private ReldatPacketView packetView = new ReldatPacketView();
+	
+	// True if the channel's send buffer was full the last time we tried to send
+	private boolean writeBlocked = false;
 	
-	// List of packets we have sent to the server
-	private ArrayList<ReldatPacket> packetsSent = new ArrayList<ReldatPacket>();  
+	// State of a caller waiting (in listen() or a handshake) for the next packet from the server
+	private boolean awaitingPacket = false;
+	private long waitDeadline = ReldatEventLoop.NO_DEADLINE;
+	private boolean eodReceived = false;
 	
-	// List of sequence numbers that we have sent to the server
-	private ArrayList<Integer> seqsSent = new ArrayList<Integer>(); 
+	// Step of the open or close handshake in progress, if any: waiting for the server's
+	// OPEN | ACK, its CLOSE | ACK, or its CLOSE; or, once the connection has opened, its reply to
+	// a probe of the datagram size, or to the size we settled on
+	private static final int NO_HANDSHAKE = 0;
+	private static final int OPENING = 1;
+	private static final int CLOSING = 2;
+	private static final int CLOSE_WAIT = 3;
+	private static final int PROBING = 4;
+	private static final int CONFIRMING = 5;
 	
-	// All of the data we have received from the server, as a string
-	private String totalData = "";
+	private int handshake = NO_HANDSHAKE;
 	
-	// Receive window index tracker
-	private int bufferIndex = 0;
+	// The packet the current handshake step (re-)sends, when it was last sent, how many times it
+	// has been sent, how many attempts have gone unanswered, and when the current attempt times out
+	private ReldatPacket handshakePacket = null;
+	private long handshakeSentAt = 0;
+	private int handshakeSends = 0;
+	private int handshakeResends = 0;
+	private long handshakeDeadline = ReldatEventLoop.NO_DEADLINE;
 	
-	// Send window index tracker
-	private int sendBase = 0;
+	// Whether the server completed the last handshake
+	private boolean handshakeSucceeded = false;
+	
+	// Streams that are still sending or receiving, in the order they take turns sending packets,
+	// and the index of the one whose turn is next
+	private ArrayList<ReldatStream> openStreams = new ArrayList<ReldatStream>();
+	private int scheduleIndex = 0;
+	
+	// Streams that have finished since awaitStream() last returned one, and whether a caller is
+	// waiting in awaitStream()
+	private ArrayDeque<ReldatStream> finishedStreams = new ArrayDeque<ReldatStream>();
+	private boolean awaitingStream = false;
+	
+	// ID of the next stream we open, when the connection is multiplexed
+	private int nextStreamId = 1;
+	
+	// The stream of the conversation started with startConversation() or startTransfer(), if any
+	private ReldatStream conversationStream = null;
+	
+	// True once we've given up on the server; every open stream fails with it
+	private boolean conversationFailed = false;
+	
+	// Sources are read in large blocks, but data is only taken out of them one packet at a time,
+	// once the window has room for the packet. Readers, and the receive windows of multiplexed
+	// streams, are kept for the next stream once a stream is done with them.
+	private ArrayDeque<ReldatChunkReader> idleReaders = new ArrayDeque<ReldatChunkReader>();
+	private ArrayDeque<ReldatReceiveRing> idleRings = new ArrayDeque<ReldatReceiveRing>();
+	private ByteBuffer sourceBuffer = ByteBuffer.allocate(ReldatPacket.PACKET_PAYLOAD_SIZE);
+	
+	// Whether sources that are files are sent straight from a mapping of them (see ReldatMappedFile)
+	private boolean mapFiles = true;
+	
+	// A packet read from a source that couldn't be sent yet because the channel was full.
+	// It already has its sequence number, so it goes out before any other stream's packets.
+	private ReldatPacket nextPacket = null;
+	
+	// Everything the server sent us, for conversations started with a string
+	private ReldatByteSink receivedData = new ReldatByteSink();
 	
 	/*
 	 * Create a new RELDAT connection with a specific window size
-	 * on our end.
+	 * on our end, driven by an event loop of its own.
 	 */
 	public ReldatConnection (int maxWindowSize) {
+		this(maxWindowSize, null);
+	}
+	
+	/*
+	 * Create a new RELDAT connection with a specific window size on our
+	 * end, driven by the given event loop. Connections that share an
+	 * event loop are all serviced by whichever thread is running it.
+	 */
+	public ReldatConnection (int maxWindowSize, ReldatEventLoop eventLoop) {
 		this.srcMaxWindowSize = maxWindowSize;
-		this.receiveBuffer = new ReldatPacket[maxWindowSize];
+		this.receiveRing = new ReldatReceiveRing(maxWindowSize);
 		this.currentSeq = 0;
+		this.eventLoop = eventLoop;
 	}
 
 	/*
@@ -86,11 +290,12 @@ public class ReldatConnection {
 	 * 
 	 * 1. Client -> Server
 	 *      FLAGS:   OPEN
+	 *      ACK:     Options offered (see ReldatOptions)
 	 *      PAYLOAD: Client's max window size
 	 * 
 	 * 2. Server -> Client
 	 *      FLAGS:   OPEN | ACK
-	 *      PAYLOAD: Server's max window size
+	 *      PAYLOAD: Server's max window size, followed by the options it accepted
 	 * 
 	 * 3. Client -> Server
 	 *      FLAGS:   ACK
@@ -100,74 +305,278 @@ public class ReldatConnection {
 	 * or false if the server was unreachable and a connection could not be established.
 	 */
 	public boolean connect(String dstIPAddress, int port) throws IOException {
+		this.startConnect(dstIPAddress, port);
+		this.eventLoop.run(this);
+		return this.finishConnect();
+	}
+	
+	/*
+	 * Start opening the connection without waiting for the handshake to finish.
+	 * The handshake makes progress whenever the event loop is run; once
+	 * isHandshakeOver() returns true, call finishConnect(). This lets one thread
+	 * open (and drive) many connections at once. Throws an UnknownHostException
+	 * if the server's address can't be resolved, and an IOException if our
+	 * channel can't be opened.
+	 */
+	public void startConnect(String dstIPAddress, int port) throws IOException {
 		try {
 			this.dstIPAddress = InetAddress.getByName(dstIPAddress);
 			this.port = port;
+			this.dstAddress = new InetSocketAddress(this.dstIPAddress, this.port);
 		} catch (UnknownHostException e) {
-			System.out.println("Host unreachable: " + dstIPAddress);
+			// There's no one to shake hands with
+			ReldatEventLog.log(ReldatEventLog.HOST_UNKNOWN, this.id, dstIPAddress);
+			throw e;
 		}
 		
-		System.out.println( "Attempting to connect to " + dstIPAddress + ":" + port + "..." );
-
-		// Open up our UDP sockets for I/O, with a timeout of 1000 ms for the input socket
-        try {
-            this.outSocket = new DatagramSocket();	
-            this.inSocket = new DatagramSocket(this.port);
-            this.inSocket.setSoTimeout(ReldatConnection.PACKET_TIMEOUT * 1000);
-        } catch (SocketException e) {
-        	e.printStackTrace();
-        }
+		ReldatEventLog.log(ReldatEventLog.CONNECTING, this.id, dstIPAddress + ":" + port);
+		
+		this.metrics.setPeer(dstIPAddress + ":" + port);
+		
+		if (ReldatMetrics.isJmxEnabled())
+			this.metrics.register();
 
-        // Step 1. Send initial SYN to server
-        ReldatPacket syn = new ReldatPacket(srcMaxWindowSize, ReldatHeader.OPEN_FLAG, this.getCurrentSequenceNumber(), 0);
+		if (this.eventLoop == null) {
+			this.eventLoop = new ReldatEventLoop();
+			this.ownsEventLoop = true;
+		}
 
-        byte[] buffer = new byte[1000];
-        DatagramPacket pkt  = new DatagramPacket( buffer, buffer.length );
-        ReldatPacket synAck = null;
-        int resends = 0;
-        
-        // Loop until we either hit the max resend count, or we get a SYNACK back from the server
-        do {
-            try {
-            	// Send the UDP packet containing the RELDAT SYN packet
-            	DatagramPacket packet = syn.toDatagramPacket( this.dstIPAddress, this.port );
-                this.outSocket.send( packet );
+		// Open up our UDP channel for I/O on a port of its own. If the server accepts
+		// symmetric addressing (see ReldatOptions), it replies to that port from the one
+		// we send to, and once it has we connect() the channel to the server.
+		this.channel = DatagramChannel.open();
 
-                // Try to receive a SYNACK from the server
-				this.inSocket.receive( pkt );
-	    		synAck = ReldatPacket.bytesToPacket( pkt.getData() );
-			} catch(SocketTimeoutException e) {
-				System.out.println("Server did not respond - retrying...");
-			} catch(HeaderCorruptedException | PayloadCorruptedException e) {
-            	System.out.println("Server replied with corrupted packet - retrying...");
-            	resends--; // Don't count a corrupted packet as a non-response
-            }
+		try {
+			this.channel.bind(new InetSocketAddress(0));
+		} catch (IOException e) {
+			this.channel.close();
+			throw e;
+		}
 
-            // Increment the number of resends, and check if we hit the max resend count
-            resends++;
+		this.eventLoop.register(this, this.channel);
 
-            // If so, get out of this loop
-            if (resends >= MAX_RETRANSMISSION_NO)
-            	break;
-        } while (synAck == null || !(synAck.isACK() && synAck.isOpen()));
+		// Otherwise the server replies to the port it listens on (from a different port than
+		// the one we send to), so until we know which kind of server it is, listen there too.
+		// Only one connection on this host can; the others need a server that is symmetric.
+		// Opening it can fail too, when we're out of file descriptors, say; that's no worse.
+		DatagramChannel legacyChannel = null;
+		
+		try {
+			legacyChannel = DatagramChannel.open();
+			legacyChannel.bind(new InetSocketAddress(this.port));
+			this.eventLoop.watch(this, legacyChannel);
+			this.legacyChannel = legacyChannel;
+		} catch (IOException e) {
+			if (legacyChannel != null)
+				legacyChannel.close();
+		}
 
-        // If we got this far and we resent it more times than the max resend count, quit trying to connect
-        if (resends >= MAX_RETRANSMISSION_NO) {
-        	System.out.println("Server unreachable.");
-        	return false;
-        }
+		// Step 1. Send initial SYN to server; the rest happens as the server replies
+		ReldatPacket syn = new ReldatPacket(srcMaxWindowSize, ReldatHeader.OPEN_FLAG, this.getCurrentSequenceNumber(), ReldatOptions.encodeOffer(this.maxDatagramSize));
+		this.startHandshake(OPENING, syn);
+	}
+	
+	/*
+	 * Once the server has replied to our SYN, keep only the channel it replied to.
+	 * A symmetric server's packets all come from the address we send to, so the
+	 * channel is connected to it: the kernel then drops datagrams from anywhere
+	 * else, and many connections on this host can talk to the same server port.
+	 */
+	private void chooseChannel() throws IOException {
+		if (this.legacyChannel != null && this.receivingChannel == this.legacyChannel) {
+			// An original-protocol server; carry on with its port number, as the protocol always has
+			this.eventLoop.unregister(this, this.channel);
+			this.channel.close();
+			this.channel = this.legacyChannel;
+			this.eventLoop.register(this, this.channel);
+			this.legacyChannel = null;
+			return;
+		}
+		
+		if (this.legacyChannel != null) {
+			this.eventLoop.unwatch(this.legacyChannel);
+			this.legacyChannel.close();
+			this.legacyChannel = null;
+		}
+		
+		if (this.options.isSymmetric())
+			this.channel.connect(this.dstAddress);
+	}
+	
+	/*
+	 * Finish opening the connection started with startConnect(). Returns true if a
+	 * connection was established, or false if the server was unreachable.
+	 */
+	public boolean finishConnect() {
+		if (!this.handshakeSucceeded) {
+			ReldatEventLog.log(ReldatEventLog.SERVER_UNREACHABLE, this.id, 0);
+			this.close();
+			return false;
+		}
+		
+		// Assume a connection has been established
+		ReldatEventLog.log(ReldatEventLog.CONNECTED, this.id, 0);
+		
+		if (this.getDatagramSize() > ReldatPacket.MAX_PACKET_SIZE)
+			ReldatEventLog.log(ReldatEventLog.DATAGRAM_SIZE, this.id, this.getDatagramSize());
+		
+		return true;
+	}
+	
+	/*
+	 * Returns true once the handshake started with startConnect() or
+	 * startDisconnect() has finished, one way or the other.
+	 */
+	public boolean isHandshakeOver() {
+		return this.handshake == NO_HANDSHAKE;
+	}
+	
+	/*
+	 * Step 2 of the open handshake: the server's SYNACK arrived.
+	 */
+	private void onOpenAck(ReldatPacket synAck) throws IOException {
+		// Time the handshake, unless we had to re-send the SYN (then we can't tell which one was answered)
+		if (this.handshakeSends == 1)
+			this.sampleRtt(System.nanoTime() - this.handshakeSentAt);
 
-        // SYNACK packet will contain the server's max window size, so store it
-        this.dstMaxWindowSize = Integer.parseInt( new String( synAck.getData() ) );
+		// SYNACK packet will contain the server's max window size, so store it
+		this.dstMaxWindowSize = ReldatOptions.parseWindowSize( synAck.getPayload() );
+		this.congestionController.setMaxWindow( this.dstMaxWindowSize );
+		
+		// Make room in the send window for as many packets as the server will take at once
+		this.unAcked = new ReldatSendWindow( this.dstMaxWindowSize );
+		
+		// Switch to whatever checksum algorithm the server accepted (MD5 if it didn't understand the offer)
+		this.options = ReldatOptions.parseAccepted( synAck.getPayload() );
+		this.options.setMaxDatagramSize( Math.min( this.options.getMaxDatagramSize(), this.maxDatagramSize ) );
+		
+		ReldatChecksum checksum = ReldatChecksums.create( this.options.getChecksumId() );
+		this.codec.setChecksum( checksum );
+		this.packetView.setChecksum( checksum );
+		
+		// Send compact headers from the ACK on if the server reads them (we read both either way)
+		this.codec.setHeaderVersion( this.options.getHeaderVersion() );
+		
+		// Keep whichever channel the server replied to
+		this.chooseChannel();
 
-    	// Step 3: Send ACK to server
-    	ReldatPacket ack = new ReldatPacket( "", ReldatHeader.ACK_FLAG, 0, synAck.getHeader().getSequenceNumber() );
-    	DatagramPacket ackPacket = ack.toDatagramPacket( this.dstIPAddress, this.port );
-    	this.outSocket.send( ackPacket );
+		// Step 3: Send ACK to server
+		this.send( ReldatHeader.ACK_FLAG, 0, synAck.getHeader().getSequenceNumber() );
+		this.setDatagramSize( this.options.getMaxDatagramSize() );
+		
+		// The server may take larger datagrams than the path between us carries
+		if (this.probeDatagramSize && this.options.getMaxDatagramSize() > ReldatPacket.MAX_PACKET_SIZE)
+			this.startProbe( this.options.getMaxDatagramSize() );
+		else
+			this.endHandshake(true);
+	}
+	
+	/*
+	 * Probe whether datagrams of the given size get through, both ways: send
+	 * the server a NUDGE packet padded out to exactly that size, with the size
+	 * as its sequence number, and the server answers with a NUDGE | ACK padded
+	 * out the same way. If PROBE_ATTEMPTS probes go unanswered, try the next
+	 * smaller size. A probe of MAX_PACKET_SIZE isn't needed; that size always
+	 * gets through, so it's confirmed straight away.
+	 */
+	private void startProbe(int size) {
+		this.probeSize = size;
+		
+		if (size <= ReldatPacket.MAX_PACKET_SIZE) {
+			this.confirmDatagramSize();
+			return;
+		}
+		
+		ReldatEventLog.log(ReldatEventLog.PROBING, this.id, size);
+		
+		byte[] padding = new byte[size - this.codec.getHeaderSize(ReldatHeader.NUDGE_FLAG, size, 0)];
+		this.startHandshake(PROBING, new ReldatPacket(padding, ReldatHeader.NUDGE_FLAG, size, 0, this.options.getChecksumId()));
+	}
+	
+	/*
+	 * Next size to probe once a probe of the given size has gone unanswered.
+	 */
+	private static int nextProbeSize(int size) {
+		for (int i = 0; i < PROBE_SIZES.length; i++) {
+			if (PROBE_SIZES[i] < size)
+				return PROBE_SIZES[i];
+		}
+		
+		return ReldatPacket.MAX_PACKET_SIZE;
+	}
+	
+	/*
+	 * Tell the server the datagram size the probe settled on, with a NUDGE
+	 * packet that carries it as its sequence number (and isn't padded, so
+	 * the server can tell it from a probe). The server sends nothing larger
+	 * from then on, and confirms with a NUDGE | ACK of the same size.
+	 */
+	private void confirmDatagramSize() {
+		this.startHandshake(CONFIRMING, new ReldatPacket(NO_DATA, ReldatHeader.NUDGE_FLAG, this.probeSize, 0, this.options.getChecksumId()));
+	}
+	
+	/*
+	 * Size our buffers, and the packets we build, for datagrams of up to the
+	 * given size.
+	 */
+	private void setDatagramSize(int size) {
+		this.options.setMaxDatagramSize(size);
+		
+		if (this.sendBuffer.capacity() != size) {
+			this.sendBuffer = ReldatCodec.allocateBuffer(true, size);
+			this.datagramBuffer = ReldatCodec.allocateBuffer(true, size);
+		}
+		
+		// Make room in the socket for a full window of them, if the system lets us (the default
+		// is sized for much smaller datagrams; any that don't fit are dropped by the kernel).
+		// The kernel counts each datagram's bookkeeping, and the peer's ACKs, against the same
+		// room, so ask for twice the window, and never shrink a buffer that's already larger
+		if (size > ReldatPacket.MAX_PACKET_SIZE) {
+			try {
+				long wanted = Math.min(2L * this.srcMaxWindowSize * size, Integer.MAX_VALUE);
+				
+				if (wanted > this.channel.getOption(StandardSocketOptions.SO_RCVBUF))
+					this.channel.setOption(StandardSocketOptions.SO_RCVBUF, (int) wanted);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if (this.sourceBuffer.capacity() != this.options.getMaxPayloadSize()) {
+			this.sourceBuffer = ByteBuffer.allocate(this.options.getMaxPayloadSize());
+			this.receiveRing = new ReldatReceiveRing(this.srcMaxWindowSize, this.options.getMaxPayloadSize());
+			this.idleRings.clear();
+		}
 
-    	// Assume a connection has been established
-        System.out.println( "Connection established." );
-        return true;
+	}
+	
+	/*
+	 * Offer datagrams of up to the given size (MAX_PACKET_SIZE to
+	 * MAX_DATAGRAM_SIZE bytes, DEFAULT_DATAGRAM_SIZE by default) during the
+	 * open handshake, and, if probe is true, find the largest of them that
+	 * gets through before the connection is reported open. Only takes effect
+	 * on the next connect().
+	 */
+	public void setMaxDatagramSize(int size, boolean probe) {
+		this.maxDatagramSize = ReldatOptions.clampDatagramSize(size);
+		this.probeDatagramSize = probe;
+	}
+	
+	/*
+	 * Whether to send sources that are files (FileChannels) straight from a
+	 * memory mapping of them, rather than reading them into a buffer and
+	 * copying each packet's payload out of it. On by default.
+	 */
+	public void setMapFiles(boolean mapFiles) {
+		this.mapFiles = mapFiles;
+	}
+	
+	/*
+	 * Largest datagram, header included, either end sends on this connection:
+	 * what the handshake (and the probe, if any) settled on.
+	 */
+	public int getDatagramSize() {
+		return this.options.getMaxDatagramSize();
 	}
 	
 	/*
@@ -176,321 +585,1373 @@ public class ReldatConnection {
 	 * two-way, simultaneous conversation meaning we will receive both ACK and data
 	 * packets from the server at the same time we're sending data and ACK packets
 	 * to the server.
+	 * 
+	 * This is startConversation(), then running the event loop until
+	 * isConversationOver(), then finishConversation(). Everything the server sends
+	 * back is collected in memory; use transfer() for data too large for that.
 	 */
 	public String conversation(String data) {
-		// Reset all our properties
-		this.resetStats();
+		this.startConversation(data);
 
 		try {
-			// Packetize the data
-			ReldatPacket[] pktsToSend = packetize(data);
-			
-			// Keep track of whether or not we sent an end-of-data packet
-			boolean eodSent = false;
-			
-			// Keep us in the conversation loop until the server is done sending us back data
-			boolean conversationOver = false;
-
-			while (!conversationOver) {
-				// If our window hasn't slid to the end of the send buffer, send a window of packets
-				if (sendBase < pktsToSend.length) {
-					for (int i = sendBase; i < pktsToSend.length && i < sendBase + this.dstMaxWindowSize; i++) {
-						ReldatPacket pkt = pktsToSend[i];
-						
-						// If the packet has been un-ACKed and it isn't null, send it
-						if (!unAcked.contains(pkt) && pkt != null) {
-							System.out.println("Sending data.");
-							this.sendData(pkt, false);
-						}
-					}
-				}
-				
-				// If there are un-ACKed packets, see if any need to be re-sent
-				if (unAcked.size() > 0) {
-					for (ReldatPacket currPkt : unAcked) {
-						// If a packet reached the timeout without being ACKed, retransmit it
-						if (((new Date().getTime() - this.timers.get(currPkt)) / 1000) > ReldatConnection.PACKET_TIMEOUT) {
-							if (this.retransmissions.get(currPkt.getHeader().getSequenceNumber()) < ReldatConnection.MAX_RETRANSMISSION_NO) {
-								this.sendData(currPkt, true);
-							} else {
-								// If we re-transmitted it too many times already, assume the server is unreachable
-								System.out.println("Max retransmission count reached. Assuming server failure.");
-								return null;
-							}
-						}
-					}
-				} else if (!eodSent) {
-					// One-shot if-block. If all packets were ACKed, then we can tell
-					// the server we're done sending it data.
-					try {
-						System.out.println("No more data to send - sending EOD.");
+			this.eventLoop.run(this);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 
-						// Send an end-of-data packet
-						ReldatPacket eod = new ReldatPacket("", ReldatHeader.EOD_FLAG, getCurrentSequenceNumber(), 0);
-						this.sendData(eod, false);
-						
-						// Set eodSent so we don't enter the one-shot more than once
-						eodSent = true;
-					} catch (UnsupportedEncodingException e) {
-						System.err.println("UTF-8 encoding is not supported on your machine.");
-						System.exit(-1);
-					}
-				}
-				
-				// Listen for a packet
-				conversationOver = listen();
-			}
-		} catch (HeaderCorruptedException | PayloadCorruptedException e) {
+		return this.finishConversation();
+	}
+	
+	/*
+	 * Engage in a conversation with binary data, and return the data the server
+	 * sent back byte for byte, or null if the server became unreachable.
+	 */
+	public byte[] conversation(byte[] data) {
+		ReldatByteSink received = new ReldatByteSink();
+		
+		try {
+			if (!this.transfer(Channels.newChannel(new ByteArrayInputStream(data)), received))
+				return null;
+		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
 		}
 		
-		// Once we get to this part, there may still be another packet
-		// in the input socket if the connection was especially unstable.
-		listen();
-
-		// Flush the buffer one last time, even if it's not full
-		this.flushBuffer();
-
-		// Return all the data we received from the server
-		return totalData;
+		return received.toByteArray();
 	}
 	
 	/*
-	 * Reset all of our bookkeeping stats to a "clean slate" state.
-	 * Note that we don't reset the sequence number.
+	 * Start a conversation without waiting for it to finish. The conversation
+	 * makes progress whenever the event loop is run; once isConversationOver()
+	 * returns true, call finishConversation() to get its result. This lets
+	 * one thread drive conversations on several connections at once.
 	 */
-	private void resetStats()
-	{
-		this.receiveBuffer = new ReldatPacket[this.srcMaxWindowSize];
-		this.timers = new HashMap<ReldatPacket, Long>();
-		this.retransmissions = new HashMap<Integer, Integer>();
-		this.unAcked = new ArrayList<ReldatPacket>();
-		this.packetsSent = new ArrayList<ReldatPacket>();  
-		this.seqsSent = new ArrayList<Integer>(); 
-		this.totalData = "";
-		this.bufferIndex = 0;
-		this.sendBase = 0;
+	public void startConversation(String data) {
+		this.receivedData.clear();
+		this.startTransfer(Channels.newChannel(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8))), this.receivedData);
 	}
 	
 	/*
-	 * Listen for a packet, waiting a maximum of 1000 milliseconds before
-	 * we decide there's no packet to receive.
-	 * 
-	 * This method returns true if we have received all data from the server,
-	 * and returns false if the server still has more data to send us.
+	 * Finish the conversation started with startConversation() and return all
+	 * the data the server sent us, or null if the server became unreachable.
 	 */
-	public boolean listen()
-	{
-		// Prepare a buffer of the max packet size to store a potential packet in
-		byte[] buffer = new byte[ReldatPacket.MAX_PACKET_SIZE];
-		DatagramPacket p = new DatagramPacket(buffer, buffer.length);
-
-		// Try to receive a packet
+	public String finishConversation() {
 		try {
-			this.inSocket.receive(p);
-			ReldatPacket receivedPacket = ReldatPacket.bytesToPacket(p.getData());
-					
-			// If we got a packet, determine what to do based on its flags
-			if(receivedPacket.isACK()) {
-				System.out.println("Received ACK " + receivedPacket.getHeader().getAcknowledgementNumber());
-
-				// If it's an ACK packet that is in our list of un-ACKed packets, mark it as ACKed
-				if (this.unAcked.contains(receivedPacket)) {
-					// If ACK received and ACK is for smallest un-ACKed packet,
-					// increment the window base index to next un-ACKed sequence number
-					if (receivedPacket.getHeader().getAcknowledgementNumber() == unAcked.get(0).getHeader().getSequenceNumber()) {
-						this.sendBase++;
-					}
-
-					// Removed it from the un-ACKed list
-					this.unAcked.remove(receivedPacket);
-					
-					// Remove it from the list of sequence numbers sent.
-					// We want to call ArrayList.remove(Object). Since the sequence numbers sent list
-					// is a list of integers, the object will be an integer, and Java will think
-					// we're calling ArrayList.remove(int). So we need to cast the sequence number
-					// to an object.
-					this.seqsSent.remove((Object)receivedPacket.getHeader().getSequenceNumber());
-				}
-			} else if (receivedPacket.isData()) {
-				System.out.println("Received data.");
-
-				// If the packet is data, first check to make sure we have room for it in the buffer
-				if(bufferFull())
-					this.flushBuffer();
-				
-				if (receivedPacket.getHeader().getSequenceNumber() - this.bufferIndex >= this.srcMaxWindowSize) {
-					this.bufferIndex += this.srcMaxWindowSize;
-					this.bufferIndex -= receivedPacket.getHeader().getSequenceNumber() % this.srcMaxWindowSize;
-				}
-				
-				// Get the correct index: <sequence number> - <receive window base index>,
-				// which will give us an index in the range [0, <max window size>).
-				int index = receivedPacket.getHeader().getSequenceNumber() - this.bufferIndex;
-
-				// If the packet was not retransmitted, or if we haven't gotten that
-				// packet yet, put it in the buffer at the correct index
-				if(!receivedPacket.isRetransmit() || receiveBuffer[index] == null)
-					receiveBuffer[index] = receivedPacket;
-				
-				// Then acknowledge the packet
-				this.sendACK(receivedPacket, false);
-			} else if (receivedPacket.isEOD()) {
-				// If the server has no more data to send us, acknowledge the end-of-data packet
-				// and return true.
-				this.sendACK(receivedPacket, true);
-				return true;
-			} else if (receivedPacket.isNudge()) {
-				// If the packet was a nudge, send back a nudge ACK to let the server know
-				// we still have a connection to it.
-				ReldatPacket nudge = new ReldatPacket("", (byte)(ReldatHeader.NUDGE_FLAG | ReldatHeader.ACK_FLAG), 0, 0);
-				DatagramPacket nudgePkt = nudge.toDatagramPacket(this.dstIPAddress, this.port);
-				this.outSocket.send(nudgePkt);
-			}
-		} catch (SocketTimeoutException e) {
-			// Do nothing
+			if (!this.finishTransfer())
+				return null;
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (HeaderCorruptedException | PayloadCorruptedException e) {
-			// Do nothing
+			return null;
 		}
 		
-		return false;
-	}
-	
-	/*
-	 * Flush the buffer, and append whatever was in the buffer
-	 * to our "total received data" string.
-	 */
-	private void flushBuffer() {
-		String bufferContents = "";
-
-		for (ReldatPacket rp : receiveBuffer)
-			if (rp != null)
-				bufferContents += new String(rp.getData()); // Packet payload is a byte array
+		String received = this.receivedData.toString(StandardCharsets.UTF_8);
+		
+		// Don't hold on to a big conversation's memory
+		if (this.receivedData.size() > ReldatChunkReader.DEFAULT_BLOCK_SIZE)
+			this.receivedData = new ReldatByteSink();
 		
-		this.receiveBuffer = new ReldatPacket[this.srcMaxWindowSize];
-		this.totalData += bufferContents;
+		this.receivedData.clear();
+		return received;
 	}
 	
 	/*
-	 * Send an ACK for a data packet back to the server.
+	 * Stream a conversation: send everything that can be read from the source to
+	 * the server, and write the data the server sends back to the sink. Data is
+	 * only read from the source once the window has room for it, and the server's
+	 * data is written out as soon as it can be put in order, so memory use depends
+	 * on the window size and not on how much data there is. The source should be
+	 * a blocking channel (a file, say); neither channel is closed.
+	 * 
+	 * Returns true once the server has sent all of its data, or false if the
+	 * server became unreachable. Errors reading the source or writing the sink
+	 * end the conversation and are rethrown.
 	 */
-	private void sendACK(ReldatPacket pkt, boolean isEOD)
-	{
-		System.out.println("Acknowledging received SEQ " + pkt.getHeader().getSequenceNumber() + ".");
-		byte flags = ReldatHeader.ACK_FLAG;
+	public boolean transfer(ReadableByteChannel source, WritableByteChannel sink) throws IOException {
+		this.startTransfer(source, sink);
 		
-		// If the packet is an EOD ACK, give it an EOD flag too
-		if (isEOD)
-			flags |= ReldatHeader.EOD_FLAG;
-
 		try {
-			ReldatPacket ack = new ReldatPacket("", flags, 0, pkt.getHeader().getSequenceNumber());
-			DatagramPacket ackPkt = ack.toDatagramPacket(this.dstIPAddress, this.port);
-			this.outSocket.send(ackPkt);
+			this.eventLoop.run(this);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		
+		return this.finishTransfer();
 	}
-
+	
 	/*
-	 * Returns true if the data buffer is full; false otherwise.
-	 * The data buffer is full if, for every index, there is a valid
-	 * packet occupying that index in the buffer.
+	 * Stream a conversation between an input stream and an output stream (see
+	 * the channel version of transfer()).
 	 */
-	private boolean bufferFull()
-	{
-		for(int i = 0; i < receiveBuffer.length; i++) {
-			if(receiveBuffer[i] == null)
-				return false;
-		}
+	public boolean transfer(InputStream source, OutputStream sink) throws IOException {
+		return this.transfer(Channels.newChannel(source), Channels.newChannel(sink));
+	}
+	
+	/*
+	 * Start streaming a conversation without waiting for it to finish (see
+	 * startConversation()). Once isConversationOver() returns true, call
+	 * finishTransfer().
+	 */
+	public void startTransfer(ReadableByteChannel source, WritableByteChannel sink) {
+		this.conversationStream = this.openStream(source, sink);
+	}
+	
+	/*
+	 * Finish the conversation started with startTransfer(). Returns true if the
+	 * server sent us all of its data, or false if it became unreachable, and
+	 * rethrows any error reading the source or writing the sink. Stray packets
+	 * the server sends afterwards are handled whenever the event loop next
+	 * runs, so there's no waiting for them here.
+	 */
+	public boolean finishTransfer() throws IOException {
+		ReldatStream stream = this.conversationStream;
+		this.conversationStream = null;
 		
-		return true;
+		if (!stream.isFinished())
+			this.closeStream(stream, true);
+		
+		return this.finishStream(stream);
 	}
 	
 	/*
-	 * Send a data packet to the server.
+	 * Start a stream that sends everything that can be read from the source to
+	 * the server and writes the data the server sends back to the sink, without
+	 * waiting for it to finish (see transfer() for how the channels are used).
+	 * The stream makes progress whenever the event loop is run. Once it has
+	 * finished, which awaitStream() waits for, call finishStream() to get its
+	 * result.
+	 * 
+	 * If the connection is multiplexed, up to getMaxStreams() streams can be
+	 * open at once, and they share the connection's window; otherwise, only
+	 * one can be. Throws an IllegalStateException if no more can be opened.
 	 */
-	private void sendData(ReldatPacket pkt, boolean isRetransmission) {
-		// If we're re-transmitting the packet, give it a RETRANSMIT flag
-		if (isRetransmission) {
-			pkt.addFlag(ReldatHeader.RETRANSMIT_FLAG);
-			System.out.println("Re-sending unacknowledged data.");
+	public ReldatStream openStream(ReadableByteChannel source, WritableByteChannel sink) {
+		if (this.openStreams.size() >= this.getMaxStreams())
+			throw new IllegalStateException("Too many open streams (at most " + this.getMaxStreams() + ")");
+		
+		if (this.openStreams.isEmpty()) {
+			// Reset all our properties. If we haven't sent anything for longer than the RTO,
+			// congestion control restarts from (at most) the initial window; a transfer
+			// that follows straight on from the last one keeps the window it had.
+			this.resetStats();
+			
+			if (this.lastDataSentAt != 0 && System.nanoTime() - this.lastDataSentAt > this.rtoEstimator.getTimeout())
+				this.congestionController.onIdle();
+			
+			this.highestSeqSent = this.currentSeq - 1;
+			this.recoverySeq = this.highestSeqSent;
+			this.recoveryTimedOut = false;
+			this.conversationFailed = false;
 		}
-
-		DatagramPacket dgPkt = pkt.toDatagramPacket(this.dstIPAddress, this.port);
 		
-		try {
-			this.outSocket.send(dgPkt);
-		} catch (IOException e) {
-			e.printStackTrace();
+		ReldatStream stream = new ReldatStream(this.options.isMultiplexed() ? this.nextStreamId++ : 0);
+		stream.openedAt = System.nanoTime();
+		
+		stream.mappedSource = this.mapSource(source);
+		
+		if (stream.mappedSource == null) {
+			stream.sourceReader = this.idleReaders.isEmpty() ? new ReldatChunkReader() : this.idleReaders.poll();
+			stream.sourceReader.reset(source);
 		}
-
-		// Emplace a new timer for the packet in the timers dictionary
-		this.timers.put(pkt, new Date().getTime());
 		
-		// Put this packet in the retransmissions and un-ACKed
-		// list. If we're re-transmitting the packet, we don't
-		// need to add it to the un-ACKed list because it's
-		// already in there.
-		if (!isRetransmission) {
-			this.retransmissions.put(pkt.getHeader().getSequenceNumber(), 0);
-			this.unAcked.add(pkt);
+		stream.sink = sink;
+		
+		if (this.options.isMultiplexed()) {
+			// The server numbers each stream's packets from 0
+			stream.receiveRing = this.idleRings.isEmpty() ? new ReldatReceiveRing(this.srcMaxWindowSize, this.options.getMaxPayloadSize()) : this.idleRings.poll();
+			stream.receiveRing.reset(0);
+		} else {
+			stream.receiveRing = this.receiveRing;
 		}
-		else
-			this.retransmissions.put(pkt.getHeader().getSequenceNumber(), this.retransmissions.get(pkt.getHeader().getSequenceNumber()) + 1);
+		
+		this.openStreams.add(stream);
+		
+		// Send the first packets of the stream, which start their timers
+		this.sendWindow();
+		this.eventLoop.reschedule(this);
+		return stream;
 	}
 	
 	/*
-	 * Convert a string into an array of RELDAT packets.
+	 * Map a source to send it from, if it's a file and we send files from
+	 * mappings. Returns null if it isn't, or can't be mapped (a FileChannel
+	 * can be a pipe or a device); then it's read like any other source.
 	 */
-	private ReldatPacket[] packetize(String message) throws HeaderCorruptedException, PayloadCorruptedException {
-		// Get the number of packets we'll need to create by dividing the string length by the max packet payload size
-		int lastPacketNum = (int)(Math.ceil(message.length() / (float) ReldatPacket.PACKET_PAYLOAD_SIZE));
-
-		// Create a buffer the size of the number of packets we're creating
-		ReldatPacket[] pkts = new ReldatPacket[lastPacketNum];
-		int currentPacketNum = 0;
-				
-		while (currentPacketNum < lastPacketNum) {
-			// Get the next window of the message to create a packet with
-			int startInd = currentPacketNum * ReldatPacket.PACKET_PAYLOAD_SIZE;
-			int endInd = (currentPacketNum + 1) * ReldatPacket.PACKET_PAYLOAD_SIZE;
-			String sub = (endInd > message.length()) ? message.substring(startInd) : message.substring(startInd, endInd);
+	private ReldatMappedFile mapSource(ReadableByteChannel source) {
+		if (!this.mapFiles || !(source instanceof FileChannel))
+			return null;
 		
-			ReldatPacket newPkt = null;
-
-			try {
-				newPkt = new ReldatPacket(sub, ReldatHeader.DATA_FLAG, this.getCurrentSequenceNumber(), 0);
-			} catch (UnsupportedEncodingException e) {
-				System.err.println("UTF-8 encoding is not supported on your machine.");
-				System.exit(-1);
-			}
-
-			// Add this packet to the packets we have sent to the server, because
-			// although we haven't sent the packet yet, we will if we're calling this method.
-			this.packetsSent.add(newPkt);
-			
-			// Add the packet we created to the buffer
-			pkts[currentPacketNum] = newPkt;
-			currentPacketNum++;
+		try {
+			return new ReldatMappedFile((FileChannel) source);
+		} catch (IOException e) {
+			return null;
 		}
-		
-		return pkts;
 	}
 	
 	/*
-	 * Return the current sequence number and then increment it.
+	 * Run the event loop until one of the open streams has finished, and return
+	 * it, or return null if there are no open streams left to wait for. Streams
+	 * are returned in the order they finished in.
 	 */
-	private int getCurrentSequenceNumber() {
-		this.seqsSent.add(this.currentSeq);
-		this.currentSeq++;
-		return this.seqsSent.get(this.seqsSent.size() - 1);
+	public ReldatStream awaitStream() {
+		this.awaitingStream = true;
+		
+		try {
+			this.eventLoop.run(this);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		this.awaitingStream = false;
+		return this.finishedStreams.poll();
 	}
-
+	
 	/*
-	 * Close the connection via four-way handshake. The following
+	 * Get the result of a stream that has finished. Returns true if the server
+	 * sent us all of the stream's data, or false if it became unreachable, and
+	 * rethrows any error reading the stream's source or writing its sink.
+	 */
+	public boolean finishStream(ReldatStream stream) throws IOException {
+		if (!stream.isFinished())
+			throw new IllegalStateException("Stream " + stream.getId() + " has not finished");
+		
+		this.finishedStreams.remove(stream);
+		
+		if (stream.error != null)
+			throw stream.error;
+		
+		return !stream.isFailed();
+	}
+	
+	/*
+	 * Returns true if the server accepted multiplexed streams during the handshake.
+	 */
+	public boolean isMultiplexed() {
+		return this.options.isMultiplexed();
+	}
+	
+	/*
+	 * Number of streams that can be open at once: the number the server
+	 * accepted, or 1 if the connection isn't multiplexed.
+	 */
+	public int getMaxStreams() {
+		return this.options.isMultiplexed() ? this.options.getMaxStreams() : 1;
+	}
+	
+	/*
+	 * Number of streams open right now (see openStream()).
+	 */
+	public int getOpenStreams() {
+		return this.openStreams.size();
+	}
+	
+	/*
+	 * The estimator that sets this connection's retransmission timeout;
+	 * use its setBounds() to change the timeout's floor and ceiling.
+	 */
+	public ReldatRtoEstimator getRtoEstimator() {
+		return this.rtoEstimator;
+	}
+	
+	/*
+	 * Configure delayed ACKs, which are used when the server supports selective
+	 * ACKs: in-order data packets are ACKed once every ackEvery packets, or
+	 * delayMillis (at most a quarter of a round trip) after the first of them
+	 * arrived, whichever comes first.
+	 * An ackEvery of 1 ACKs every packet as soon as it arrives.
+	 */
+	public void setDelayedAcks(int ackEvery, long delayMillis) {
+		this.ackEvery = Math.max(ackEvery, 1);
+		this.ackDelayNanos = delayMillis * 1000000L;
+	}
+	
+	/*
+	 * Number of ACKs we've sent for data packets from the server.
+	 */
+	public long getAcksSent() {
+		return this.metrics.getAcksSent();
+	}
+	
+	/*
+	 * Number of data packets from the server that were acknowledged without
+	 * an ACK of their own, thanks to delayed ACKs.
+	 */
+	public long getAcksSaved() {
+		return this.metrics.getAcksSaved();
+	}
+	
+	/*
+	 * The connection's metrics, which can be read (with snapshot(), say) from
+	 * any thread while the connection is running.
+	 */
+	public ReldatMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	public ReldatCongestionController getCongestionController() {
+		return this.congestionController;
+	}
+	
+	/*
+	 * Switch to another congestion control algorithm (see
+	 * ReldatCongestionControllers). Best done between conversations.
+	 */
+	public void setCongestionController(ReldatCongestionController congestionController) {
+		this.congestionController = congestionController;
+		
+		if (this.dstMaxWindowSize > 0)
+			this.congestionController.setMaxWindow(this.dstMaxWindowSize);
+	}
+	
+	/*
+	 * Returns true once the server has sent us all of its data, or
+	 * once we've given up on the server.
+	 */
+	public boolean isConversationOver() {
+		return this.conversationStream == null || this.conversationStream.isFinished();
+	}
+	
+	/*
+	 * Send as many new packets as the window has room for, taking turns between
+	 * the open streams and reading their data from their sources as we go. A
+	 * stream's end-of-data packet goes out once its source is exhausted (and,
+	 * without multiplexing, once everything has been acknowledged). This is run
+	 * whenever a stream is opened and after every event that can open up the window.
+	 */
+	private void sendWindow() {
+		// Streams in a row that had nothing to send; once every stream has had its turn, stop
+		int idle = 0;
+		
+		// Stop once the congestion window is full, or the channel is
+		while (!this.writeBlocked && this.unAcked.size() < this.congestionController.getWindow()) {
+			if (this.nextPacket == null) {
+				if (idle >= this.openStreams.size())
+					break;
+				
+				// Never get further ahead of the oldest un-ACKed packet than the server's window
+				if (!this.unAcked.isEmpty() && this.currentSeq - this.unAcked.getBase() >= this.dstMaxWindowSize)
+					break;
+				
+				this.scheduleIndex %= this.openStreams.size();
+				ReldatStream stream = this.openStreams.get(this.scheduleIndex);
+				this.nextPacket = this.nextPacket(stream);
+				
+				if (this.nextPacket == null) {
+					idle++;
+					this.scheduleIndex++;
+					continue;
+				}
+				
+				idle = 0;
+				this.scheduleIndex++;
+				
+				// A failed multiplexed stream only stayed open to send its end-of-data packet
+				if (stream.eodSent && stream.isFinished())
+					this.closeStream(stream, true);
+			}
+			
+			this.sendData(this.nextPacket, false);
+			
+			// If the channel was full, the packet goes out once it's writable
+			if (this.writeBlocked)
+				break;
+			
+			this.nextPacket = null;
+		}
+	}
+	
+	/*
+	 * Build the next packet a stream has to send: a data packet, or its
+	 * end-of-data packet once its source has run out. Returns null if the
+	 * stream has nothing to send right now.
+	 */
+	private ReldatPacket nextPacket(ReldatStream stream) {
+		ReldatPacket pkt = this.readPacket(stream);
+		
+		if (pkt != null || !stream.sourceExhausted || stream.eodSent)
+			return pkt;
+		
+		// Without multiplexing, the server only takes an end-of-data packet once everything
+		// before it has been ACKed. Otherwise, the EOD carries a stream sequence number, and
+		// the server puts it in order with the stream's data.
+		if (this.options.isMultiplexed()) {
+			this.sourceBuffer.clear();
+			pkt = this.buildPacket(stream, ReldatHeader.EOD_FLAG);
+		} else if (this.unAcked.isEmpty()) {
+			pkt = new ReldatPacket(NO_DATA, ReldatHeader.EOD_FLAG, this.getCurrentSequenceNumber(), 0, this.options.getChecksumId());
+		}
+		
+		if (pkt != null) {
+			ReldatEventLog.log(ReldatEventLog.EOD_SENT, this.id, pkt.getHeader().getSequenceNumber());
+			stream.eodSent = true;
+		}
+		
+		return pkt;
+	}
+	
+	/*
+	 * Read the next packet's worth of data from a stream's source and build a data
+	 * packet out of it. Returns null once the source has no more data.
+	 */
+	private ReldatPacket readPacket(ReldatStream stream) {
+		if (stream.sourceExhausted)
+			return null;
+		
+		if (stream.mappedSource != null)
+			return this.sliceMappedPacket(stream);
+		
+		// Leave room for the stream header
+		this.sourceBuffer.clear();
+		this.sourceBuffer.position(this.getStreamHeaderSize());
+		
+		try {
+			// Fill the packet unless the source runs out first
+			if (stream.sourceReader.readChunk(this.sourceBuffer) < 0 || this.sourceBuffer.hasRemaining())
+				stream.sourceExhausted = true;
+		} catch (IOException e) {
+			this.failStream(stream, e);
+			return null;
+		}
+		
+		if (this.sourceBuffer.position() == this.getStreamHeaderSize())
+			return null;
+		
+		stream.bytesSent += this.sourceBuffer.position() - this.getStreamHeaderSize();
+		return this.buildPacket(stream, ReldatHeader.DATA_FLAG);
+	}
+	
+	/*
+	 * Build the next data packet of a stream whose source is mapped: its
+	 * payload is the next slice of the mapping, after the stream header if
+	 * there is one, and isn't copied. Re-sending the packet sends the same
+	 * slice again. Returns null once the source has no more data.
+	 */
+	private ReldatPacket sliceMappedPacket(ReldatStream stream) {
+		ByteBuffer slice;
+		
+		try {
+			slice = stream.mappedSource.nextSlice(this.sourceBuffer.capacity() - this.getStreamHeaderSize());
+		} catch (IOException e) {
+			this.failStream(stream, e);
+			return null;
+		}
+		
+		if (!stream.mappedSource.hasRemaining())
+			stream.sourceExhausted = true;
+		
+		if (slice == null)
+			return null;
+		
+		stream.bytesSent += slice.capacity();
+		
+		byte[] streamHeader = NO_DATA;
+		
+		if (this.options.isMultiplexed()) {
+			streamHeader = new byte[ReldatStream.HEADER_SIZE];
+			ByteBuffer.wrap(streamHeader).putInt(stream.getId()).putInt(stream.nextSeq++);
+		}
+		
+		return new ReldatPacket(streamHeader, slice, ReldatHeader.DATA_FLAG, this.getCurrentSequenceNumber(), 0, this.options.getChecksumId());
+	}
+	
+	/*
+	 * Build a packet out of whatever is in the source buffer, after room for
+	 * the stream header, filling the stream header in if there is one.
+	 */
+	private ReldatPacket buildPacket(ReldatStream stream, byte flags) {
+		if (this.options.isMultiplexed()) {
+			this.sourceBuffer.putInt(0, stream.getId());
+			this.sourceBuffer.putInt(4, stream.nextSeq++);
+			
+			if (this.sourceBuffer.position() < ReldatStream.HEADER_SIZE)
+				this.sourceBuffer.position(ReldatStream.HEADER_SIZE);
+		}
+		
+		this.sourceBuffer.flip();
+		byte[] data = new byte[this.sourceBuffer.remaining()];
+		this.sourceBuffer.get(data);
+		
+		// Its checksums are generated when it's sent, so don't generate them now
+		return new ReldatPacket(data, null, flags, this.getCurrentSequenceNumber(), 0, this.options.getChecksumId());
+	}
+	
+	/*
+	 * Size of the stream header at the start of each DATA and EOD payload: 0
+	 * unless the connection is multiplexed.
+	 */
+	private int getStreamHeaderSize() {
+		return this.options.isMultiplexed() ? ReldatStream.HEADER_SIZE : 0;
+	}
+	
+	/*
+	 * End a stream because of an error reading its source or writing its sink.
+	 * Without multiplexing, that ends the conversation; a multiplexed stream
+	 * still sends its end-of-data packet, so the server can close its end, and
+	 * the server's data for it is thrown away.
+	 */
+	private void failStream(ReldatStream stream, IOException e) {
+		if (stream.error == null)
+			stream.error = e;
+		
+		stream.sourceExhausted = true;
+		
+		if (!this.options.isMultiplexed() || stream.eodSent) {
+			this.closeStream(stream, true);
+		} else {
+			this.markFinished(stream, true);
+			stream.sink = null;
+		}
+	}
+	
+	/*
+	 * Mark a stream as finished, so awaitStream() returns it.
+	 */
+	private void markFinished(ReldatStream stream, boolean failed) {
+		if (stream.finished)
+			return;
+		
+		stream.finished = true;
+		stream.failed = failed;
+		this.finishedStreams.add(stream);
+		
+		this.metrics.recordTransfer(System.nanoTime() - stream.openedAt, stream.bytesSent + stream.bytesReceived, failed);
+	}
+	
+	/*
+	 * Finish a stream (if it hasn't already) and stop servicing it, keeping its
+	 * reader and receive window for the next stream.
+	 */
+	private void closeStream(ReldatStream stream, boolean failed) {
+		this.markFinished(stream, failed);
+		
+		if (!this.openStreams.remove(stream))
+			return;
+		
+		if (stream.sourceReader != null) {
+			stream.sourceReader.reset(null);
+			this.idleReaders.add(stream.sourceReader);
+			stream.sourceReader = null;
+		}
+		
+		stream.mappedSource = null;
+		stream.sink = null;
+		
+		if (stream.receiveRing != this.receiveRing)
+			this.idleRings.add(stream.receiveRing);
+		
+		stream.receiveRing = null;
+	}
+	
+	/*
+	 * Give up on the server, failing every open stream.
+	 */
+	private void failConnection() {
+		this.conversationFailed = true;
+		this.metrics.count(ReldatMetrics.CONNECTION_FAILURES);
+		
+		while (!this.openStreams.isEmpty())
+			this.closeStream(this.openStreams.get(this.openStreams.size() - 1), true);
+	}
+	
+	/*
+	 * The open stream a packet from the server belongs to, or null if it belongs
+	 * to none (data for a stream that has been closed, or that arrives between
+	 * conversations, is acknowledged and thrown away). Multiplexed packets name
+	 * their stream in their stream header.
+	 */
+	private ReldatStream getStream(ReldatPacketView view) {
+		if (!this.options.isMultiplexed())
+			return this.openStreams.isEmpty() ? null : this.openStreams.get(0);
+		
+		int id = view.getBuffer().getInt(view.getPayloadOffset());
+		
+		// There are only ever a few streams open, so a scan is quicker than a map
+		for (int i = 0; i < this.openStreams.size(); i++) {
+			if (this.openStreams.get(i).getId() == id)
+				return this.openStreams.get(i);
+		}
+		
+		return null;
+	}
+	
+	/*
+	 * Re-send every un-ACKed packet whose retransmission timer has expired.
+	 */
+	private void resendExpired() {
+		long now = System.nanoTime();
+		int expired;
+		
+		while (!this.writeBlocked && (expired = this.timers.expire(now, this.expiredSeqs)) > 0) {
+			for (int i = 0; i < expired; i++) {
+				// If the channel filled up, re-arm the rest so they go out once it's writable
+				if (this.writeBlocked) {
+					this.timers.schedule(this.expiredSeqs[i], now);
+					continue;
+				}
+				
+				ReldatPacket currPkt = this.unAcked.get(this.expiredSeqs[i]);
+				
+				if (currPkt == null)
+					continue;
+				
+				// If a packet reached the timeout without being ACKed, retransmit it
+				if (this.unAcked.getRetransmissions(this.expiredSeqs[i]) < ReldatConnection.MAX_RETRANSMISSION_NO) {
+					// Fall back to the loss window once per loss episode, even if a fast
+					// retransmission already cut the window in this one
+					if (ReldatSerial.greaterThan(currPkt.getHeader().getSequenceNumber(), this.recoverySeq) || !this.recoveryTimedOut) {
+						this.lossDetector.onCut(ReldatSerial.greaterThan(currPkt.getHeader().getSequenceNumber(), this.recoverySeq));
+						this.congestionController.onTimeout(now, this.unAcked.size());
+						this.recoverySeq = this.highestSeqSent;
+						this.recoveryTimedOut = true;
+					}
+					
+					this.sendData(currPkt, true);
+					
+					if (this.writeBlocked)
+						this.timers.schedule(this.expiredSeqs[i], now);
+					else
+						this.lossDetector.onRetransmit(this.expiredSeqs[i], this.unAcked.getSendTime(this.expiredSeqs[i]), this.unAcked.getRetransmissions(this.expiredSeqs[i]), false);
+				} else {
+					// If we re-transmitted it too many times already, assume the server is unreachable
+					ReldatEventLog.log(ReldatEventLog.SERVER_FAILED, this.id, 0);
+					this.failConnection();
+					return;
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Reset all of our bookkeeping stats to a "clean slate" state.
+	 * Note that we don't reset the sequence number.
+	 */
+	private void resetStats()
+	{
+		this.receiveRing.clear();
+		this.timers.clear();
+		this.receivedSeqs.clear();
+		this.pendingAcks = 0;
+		this.ackDeadline = ReldatEventLoop.NO_DEADLINE;
+		this.unAcked.reset(this.currentSeq);
+		this.holeScanSeq = this.currentSeq;
+		this.lossDetector.reset();
+		this.lossDeadline = ReldatEventLoop.NO_DEADLINE;
+		this.nextPacket = null;
+		
+		// Multiplexed streams don't use the connection's receive window, and the server's
+		// lowest un-ACKed sequence number only ever moves forward, so it's kept as it is
+		if (!this.options.isMultiplexed())
+			this.receiveFloor = this.receiveRing.getNext();
+	}
+	
+	/*
+	 * Listen for a packet, waiting a maximum of 1000 milliseconds before
+	 * we decide there's no packet to receive.
+	 * 
+	 * This method returns true if we have received all data from the server,
+	 * and returns false if the server still has more data to send us.
+	 */
+	public boolean listen()
+	{
+		this.eodReceived = false;
+		
+		try {
+			this.awaitPacket(PACKET_TIMEOUT_NANOS);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return this.eodReceived;
+	}
+	
+	/*
+	 * Run the event loop until we receive a packet from the server or
+	 * the timeout passes, whichever comes first.
+	 */
+	private void awaitPacket(long timeoutNanos) throws IOException {
+		this.awaitingPacket = true;
+		this.waitDeadline = System.nanoTime() + timeoutNanos;
+		
+		this.eventLoop.run(this);
+		
+		this.awaitingPacket = false;
+		this.waitDeadline = ReldatEventLoop.NO_DEADLINE;
+	}
+	
+	/*
+	 * Returns true while someone is waiting on this connection: either a
+	 * conversation is in progress, or a caller is waiting for a packet.
+	 * The event loop keeps running until this returns false.
+	 */
+	boolean isWaiting() {
+		if (this.awaitingPacket || this.handshake != NO_HANDSHAKE)
+			return true;
+		
+		if (this.awaitingStream)
+			return this.finishedStreams.isEmpty() && this.hasUnfinishedStreams();
+		
+		return !this.isConversationOver();
+	}
+	
+	private boolean hasUnfinishedStreams() {
+		for (int i = 0; i < this.openStreams.size(); i++) {
+			if (!this.openStreams.get(i).isFinished())
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/*
+	 * The earliest time (in System.nanoTime() terms) at which onTimer() needs
+	 * to be called, or ReldatEventLoop.NO_DEADLINE if there is no such time.
+	 */
+	long getNextDeadline() {
+		long deadline = Math.min(this.waitDeadline, this.handshakeDeadline);
+		
+		// While the channel is full, retransmissions wait for onWritable() instead
+		if (!this.openStreams.isEmpty() && !this.writeBlocked)
+			deadline = Math.min(deadline, Math.min(this.timers.nextDeadline(), this.lossDeadline));
+		
+		return Math.min(deadline, this.ackDeadline);
+	}
+	
+	/*
+	 * Called by the event loop once getNextDeadline() has passed.
+	 */
+	void onTimer(long now) {
+		if (this.waitDeadline <= now) {
+			// Nothing arrived in time; let whoever was waiting carry on
+			this.waitDeadline = ReldatEventLoop.NO_DEADLINE;
+			this.awaitingPacket = false;
+		}
+		
+		if (this.handshakeDeadline <= now)
+			this.onHandshakeTimeout();
+		
+		// Send the ACK we've been holding back once its delay is up
+		if (this.ackDeadline <= now)
+			this.flushAck();
+		
+		if (!this.openStreams.isEmpty()) {
+			// Packets that were overtaken may have been lost by now
+			if (this.lossDeadline <= now)
+				this.retransmitHoles();
+			
+			this.resendExpired();
+		}
+	}
+	
+	/*
+	 * Called by the event loop when the channel has room for another datagram
+	 * after a send found it full.
+	 */
+	void onWritable() {
+		this.writeBlocked = false;
+		this.eventLoop.setWriteInterest(this, this.channel, false);
+		
+		if (!this.openStreams.isEmpty()) {
+			this.resendExpired();
+			this.sendWindow();
+		}
+	}
+	
+	/*
+	 * Called by the event loop when datagrams are waiting on the channel.
+	 * Reads and handles them until the channel is drained, or until a
+	 * caller waiting for a single packet has gotten one.
+	 */
+	void onReadable() {
+		// While we're opening, the server's reply may come to either channel
+		if (this.receive(this.channel) && this.legacyChannel != null)
+			this.receive(this.legacyChannel);
+	}
+	
+	/*
+	 * Read and handle the datagrams waiting on one of our channels. Returns
+	 * false if a caller waiting for a single packet got one first.
+	 */
+	private boolean receive(DatagramChannel channel) {
+		this.receivingChannel = channel;
+		
+		try {
+			while (true) {
+				this.datagramBuffer.clear();
+				
+				// Unless the server is symmetric, it replies from a port (and possibly an address) other
+				// than the one we send to, so like the blocking socket this replaces, accept any sender.
+				// A connected channel can report an earlier datagram as undeliverable; that's just a loss.
+				try {
+					if (channel.receive(this.datagramBuffer) == null)
+						return true;
+				} catch (PortUnreachableException e) {
+					continue;
+				}
+				
+				this.datagramBuffer.flip();
+				this.metrics.count(ReldatMetrics.PACKETS_RECEIVED);
+				this.metrics.count(ReldatMetrics.BYTES_RECEIVED, this.datagramBuffer.remaining());
+				
+				try {
+					// The view decodes the packet in place; we only copy it out if we need to keep its data
+					this.packetView.wrap(this.datagramBuffer).verify();
+					this.handlePacket(this.packetView);
+				} catch (HeaderCorruptedException | PayloadCorruptedException e) {
+					this.metrics.count((e instanceof HeaderCorruptedException) ? ReldatMetrics.CORRUPTED_HEADERS : ReldatMetrics.CORRUPTED_PAYLOADS);
+					
+					// Corrupted packets are otherwise dropped, but a handshake step wants to know
+					if (this.handshake != NO_HANDSHAKE)
+						this.onHandshakeCorrupted();
+				}
+				
+				if (this.awaitingPacket) {
+					this.awaitingPacket = false;
+					return false;
+				}
+				
+				// After every packet, see if the window has room for more data
+				if (!this.openStreams.isEmpty())
+					this.sendWindow();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return true;
+		}
+	}
+	
+	/*
+	 * Determine what to do with a verified packet from the server based on its flags.
+	 */
+	private void handlePacket(ReldatPacketView receivedView) throws IOException {
+		// A handshake step handles its own replies
+		if (this.handshake != NO_HANDSHAKE) {
+			this.handleHandshakePacket(receivedView);
+			return;
+		}
+		
+		if(receivedView.isACK()) {
+			int ackNum = receivedView.getAcknowledgementNumber();
+			ReldatEventLog.log(ReldatEventLog.ACK_RECEIVED, this.id, ackNum);
+			this.metrics.count(ReldatMetrics.ACKS_RECEIVED);
+			
+			// An ACK for a packet that's already been ACKed means the server got it twice, so if we
+			// re-sent it, we needn't have; once that's true of the whole loss episode, undo its cut
+			if (!this.unAcked.contains(ackNum) && this.lossDetector.onAckedAgain(ackNum, System.nanoTime()))
+				this.congestionController.undo();
+			
+			if (this.options.isSackEnabled() && this.sack.read(receivedView)) {
+				// A selective ACK can acknowledge any number of packets at once: everything
+				// below its cumulative ACK, then everything in each of its blocks
+				while (!this.unAcked.isEmpty() && ReldatSerial.lessThan(this.unAcked.getBase(), this.sack.getCumulativeAck()))
+					this.ackPacket(this.unAcked.getBase(), ackNum);
+				
+				for (int block = 0; block < this.sack.getBlockCount(); block++) {
+					int end = this.sack.getBlockEnd(block);
+					
+					// Only look at the packets in the block that are still un-ACKed
+					for (int seqNum = this.unAcked.nextOutstanding(this.sack.getBlockStart(block)); ReldatSerial.lessThan(seqNum, end) && seqNum != this.unAcked.getNext(); seqNum = this.unAcked.nextOutstanding(seqNum + 1))
+						this.ackPacket(seqNum, ackNum);
+				}
+				
+				// Whatever it leaves out below what it does acknowledge may have been lost
+				this.retransmitHoles();
+			} else if (this.unAcked.contains(ackNum)) {
+				// If it's an ACK for a packet that is still un-ACKed, mark it as ACKed
+				this.ackPacket(ackNum, ackNum);
+			}
+		} else if (receivedView.isData()) {
+			int seqNum = receivedView.getSequenceNumber();
+			ReldatEventLog.log(ReldatEventLog.DATA_RECEIVED, this.id, seqNum);
+			this.metrics.count(ReldatMetrics.DATA_PACKETS_RECEIVED);
+			
+			// A multiplexed packet too short to hold a stream header is bogus
+			if (receivedView.getPayloadSize() < this.getStreamHeaderSize())
+				return;
+			
+			if (!this.receiveData(receivedView))
+				return;
+			
+			// Then acknowledge the packet, along with everything else we've received if we can
+			if (this.options.isSackEnabled())
+				this.acknowledgeData(seqNum, receivedView.getAcknowledgementNumber());
+			else
+				this.sendACK(seqNum, false);
+		} else if (receivedView.isEOD()) {
+			this.eodReceived = true;
+			
+			if (this.options.isMultiplexed()) {
+				if (receivedView.getPayloadSize() < ReldatStream.HEADER_SIZE)
+					return;
+				
+				// A stream's end-of-data packet is put in order with its data, and acknowledged like it
+				this.receiveStreamEod(receivedView);
+				
+				if (this.options.isSackEnabled()) {
+					this.acknowledgeData(receivedView.getSequenceNumber(), receivedView.getAcknowledgementNumber());
+					this.flushAck();
+				} else {
+					this.sendACK(receivedView.getSequenceNumber(), true);
+				}
+				
+				return;
+			}
+			
+			// If the server has no more data to send us, acknowledge whatever data we
+			// were holding an ACK back for, then the end-of-data packet, and end the conversation.
+			this.flushAck();
+			this.sendACK(receivedView.getSequenceNumber(), true);
+			
+			// The server's data in the next conversation starts right after this
+			this.receiveRing.skipTo(receivedView.getSequenceNumber() + 1);
+			
+			if (!this.openStreams.isEmpty())
+				this.closeStream(this.openStreams.get(0), false);
+		} else if (receivedView.isNudge()) {
+			// If the packet was a nudge, send back a nudge ACK to let the server know
+			// we still have a connection to it.
+			this.send((byte)(ReldatHeader.NUDGE_FLAG | ReldatHeader.ACK_FLAG), 0, 0);
+		}
+	}
+	
+	/*
+	 * Mark the un-ACKed packet with the given sequence number as ACKed. ackNum is the
+	 * ACK number of the ACK packet; only the packet it names can have its round trip timed.
+	 */
+	private void ackPacket(int seqNum, int ackNum) {
+		long sentAt = this.unAcked.getSendTime(seqNum);
+		int retransmissions = this.unAcked.getRetransmissions(seqNum);
+		boolean resent = retransmissions > 0;
+		long now = System.nanoTime();
+		
+		this.lossDetector.onAcked(seqNum, sentAt, retransmissions, now);
+		
+		// Remove it from the send window (which slides the window's base past it if it was
+		// the oldest un-ACKed packet), and stop its retransmission timer
+		this.unAcked.remove(seqNum);
+		this.timers.cancel(seqNum);
+		
+		// Time the round trip, unless the packet was re-sent (then we can't tell which copy was ACKed)
+		if (seqNum == ackNum && !resent)
+			this.sampleRtt(now - sentAt);
+		
+		this.congestionController.onAck(now, this.rtoEstimator.getSmoothedRtt());
+		
+		this.metrics.recordTimeToAck(now - sentAt);
+		this.metrics.recordWindow(this.unAcked.size(), this.congestionController.getWindow());
+	}
+	
+	/*
+	 * Feed a round-trip time to the RTO estimator, and to the metrics.
+	 */
+	private void sampleRtt(long rtt) {
+		this.rtoEstimator.sample(rtt);
+		this.metrics.recordRtt(rtt, this.rtoEstimator.getSmoothedRtt(), this.rtoEstimator.getTimeout());
+	}
+	
+	/*
+	 * Re-send the un-ACKed packets that selective ACKs show to be lost: packets that
+	 * packets sent after them have overtaken, by more than the reordering window (see
+	 * ReldatLossDetector). This recovers from several losses in one round trip without
+	 * waiting for their timers, without taking a packet that was only reordered or
+	 * jittered for a lost one. Each packet is only re-sent this way once; if the copy is
+	 * lost too, its retransmission timer takes over. Packets are found lost in the order
+	 * they were sent, so the scan carries on from where the last one stopped, and stops
+	 * at the first packet that isn't lost yet, setting a deadline to look at it again.
+	 */
+	private void retransmitHoles() {
+		long now = System.nanoTime();
+		this.lossDeadline = ReldatEventLoop.NO_DEADLINE;
+		
+		while (!this.writeBlocked) {
+			int seqNum = this.unAcked.nextOutstanding(this.holeScanSeq);
+			
+			if (seqNum == this.unAcked.getNext()) {
+				this.holeScanSeq = seqNum;
+				return;
+			}
+			
+			if (this.unAcked.getRetransmissions(seqNum) == 0) {
+				long lossTime = this.lossDetector.getLossTime(this.unAcked.getSendTime(seqNum));
+				
+				if (lossTime > now) {
+					this.holeScanSeq = seqNum;
+					this.lossDeadline = lossTime;
+					return;
+				}
+				
+				// Cut the congestion window once per loss episode
+				if (ReldatSerial.greaterThan(seqNum, this.recoverySeq)) {
+					this.lossDetector.onCut(true);
+					this.congestionController.onLoss(now);
+					this.recoverySeq = this.highestSeqSent;
+					this.recoveryTimedOut = false;
+				}
+				
+				this.sendData(this.unAcked.get(seqNum), true);
+				
+				// If the channel was full, try this packet again next time
+				if (this.writeBlocked) {
+					this.holeScanSeq = seqNum;
+					return;
+				}
+				
+				this.lossDetector.onRetransmit(seqNum, this.unAcked.getSendTime(seqNum), this.unAcked.getRetransmissions(seqNum), true);
+				this.metrics.count(ReldatMetrics.FAST_RETRANSMISSIONS);
+			}
+			
+			this.holeScanSeq = seqNum + 1;
+		}
+	}
+	
+	/*
+	 * Put a data packet from the server in order in the receive window of its
+	 * stream (the connection's own window, without multiplexing), writing out
+	 * whatever data that puts in order. Returns false if the packet was dropped
+	 * without being stored, and so mustn't be ACKed.
+	 */
+	private boolean receiveData(ReldatPacketView receivedView) {
+		ReldatStream stream = this.getStream(receivedView);
+		ReldatReceiveRing ring = this.receiveRing;
+		int seqNum = receivedView.getSequenceNumber();
+		int skip = this.getStreamHeaderSize();
+		
+		if (this.options.isMultiplexed()) {
+			// Data for a stream we've closed has nowhere to go, but still needs ACKing
+			if (stream == null)
+				return true;
+			
+			ring = stream.receiveRing;
+			seqNum = receivedView.getBuffer().getInt(receivedView.getPayloadOffset() + 4);
+		}
+		
+		// Drop packets too far ahead of the one we're waiting for to keep; the server will re-send them
+		if (ring.isBeyondWindow(seqNum)) {
+			ReldatEventLog.log(ReldatEventLog.DATA_DROPPED, this.id, seqNum);
+			this.metrics.count(ReldatMetrics.DROPPED_PACKETS);
+			return false;
+		}
+		
+		int length = receivedView.getPayloadSize() - skip;
+		
+		if (seqNum == ring.getNext()) {
+			// The packet we were waiting for goes straight from the datagram to the sink,
+			// followed by any packets after it that were waiting for it
+			this.writeToSink(stream, receivedView, skip);
+			ring.advance();
+			this.deliverReceived(stream, ring);
+			
+			if (stream != null && stream.eodReceived && ring.getNext() == stream.eodSeq)
+				this.closeStream(stream, stream.error != null);
+		} else if (!ring.store(seqNum, receivedView, skip)) {
+			// Keep a packet from beyond a gap until the gap is filled; a packet we
+			// already have, or have already written out, is a duplicate
+			this.metrics.count(ReldatMetrics.DUPLICATE_PACKETS);
+			return true;
+		}
+		
+		this.metrics.count(ReldatMetrics.PAYLOAD_BYTES_RECEIVED, length);
+		
+		if (stream != null)
+			stream.bytesReceived += length;
+		
+		return true;
+	}
+	
+	/*
+	 * Record the server's end-of-data packet for a multiplexed stream. The stream
+	 * is over once everything before it has been written out.
+	 */
+	private void receiveStreamEod(ReldatPacketView receivedView) {
+		ReldatStream stream = this.getStream(receivedView);
+		
+		if (stream == null || stream.eodReceived)
+			return;
+		
+		stream.eodReceived = true;
+		stream.eodSeq = receivedView.getBuffer().getInt(receivedView.getPayloadOffset() + 4);
+		
+		if (stream.receiveRing.getNext() == stream.eodSeq)
+			this.closeStream(stream, stream.error != null);
+	}
+	
+	/*
+	 * Write the buffered data packets that are now in order to the stream's sink,
+	 * sliding the receive window past them.
+	 */
+	private void deliverReceived(ReldatStream stream, ReldatReceiveRing ring) {
+		boolean discard = stream == null || stream.sink == null || stream.error != null;
+		
+		try {
+			ring.deliver(discard ? null : stream.sink);
+		} catch (IOException e) {
+			this.failStream(stream, e);
+		}
+	}
+	
+	/*
+	 * Write the payload of a packet (after the stream header, if there is one), straight
+	 * out of the datagram buffer, to the stream's sink, byte for byte. Data that arrives
+	 * outside of a conversation (or after the sink failed) is thrown away.
+	 */
+	private void writeToSink(ReldatStream stream, ReldatPacketView receivedView, int skip) {
+		if (stream == null || stream.sink == null || stream.error != null)
+			return;
+		
+		try {
+			receivedView.writePayload(stream.sink, skip);
+		} catch (IOException e) {
+			this.failStream(stream, e);
+		}
+	}
+	
+	/*
+	 * Send an ACK for a data packet back to the server.
+	 */
+	private void sendACK(int seqNum, boolean isEOD)
+	{
+		ReldatEventLog.log(ReldatEventLog.ACK_SENT, this.id, seqNum);
+		byte flags = ReldatHeader.ACK_FLAG;
+		
+		// If the packet is an EOD ACK, give it an EOD flag too
+		if (isEOD)
+			flags |= ReldatHeader.EOD_FLAG;
+		else
+			this.metrics.count(ReldatMetrics.ACKS_SENT);
+
+		try {
+			this.send(flags, 0, seqNum);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Record a data packet we received from the server (when SACK is on), and
+	 * ACK it now or later. floor is the packet's ACK number field: the server's
+	 * lowest un-ACKed sequence number, below which we can consider everything
+	 * received.
+	 * 
+	 * In-order packets are ACKed every ackEvery packets, or once the delayed ACK
+	 * timer runs out; since a selective ACK covers every packet we have, the
+	 * server loses nothing by getting fewer of them. Duplicates, and packets that
+	 * leave or fill a gap, are ACKed right away so the server finds out about
+	 * losses as soon as possible; so is the server's oldest un-ACKed packet,
+	 * since the server may have to wait for its ACK to send any more.
+	 */
+	private void acknowledgeData(int seqNum, int floor)
+	{
+		this.receiveFloor = ReldatSerial.max(this.receiveFloor, floor);
+		this.receivedSeqs.removeBelow(this.receiveFloor);
+		
+		// In order: new, the highest we have, with nothing missing below it, and not the server's oldest un-ACKed packet
+		boolean isNew = this.receivedSeqs.add(seqNum);
+		boolean inOrder = isNew && this.receivedSeqs.size() == 1 && this.receivedSeqs.getStart(0) == this.receiveFloor
+				&& this.receivedSeqs.getEnd(0) == seqNum + 1 && seqNum != floor;
+		
+		this.pendingAcks++;
+		this.pendingAckSeq = seqNum;
+		
+		if (!inOrder || this.pendingAcks >= this.ackEvery)
+			this.flushAck();
+		else if (this.ackDeadline == ReldatEventLoop.NO_DEADLINE)
+			this.ackDeadline = System.nanoTime() + this.getAckDelay();
+	}
+	
+	/*
+	 * How long to hold back an ACK for an in-order packet: ackDelayNanos, but no
+	 * more than a quarter of a round trip. The server may be waiting on the ACK to
+	 * send any more (at the end of a transfer, it always is), and on a path with a
+	 * round trip shorter than the delay, holding it back would cost more than the
+	 * ACKs it saves.
+	 */
+	private long getAckDelay() {
+		long srtt = this.rtoEstimator.getSmoothedRtt();
+		return (srtt == 0) ? this.ackDelayNanos : Math.min(this.ackDelayNanos, srtt / 4);
+	}
+	
+	/*
+	 * Send a selective ACK for the data packets we've been holding an ACK back for,
+	 * if there are any, acknowledging every packet we've received from the server.
+	 */
+	private void flushAck()
+	{
+		if (this.pendingAcks == 0)
+			return;
+		
+		ReldatEventLog.log(ReldatEventLog.ACK_SENT, this.id, this.pendingAckSeq);
+		
+		this.sack.set(this.receivedSeqs.firstMissing(this.receiveFloor), this.receivedSeqs, this.pendingAckSeq);
+		
+		this.sackPayload.clear();
+		this.sack.writeTo(this.sackPayload);
+		this.sackPayload.flip();
+
+		try {
+			this.sendBuffer.clear();
+			this.codec.encode(this.sendBuffer, ReldatHeader.ACK_FLAG, 0, this.pendingAckSeq, this.sackPayload);
+			this.flushSendBuffer();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		this.metrics.count(ReldatMetrics.ACKS_SENT);
+		this.metrics.count(ReldatMetrics.ACKS_SAVED, this.pendingAcks - 1);
+		this.pendingAcks = 0;
+		this.ackDeadline = ReldatEventLoop.NO_DEADLINE;
+	}
+
+	/*
+	 * Send a data packet to the server. If the channel is full, the packet
+	 * isn't sent and no bookkeeping is done; sendWindow() and resendExpired()
+	 * will try again once the event loop tells us the channel is writable.
+	 */
+	private void sendData(ReldatPacket pkt, boolean isRetransmission) {
+		// If we're re-transmitting the packet, give it a RETRANSMIT flag
+		if (isRetransmission)
+			pkt.addFlag(ReldatHeader.RETRANSMIT_FLAG);
+
+		try {
+			// With SACK, data packets tell the server the lowest sequence number we still need ACKed
+			boolean sent = this.send(pkt, this.options.isSackEnabled() ? this.getLowestUnAckedSeq(pkt) : pkt.getHeader().getAcknowledgementNumber());
+			
+			if (!sent)
+				return;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		long now = System.nanoTime();
+		this.highestSeqSent = ReldatSerial.max(this.highestSeqSent, pkt.getHeader().getSequenceNumber());
+		this.lastDataSentAt = now;
+		
+		// Put this packet in the send window, which remembers when it was first sent so
+		// its round trip can be timed. If we're re-transmitting the packet, it's already
+		// in there, so just count the retransmission; that makes its ACK ambiguous.
+		if (!isRetransmission) {
+			ReldatEventLog.log(ReldatEventLog.DATA_SENT, this.id, pkt.getHeader().getSequenceNumber());
+			this.unAcked.add(pkt, now);
+			this.metrics.count(ReldatMetrics.DATA_PACKETS_SENT);
+			this.metrics.count(ReldatMetrics.PAYLOAD_BYTES_SENT, pkt.getPayloadSize() - this.getStreamHeaderSize());
+		} else {
+			ReldatEventLog.log(ReldatEventLog.DATA_RESENT, this.id, pkt.getHeader().getSequenceNumber());
+			this.unAcked.countRetransmission(pkt.getHeader().getSequenceNumber());
+			this.metrics.count(ReldatMetrics.RETRANSMISSIONS);
+		}
+		
+		this.metrics.recordWindow(this.unAcked.size(), this.congestionController.getWindow());
+		
+		// (Re)start the packet's retransmission timer, backing off each time it's re-sent
+		long timeout = this.rtoEstimator.getTimeout(this.unAcked.getRetransmissions(pkt.getHeader().getSequenceNumber()));
+		this.timers.schedule(pkt.getHeader().getSequenceNumber(), now + timeout);
+	}
+	
+	/*
+	 * Encode a packet into the reusable send buffer and send it to the server.
+	 * Returns false if the channel was full and the packet wasn't sent.
+	 */
+	private boolean send(ReldatPacket pkt) throws IOException {
+		this.sendBuffer.clear();
+		this.codec.encode(this.sendBuffer, pkt);
+		return this.flushSendBuffer();
+	}
+	
+	/*
+	 * Send a packet to the server with a different ACK number than the one it
+	 * was built with. A payload in a mapped file goes out straight from the
+	 * mapping, after the rest of the packet, in one gathering write; that
+	 * takes a connected channel, so to a server that isn't symmetric the
+	 * packet is copied into the send buffer instead.
+	 */
+	private boolean send(ReldatPacket pkt, int ackNum) throws IOException {
+		ByteBuffer mappedData = pkt.getMappedData();
+		
+		if (mappedData == null || !this.channel.isConnected()) {
+			this.sendBuffer.clear();
+			this.codec.encode(this.sendBuffer, pkt, ackNum);
+			return this.flushSendBuffer();
+		}
+		
+		this.headBuffer.clear();
+		this.codec.encodeHead(this.headBuffer, pkt, ackNum);
+		this.headBuffer.flip();
+		mappedData.clear();
+		
+		this.gatherBuffers[0] = this.headBuffer;
+		this.gatherBuffers[1] = mappedData;
+		int length = this.headBuffer.remaining() + mappedData.remaining();
+		
+		try {
+			return this.onSend(this.channel.write(this.gatherBuffers) > 0, length);
+		} catch (PortUnreachableException e) {
+			return true;
+		} finally {
+			this.gatherBuffers[1] = null;
+		}
+	}
+	
+	/*
+	 * The lowest sequence number of any packet we're sending that hasn't been
+	 * ACKed yet, counting the given packet that we're about to send.
+	 */
+	private int getLowestUnAckedSeq(ReldatPacket pkt) {
+		int seqNum = pkt.getHeader().getSequenceNumber();
+		
+		if (!this.unAcked.isEmpty())
+			return ReldatSerial.min(seqNum, this.unAcked.getBase());
+		
+		return seqNum;
+	}
+	
+	/*
+	 * Send a packet with no payload to the server without building a
+	 * ReldatPacket for it.
+	 */
+	private boolean send(byte flags, int seqNum, int ackNum) throws IOException {
+		this.sendBuffer.clear();
+		this.codec.encode(this.sendBuffer, flags, seqNum, ackNum, NO_PAYLOAD);
+		return this.flushSendBuffer();
+	}
+	
+	private boolean flushSendBuffer() throws IOException {
+		this.sendBuffer.flip();
+		
+		try {
+			int length = this.sendBuffer.remaining();
+			return this.onSend(this.channel.send(this.sendBuffer, this.dstAddress) > 0, length);
+		} catch (PortUnreachableException e) {
+			// A connected channel reports that an earlier datagram couldn't be delivered; treat
+			// this one as lost too, and let retransmissions decide whether the server is gone
+			return true;
+		}
+	}
+	
+	/*
+	 * Count a datagram of the given length that was sent, or, if the channel
+	 * was full and it wasn't, wait for the channel to be writable. Returns
+	 * whether it was sent.
+	 */
+	private boolean onSend(boolean sent, int length) {
+		if (sent) {
+			this.metrics.count(ReldatMetrics.PACKETS_SENT);
+			this.metrics.count(ReldatMetrics.BYTES_SENT, length);
+			return true;
+		}
+		
+		// The channel's send buffer is full; ask the event loop to tell us when it isn't
+		this.writeBlocked = true;
+		this.eventLoop.setWriteInterest(this, this.channel, true);
+		return false;
+	}
+	
+	/*
+	 * Return the current sequence number and then increment it, wrapping
+	 * around to 0 after 2^32 - 1.
+	 */
+	private int getCurrentSequenceNumber() {
+		return this.currentSeq++;
+	}
+
+	/*
+	 * Close the connection via four-way handshake. The following
 	 * packet exchange occurs:
 	 * 
 	 * 1. Client -> Server
@@ -514,101 +1975,205 @@ public class ReldatConnection {
 	 */
 	public boolean disconnect()
 	{
-		System.out.println( "Attempting to disconnect from " + this.dstIPAddress + ":" + this.port + "..." );
+		this.startDisconnect();
 		
-        byte[] buffer = new byte[1000];
-        DatagramPacket closeAck1Pkt = new DatagramPacket( buffer, buffer.length );
-		ReldatPacket closeAck1 = null;
-		int resends = 0;
-
-		// Step 1. Send client-side CLOSE to server. Keep
-		// looping until we either hit the max retransmission count
-		// or we get a CLOSEACK packet back from the server.
-		do {
-			try {
-				ReldatPacket clientClose = new ReldatPacket("", ReldatHeader.CLOSE_FLAG, this.getCurrentSequenceNumber(), 0);
-				DatagramPacket clientClosePacket = clientClose.toDatagramPacket(this.dstIPAddress, this.port);
-				this.outSocket.send(clientClosePacket);
-								
-				// Try to receive server-side CLOSEACK from server
-	            this.inSocket.receive(closeAck1Pkt);
-	            closeAck1 = ReldatPacket.bytesToPacket(closeAck1Pkt.getData());
-			} catch (SocketTimeoutException e) {
-				System.out.println("Server did not respond - retrying...");
-			} catch (HeaderCorruptedException | PayloadCorruptedException e) {
-            	System.out.println("Server replied with corrupted packet - retrying...");
-            	resends--; // Don't count a corrupted packet as a non-response
-            } catch (UnsupportedEncodingException e) {
-				System.err.println("UTF-8 encoding is not supported on your machine.");
-				System.exit(-1);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
-			// Increment the send count, and if exceeds the max retransmission count, stop trying to disconnect
-            resends++;
-
-            if (resends >= MAX_RETRANSMISSION_NO)
-            	break;
-		} while (closeAck1 == null || !(closeAck1.isClose() && closeAck1.isACK()));
-		
-		// If we get here and the max resend count was hit, assume the server is unreachable
-        if (resends >= MAX_RETRANSMISSION_NO) {
-        	System.out.println("Server did not respond. Assuming server failure.");
-        	return false;
-        }
-
-        // We got a CLOSE ACK from the server, so now we're expecting a CLOSE packet
-		buffer = new byte[1000];
-		DatagramPacket serverClosePkt = new DatagramPacket(buffer, buffer.length);
-		ReldatPacket serverClose = null;
-		resends = 0;
-
-		// Try three times to receive a CLOSE from the server
-		do {
-			try {
-				// Try to receive server-side CLOSE from server
-				this.inSocket.receive(serverClosePkt);
-				serverClose = ReldatPacket.bytesToPacket(serverClosePkt.getData());
-			} catch(SocketTimeoutException e) {
-				// Do nothing if we time out
-			} catch(HeaderCorruptedException | PayloadCorruptedException e) {
-				System.out.println("Server replied with corrupted packet - retrying..");
-				resends--;
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-			// Increase the wait counter, and if we hit the max retransmission time, assume the server is unreachable
-			resends++;
-			
-			if (resends >= MAX_RETRANSMISSION_NO)
-				break;
-		} while (serverClose == null || !serverClose.isClose());
+		try {
+			this.eventLoop.run(this);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return this.finishDisconnect();
+	}
+	
+	/*
+	 * Start closing the connection without waiting for the handshake to finish
+	 * (see startConnect()). Once isHandshakeOver() returns true, call
+	 * finishDisconnect().
+	 */
+	public void startDisconnect() {
+		ReldatEventLog.log(ReldatEventLog.DISCONNECTING, this.id, this.dstIPAddress.getHostAddress() + ":" + this.port);
+		
+		// Step 1. Send client-side CLOSE to server
+		ReldatPacket close = new ReldatPacket(NO_DATA, ReldatHeader.CLOSE_FLAG, this.getCurrentSequenceNumber(), 0, this.options.getChecksumId());
+		this.startHandshake(CLOSING, close);
+	}
+	
+	/*
+	 * Finish closing the connection started with startDisconnect(). Returns true if
+	 * the disconnect was successful, and false if the server did not respond.
+	 * Either way, the connection's channel is closed.
+	 */
+	public boolean finishDisconnect() {
+		// Close our channel
+		this.close();
+		
+		if (!this.handshakeSucceeded) {
+			ReldatEventLog.log(ReldatEventLog.DISCONNECT_FAILED, this.id, 0);
+			return false;
+		}
 		
-		// If we get here and the max resend count was hit, assume the server is unreachable
-        if (resends >= MAX_RETRANSMISSION_NO) {
-        	System.out.println("Server did not respond. Assuming server failure.");
-        	return false;
-        }
+		ReldatEventLog.log(ReldatEventLog.DISCONNECTED, this.id, 0);
+		return true;
+	}
+	
+	/*
+	 * Handle a packet that arrived during a handshake. A packet that isn't the
+	 * reply the current step is waiting for counts as an unanswered attempt.
+	 */
+	private void handleHandshakePacket(ReldatPacketView receivedView) throws IOException {
+		switch (this.handshake) {
+			case OPENING:
+				if (receivedView.isOpen() && receivedView.isACK()) {
+					this.onOpenAck(receivedView.toPacket());
+					return;
+				}
+				
+				break;
+			case CLOSING:
+				if (receivedView.isClose() && receivedView.isACK()) {
+					// Time the exchange, unless we had to re-send the CLOSE
+					if (this.handshakeSends == 1)
+						this.sampleRtt(System.nanoTime() - this.handshakeSentAt);
+					
+					// Step 2. We got a CLOSE ACK from the server, so now we're expecting a CLOSE packet
+					this.handshake = CLOSE_WAIT;
+					this.handshakeResends = 0;
+					this.handshakeDeadline = System.nanoTime() + this.rtoEstimator.getTimeout();
+					return;
+				}
+				
+				break;
+			case CLOSE_WAIT:
+				if (receivedView.isClose()) {
+					// Step 4. Send client-side ACK to server
+					this.send((byte)(ReldatHeader.CLOSE_FLAG | ReldatHeader.ACK_FLAG), 0, receivedView.getSequenceNumber());
+					this.endHandshake(true);
+					return;
+				}
+				
+				break;
+			case PROBING:
+			case CONFIRMING:
+				// Anything else (such as a late reply to a larger probe) is ignored; only timeouts count
+				if (receivedView.isNudge() && receivedView.isACK() && receivedView.getAcknowledgementNumber() == this.probeSize) {
+					if (this.handshake == PROBING) {
+						this.confirmDatagramSize();
+					} else {
+						this.setDatagramSize(this.probeSize);
+						this.endHandshake(true);
+					}
+				}
 				
-		// Step 4. Send client-side ACK to server
+				return;
+		}
+		
+		this.retryHandshake();
+	}
+	
+	/*
+	 * The server replied to a handshake step with a corrupted packet; try again
+	 * straight away, without counting it as an unanswered attempt.
+	 */
+	private void onHandshakeCorrupted() {
+		ReldatEventLog.log(ReldatEventLog.HANDSHAKE_CORRUPTED, this.id, 0);
+		
+		if (this.handshake == CLOSE_WAIT)
+			this.handshakeDeadline = System.nanoTime() + this.rtoEstimator.getTimeout();
+		else
+			this.sendHandshake();
+	}
+	
+	/*
+	 * The server didn't reply to a handshake step in time; wait longer next time.
+	 */
+	private void onHandshakeTimeout() {
+		// A lost probe says the datagram is too large, not that the server is slow
+		if (this.handshake == PROBING) {
+			this.retryHandshake();
+			return;
+		}
+		
+		if (this.handshake != CLOSE_WAIT)
+			ReldatEventLog.log(ReldatEventLog.HANDSHAKE_TIMEOUT, this.id, 0);
+		
+		this.rtoEstimator.backoff();
+		this.retryHandshake();
+	}
+	
+	/*
+	 * Count an unanswered attempt at the current handshake step, and either try
+	 * again or, once there have been MAX_RETRANSMISSION_NO of them, give up on
+	 * the server.
+	 */
+	private void retryHandshake() {
+		this.handshakeResends++;
+		
+		if (this.handshake == PROBING && this.handshakeResends >= PROBE_ATTEMPTS)
+			this.startProbe(nextProbeSize(this.probeSize));
+		else if (this.handshakeResends >= MAX_RETRANSMISSION_NO)
+			this.endHandshake(false);
+		else if (this.handshake == CLOSE_WAIT)
+			// There's nothing to re-send; the server re-sends its CLOSE
+			this.handshakeDeadline = System.nanoTime() + this.rtoEstimator.getTimeout();
+		else
+			this.sendHandshake();
+	}
+	
+	private void startHandshake(int step, ReldatPacket pkt) {
+		this.handshake = step;
+		this.handshakePacket = pkt;
+		this.handshakeSends = 0;
+		this.handshakeResends = 0;
+		this.handshakeSucceeded = false;
+		this.sendHandshake();
+		this.eventLoop.reschedule(this);
+	}
+	
+	/*
+	 * (Re-)send the packet of the current handshake step and wait (for the
+	 * current retransmission timeout) for the server's reply.
+	 */
+	private void sendHandshake() {
+		this.handshakeSentAt = System.nanoTime();
+		this.handshakeDeadline = this.handshakeSentAt + this.rtoEstimator.getTimeout();
+		this.handshakeSends++;
+		
 		try {
-			ReldatPacket closeAck2 = new ReldatPacket("", (byte)(ReldatHeader.CLOSE_FLAG | ReldatHeader.ACK_FLAG), 0, serverClose.getHeader().getSequenceNumber());
-			DatagramPacket closeAck2Packet = closeAck2.toDatagramPacket(this.dstIPAddress, this.port);
-			this.outSocket.send(closeAck2Packet);
-		} catch (UnsupportedEncodingException e) {
-			System.err.println("UTF-8 encoding is not supported on your system.");
-			System.exit(-1);
+			this.send(this.handshakePacket);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void endHandshake(boolean succeeded) {
+		this.handshake = NO_HANDSHAKE;
+		this.handshakePacket = null;
+		this.handshakeDeadline = ReldatEventLoop.NO_DEADLINE;
+		this.handshakeSucceeded = succeeded;
+	}
+	
+	/*
+	 * Stop servicing this connection and close its channel (and its event
+	 * loop, if it has one of its own).
+	 */
+	private void close() {
+		this.eventLoop.unregister(this, this.channel);
+		this.metrics.unregister();
+		
+		try {
+			this.channel.close();
+			
+			if (this.legacyChannel != null) {
+				this.eventLoop.unwatch(this.legacyChannel);
+				this.legacyChannel.close();
+				this.legacyChannel = null;
+			}
+			
+			if (this.ownsEventLoop)
+				this.eventLoop.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-        
-		// Close our sockets
-		this.outSocket.close();
-		this.inSocket.close();
-
-        System.out.println("Connection terminated.");
-        return true;
 	}
 }
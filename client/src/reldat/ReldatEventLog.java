@@ -0,0 +1,308 @@
+package reldat;
+
+import java.io.PrintStream;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * The connections' event log. Logging an event never does I/O: the event
+ * (which one it is, when it happened, which connection it happened on, and a
+ * sequence number or a string) is written into a lock-free ring buffer, and
+ * a background thread drains the ring, formats each event and prints it to
+ * System.out. Connections on any number of event loop threads can log at
+ * once; each claims a slot with a compare-and-swap and publishes it with an
+ * ordered write, so nothing blocks. If the ring is full, the event is
+ * dropped (and counted) rather than holding up the protocol.
+ *
+ * Every event has a level, and only events at or below the current level are
+ * logged, which is decided before anything else is done, so an event that
+ * is filtered out costs a load and a compare. Per-packet events are DEBUG,
+ * and the level is INFO unless the reldat.log system property says otherwise
+ * (off, warn, info or debug), so by default only a connection's lifecycle
+ * (connecting, disconnecting, giving up on the server) is logged.
+ *
+ * Events are printed in the order they were logged, a little later than
+ * they happened; flush() waits until everything logged so far is printed.
+ */
+public class ReldatEventLog {
+	// Levels
+	public static final int OFF = 0;
+	public static final int WARN = 1;
+	public static final int INFO = 2;
+	public static final int DEBUG = 3;
+
+	private static final String[] LEVEL_NAMES = { "off", "warn", "info", "debug" };
+
+	// Events: lifecycle (the text is a host and port) ...
+	public static final int CONNECTING = 0;
+	public static final int CONNECTED = 1;
+	public static final int HOST_UNKNOWN = 2;
+	public static final int SERVER_UNREACHABLE = 3;
+	public static final int DISCONNECTING = 4;
+	public static final int DISCONNECTED = 5;
+	public static final int DISCONNECT_FAILED = 6;
+	public static final int HANDSHAKE_CORRUPTED = 7;
+	public static final int HANDSHAKE_TIMEOUT = 8;
+	public static final int SERVER_FAILED = 9;
+
+	// ... and per packet (the value is a sequence or ACK number)
+	public static final int DATA_SENT = 10;
+	public static final int DATA_RESENT = 11;
+	public static final int EOD_SENT = 12;
+	public static final int ACK_SENT = 13;
+	public static final int DATA_RECEIVED = 14;
+	public static final int DATA_DROPPED = 15;
+	public static final int ACK_RECEIVED = 16;
+
+	// ... and the datagram size (the value is a size in bytes)
+	public static final int PROBING = 17;
+	public static final int DATAGRAM_SIZE = 18;
+
+	private static final int[] EVENT_LEVELS = {
+		INFO, INFO, WARN, WARN, INFO, INFO, WARN, WARN, WARN, WARN,
+		DEBUG, DEBUG, DEBUG, DEBUG, DEBUG, DEBUG, DEBUG,
+		DEBUG, INFO
+	};
+
+	private static final String[] EVENT_FORMATS = {
+		"Attempting to connect to %s...",
+		"Connection established.",
+		"Host unreachable: %s",
+		"Server unreachable.",
+		"Attempting to disconnect from %s...",
+		"Connection terminated.",
+		"Server did not respond. Assuming server failure.",
+		"Server replied with corrupted packet - retrying...",
+		"Server did not respond - retrying...",
+		"Max retransmission count reached. Assuming server failure.",
+		"Sending data (SEQ %d).",
+		"Re-sending unacknowledged data (SEQ %d).",
+		"No more data to send - sending EOD (SEQ %d).",
+		"Acknowledging received SEQ %d.",
+		"Received data (SEQ %d).",
+		"Receive window full - dropping data (SEQ %d).",
+		"Received ACK %d.",
+		"Probing whether %d-byte datagrams get through...",
+		"Using datagrams of up to %d bytes."
+	};
+
+	// System property that sets the initial level
+	public static final String LEVEL_PROPERTY = "reldat.log";
+
+	// Number of events the ring holds (a power of two)
+	private static final int CAPACITY = 1 << 14;
+	private static final int MASK = CAPACITY - 1;
+
+	// How long the background thread sleeps when the ring is empty, and how many
+	// characters it formats at most before printing them
+	private static final long IDLE_NANOS = 2000000L;
+	private static final int BATCH_SIZE = 64 * 1024;
+
+	private static volatile int level = parseLevel(System.getProperty(LEVEL_PROPERTY), INFO);
+
+	// The ring: one slot per event, in parallel arrays so nothing is allocated per event.
+	// published[slot] is the event's sequence number plus one once its slot has been filled in.
+	private static final long[] times = new long[CAPACITY];
+	private static final int[] events = new int[CAPACITY];
+	private static final int[] connections = new int[CAPACITY];
+	private static final long[] values = new long[CAPACITY];
+	private static final String[] texts = new String[CAPACITY];
+	private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+
+	// Sequence numbers of the next event to be logged, of the next one to be taken out
+	// of the ring by the background thread, and of the next one to be printed
+	private static final AtomicLong claimed = new AtomicLong(0);
+	private static volatile long consumed = 0;
+	private static volatile long printed = 0;
+
+	// Events dropped because the ring was full
+	private static final LongAdder dropped = new LongAdder();
+
+	private static final AtomicBoolean started = new AtomicBoolean(false);
+
+	private ReldatEventLog() {
+	}
+
+	public static int getLevel() {
+		return level;
+	}
+
+	/*
+	 * Log only events at or below the given level from now on.
+	 */
+	public static void setLevel(int newLevel) {
+		level = Math.max(OFF, Math.min(newLevel, DEBUG));
+	}
+
+	/*
+	 * The level named by a string (off, warn, info or debug), or the given
+	 * default if it names none.
+	 */
+	public static int parseLevel(String name, int defaultLevel) {
+		for (int i = 0; i < LEVEL_NAMES.length; i++) {
+			if (LEVEL_NAMES[i].equalsIgnoreCase(name))
+				return i;
+		}
+
+		return defaultLevel;
+	}
+
+	public static boolean isEnabled(int eventLevel) {
+		return eventLevel <= level;
+	}
+
+	/*
+	 * Number of events dropped so far because the ring was full.
+	 */
+	public static long getDropped() {
+		return dropped.sum();
+	}
+
+	/*
+	 * Log an event with a sequence or ACK number (or none).
+	 */
+	public static void log(int event, int connection, long value) {
+		if (EVENT_LEVELS[event] > level)
+			return;
+
+		publish(event, connection, value, null);
+	}
+
+	/*
+	 * Log an event with a string, e.g. the server's host and port.
+	 */
+	public static void log(int event, int connection, String text) {
+		if (EVENT_LEVELS[event] > level)
+			return;
+
+		publish(event, connection, 0, text);
+	}
+
+	/*
+	 * Wait until every event logged so far has been printed.
+	 */
+	public static void flush() {
+		long target = claimed.get();
+
+		while (printed < target && started.get())
+			LockSupport.parkNanos(IDLE_NANOS / 10);
+	}
+
+	private static void publish(int event, int connection, long value, String text) {
+		long seq;
+
+		// Claim the next slot, unless the background thread hasn't freed it yet
+		do {
+			seq = claimed.get();
+
+			if (seq - consumed >= CAPACITY) {
+				dropped.increment();
+				return;
+			}
+		} while (!claimed.compareAndSet(seq, seq + 1));
+
+		int slot = (int) seq & MASK;
+		times[slot] = System.currentTimeMillis();
+		events[slot] = event;
+		connections[slot] = connection;
+		values[slot] = value;
+		texts[slot] = text;
+
+		// The ordered write makes the slot's contents visible before the slot is seen as published
+		published.lazySet(slot, seq + 1);
+
+		if (!started.get() && started.compareAndSet(false, true))
+			startDrain();
+	}
+
+	private static void startDrain() {
+		Thread drain = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "reldat-event-log");
+
+		drain.setDaemon(true);
+		drain.start();
+	}
+
+	/*
+	 * Print events in order as they are published, forever. Everything that
+	 * has been published when the thread wakes up is formatted into one
+	 * batch (of at most BATCH_SIZE characters) and printed with one write.
+	 */
+	private static void drain() {
+		StringBuilder batch = new StringBuilder();
+		long seq = 0;
+
+		while (true) {
+			int slot = (int) seq & MASK;
+
+			if (published.get(slot) == seq + 1) {
+				format(batch, slot);
+				texts[slot] = null;
+
+				// The event is in the batch, so its slot can be reused
+				consumed = ++seq;
+
+				if (batch.length() < BATCH_SIZE)
+					continue;
+			}
+
+			if (batch.length() > 0) {
+				PrintStream out = System.out;
+				out.print(batch);
+				out.flush();
+				batch.setLength(0);
+				printed = seq;
+			} else {
+				LockSupport.parkNanos(IDLE_NANOS);
+			}
+		}
+	}
+
+	/*
+	 * Append one event's line, e.g. "14:02:33.507 [3] Received ACK 812.", to the batch.
+	 */
+	private static void format(StringBuilder batch, int slot) {
+		long millis = times[slot];
+		long local = (millis + TimeZone.getDefault().getOffset(millis)) % (24 * 3600 * 1000L);
+
+		appendPadded(batch, local / 3600000, 2).append(':');
+		appendPadded(batch, local / 60000 % 60, 2).append(':');
+		appendPadded(batch, local / 1000 % 60, 2).append('.');
+		appendPadded(batch, local % 1000, 3).append(" [").append(connections[slot]).append("] ");
+
+		// Each event's message has at most one placeholder, for its text or its value
+		String format = EVENT_FORMATS[events[slot]];
+		int at = format.indexOf('%');
+
+		if (at < 0) {
+			batch.append(format);
+		} else {
+			batch.append(format, 0, at);
+
+			if (texts[slot] != null)
+				batch.append(texts[slot]);
+			else
+				batch.append(values[slot]);
+
+			batch.append(format, at + 2, format.length());
+		}
+
+		batch.append(System.lineSeparator());
+	}
+
+	private static StringBuilder appendPadded(StringBuilder batch, long value, int digits) {
+		for (long limit = 10; digits > 1; digits--, limit *= 10) {
+			if (value < limit)
+				batch.append('0');
+		}
+
+		return batch.append(value);
+	}
+}
@@ -0,0 +1,334 @@
+package reldat;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/*
+ * A single-threaded, selector-driven event loop for RELDAT connections.
+ *
+ * Every connection registered with a loop owns one non-blocking
+ * DatagramChannel (two, while it is opening; see ReldatConnection). Each call to poll() waits until a channel is readable or
+ * writable, or until the earliest timer deadline of any registered
+ * connection, whichever comes first, then dispatches those events. There is
+ * no fixed polling interval: an idle loop sleeps until it has something to do.
+ *
+ * The connections' deadlines are kept in a binary heap, and a connection's
+ * deadline is only looked at again after it has had an event, or has
+ * started a handshake or a stream, so a wakeup costs the same however many
+ * idle connections the loop has. A connection that stops waiting on
+ * anything in an event (its handshake or conversation is over) goes on a
+ * ready list, which ReldatSessionRuntime uses to step only the sessions
+ * that can move on.
+ *
+ * Because one loop services every connection registered with it, a single
+ * thread can drive many connections at once. A loop is not thread-safe; all
+ * of its connections must be used from the thread that polls it.
+ */
+public class ReldatEventLoop {
+	// Value returned by getNextDeadline() when a connection has no timer pending
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	private Selector selector;
+
+	// Registered connections that have a deadline, in a binary min-heap ordered by it (see
+	// ReldatConnection.loopHeapIndex), and how many there are
+	private ReldatConnection[] heap = new ReldatConnection[16];
+	private long[] heapDeadlines = new long[16];
+	private int heapSize = 0;
+
+	// Connections whose deadline may have changed since it was put in the heap
+	private ArrayList<ReldatConnection> rescheduled = new ArrayList<ReldatConnection>();
+
+	// Connections that stopped waiting in an event, not yet taken with takeReady()
+	private ArrayDeque<ReldatConnection> ready = new ArrayDeque<ReldatConnection>();
+
+	public ReldatEventLoop() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	/*
+	 * Register a connection's channel with this loop. The channel is put
+	 * into non-blocking mode and watched for incoming datagrams.
+	 */
+	void register(ReldatConnection connection, DatagramChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.register(this.selector, SelectionKey.OP_READ, connection);
+		connection.loopRegistered = true;
+		this.reschedule(connection);
+	}
+
+	/*
+	 * Watch another of a registered connection's channels for incoming
+	 * datagrams, for as long as the connection needs it.
+	 */
+	void watch(ReldatConnection connection, DatagramChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.register(this.selector, SelectionKey.OP_READ, connection);
+	}
+
+	/*
+	 * Stop watching a channel passed to watch().
+	 */
+	void unwatch(DatagramChannel channel) {
+		SelectionKey key = channel.keyFor(this.selector);
+
+		if (key != null)
+			key.cancel();
+	}
+
+	/*
+	 * Stop servicing a connection and cancel its channel's registration.
+	 */
+	void unregister(ReldatConnection connection, DatagramChannel channel) {
+		SelectionKey key = channel.keyFor(this.selector);
+
+		if (key != null)
+			key.cancel();
+
+		connection.loopRegistered = false;
+
+		if (connection.loopHeapIndex >= 0)
+			this.removeAt(connection.loopHeapIndex);
+
+		if (connection.loopReady) {
+			this.ready.remove(connection);
+			connection.loopReady = false;
+		}
+	}
+
+	/*
+	 * Look at a connection's deadline again before the next wait: it did
+	 * something outside an event (such as starting a handshake) that may
+	 * have brought it forward.
+	 */
+	void reschedule(ReldatConnection connection) {
+		if (!connection.loopRescheduled) {
+			connection.loopRescheduled = true;
+			this.rescheduled.add(connection);
+		}
+	}
+
+	/*
+	 * The next connection that stopped waiting on anything during an event,
+	 * or null if there are none.
+	 */
+	ReldatConnection takeReady() {
+		ReldatConnection connection = this.ready.poll();
+
+		if (connection != null)
+			connection.loopReady = false;
+
+		return connection;
+	}
+
+	/*
+	 * Ask to be told (via onWritable()) when a connection's channel can
+	 * accept another datagram, or stop asking.
+	 */
+	void setWriteInterest(ReldatConnection connection, DatagramChannel channel, boolean interested) {
+		SelectionKey key = channel.keyFor(this.selector);
+
+		if (key == null || !key.isValid())
+			return;
+
+		if (interested)
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		else
+			key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/*
+	 * Service every registered connection until the given one is no longer
+	 * waiting on anything.
+	 */
+	public void run(ReldatConnection connection) throws IOException {
+		this.reschedule(connection);
+
+		while (connection.isWaiting())
+			this.poll();
+	}
+
+	/*
+	 * Wait for and dispatch one round of I/O readiness and timer events.
+	 */
+	public void poll() throws IOException {
+		for (int i = 0; i < this.rescheduled.size(); i++) {
+			ReldatConnection connection = this.rescheduled.get(i);
+			connection.loopRescheduled = false;
+
+			if (connection.loopRegistered)
+				this.setDeadline(connection, connection.getNextDeadline());
+		}
+
+		this.rescheduled.clear();
+
+		// Sleep no longer than the earliest timer deadline of any connection
+		long deadline = (this.heapSize == 0) ? NO_DEADLINE : this.heapDeadlines[0];
+
+		if (deadline == NO_DEADLINE) {
+			this.selector.select();
+		} else {
+			long waitNanos = deadline - System.nanoTime();
+
+			if (waitNanos <= 0)
+				this.selector.selectNow();
+			else
+				// select() takes milliseconds; round up so we don't wake up just before the deadline
+				this.selector.select((waitNanos + 999999) / 1000000);
+		}
+
+		Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+
+			if (!key.isValid())
+				continue;
+
+			ReldatConnection connection = (ReldatConnection) key.attachment();
+
+			if (key.isWritable())
+				connection.onWritable();
+
+			if (key.isValid() && key.isReadable())
+				connection.onReadable();
+
+			this.dispatched(connection);
+		}
+
+		// Fire every timer that has expired. A connection taken off the heap goes back on
+		// before the next wait, so one whose deadline is still due doesn't keep this going.
+		long now = System.nanoTime();
+
+		while (this.heapSize > 0 && this.heapDeadlines[0] <= now) {
+			ReldatConnection connection = this.heap[0];
+			this.removeAt(0);
+
+			// Its deadline may have moved back since it was put in the heap
+			if (connection.getNextDeadline() <= now)
+				connection.onTimer(now);
+
+			this.dispatched(connection);
+		}
+	}
+
+	/*
+	 * Make a poll() that is waiting (or the next one) return straight away.
+	 * Unlike the rest of the loop, this may be called from any thread.
+	 */
+	public void wakeup() {
+		this.selector.wakeup();
+	}
+	
+	/*
+	 * Close the selector. Connections still registered are not closed.
+	 */
+	public void close() throws IOException {
+		this.selector.close();
+	}
+
+	/*
+	 * A connection has had an event: its deadline may have changed, and it
+	 * may have stopped waiting.
+	 */
+	private void dispatched(ReldatConnection connection) {
+		this.reschedule(connection);
+
+		if (!connection.loopReady && !connection.isWaiting()) {
+			connection.loopReady = true;
+			this.ready.add(connection);
+		}
+	}
+
+	/*
+	 * Put a connection in its place in the heap for the given deadline, or
+	 * take it out if it has none.
+	 */
+	private void setDeadline(ReldatConnection connection, long deadline) {
+		int index = connection.loopHeapIndex;
+
+		if (deadline == NO_DEADLINE) {
+			if (index >= 0)
+				this.removeAt(index);
+
+			return;
+		}
+
+		if (index < 0) {
+			if (this.heapSize == this.heap.length) {
+				this.heap = Arrays.copyOf(this.heap, this.heapSize * 2);
+				this.heapDeadlines = Arrays.copyOf(this.heapDeadlines, this.heapSize * 2);
+			}
+
+			index = this.heapSize++;
+		}
+
+		this.siftUp(this.siftDown(index, connection, deadline), connection, deadline);
+	}
+
+	private void removeAt(int index) {
+		this.heap[index].loopHeapIndex = -1;
+		int last = --this.heapSize;
+
+		if (index != last) {
+			ReldatConnection moved = this.heap[last];
+			long deadline = this.heapDeadlines[last];
+			this.siftUp(this.siftDown(index, moved, deadline), moved, deadline);
+		}
+
+		this.heap[last] = null;
+	}
+
+	/*
+	 * Move the hole at the given index down past every child due before the
+	 * deadline, and return where it ended up.
+	 */
+	private int siftDown(int index, ReldatConnection connection, long deadline) {
+		while (true) {
+			int child = 2 * index + 1;
+
+			if (child >= this.heapSize)
+				return index;
+
+			if (child + 1 < this.heapSize && this.heapDeadlines[child + 1] < this.heapDeadlines[child])
+				child++;
+
+			if (this.heapDeadlines[child] >= deadline)
+				return index;
+
+			this.place(index, this.heap[child], this.heapDeadlines[child]);
+			index = child;
+		}
+	}
+
+	/*
+	 * Move the hole at the given index up past every parent due after the
+	 * deadline, and put the connection there.
+	 */
+	private void siftUp(int index, ReldatConnection connection, long deadline) {
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+
+			if (this.heapDeadlines[parent] <= deadline)
+				break;
+
+			this.place(index, this.heap[parent], this.heapDeadlines[parent]);
+			index = parent;
+		}
+
+		this.place(index, connection, deadline);
+	}
+
+	private void place(int index, ReldatConnection connection, long deadline) {
+		this.heap[index] = connection;
+		this.heapDeadlines[index] = deadline;
+		connection.loopHeapIndex = index;
+	}
+}
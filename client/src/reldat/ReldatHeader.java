@@ -1,12 +1,11 @@
 package reldat;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import reldat.checksum.ReldatChecksum;
+import reldat.checksum.ReldatChecksums;
+
 /*
  * RELDAT packet structure is as follows:
  * 
@@ -30,6 +29,29 @@ import java.util.Arrays;
  * 
  * If the sequence number is 0, the ACK number is non-zero, and
  * vice-versa.
+ * 
+ * That is header version 1, which every peer speaks. A peer that accepts it
+ * during the handshake (see ReldatOptions) is sent every packet but OPEN
+ * packets with the compact header, version 2, instead:
+ * 
+ * 1[N][E][D][R][A][C][O]         1 byte  (Flags; the top bit marks a compact header)
+ * [Version][S][A][X]             1 byte  (Version: 3 bits, = 2; S and A: 2-bit length codes
+ *                                         of the sequence and ACK numbers; X: 1 bit, set if
+ *                                         there is an option area)
+ * [Sequence Number]              0, 1, 2 or 4 bytes (length code 0, 1, 2 or 3)
+ * [ACK Number]                   0, 1, 2 or 4 bytes
+ * [Option Area Length][Options]  1 + 0 to 255 bytes, if X is set
+ * [Checksum]                     4 bytes
+ * -----------------------------
+ * [ P   A   Y   L   O   A   D ] the rest of the datagram
+ * 
+ * Numbers take as few bytes as their (unsigned) value needs, and 0 takes
+ * none, so an ACK-only packet's header is 7 to 10 bytes. The payload size is
+ * whatever the datagram has left after the header. The checksum is the first
+ * 4 bytes of the negotiated algorithm's checksum of the header fields before
+ * it followed by the payload, so one pass covers the whole packet. The
+ * option area is for extensions; no options are defined yet, and receivers
+ * skip it, so a newer sender can add them without breaking older receivers.
  */
 
 public class ReldatHeader
@@ -37,6 +59,34 @@ public class ReldatHeader
 	// See the comment above for how the header size was calculated
 	public static final short PACKET_HEADER_SIZE = 1 + 4 + 4 + 4 + 16 + 16;
 	
+	// Size of each of the two checksum fields, in bytes
+	public static final short CHECKSUM_SIZE = 16;
+	
+	// Offsets of each header field from the start of the packet
+	public static final int FLAGS_OFFSET            = 0;
+	public static final int SEQ_NUM_OFFSET          = 1;
+	public static final int ACK_NUM_OFFSET          = 5;
+	public static final int PAYLOAD_SIZE_OFFSET     = 9;
+	public static final int PAYLOAD_CHECKSUM_OFFSET = 13;
+	public static final int HEADER_CHECKSUM_OFFSET  = PACKET_HEADER_SIZE - CHECKSUM_SIZE;
+	
+	// Header versions: the original header, and the compact one
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+	
+	// Flag bit that marks a compact header (always clear in the original header), and the offset of its descriptor byte
+	public static final byte COMPACT_FLAG = (byte) 0b10000000;
+	public static final int DESCRIPTOR_OFFSET = 1;
+	
+	// Size of a compact header's checksum; its smallest size (flags, descriptor and checksum only), and its
+	// largest without an option area (both numbers 4 bytes long), which is what a full data packet needs
+	public static final int COMPACT_CHECKSUM_SIZE = 4;
+	public static final int MIN_COMPACT_HEADER_SIZE = 1 + 1 + COMPACT_CHECKSUM_SIZE;
+	public static final int COMPACT_HEADER_SIZE = MIN_COMPACT_HEADER_SIZE + 4 + 4;
+	
+	// Number of bytes each length code of the compact header stands for
+	private static final int[] COMPACT_LENGTHS = { 0, 1, 2, 4 };
+	
 	// Available flags a packet can be created with
 	public static final byte OPEN_FLAG  	 = 0b00000001;
 	public static final byte CLOSE_FLAG 	 = 0b00000010;
@@ -51,27 +101,51 @@ public class ReldatHeader
 	private int ackNum;
 	private int payloadSize;
 	private byte[] payloadChecksum;
+	
+	// The payload and its checksum algorithm, kept until the payload checksum is first needed
+	// when the header is built for a payload in a mapped file (see ReldatPacket)
+	private byte[] data;
+	private ByteBuffer mappedData;
+	private byte checksumId;
 
 	/*
 	 * Construct a RELDAT header using the given flags, sequence number,
-	 * acknowledgement number, and packet payload (to generate a payload
-	 * checksum with).
+	 * acknowledgement number, and packet payload (to generate an MD5
+	 * payload checksum with).
 	 */
 	public ReldatHeader(byte flags, int seqNum, int ackNum, byte[] data) {
+		this(flags, seqNum, ackNum, data, ReldatChecksums.MD5);
+	}
+	
+	/*
+	 * Construct a RELDAT header whose payload checksum is generated with
+	 * the checksum algorithm that has the given identifier.
+	 */
+	public ReldatHeader(byte flags, int seqNum, int ackNum, byte[] data, byte checksumId) {
 		this.flags = flags;
 		this.seqNum = seqNum;
 		this.ackNum = ackNum;
 		this.payloadSize = data.length;
 		
 		// Generate the checksum for the packet payload
-		try {
-			MessageDigest checksumGenerator = MessageDigest.getInstance( "MD5" );
-			this.payloadChecksum = checksumGenerator.digest( data );
-		}
-		catch (NoSuchAlgorithmException e) {
-			System.out.println("An MD5 algorithm implementation does not exist on your machine.");
-			System.exit(-1);
-		}
+		this.payloadChecksum = new byte[CHECKSUM_SIZE];
+		ReldatChecksums.get(checksumId).checksum(ByteBuffer.wrap(data), 0, data.length, this.payloadChecksum);
+	}
+	
+	/*
+	 * Package-private constructor for ReldatPacket's packets whose payload
+	 * is the given bytes followed by a slice of a mapped file (null for
+	 * none). The payload checksum isn't generated until it's needed, which
+	 * it may never be: a codec encoding a compact header has no use for it.
+	 */
+	ReldatHeader(byte flags, int seqNum, int ackNum, byte[] data, ByteBuffer mappedData, byte checksumId) {
+		this.flags = flags;
+		this.seqNum = seqNum;
+		this.ackNum = ackNum;
+		this.payloadSize = data.length + ((mappedData == null) ? 0 : mappedData.capacity());
+		this.data = data;
+		this.mappedData = mappedData;
+		this.checksumId = checksumId;
 	}
 	
 	/*
@@ -99,6 +173,17 @@ public class ReldatHeader
 	}
 	
 	public byte[] getPayloadChecksum() {
+		if (payloadChecksum == null) {
+			ReldatChecksum checksum = ReldatChecksums.get(checksumId);
+			checksum.update(ByteBuffer.wrap(data), 0, data.length);
+			
+			if (mappedData != null)
+				checksum.update(mappedData, 0, mappedData.capacity());
+			
+			payloadChecksum = new byte[CHECKSUM_SIZE];
+			checksum.finish(payloadChecksum);
+		}
+		
 		return payloadChecksum;
 	}
 	
@@ -110,28 +195,64 @@ public class ReldatHeader
 	 * Get a byte array representation of this packet header.
 	 */
 	public byte[] toBytes() {
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-		DataOutputStream output = new DataOutputStream( bytes );      
-		
-		try {
-			output.writeByte(flags);
-			output.writeInt(seqNum);
-			output.writeInt(ackNum);
-			output.writeInt(payloadSize);
-			output.write(payloadChecksum);
-			output.close();
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return bytes.toByteArray();
+		ByteBuffer bytes = ByteBuffer.allocate(HEADER_CHECKSUM_OFFSET);
+		this.writeTo(bytes);
+		return bytes.array();
+	}
+	
+	/*
+	 * Write this packet header (everything but the header checksum)
+	 * into the given buffer at its current position, advancing the
+	 * position past the header. ByteBuffers are big-endian by default,
+	 * which matches the network byte order the server expects.
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		buffer.put(flags);
+		buffer.putInt(seqNum);
+		buffer.putInt(ackNum);
+		buffer.putInt(payloadSize);
+		buffer.put(this.getPayloadChecksum());
 	}
 	
 	public void addFlag(byte flag) {
 		this.flags |= flag;
 	}
 	
+	/*
+	 * Length code of a sequence or ACK number in a compact header: the
+	 * fewest bytes its unsigned value fits in (0 if it's 0).
+	 */
+	public static int compactLengthCode(int value) {
+		if (value == 0)
+			return 0;
+		
+		if ((value & 0xFFFFFF00) == 0)
+			return 1;
+		
+		return ((value & 0xFFFF0000) == 0) ? 2 : 3;
+	}
+	
+	/*
+	 * Number of bytes a length code stands for.
+	 */
+	public static int compactLength(int code) {
+		return COMPACT_LENGTHS[code];
+	}
+	
+	/*
+	 * Size of a compact header without an option area.
+	 */
+	public static int compactHeaderSize(int seqNum, int ackNum) {
+		return MIN_COMPACT_HEADER_SIZE + compactLength(compactLengthCode(seqNum)) + compactLength(compactLengthCode(ackNum));
+	}
+	
+	/*
+	 * Build a compact header's descriptor byte.
+	 */
+	public static byte compactDescriptor(int seqCode, int ackCode, boolean hasOptions) {
+		return (byte) ((VERSION_2 << 5) | (seqCode << 3) | (ackCode << 1) | (hasOptions ? 1 : 0));
+	}
+	
 	/*
 	 * Parse a byte array as a RELDAT packet header and convert
 	 * it into a ReldatHeader object. For details on how this
@@ -139,21 +260,27 @@ public class ReldatHeader
 	 * comment at the top of this file.
 	 */
 	public static ReldatHeader bytesToHeader (byte[] header) {
-		// Flags are always the first byte in the array
-		byte flags = header[0];
-		
-		// Sequence number is a 32-bit integer, so the next four bytes are the sequence number
-		int seqNum = ((0xFF & header[1]) << 24) | ((0xFF & header[2]) << 16) | ((0xFF & header[3]) << 8) | (0xFF & header[4]);
-		
-		// ACK number is also a 32-bit integer, so the next four bytes are the sequence number
-		int ackNum = ((0xFF & header[5]) << 24) | ((0xFF & header[6]) << 16) | ((0xFF & header[7]) << 8) | (0xFF & header[8]);
+		return bufferToHeader( ByteBuffer.wrap( header ), 0 );
+	}
+	
+	/*
+	 * Parse the packet header starting at the given absolute offset
+	 * of a buffer. The buffer's position is not modified.
+	 */
+	public static ReldatHeader bufferToHeader (ByteBuffer header, int offset) {
+		// Flags are always the first byte in the header
+		byte flags = header.get( offset + FLAGS_OFFSET );
 		
-		// Payload size is also a 32-bit integer, so the next four bytes are the payload size
-		int payloadSize = ((0xFF & header[9]) << 24) | ((0xFF & header[10]) << 16) | ((0xFF & header[11]) << 8) | (0xFF & header[12]);
+		// Sequence number, ACK number and payload size are all 32-bit integers
+		int seqNum      = header.getInt( offset + SEQ_NUM_OFFSET );
+		int ackNum      = header.getInt( offset + ACK_NUM_OFFSET );
+		int payloadSize = header.getInt( offset + PAYLOAD_SIZE_OFFSET );
 		
 		// Last 16 bytes are the payload checksum
-		byte[] payloadChecksum = new byte[16];
-		System.arraycopy( header, 13, payloadChecksum, 0, 16 );
+		byte[] payloadChecksum = new byte[CHECKSUM_SIZE];
+		
+		for (int i = 0; i < CHECKSUM_SIZE; i++)
+			payloadChecksum[i] = header.get( offset + PAYLOAD_CHECKSUM_OFFSET + i );
 
 		return new ReldatHeader( payloadChecksum, flags, seqNum, ackNum, payloadSize );
 	}
@@ -167,7 +294,7 @@ public class ReldatHeader
 		int result = 1;
 		result = prime * result + ackNum;
 		result = prime * result + flags;
-		result = prime * result + Arrays.hashCode(payloadChecksum);
+		result = prime * result + Arrays.hashCode(this.getPayloadChecksum());
 		result = prime * result + payloadSize;
 		result = prime * result + seqNum;
 		return result;
@@ -0,0 +1,206 @@
+package reldat;
+
+/*
+ * Decides when a packet that selective ACKs leave out has been lost, rather
+ * than merely overtaken, and notices retransmissions that turn out to have
+ * been spurious, so the congestion window cut for them can be undone.
+ *
+ * Loss detection is time-based, as in RACK (RFC 8985). A packet is lost
+ * once a packet sent after it has been ACKed and it has been outstanding
+ * for longer than that packet's round trip plus a reordering window. How
+ * many packets overtook it doesn't matter, so a path that reorders (or
+ * jitters) a few milliseconds' worth of packets doesn't look lossy. The
+ * reordering window is a quarter of the smallest round trip seen, or four
+ * times the round-trip variation if that's more, as the RTO allows for (so
+ * jitter isn't taken for loss either); each time a retransmission turns out
+ * to have been spurious it grows to how late the packet actually was (at
+ * least doubling), up to the RTO, and it goes back down after 16 loss
+ * episodes without a spurious one.
+ *
+ * A retransmission was spurious if the peer ACKs the packet again after it
+ * has already been ACKed: the peer ACKs every data packet it receives,
+ * naming it in the ACK number, duplicates included, so both copies got
+ * there. Once every packet re-sent in a loss episode has turned out that
+ * way, there was no loss, and undo() tells the congestion controller to
+ * put its window back.
+ *
+ * Times are System.nanoTime() values. Packets must only be looked at in
+ * the order they were first sent, which is sequence order.
+ */
+public class ReldatLossDetector {
+	// Loss episodes without a spurious retransmission after which the reordering window shrinks back
+	private static final int REORDER_WINDOW_EPISODES = 16;
+
+	// Number of recent retransmissions remembered (a power of two)
+	private static final int RESENT_SLOTS = 256;
+	private static final int RESENT_MASK = RESENT_SLOTS - 1;
+
+	private final ReldatRtoEstimator rtoEstimator;
+
+	// First send time and round trip of the most recently sent packet that has been ACKed
+	// (without having been re-sent), and the smallest round trip seen
+	private long rackSentAt = Long.MIN_VALUE;
+	private long rackRtt = 0;
+	private long minRtt = Long.MAX_VALUE;
+
+	// Reordering window learned from spurious retransmissions (0 until there's been one), and
+	// loss episodes since the last of them
+	private long learnedWindow = 0;
+	private int quietEpisodes = 0;
+
+	// The current loss episode (numbered from 1), whether its cut can still be undone, and how many
+	// of the packets re-sent in it haven't turned out to be spurious yet
+	private int episode = 0;
+	private boolean undoable = false;
+	private int undoRetransmissions = 0;
+
+	// Packets re-sent once, by slot (sequence number & RESENT_MASK): the sequence number, the episode
+	// it was re-sent in (0 if the slot is empty), when it was first sent, whether it was a fast
+	// retransmission (rather than a timeout), and whether it's been ACKed since
+	private int[] resentSeqs = new int[RESENT_SLOTS];
+	private int[] resentEpisodes = new int[RESENT_SLOTS];
+	private long[] resentSentAt = new long[RESENT_SLOTS];
+	private boolean[] resentFast = new boolean[RESENT_SLOTS];
+	private boolean[] resentAcked = new boolean[RESENT_SLOTS];
+
+	public ReldatLossDetector(ReldatRtoEstimator rtoEstimator) {
+		this.rtoEstimator = rtoEstimator;
+	}
+
+	/*
+	 * Forget the packets of the last conversation. What was learned about
+	 * the path (round trips and the reordering window) is kept.
+	 */
+	public void reset() {
+		this.rackSentAt = Long.MIN_VALUE;
+		this.undoable = false;
+		this.undoRetransmissions = 0;
+
+		for (int i = 0; i < RESENT_SLOTS; i++)
+			this.resentEpisodes[i] = 0;
+	}
+
+	/*
+	 * The reordering window: how much longer than a round trip a packet
+	 * may take before it's considered lost.
+	 */
+	public long getReorderWindow() {
+		long window = Math.max((this.minRtt == Long.MAX_VALUE) ? 0 : this.minRtt / 4, 4 * this.rtoEstimator.getRttVariation());
+		return Math.min(Math.max(window, this.learnedWindow), this.rtoEstimator.getTimeout());
+	}
+
+	/*
+	 * When an un-ACKed packet that was first sent at the given time (and
+	 * never re-sent) is lost, or ReldatEventLoop.NO_DEADLINE if no packet
+	 * sent after it has been ACKed yet. It's lost now if that's already past.
+	 */
+	public long getLossTime(long sentAt) {
+		if (sentAt > this.rackSentAt)
+			return ReldatEventLoop.NO_DEADLINE;
+
+		return sentAt + this.rackRtt + this.getReorderWindow();
+	}
+
+	/*
+	 * A packet that was first sent at the given time, and re-sent the
+	 * given number of times, was ACKed.
+	 */
+	public void onAcked(int seqNum, long sentAt, int retransmissions, long now) {
+		if (retransmissions == 0) {
+			// Only a packet sent once tells us when the ACKed data was sent
+			if (sentAt >= this.rackSentAt) {
+				this.rackSentAt = sentAt;
+				this.rackRtt = now - sentAt;
+			}
+
+			this.minRtt = Math.min(this.minRtt, now - sentAt);
+		} else if (this.isResent(seqNum)) {
+			this.resentAcked[seqNum & RESENT_MASK] = true;
+		}
+	}
+
+	/*
+	 * The congestion window was cut, either for a new loss episode or again
+	 * in the current one (a timeout after a fast retransmission, say); a
+	 * cut on top of a cut can't be undone.
+	 */
+	public void onCut(boolean newEpisode) {
+		if (!newEpisode) {
+			this.undoable = false;
+			return;
+		}
+
+		this.episode++;
+		this.undoable = true;
+		this.undoRetransmissions = 0;
+
+		if (++this.quietEpisodes > REORDER_WINDOW_EPISODES) {
+			this.learnedWindow = 0;
+			this.quietEpisodes = 0;
+		}
+	}
+
+	/*
+	 * A packet first sent at the given time was just re-sent, because it
+	 * was found lost (fast) or because its timer expired, and has now been
+	 * re-sent the given number of times. A packet re-sent more than once
+	 * can't be shown to have been re-sent for nothing, so neither can its
+	 * episode.
+	 */
+	public void onRetransmit(int seqNum, long sentAt, int retransmissions, boolean fast) {
+		int slot = seqNum & RESENT_MASK;
+
+		if (retransmissions > 1) {
+			if (this.isResent(seqNum) && this.resentEpisodes[slot] == this.episode)
+				this.undoable = false;
+
+			this.resentEpisodes[slot] = 0;
+			return;
+		}
+
+		this.resentSeqs[slot] = seqNum;
+		this.resentEpisodes[slot] = this.episode;
+		this.resentSentAt[slot] = sentAt;
+		this.resentFast[slot] = fast;
+		this.resentAcked[slot] = false;
+
+		if (this.episode != 0)
+			this.undoRetransmissions++;
+	}
+
+	/*
+	 * An ACK named a packet that is no longer un-ACKed. If it was re-sent
+	 * once and already ACKed, both copies arrived, so the retransmission was
+	 * spurious; if it was a fast retransmission, the reordering window grows
+	 * to cover how late the packet was. Returns true if that was the last
+	 * retransmission of the current loss episode still unaccounted for, so
+	 * the cut should be undone.
+	 */
+	public boolean onAckedAgain(int seqNum, long now) {
+		if (!this.isResent(seqNum) || !this.resentAcked[seqNum & RESENT_MASK])
+			return false;
+
+		int slot = seqNum & RESENT_MASK;
+		boolean inEpisode = this.resentEpisodes[slot] == this.episode;
+		this.resentEpisodes[slot] = 0;
+
+		// It was late by at most the time from its first send to this ACK, less a round trip
+		if (this.resentFast[slot]) {
+			long elapsed = now - this.resentSentAt[slot];
+			long late = elapsed - Math.min(this.minRtt, elapsed);
+			this.learnedWindow = Math.min(Math.max(late, 2 * this.getReorderWindow()), this.rtoEstimator.getTimeout());
+			this.quietEpisodes = 0;
+		}
+
+		if (!this.undoable || !inEpisode || --this.undoRetransmissions > 0)
+			return false;
+
+		this.undoable = false;
+		return true;
+	}
+
+	private boolean isResent(int seqNum) {
+		int slot = seqNum & RESENT_MASK;
+		return this.resentEpisodes[slot] != 0 && this.resentSeqs[slot] == seqNum;
+	}
+}
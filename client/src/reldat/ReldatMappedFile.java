@@ -0,0 +1,94 @@
+package reldat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * A file sent straight out of memory: it is mapped a region at a time, and
+ * handed out in slices, the payloads of the packets that carry it (see
+ * ReldatPacket), so its bytes are never copied into the JVM. On a connected
+ * channel, a slice goes to the kernel as it is, with the packet's header,
+ * in one gathering write.
+ *
+ * A slice keeps the region it came from mapped for as long as the slice is
+ * referenced, so a packet can be re-sent from its slice however far the
+ * file has been handed out since; a region is unmapped once none of its
+ * slices are left and it has been garbage collected. Regions are mapped at
+ * whatever position the next slice starts at, so no slice spans two of them
+ * and only the file's last slice comes up short.
+ *
+ * The file's contents mustn't change while it is being sent. Its position
+ * is moved to the end once the last slice has been handed out.
+ */
+public class ReldatMappedFile {
+	// Default size of the regions mapped at once
+	public static final long DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+	private final FileChannel file;
+	private final long end;
+	private final long regionSize;
+
+	// Where the next slice starts, and the region mapped at the moment (and where it starts)
+	private long position;
+	private MappedByteBuffer region = null;
+	private long regionStart = 0;
+
+	/*
+	 * Map the given range of a file, in regions of the given size.
+	 */
+	public ReldatMappedFile(FileChannel file, long position, long length, long regionSize) {
+		this.file = file;
+		this.position = position;
+		this.end = position + length;
+		this.regionSize = Math.max(regionSize, 1);
+	}
+
+	/*
+	 * Map a file from its position to its end.
+	 */
+	public ReldatMappedFile(FileChannel file) throws IOException {
+		this(file, file.position(), Math.max(file.size() - file.position(), 0), DEFAULT_REGION_SIZE);
+	}
+
+	/*
+	 * Number of bytes left to hand out.
+	 */
+	public long getRemaining() {
+		return this.end - this.position;
+	}
+
+	public boolean hasRemaining() {
+		return this.position < this.end;
+	}
+
+	/*
+	 * The next length bytes of the file (fewer at the end of it), as a
+	 * read-only slice with its position at 0 and its limit at its capacity.
+	 * Returns null once the whole file has been handed out.
+	 */
+	public ByteBuffer nextSlice(int length) throws IOException {
+		if (this.position >= this.end)
+			return null;
+
+		int size = (int) Math.min(length, this.end - this.position);
+
+		// Map the next region if this slice doesn't fit in the current one
+		if (this.region == null || this.position + size > this.regionStart + this.region.capacity()) {
+			this.regionStart = this.position;
+			this.region = this.file.map(FileChannel.MapMode.READ_ONLY, this.position, Math.min(Math.max(this.regionSize, size), this.end - this.position));
+		}
+
+		ByteBuffer slice = this.region.duplicate();
+		slice.position((int) (this.position - this.regionStart)).limit(slice.position() + size);
+
+		this.position += size;
+
+		// Leave the file where a read to the end would have
+		if (this.position == this.end)
+			this.file.position(this.end);
+
+		return slice.slice();
+	}
+}
@@ -0,0 +1,263 @@
+package reldat;
+
+import reldat.checksum.ReldatChecksums;
+
+/*
+ * Connection options negotiated during the three-way open handshake.
+ *
+ * The client offers options in the ACK number field of its OPEN packet,
+ * which the original protocol leaves unused (and the Python server ignores):
+ *
+ *   [Max datagram size]            16 bits  (0 = MAX_PACKET_SIZE, as in the original protocol)
+ *   [unused]                        4 bits
+ *   [Compact headers]               1 bit   (set = version 2 headers supported; see ReldatHeader)
+ *   [Symmetric addressing]          1 bit   (set = replies may go to the OPEN packet's source)
+ *   [Multiplexed streams]           1 bit   (set = streams supported; see ReldatStream)
+ *   [Selective acknowledgements]    1 bit   (set = SACK supported; see ReldatSack)
+ *   [Checksum algorithm mask]       8 bits  (bit n set = algorithm n supported)
+ *
+ * A server that understands the offer appends the options it accepted to the
+ * window size in its OPEN | ACK payload, separated by semicolons:
+ *
+ *   <window size>;checksum=<algorithm id>;sack=<1 or 0>;streams=<max open streams>;symmetric=<1 or 0>;mtu=<max datagram size>;header=<1 or 2>
+ *
+ * A server that doesn't replies with just the window size, in which case
+ * every option keeps its original-protocol default.
+ *
+ * The max datagram size is the largest packet, header and all, either end
+ * may send: the smaller of the client's offer and the server's own limit,
+ * and never less than MAX_PACKET_SIZE. Anything above about 1472 bytes only
+ * gets through if the path carries jumbo frames, or is the loopback
+ * interface; the client can probe for what actually gets through once the
+ * handshake has settled the upper bound (see ReldatConnection).
+ *
+ * Once the handshake is over, both ends send packets with the header
+ * version the server accepted; OPEN packets always have the original
+ * header, since neither end knows what the other reads until they're done.
+ *
+ * With symmetric addressing, the server sends everything to the address and
+ * port the client's OPEN packet came from, from the address and port the
+ * client sends to, so the client can use one connected channel on an
+ * ephemeral port. In the original protocol, the server replies to its own
+ * port number on the client's host, from a port of its own choosing.
+ */
+public class ReldatOptions {
+	// Mask of the checksum algorithm bits in the offer
+	private static final int CHECKSUM_MASK = 0xFF;
+
+	// Bit offering selective acknowledgements
+	private static final int SACK_BIT = 1 << 8;
+
+	// Bit offering multiplexed streams
+	private static final int STREAMS_BIT = 1 << 9;
+
+	// Bit offering symmetric addressing
+	private static final int SYMMETRIC_BIT = 1 << 10;
+
+	// Bit offering compact (version 2) headers
+	private static final int COMPACT_HEADER_BIT = 1 << 11;
+
+	// Position of the max datagram size in the offer
+	private static final int DATAGRAM_SIZE_SHIFT = 16;
+
+	// Number of streams a server accepting the offer lets a client have open at once
+	public static final int DEFAULT_MAX_STREAMS = 64;
+
+	// Key names used in the OPEN | ACK payload
+	private static final String CHECKSUM_KEY = "checksum";
+	private static final String SACK_KEY = "sack";
+	private static final String STREAMS_KEY = "streams";
+	private static final String SYMMETRIC_KEY = "symmetric";
+	private static final String DATAGRAM_SIZE_KEY = "mtu";
+	private static final String HEADER_KEY = "header";
+
+	// Identifier of the checksum algorithm used for every non-OPEN packet
+	private byte checksumId = ReldatChecksums.MD5;
+
+	public byte getChecksumId() {
+		return checksumId;
+	}
+
+	public void setChecksumId(byte checksumId) {
+		this.checksumId = checksumId;
+	}
+
+	// Whether ACKs carry selective acknowledgements
+	private boolean sackEnabled = false;
+
+	public boolean isSackEnabled() {
+		return sackEnabled;
+	}
+
+	public void setSackEnabled(boolean sackEnabled) {
+		this.sackEnabled = sackEnabled;
+	}
+
+	// Number of streams that may be open at once, or 0 if packets carry no stream header
+	// (in which case there is one conversation at a time, as in the original protocol)
+	private int maxStreams = 0;
+
+	public int getMaxStreams() {
+		return maxStreams;
+	}
+
+	public void setMaxStreams(int maxStreams) {
+		this.maxStreams = maxStreams;
+	}
+
+	public boolean isMultiplexed() {
+		return maxStreams > 0;
+	}
+
+	// Whether the server replies to the address the client sends from, from the address the client sends to
+	private boolean symmetric = false;
+
+	public boolean isSymmetric() {
+		return symmetric;
+	}
+
+	public void setSymmetric(boolean symmetric) {
+		this.symmetric = symmetric;
+	}
+
+	// Largest packet either end may send, header included
+	private int maxDatagramSize = ReldatPacket.MAX_PACKET_SIZE;
+
+	public int getMaxDatagramSize() {
+		return maxDatagramSize;
+	}
+
+	public void setMaxDatagramSize(int maxDatagramSize) {
+		this.maxDatagramSize = clampDatagramSize(maxDatagramSize);
+	}
+
+	// Version of the header every non-OPEN packet has (ReldatHeader.VERSION_1 or VERSION_2)
+	private int headerVersion = ReldatHeader.VERSION_1;
+
+	public int getHeaderVersion() {
+		return headerVersion;
+	}
+
+	public void setHeaderVersion(int headerVersion) {
+		this.headerVersion = headerVersion;
+	}
+
+	/*
+	 * Largest payload a packet of the max datagram size can carry.
+	 */
+	public int getMaxPayloadSize() {
+		return getMaxPayloadSize(maxDatagramSize);
+	}
+
+	/*
+	 * Largest payload a packet of the given size can carry, whatever its
+	 * sequence and ACK numbers.
+	 */
+	public int getMaxPayloadSize(int datagramSize) {
+		return datagramSize - ((headerVersion == ReldatHeader.VERSION_2) ? ReldatHeader.COMPACT_HEADER_SIZE : ReldatHeader.PACKET_HEADER_SIZE);
+	}
+
+	/*
+	 * Limit a datagram size to what the protocol (and UDP over IPv4) allows.
+	 */
+	public static int clampDatagramSize(int size) {
+		return Math.max(ReldatPacket.MAX_PACKET_SIZE, Math.min(size, ReldatPacket.MAX_DATAGRAM_SIZE));
+	}
+
+	/*
+	 * Build the value of the OPEN packet's ACK number field that offers
+	 * every option this client supports, and datagrams of up to the given size.
+	 */
+	public static int encodeOffer(int maxDatagramSize) {
+		return (ReldatChecksums.supportedMask() & CHECKSUM_MASK) | SACK_BIT | STREAMS_BIT | SYMMETRIC_BIT | COMPACT_HEADER_BIT
+				| (clampDatagramSize(maxDatagramSize) << DATAGRAM_SIZE_SHIFT);
+	}
+
+	/*
+	 * Choose the options to use out of a peer's offer, with datagrams of up to
+	 * the given size at most. This is what the server end of the handshake
+	 * does with the client's OPEN packet.
+	 */
+	public static ReldatOptions fromOffer(int offer, int maxDatagramSize) {
+		ReldatOptions options = fromOffer(offer);
+		int offered = offer >>> DATAGRAM_SIZE_SHIFT;
+
+		if (offered != 0)
+			options.setMaxDatagramSize(Math.min(offered, maxDatagramSize));
+
+		return options;
+	}
+
+	/*
+	 * Choose the options to use out of a peer's offer, keeping datagrams to
+	 * the original size.
+	 */
+	public static ReldatOptions fromOffer(int offer) {
+		ReldatOptions options = new ReldatOptions();
+		options.checksumId = ReldatChecksums.choose(offer & CHECKSUM_MASK);
+		options.sackEnabled = (offer & SACK_BIT) != 0;
+		options.maxStreams = ((offer & STREAMS_BIT) != 0) ? DEFAULT_MAX_STREAMS : 0;
+		options.symmetric = (offer & SYMMETRIC_BIT) != 0;
+		options.headerVersion = ((offer & COMPACT_HEADER_BIT) != 0) ? ReldatHeader.VERSION_2 : ReldatHeader.VERSION_1;
+		return options;
+	}
+
+	/*
+	 * Build an OPEN | ACK payload advertising the given window size and
+	 * these options.
+	 */
+	public String encodeAccepted(int windowSize) {
+		return windowSize + ";" + CHECKSUM_KEY + "=" + checksumId + ";" + SACK_KEY + "=" + (sackEnabled ? 1 : 0) + ";" + STREAMS_KEY + "=" + maxStreams + ";" + SYMMETRIC_KEY + "=" + (symmetric ? 1 : 0) + ";" + DATAGRAM_SIZE_KEY + "=" + maxDatagramSize + ";" + HEADER_KEY + "=" + headerVersion;
+	}
+
+	/*
+	 * Parse the options a server accepted out of its OPEN | ACK payload.
+	 * Unknown keys are ignored so that newer servers stay compatible.
+	 */
+	public static ReldatOptions parseAccepted(String payload) {
+		ReldatOptions options = new ReldatOptions();
+		String[] fields = payload.trim().split(";");
+
+		for (int i = 1; i < fields.length; i++) {
+			String[] option = fields[i].split("=", 2);
+
+			if (option.length != 2)
+				continue;
+
+			try {
+				// Only take an algorithm we actually offered
+				if (option[0].equals(CHECKSUM_KEY)) {
+					byte checksumId = Byte.parseByte(option[1]);
+
+					if (checksumId >= 0 && (ReldatChecksums.supportedMask() & (1 << checksumId)) != 0)
+						options.checksumId = checksumId;
+				} else if (option[0].equals(SACK_KEY)) {
+					options.sackEnabled = Integer.parseInt(option[1]) == 1;
+				} else if (option[0].equals(STREAMS_KEY)) {
+					options.maxStreams = Math.max(Integer.parseInt(option[1]), 0);
+				} else if (option[0].equals(SYMMETRIC_KEY)) {
+					options.symmetric = Integer.parseInt(option[1]) == 1;
+				} else if (option[0].equals(DATAGRAM_SIZE_KEY)) {
+					options.setMaxDatagramSize(Integer.parseInt(option[1]));
+				} else if (option[0].equals(HEADER_KEY)) {
+					int headerVersion = Integer.parseInt(option[1]);
+
+					// Only take a version we know
+					if (headerVersion == ReldatHeader.VERSION_1 || headerVersion == ReldatHeader.VERSION_2)
+						options.headerVersion = headerVersion;
+				}
+			} catch (NumberFormatException e) {
+				// Ignore malformed options; the default is always safe
+			}
+		}
+
+		return options;
+	}
+
+	/*
+	 * Parse the server's max window size out of its OPEN | ACK payload.
+	 */
+	public static int parseWindowSize(String payload) {
+		return Integer.parseInt(payload.trim().split(";")[0]);
+	}
+}
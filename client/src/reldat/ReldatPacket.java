@@ -3,27 +3,38 @@ package reldat;
 import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import reldat.checksum.ReldatChecksums;
 import reldat.exception.HeaderCorruptedException;
 import reldat.exception.PayloadCorruptedException;
 
 public class ReldatPacket {
-	// Max packet size, in bytes
+	// Max packet size, in bytes, unless a larger one is negotiated during the handshake (see ReldatOptions)
 	public static final short MAX_PACKET_SIZE = 1000;
 	
-	// Max packet payload size, in bytes
+	// Max packet payload size, in bytes, of a MAX_PACKET_SIZE packet
 	public static final short PACKET_PAYLOAD_SIZE = MAX_PACKET_SIZE - ReldatHeader.PACKET_HEADER_SIZE;
+	
+	// Largest packet that fits in a UDP datagram over IPv4, and in one over Ethernet without fragmenting
+	public static final int MAX_DATAGRAM_SIZE = 65507;
+	public static final int ETHERNET_DATAGRAM_SIZE = 1472;
 
 	private ReldatHeader header;
 	
 	// The header checksum is not stored in the header, but it is considered part of the header
 	private byte[] headerChecksum;
 	
-	// The packet's payload
+	// The packet's payload, or the part of it before mappedData
 	private byte[] data;
+	
+	// The rest of the payload, if it is a slice of a memory-mapped file rather than a copy
+	// (see ReldatMappedFile)
+	private ByteBuffer mappedData;
+	
+	// Identifier of the algorithm both checksums are generated with
+	private byte checksumId;
 
 	/*
 	 * Construct a RELDAT packet with a single integer as the payload.
@@ -43,30 +54,56 @@ public class ReldatPacket {
 	 * Construct a RELDAT packet with a byte array as the payload.
 	 */
 	public ReldatPacket(byte[] data, byte flags, int seqNum, int ackNum) {
+		this(data, flags, seqNum, ackNum, ReldatChecksums.MD5);
+	}
+
+	/*
+	 * Construct a RELDAT packet with a string as the payload, checksummed
+	 * with the algorithm that has the given identifier.
+	 */
+	public ReldatPacket(String data, byte flags, int seqNum, int ackNum, byte checksumId) throws UnsupportedEncodingException {
+		this(data.getBytes("UTF-8"), flags, seqNum, ackNum, checksumId);
+	}
+
+	/*
+	 * Construct a RELDAT packet with a byte array as the payload, checksummed
+	 * with the algorithm that has the given identifier.
+	 */
+	public ReldatPacket(byte[] data, byte flags, int seqNum, int ackNum, byte checksumId) {
 		this.data = data;
+		this.checksumId = checksumId;
 		
 		// If we pass in null, the payload contains no data
 		if(this.data == null)
 			this.data = new byte[]{};
 
-		this.header = new ReldatHeader(flags, seqNum, ackNum, data);
+		this.header = new ReldatHeader(flags, seqNum, ackNum, this.data, checksumId);
+		this.headerChecksum = this.generateHeaderChecksum();
+	}
 
-		// Generate the header checksum
-		try {
-			MessageDigest checksumGenerator = MessageDigest.getInstance("MD5");
-			this.headerChecksum = checksumGenerator.digest(header.toBytes());
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
+	/*
+	 * Construct a RELDAT packet whose payload is the given bytes (a stream
+	 * header, say) followed by a slice of a memory-mapped file (or by
+	 * nothing, if it's null), which is kept as it is rather than copied.
+	 * Its checksums aren't generated until
+	 * they're needed: a codec that re-encodes the header for every sending
+	 * (see ReldatCodec.encodeHead()) may never need them.
+	 */
+	public ReldatPacket(byte[] data, ByteBuffer mappedData, byte flags, int seqNum, int ackNum, byte checksumId) {
+		this.data = data;
+		this.mappedData = mappedData;
+		this.checksumId = checksumId;
+		this.header = new ReldatHeader(flags, seqNum, ackNum, data, mappedData, checksumId);
 	}
 
 	/*
-	 * Private constructor for bytesToPacket().
+	 * Package-private constructor for bytesToPacket() and ReldatPacketView.
 	 */
-	private ReldatPacket( ReldatHeader header, byte[] headerChecksum, byte[] data ) {
+	ReldatPacket( ReldatHeader header, byte[] headerChecksum, byte[] data, byte checksumId ) {
 		this.header = header;
 		this.headerChecksum = headerChecksum;
 		this.data = data;
+		this.checksumId = checksumId;
 	}
 
 	public ReldatHeader getHeader() {
@@ -74,13 +111,40 @@ public class ReldatPacket {
 	}
 
 	public byte[] getHeaderChecksum() {
+		if (this.headerChecksum == null)
+			this.headerChecksum = this.generateHeaderChecksum();
+
 		return this.headerChecksum;
 	}
 
+	/*
+	 * The packet's payload, or, if part of it is a slice of a mapped file,
+	 * the part before that.
+	 */
 	public byte[] getData() {
 		return this.data;
 	}
 	
+	/*
+	 * The part of the payload that is a slice of a mapped file, or null if
+	 * there is none. The slice's contents are never modified, but its position
+	 * and limit are used to send it; reset them first.
+	 */
+	public ByteBuffer getMappedData() {
+		return this.mappedData;
+	}
+	
+	/*
+	 * Size of the whole payload, in bytes.
+	 */
+	public int getPayloadSize() {
+		return this.header.getPayloadSize();
+	}
+	
+	public byte getChecksumId() {
+		return this.checksumId;
+	}
+	
 	/*
 	 * Get the packet's payload as a UTF-8 encoded string, regardless
 	 * of the constructor used to instantiate this packet.
@@ -128,40 +192,40 @@ public class ReldatPacket {
 	 * Get a byte array representation of this packet.
 	 */
 	public byte[] toBytes() {
-		// Get the header as a byte array
-		byte[] headerBytes = this.header.toBytes();
+		// Create a byte buffer the size of this packet and write the packet straight into it
+		ByteBuffer packetBytes = ByteBuffer.allocate(this.getSize());
+		this.writeTo(packetBytes);
+
+		return packetBytes.array();
+	}
+
+	/*
+	 * Write this packet into the given buffer at its current position,
+	 * advancing the position past the end of the packet. Returns the
+	 * number of bytes written.
+	 */
+	public int writeTo(ByteBuffer buffer) {
+		int start = buffer.position();
+
+		this.header.writeTo(buffer);
+
+		// The header checksum is considered part of the header
+		buffer.put(this.getHeaderChecksum());
+		buffer.put(this.data);
 		
-		// Create a byte buffer the size of this packet
-		byte[] packetBytes = new byte[headerBytes.length + this.headerChecksum.length + this.data.length];
-
-		// Copy the header into the buffer
-		System.arraycopy(
-			headerBytes,
-			0,
-			packetBytes,
-			0,
-			headerBytes.length
-		);
-
-		// Copy the header checksum into the buffer (this is considered part of the header)
-		System.arraycopy(
-			this.headerChecksum,
-			0,
-			packetBytes,
-			headerBytes.length,
-			this.headerChecksum.length
-		);
-
-		// Copy the payload into this buffer
-		System.arraycopy(
-			this.data,
-			0,
-			packetBytes,
-			headerBytes.length + this.headerChecksum.length,
-			this.data.length
-		);
-
-		return packetBytes;
+		if (this.mappedData != null) {
+			this.mappedData.clear();
+			buffer.put(this.mappedData);
+		}
+
+		return buffer.position() - start;
+	}
+
+	/*
+	 * Get the size of this packet on the wire, in bytes.
+	 */
+	public int getSize() {
+		return ReldatHeader.PACKET_HEADER_SIZE + this.getPayloadSize();
 	}
 
 	/*
@@ -179,13 +243,19 @@ public class ReldatPacket {
 	public void addFlag(byte flag) {
 		this.header.addFlag(flag);
 
-		// Recalculate the checksum right here because we're extremely efficient
-		try {
-			MessageDigest checksumGenerator = MessageDigest.getInstance( "MD5" );
-			headerChecksum = checksumGenerator.digest( header.toBytes() );
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
+		// The checksum is regenerated the next time it's needed
+		this.headerChecksum = null;
+	}
+	
+	/*
+	 * Generate the header checksum from the current header fields.
+	 */
+	private byte[] generateHeaderChecksum() {
+		byte[] checksum = new byte[ReldatHeader.CHECKSUM_SIZE];
+		byte[] headerBytes = this.header.toBytes();
+
+		ReldatChecksums.get(this.checksumId).checksum(ByteBuffer.wrap(headerBytes), 0, headerBytes.length, checksum);
+		return checksum;
 	}
 
 	/*
@@ -193,74 +263,21 @@ public class ReldatPacket {
 	 * it into a ReldatPacket object.
 	 */
 	public static ReldatPacket bytesToPacket(byte[] packetData) throws HeaderCorruptedException, PayloadCorruptedException {
-		// Create a buffer for the header
-		byte[] headerBytes = new byte[ReldatHeader.PACKET_HEADER_SIZE - 16];
-		
-		// Create a buffer for the header checksum
-		byte[] headerChecksum = new byte[16];
-
-		// Copy data into the header buffer
-		System.arraycopy(
-			packetData,
-			0,
-			headerBytes,
-			0,
-			ReldatHeader.PACKET_HEADER_SIZE - 16
-		);
-
-		// Copy data into the header checksum buffer
-		System.arraycopy(
-			packetData,
-			ReldatHeader.PACKET_HEADER_SIZE - 16,
-			headerChecksum,
-			0,
-			16
-		);
+		return bytesToPacket(packetData, ReldatChecksums.MD5);
+	}
 
-		try {
-			// Generate a checksum from the header buffer
-			MessageDigest checksumGenerator = MessageDigest.getInstance( "MD5" );
-
-			byte[] expectedHeaderChecksum = checksumGenerator.digest( headerBytes );
-			checksumGenerator.reset();
-
-			// Compare the checksum we just generated to the header checksum buffer
-			if( !Arrays.equals( headerChecksum, expectedHeaderChecksum ) )
-				throw new HeaderCorruptedException(); // If they're not the same, the header is corrupted
-
-			// Convert the header buffer into a ReldatHeader object
-			ReldatHeader header = ReldatHeader.bytesToHeader( headerBytes );
-			
-			// Create a payload buffer using the payload size specified in the header
-			int payloadSize = header.getPayloadSize();
-			byte[] payloadBytes = new byte[payloadSize];
-
-			// Copy data into the payload buffer
-			System.arraycopy(
-				packetData,
-				ReldatHeader.PACKET_HEADER_SIZE,
-				payloadBytes,
-				0,
-				payloadSize
-			);
-
-			// Generate an MD5 checksum from the payload buffer
-			byte[] expectedPayloadChecksum = checksumGenerator.digest( payloadBytes );
-			checksumGenerator.reset();
-
-			// Compare the checksum we just generated to the payload checksum in the header
-			if( !Arrays.equals( header.getPayloadChecksum(), expectedPayloadChecksum ) )
-				throw new PayloadCorruptedException(); // If they're not the same, the payload is corrupted
-
-			// Finally return an object representation of the byte array
-			return new ReldatPacket( header, headerChecksum, payloadBytes );
-		}
-		catch (NoSuchAlgorithmException e) {
-			System.out.println("An MD5 algorithm implementation does not exist on your machine.");
-			System.exit(-1);
-		}
+	/*
+	 * Parse a byte array as a RELDAT packet checksummed with the algorithm
+	 * that has the given identifier. OPEN packets are always checked with MD5.
+	 */
+	public static ReldatPacket bytesToPacket(byte[] packetData, byte checksumId) throws HeaderCorruptedException, PayloadCorruptedException {
+		ReldatPacketView view = new ReldatPacketView(ReldatChecksums.get(checksumId), ReldatChecksums.get(ReldatChecksums.MD5)).wrap(ByteBuffer.wrap(packetData));
 
-		return null;
+		// Throws if either the header or the payload is corrupted
+		view.verify();
+
+		// Finally return an object representation of the byte array
+		return view.toPacket();
 	}
 
 	/*
@@ -272,7 +289,7 @@ public class ReldatPacket {
 		int result = 1;
 		result = prime * result + Arrays.hashCode(data);
 		result = prime * result + ((header == null) ? 0 : header.hashCode());
-		result = prime * result + Arrays.hashCode(headerChecksum);
+		result = prime * result + Arrays.hashCode(this.getHeaderChecksum());
 		return result;
 	}
 
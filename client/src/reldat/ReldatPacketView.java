@@ -0,0 +1,367 @@
+package reldat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import reldat.checksum.ReldatChecksum;
+import reldat.checksum.ReldatChecksums;
+import reldat.exception.HeaderCorruptedException;
+import reldat.exception.PayloadCorruptedException;
+
+/*
+ * A flyweight, read-only view of a RELDAT packet sitting in a receive buffer.
+ *
+ * A view is wrapped around the bytes of an incoming datagram and reads the
+ * header fields in place, so decoding a packet does not copy the header,
+ * the checksums or the payload anywhere. One view is meant to be re-wrapped
+ * around every datagram received; it keeps its own checksum state and scratch space,
+ * so an instance must not be shared between threads. Call toPacket() to get
+ * a standalone ReldatPacket when the packet has to outlive the buffer.
+ *
+ * A view reads packets with either header version (see ReldatHeader),
+ * telling them apart by the flag that marks a compact header, so packets of
+ * both versions can arrive while the handshake is switching over. Wrapping a
+ * compact packet works out where its fields are; verify() rejects one whose
+ * fields don't fit in the datagram.
+ */
+public class ReldatPacketView {
+	private ByteBuffer buffer;
+	private int offset;
+	private int length;
+
+	// Layout of a compact header: where its sequence and ACK numbers are, and how long they
+	// are, where its checksum is, and how long the whole header is (-1 if it doesn't fit)
+	private boolean compact;
+	private int seqOffset;
+	private int seqLength;
+	private int ackOffset;
+	private int ackLength;
+	private int checksumOffset;
+	private int headerSize = ReldatHeader.PACKET_HEADER_SIZE;
+
+	// Checksum algorithm for every packet, and the one used for OPEN packets
+	// (which are exchanged before any other algorithm has been negotiated)
+	private ReldatChecksum checksum;
+	private ReldatChecksum handshakeChecksum;
+
+	// Scratch space for checksum verification
+	private byte[] scratch = new byte[ReldatHeader.CHECKSUM_SIZE];
+
+	/*
+	 * Create a view that verifies every packet with MD5.
+	 */
+	public ReldatPacketView() {
+		this(ReldatChecksums.create(ReldatChecksums.MD5));
+	}
+
+	public ReldatPacketView(ReldatChecksum checksum) {
+		this(checksum, (checksum.getId() == ReldatChecksums.MD5) ? checksum : ReldatChecksums.create(ReldatChecksums.MD5));
+	}
+
+	public ReldatPacketView(ReldatChecksum checksum, ReldatChecksum handshakeChecksum) {
+		this.checksum = checksum;
+		this.handshakeChecksum = handshakeChecksum;
+	}
+
+	/*
+	 * Switch to the checksum algorithm negotiated during the handshake.
+	 */
+	public void setChecksum(ReldatChecksum checksum) {
+		this.checksum = checksum;
+	}
+
+	/*
+	 * Point this view at the packet between the buffer's position and
+	 * limit. The buffer is not modified or copied.
+	 */
+	public ReldatPacketView wrap(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.offset = buffer.position();
+		this.length = buffer.remaining();
+		this.compact = this.length > 0 && (buffer.get( offset ) & ReldatHeader.COMPACT_FLAG) != 0;
+
+		if (this.compact)
+			this.parseCompact();
+		else
+			this.headerSize = ReldatHeader.PACKET_HEADER_SIZE;
+
+		return this;
+	}
+
+	/*
+	 * Work out the layout of a compact header from its descriptor byte.
+	 */
+	private void parseCompact() {
+		this.headerSize = -1;
+
+		if (length < ReldatHeader.MIN_COMPACT_HEADER_SIZE)
+			return;
+
+		int descriptor = buffer.get( offset + ReldatHeader.DESCRIPTOR_OFFSET );
+		this.seqOffset = offset + ReldatHeader.DESCRIPTOR_OFFSET + 1;
+		this.seqLength = ReldatHeader.compactLength( (descriptor >>> 3) & 3 );
+		this.ackOffset = seqOffset + seqLength;
+		this.ackLength = ReldatHeader.compactLength( (descriptor >>> 1) & 3 );
+
+		int position = ackOffset + ackLength;
+
+		// Skip the option area, if there is one
+		if ((descriptor & 1) != 0) {
+			if (position >= offset + length)
+				return;
+
+			position += 1 + (buffer.get( position ) & 0xFF);
+		}
+
+		this.checksumOffset = position;
+
+		if (position + ReldatHeader.COMPACT_CHECKSUM_SIZE <= offset + length)
+			this.headerSize = position + ReldatHeader.COMPACT_CHECKSUM_SIZE - offset;
+	}
+
+	public byte getFlags() {
+		return (byte) (buffer.get( offset + ReldatHeader.FLAGS_OFFSET ) & ~ReldatHeader.COMPACT_FLAG);
+	}
+
+	public int getSequenceNumber() {
+		if (compact)
+			return this.getCompact( seqOffset, seqLength );
+
+		return buffer.getInt( offset + ReldatHeader.SEQ_NUM_OFFSET );
+	}
+
+	public int getAcknowledgementNumber() {
+		if (compact)
+			return this.getCompact( ackOffset, ackLength );
+
+		return buffer.getInt( offset + ReldatHeader.ACK_NUM_OFFSET );
+	}
+
+	public int getPayloadSize() {
+		if (compact)
+			return length - headerSize;
+
+		return buffer.getInt( offset + ReldatHeader.PAYLOAD_SIZE_OFFSET );
+	}
+
+	/*
+	 * Read a number of the given length (0 to 4 bytes), most significant byte first.
+	 */
+	private int getCompact(int at, int length) {
+		int value = 0;
+
+		for (int i = 0; i < length; i++)
+			value = (value << 8) | (buffer.get( at + i ) & 0xFF);
+
+		return value;
+	}
+
+	/*
+	 * Absolute offset of the first payload byte in the underlying buffer.
+	 */
+	public int getPayloadOffset() {
+		return offset + headerSize;
+	}
+
+	/*
+	 * Returns true if the wrapped packet has a compact (version 2) header.
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/*
+	 * Size of the whole datagram, header and all.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/*
+	 * Copy the payload into the given array at the given offset.
+	 */
+	public void copyPayload(byte[] dst, int dstOffset) {
+		this.copyPayload(dst, dstOffset, 0);
+	}
+
+	/*
+	 * Copy the payload, minus its first skip bytes (a stream header, say),
+	 * into the given array at the given offset.
+	 */
+	public void copyPayload(byte[] dst, int dstOffset, int skip) {
+		int payloadOffset = this.getPayloadOffset() + skip;
+		int payloadSize = this.getPayloadSize() - skip;
+
+		if (buffer.hasArray()) {
+			System.arraycopy( buffer.array(), buffer.arrayOffset() + payloadOffset, dst, dstOffset, payloadSize );
+			return;
+		}
+
+		// A bulk get from a direct buffer is a single memory copy, too
+		int position = buffer.position();
+		buffer.position( payloadOffset );
+		buffer.get( dst, dstOffset, payloadSize );
+		buffer.position( position );
+	}
+
+	/*
+	 * Write the whole payload to a channel straight out of the underlying
+	 * buffer, without copying it anywhere first.
+	 */
+	public void writePayload(WritableByteChannel channel) throws IOException {
+		this.writePayload(channel, 0);
+	}
+
+	/*
+	 * Write the payload, minus its first skip bytes, to a channel straight
+	 * out of the underlying buffer.
+	 */
+	public void writePayload(WritableByteChannel channel, int skip) throws IOException {
+		int position = buffer.position();
+		int limit = buffer.limit();
+
+		buffer.limit( this.getPayloadOffset() + this.getPayloadSize() );
+		buffer.position( this.getPayloadOffset() + skip );
+
+		try {
+			while (buffer.hasRemaining())
+				channel.write( buffer );
+		} finally {
+			buffer.limit( limit );
+			buffer.position( position );
+		}
+	}
+
+	public boolean isACK() {
+		return (this.getFlags() & ReldatHeader.ACK_FLAG) == ReldatHeader.ACK_FLAG;
+	}
+
+	public boolean isRetransmit() {
+		return (this.getFlags() & ReldatHeader.RETRANSMIT_FLAG) == ReldatHeader.RETRANSMIT_FLAG;
+	}
+
+	public boolean isEOD() {
+		return (this.getFlags() & ReldatHeader.EOD_FLAG) == ReldatHeader.EOD_FLAG;
+	}
+
+	public boolean isData() {
+		return (this.getFlags() & ReldatHeader.DATA_FLAG) == ReldatHeader.DATA_FLAG;
+	}
+
+	public boolean isOpen() {
+		return (this.getFlags() & ReldatHeader.OPEN_FLAG) == ReldatHeader.OPEN_FLAG;
+	}
+
+	public boolean isNudge() {
+		return (this.getFlags() & ReldatHeader.NUDGE_FLAG) == ReldatHeader.NUDGE_FLAG;
+	}
+
+	public boolean isClose() {
+		return (this.getFlags() & ReldatHeader.CLOSE_FLAG) == ReldatHeader.CLOSE_FLAG;
+	}
+
+	/*
+	 * Verify the header checksum, then the payload checksum, of the
+	 * wrapped packet. Throws the same exceptions as ReldatPacket.bytesToPacket().
+	 */
+	public void verify() throws HeaderCorruptedException, PayloadCorruptedException {
+		if (compact) {
+			this.verifyCompact();
+			return;
+		}
+
+		// A datagram too short to hold a header can't have a valid one
+		if (length < ReldatHeader.PACKET_HEADER_SIZE)
+			throw new HeaderCorruptedException();
+
+		// OPEN packets are always checksummed with MD5. Trusting the flags byte before the
+		// header is verified is safe: if it's corrupted, the wrong checksum won't match either.
+		ReldatChecksum checksum = this.getChecksum();
+		checksum.checksum( buffer, offset, ReldatHeader.HEADER_CHECKSUM_OFFSET, scratch );
+
+		if (!this.checksumMatches( offset + ReldatHeader.HEADER_CHECKSUM_OFFSET ))
+			throw new HeaderCorruptedException();
+
+		// The header is intact, but a payload size that runs past the datagram is still bogus
+		int payloadSize = this.getPayloadSize();
+
+		if (payloadSize < 0 || payloadSize > length - ReldatHeader.PACKET_HEADER_SIZE)
+			throw new PayloadCorruptedException();
+
+		checksum.checksum( buffer, this.getPayloadOffset(), payloadSize, scratch );
+
+		if (!this.checksumMatches( offset + ReldatHeader.PAYLOAD_CHECKSUM_OFFSET ))
+			throw new PayloadCorruptedException();
+	}
+
+	/*
+	 * Verify a compact header's one checksum, which covers the whole packet.
+	 * There's no telling whether a bad checksum means the header or the
+	 * payload was hit, so it's reported as a corrupted payload (the bigger
+	 * target); a header whose fields don't fit in the datagram, or of a
+	 * version we don't know, is a corrupted header.
+	 */
+	private void verifyCompact() throws HeaderCorruptedException, PayloadCorruptedException {
+		if (headerSize < 0 || (buffer.get( offset + ReldatHeader.DESCRIPTOR_OFFSET ) >>> 5 & 7) != ReldatHeader.VERSION_2)
+			throw new HeaderCorruptedException();
+
+		int payloadOffset = this.getPayloadOffset();
+		this.getChecksum().checksum( buffer, offset, checksumOffset - offset, buffer, payloadOffset, offset + length - payloadOffset, scratch );
+
+		for (int i = 0; i < ReldatHeader.COMPACT_CHECKSUM_SIZE; i++) {
+			if (scratch[i] != buffer.get( checksumOffset + i ))
+				throw new PayloadCorruptedException();
+		}
+	}
+
+	/*
+	 * The checksum algorithm the wrapped packet was generated with.
+	 */
+	private ReldatChecksum getChecksum() {
+		return this.isOpen() ? handshakeChecksum : checksum;
+	}
+
+	/*
+	 * Compare the checksum in the scratch space to the one stored at the
+	 * given absolute offset of the buffer.
+	 */
+	private boolean checksumMatches(int checksumOffset) {
+		for (int i = 0; i < scratch.length; i++) {
+			if (scratch[i] != buffer.get( checksumOffset + i ))
+				return false;
+		}
+
+		return true;
+	}
+
+	/*
+	 * Copy the wrapped packet out of the buffer into a standalone ReldatPacket.
+	 * This does not verify the packet; call verify() first.
+	 */
+	public ReldatPacket toPacket() {
+		// A compact packet is rebuilt with the original header, which has room for full checksums
+		if (compact) {
+			byte[] payload = new byte[this.getPayloadSize()];
+			this.copyPayload( payload, 0 );
+
+			return new ReldatPacket( payload, this.getFlags(), this.getSequenceNumber(), this.getAcknowledgementNumber(), this.getChecksum().getId() );
+		}
+
+		ReldatHeader header = ReldatHeader.bufferToHeader( buffer, offset );
+
+		byte[] headerChecksum = new byte[ReldatHeader.CHECKSUM_SIZE];
+
+		for (int i = 0; i < headerChecksum.length; i++)
+			headerChecksum[i] = buffer.get( offset + ReldatHeader.HEADER_CHECKSUM_OFFSET + i );
+
+		byte[] payload = new byte[header.getPayloadSize()];
+		this.copyPayload( payload, 0 );
+
+		return new ReldatPacket( header, headerChecksum, payload, this.getChecksum().getId() );
+	}
+}
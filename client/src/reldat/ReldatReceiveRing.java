@@ -0,0 +1,283 @@
+package reldat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/*
+ * The receive window: data packets that arrived ahead of a gap, waiting to
+ * be delivered in sequence order.
+ *
+ * Packets live in a ring with a power-of-two number of slots, so the slot of
+ * sequence number n is simply (n & mask). Payloads are copied into pages of
+ * 16 slots, a slot's worth of bytes each, and a bitmap records which slots
+ * hold a packet. A page is only allocated when a packet is stored in it,
+ * and is kept for reuse once it empties, so a ring holds about as much
+ * memory as the most data that ever waited in it, not a window's worth of
+ * the largest payloads (which, with jumbo datagrams and a ring per stream,
+ * would be gigabytes); nothing is allocated per packet once the pages that
+ * are needed exist. The ring keeps
+ * the sequence number of the next packet to deliver, and delivering walks
+ * forward from it, one bit test per packet, until it reaches a gap. Each
+ * packet is stored and delivered once, so delivery costs O(1) per packet
+ * however the packets were ordered on the wire.
+ *
+ * Sequence numbers are compared by their difference from the next one to
+ * deliver, so they may wrap around. A ring is not thread-safe.
+ */
+public class ReldatReceiveRing {
+	// Largest window a ring can be created for, in packets
+	public static final int MAX_WINDOW = 1 << 20;
+
+	// Number of slots per page (a power of two)
+	private static final int PAGE_SLOTS = 16;
+
+	// Number of sequence numbers, starting at the next one to deliver, that packets may be stored for
+	private final int window;
+
+	// Number of slots (a power of two no smaller than the window), minus one
+	private final int mask;
+
+	// Payloads, slotSize bytes per slot, and how long each one is
+	private final int slotSize;
+	private final int[] lengths;
+
+	// Pages of payloads, pageSlots (1 << pageShift) slots each (null until a packet is stored in
+	// one), how many packets each holds, and emptied pages waiting to be reused
+	private final int pageSlots;
+	private final int pageShift;
+	private final ByteBuffer[] pages;
+	private final int[] pageCounts;
+	private final ArrayDeque<ByteBuffer> sparePages = new ArrayDeque<ByteBuffer>();
+
+	// One bit per slot, set while the slot holds a packet
+	private final long[] occupied;
+
+	// Sequence number of the next packet to deliver, and how many packets are stored
+	private int next = 0;
+	private int stored = 0;
+
+	public ReldatReceiveRing(int window) {
+		this(window, ReldatPacket.PACKET_PAYLOAD_SIZE);
+	}
+
+	/*
+	 * Create a ring for payloads of up to slotSize bytes, which is the
+	 * payload size of the largest packet the connection negotiated. Throws
+	 * an IllegalArgumentException if the window is larger than MAX_WINDOW.
+	 */
+	public ReldatReceiveRing(int window, int slotSize) {
+		if (window > MAX_WINDOW)
+			throw new IllegalArgumentException("Window of " + window + " packets is larger than " + MAX_WINDOW);
+
+		this.window = Math.max(window, 1);
+
+		int slots = Integer.highestOneBit(Math.max(this.window - 1, 1)) << 1;
+		this.mask = slots - 1;
+
+		this.slotSize = slotSize;
+		this.lengths = new int[slots];
+		this.pageSlots = Math.min(slots, PAGE_SLOTS);
+		this.pageShift = Integer.numberOfTrailingZeros(this.pageSlots);
+		this.pages = new ByteBuffer[slots / this.pageSlots];
+		this.pageCounts = new int[this.pages.length];
+		this.occupied = new long[(slots + 63) >>> 6];
+	}
+
+	/*
+	 * Sequence number of the next packet to deliver.
+	 */
+	public int getNext() {
+		return this.next;
+	}
+
+	/*
+	 * Number of packets waiting for a gap before them to be filled.
+	 */
+	public int size() {
+		return this.stored;
+	}
+
+	/*
+	 * Returns true if a packet with the given sequence number has already been
+	 * delivered, or is waiting to be.
+	 */
+	public boolean contains(int seqNum) {
+		int offset = seqNum - this.next;
+
+		if (offset < 0)
+			return true;
+
+		return offset < this.window && this.isOccupied(seqNum & this.mask);
+	}
+
+	/*
+	 * Returns true if the given sequence number is too far ahead of the next
+	 * one to deliver to be stored.
+	 */
+	public boolean isBeyondWindow(int seqNum) {
+		return seqNum - this.next >= this.window;
+	}
+
+	/*
+	 * Copy the payload of a packet that arrived ahead of the next one to deliver
+	 * into the ring. Returns false (and stores nothing) if the packet is a
+	 * duplicate, or doesn't fit in the window.
+	 */
+	public boolean store(ReldatPacketView view) {
+		return this.store(view.getSequenceNumber(), view, 0);
+	}
+
+	/*
+	 * Store the payload of a packet, minus its first skip bytes, under the given
+	 * sequence number. This is how a stream stores its packets, which carry the
+	 * stream's own sequence numbers in a stream header at the start of the payload.
+	 */
+	public boolean store(int seqNum, ReldatPacketView view, int skip) {
+		int offset = seqNum - this.next;
+
+		if (offset < 0 || offset >= this.window)
+			return false;
+
+		int slot = seqNum & this.mask;
+
+		if (this.isOccupied(slot) || view.getPayloadSize() - skip > this.slotSize)
+			return false;
+
+		int page = slot >>> this.pageShift;
+
+		if (this.pages[page] == null)
+			this.pages[page] = this.sparePages.isEmpty() ? ByteBuffer.allocate(this.pageSlots * this.slotSize) : this.sparePages.poll();
+
+		view.copyPayload(this.pages[page].array(), this.getOffset(slot), skip);
+		this.lengths[slot] = view.getPayloadSize() - skip;
+		this.occupied[slot >>> 6] |= 1L << slot;
+		this.pageCounts[page]++;
+		this.stored++;
+
+		return true;
+	}
+
+	/*
+	 * Move past the next packet without storing it, because it was delivered
+	 * straight from the datagram it arrived in.
+	 */
+	public void advance() {
+		this.next++;
+	}
+
+	/*
+	 * Deliver every stored packet that is now in order to the channel (or
+	 * discard them, if the channel is null), moving the next sequence number
+	 * past them. Returns the number of packets delivered.
+	 */
+	public int deliver(WritableByteChannel channel) throws IOException {
+		int delivered = 0;
+
+		while (this.stored > 0) {
+			int slot = this.next & this.mask;
+
+			if (!this.isOccupied(slot))
+				break;
+
+			// Free the slot first, so a failed write doesn't deliver the packet twice; its page is
+			// only put back once written, so it isn't reused under us
+			ByteBuffer page = this.pages[slot >>> this.pageShift];
+			this.occupied[slot >>> 6] &= ~(1L << slot);
+			this.stored--;
+			this.next++;
+			delivered++;
+
+			try {
+				if (channel != null) {
+					int start = this.getOffset(slot);
+					page.limit(start + this.lengths[slot]).position(start);
+
+					while (page.hasRemaining())
+						channel.write(page);
+				}
+			} finally {
+				this.releaseSlot(slot);
+			}
+		}
+
+		return delivered;
+	}
+
+	/*
+	 * Move the next sequence number up to the given one (never back), dropping
+	 * any stored packets below it.
+	 */
+	public void skipTo(int seqNum) {
+		int distance = seqNum - this.next;
+
+		if (distance <= 0)
+			return;
+
+		if (distance >= this.window) {
+			this.clear();
+		} else {
+			for (int i = 0; i < distance && this.stored > 0; i++) {
+				int slot = (this.next + i) & this.mask;
+
+				if (this.isOccupied(slot)) {
+					this.occupied[slot >>> 6] &= ~(1L << slot);
+					this.stored--;
+					this.releaseSlot(slot);
+				}
+			}
+		}
+
+		this.next = seqNum;
+	}
+
+	/*
+	 * Drop every stored packet, and start over at the given sequence number.
+	 */
+	public void reset(int seqNum) {
+		this.clear();
+		this.next = seqNum;
+	}
+
+	/*
+	 * Drop every stored packet, keeping the next sequence number.
+	 */
+	public void clear() {
+		Arrays.fill(this.occupied, 0L);
+		this.stored = 0;
+
+		for (int i = 0; i < this.pages.length; i++) {
+			if (this.pages[i] != null) {
+				this.sparePages.add(this.pages[i]);
+				this.pages[i] = null;
+				this.pageCounts[i] = 0;
+			}
+		}
+	}
+
+	/*
+	 * Where a slot's payload starts in its page.
+	 */
+	private int getOffset(int slot) {
+		return (slot & (this.pageSlots - 1)) * this.slotSize;
+	}
+
+	/*
+	 * A packet left the given slot; once its page holds none, put the page
+	 * aside for reuse.
+	 */
+	private void releaseSlot(int slot) {
+		int page = slot >>> this.pageShift;
+
+		if (--this.pageCounts[page] == 0) {
+			this.sparePages.add(this.pages[page]);
+			this.pages[page] = null;
+		}
+	}
+
+	private boolean isOccupied(int slot) {
+		return (this.occupied[slot >>> 6] & (1L << slot)) != 0;
+	}
+}
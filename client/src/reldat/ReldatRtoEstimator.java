@@ -0,0 +1,129 @@
+package reldat;
+
+/*
+ * Estimates a connection's retransmission timeout (RTO) from measured
+ * round-trip times, the way TCP does (RFC 6298):
+ *
+ *   SRTT   <- (7/8) SRTT + (1/8) R
+ *   RTTVAR <- (3/4) RTTVAR + (1/4) |SRTT - R|
+ *   RTO    <- SRTT + max(G, 4 RTTVAR)
+ *
+ * where R is a new round-trip sample and G is the clock granularity. The
+ * first sample sets SRTT = R and RTTVAR = R / 2. Until then the RTO is the
+ * initial timeout. The RTO is always kept between a configurable floor and
+ * ceiling. The default floor is 10 ms, not TCP's usual 200 ms: RELDAT runs
+ * mostly on LANs and loopback, where round trips take well under a
+ * millisecond and a 200 ms floor turns every timeout into a long stall.
+ * Its peers ACK at once, or hold an ACK back for at most a quarter of a
+ * round trip, so the floor doesn't have to cover delayed ACKs. On
+ * wide-area paths, whose round trips can grow many times over as queues
+ * fill, raise it with setBounds() (ReldatSession.setMinRto() does, and
+ * ReldatLoopbackBench sets 200 ms for its delayed scenarios).
+ *
+ * Timeouts back off exponentially. A single exchange (like a handshake)
+ * calls backoff() each time its timer fires, which doubles the RTO until a
+ * new sample arrives. Each data packet has a timer of its own, so instead
+ * it waits getTimeout(n) after its n-th retransmission, and one packet's
+ * losses don't slow down the rest of the window.
+ *
+ * Samples must only be taken from packets that were sent once (Karn's
+ * algorithm): the ACK of a retransmitted packet could be for any copy of it.
+ * All times are in nanoseconds.
+ */
+public class ReldatRtoEstimator {
+	// Defaults: RFC 6298's initial RTO of one second, a floor suited to local
+	// links, and a ceiling for slow wide-area ones
+	public static final long DEFAULT_INITIAL_RTO = 1000000000L;
+	public static final long DEFAULT_MIN_RTO = 10000000L;
+	public static final long DEFAULT_MAX_RTO = 60000000000L;
+
+	// Granularity of our timers (the event loop sleeps in whole milliseconds)
+	private static final long CLOCK_GRANULARITY = 1000000L;
+
+	private long minRto;
+	private long maxRto;
+
+	// Smoothed round-trip time and round-trip time variation; zero until the first sample
+	private long srtt = 0;
+	private long rttvar = 0;
+
+	// The current timeout, including any backoff
+	private long rto;
+
+	public ReldatRtoEstimator() {
+		this(DEFAULT_INITIAL_RTO, DEFAULT_MIN_RTO, DEFAULT_MAX_RTO);
+	}
+
+	public ReldatRtoEstimator(long initialRto, long minRto, long maxRto) {
+		this.minRto = minRto;
+		this.maxRto = maxRto;
+		this.rto = this.clamp(initialRto);
+	}
+
+	/*
+	 * Change the floor and ceiling of the timeout.
+	 */
+	public void setBounds(long minRto, long maxRto) {
+		this.minRto = minRto;
+		this.maxRto = maxRto;
+		this.rto = this.clamp(this.rto);
+	}
+
+	/*
+	 * Feed in the round-trip time of a packet that was only sent once.
+	 * This also cancels any backoff.
+	 */
+	public void sample(long rtt) {
+		if (rtt < 0)
+			return;
+
+		if (srtt == 0) {
+			srtt = Math.max(rtt, 1);
+			rttvar = rtt / 2;
+		} else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = Math.max((7 * srtt + rtt) / 8, 1);
+		}
+
+		rto = this.clamp(srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar));
+	}
+
+	/*
+	 * Double the timeout after a retransmission timer fires.
+	 */
+	public void backoff() {
+		rto = this.clamp(rto > maxRto / 2 ? maxRto : rto * 2);
+	}
+
+	public long getTimeout() {
+		return rto;
+	}
+
+	/*
+	 * The timeout for a packet that has already been retransmitted the
+	 * given number of times: the RTO, doubled that many times.
+	 */
+	public long getTimeout(int retransmissions) {
+		long timeout = rto;
+
+		for (int i = 0; i < retransmissions && timeout < maxRto; i++)
+			timeout *= 2;
+
+		return this.clamp(timeout);
+	}
+
+	/*
+	 * The smoothed round-trip time, or 0 if nothing has been measured yet.
+	 */
+	public long getSmoothedRtt() {
+		return srtt;
+	}
+
+	public long getRttVariation() {
+		return rttvar;
+	}
+
+	private long clamp(long timeout) {
+		return Math.min(Math.max(timeout, minRto), maxRto);
+	}
+}
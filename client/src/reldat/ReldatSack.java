@@ -0,0 +1,129 @@
+package reldat;
+
+import java.nio.ByteBuffer;
+
+/*
+ * A selective acknowledgement, carried in the payload of an ACK packet when
+ * SACK has been negotiated:
+ *
+ *   [Cumulative ACK]    4 bytes
+ *   [Block start]       4 bytes  \  repeated once per block,
+ *   [Block end]         4 bytes  /  up to MAX_BLOCKS times
+ *
+ * Every packet with a sequence number below the cumulative ACK has been
+ * received, as has every packet in each block [start, end). The block with
+ * the packet that triggered the ACK comes first; the rest follow in
+ * ascending order. The ACK number field of the header still holds the
+ * sequence number of the packet that triggered the ACK.
+ *
+ * The receiver can only know which packets below the ones it has seen were
+ * never sent, so with SACK every data packet's ACK number field holds the
+ * sender's lowest un-ACKed sequence number, below which the receiver may
+ * consider everything received.
+ *
+ * Sequence numbers are compared with serial number arithmetic, so blocks
+ * may straddle the point where sequence numbers wrap around.
+ *
+ * One instance is meant to be reused for every ACK built or parsed.
+ */
+public class ReldatSack {
+	// Most blocks one ACK carries; the receiver reports the most useful ones
+	public static final int MAX_BLOCKS = 16;
+
+	private int cumulativeAck;
+	private int[] starts = new int[MAX_BLOCKS];
+	private int[] ends = new int[MAX_BLOCKS];
+	private int count = 0;
+
+	public int getCumulativeAck() {
+		return cumulativeAck;
+	}
+
+	public int getBlockCount() {
+		return count;
+	}
+
+	public int getBlockStart(int block) {
+		return starts[block];
+	}
+
+	public int getBlockEnd(int block) {
+		return ends[block];
+	}
+
+	/*
+	 * Describe the given ranges of received packets. Ranges below the
+	 * cumulative ACK are left out; the range holding recentSeq goes first.
+	 */
+	public void set(int cumulativeAck, ReldatSeqRanges received, int recentSeq) {
+		this.cumulativeAck = cumulativeAck;
+		this.count = 0;
+
+		for (int range = 0; range < received.size(); range++) {
+			if (ReldatSerial.greaterThan(received.getEnd(range), cumulativeAck) && holds(received.getStart(range), received.getEnd(range), recentSeq))
+				this.addBlock(ReldatSerial.max(received.getStart(range), cumulativeAck), received.getEnd(range));
+		}
+
+		for (int range = 0; range < received.size() && count < MAX_BLOCKS; range++) {
+			if (ReldatSerial.greaterThan(received.getEnd(range), cumulativeAck) && !holds(received.getStart(range), received.getEnd(range), recentSeq))
+				this.addBlock(ReldatSerial.max(received.getStart(range), cumulativeAck), received.getEnd(range));
+		}
+	}
+
+	/*
+	 * Whether the range [start, end) holds the given sequence number.
+	 */
+	private static boolean holds(int start, int end, int seq) {
+		return ReldatSerial.lessThanOrEqual(start, seq) && ReldatSerial.lessThan(seq, end);
+	}
+
+	private void addBlock(int start, int end) {
+		starts[count] = start;
+		ends[count] = end;
+		count++;
+	}
+
+	/*
+	 * Size of this acknowledgement in an ACK packet's payload, in bytes.
+	 */
+	public int getSize() {
+		return 4 + 8 * count;
+	}
+
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putInt(cumulativeAck);
+
+		for (int i = 0; i < count; i++) {
+			buffer.putInt(starts[i]);
+			buffer.putInt(ends[i]);
+		}
+	}
+
+	/*
+	 * Read the acknowledgement out of the payload of the packet the view is
+	 * wrapped around. Returns false (and reads nothing) if the payload holds
+	 * no selective acknowledgement.
+	 */
+	public boolean read(ReldatPacketView view) {
+		int payloadSize = view.getPayloadSize();
+
+		if (payloadSize < 4 || (payloadSize - 4) % 8 != 0)
+			return false;
+
+		ByteBuffer buffer = view.getBuffer();
+		int offset = view.getPayloadOffset();
+
+		cumulativeAck = buffer.getInt(offset);
+		count = 0;
+
+		for (int i = 0; i < (payloadSize - 4) / 8 && count < MAX_BLOCKS; i++) {
+			int start = buffer.getInt(offset + 4 + 8 * i);
+			int end = buffer.getInt(offset + 8 + 8 * i);
+
+			if (ReldatSerial.lessThan(start, end))
+				this.addBlock(start, end);
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,238 @@
+package reldat;
+
+/*
+ * The send window: the packets we've sent that haven't been acknowledged
+ * yet, with their retransmission counts and the time each was first sent.
+ *
+ * Packets are kept in a ring indexed by sequence number, so the slot of
+ * sequence number n is (n & mask), and everything about a packet is in
+ * primitive arrays at its slot; finding, updating or removing a packet is
+ * O(1) and nothing is boxed. A bitmap of the slots that hold a packet lets
+ * the window find the next un-ACKed packet 64 slots at a time, which keeps
+ * the base of the window (the oldest un-ACKed packet) up to date however
+ * the packets are acknowledged.
+ *
+ * Packets must be added in sequence order. The ring grows if the packets
+ * outstanding ever span more slots than it has. Sequence numbers are
+ * compared by their difference from the base, so they may wrap around.
+ * A window is not thread-safe.
+ */
+public class ReldatSendWindow {
+	private ReldatPacket[] packets;
+	private int[] retransmissions;
+	private long[] sendTimes;
+	private long[] occupied;
+	private int mask;
+
+	// Oldest un-ACKed sequence number, and one past the newest one sent (equal when the window is empty)
+	private int base = 0;
+	private int next = 0;
+
+	// Number of packets in the window
+	private int size = 0;
+
+	/*
+	 * Create a window with room for (at least) the given number of packets.
+	 * There are always at least 64 slots, so that the ring is a whole number
+	 * of bitmap words.
+	 */
+	public ReldatSendWindow(int capacity) {
+		this.allocate(Integer.highestOneBit(Math.max(capacity - 1, 63)) << 1);
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/*
+	 * Sequence number of the oldest un-ACKed packet, or of the next packet to
+	 * be added if there are none.
+	 */
+	public int getBase() {
+		return this.base;
+	}
+
+	/*
+	 * One past the sequence number of the newest packet added.
+	 */
+	public int getNext() {
+		return this.next;
+	}
+
+	/*
+	 * Empty the window; the next packet added may have any sequence number.
+	 */
+	public void reset(int seqNum) {
+		for (int seq = this.base; this.size > 0 && seq != this.next; seq++)
+			this.clearSlot(seq & this.mask);
+
+		this.size = 0;
+		this.base = seqNum;
+		this.next = seqNum;
+	}
+
+	/*
+	 * Add a packet that was just sent for the first time. Unless the window is
+	 * empty, its sequence number must be getNext().
+	 */
+	public void add(ReldatPacket pkt, long sentAt) {
+		int seqNum = pkt.getHeader().getSequenceNumber();
+
+		if (this.size == 0) {
+			this.base = seqNum;
+			this.next = seqNum;
+		} else if (seqNum != this.next) {
+			throw new IllegalArgumentException("Packet " + seqNum + " added out of order (expected " + this.next + ")");
+		}
+
+		if (this.next - this.base >= this.packets.length)
+			this.grow();
+
+		int slot = seqNum & this.mask;
+		this.packets[slot] = pkt;
+		this.retransmissions[slot] = 0;
+		this.sendTimes[slot] = sentAt;
+		this.occupied[slot >>> 6] |= 1L << slot;
+
+		this.next = seqNum + 1;
+		this.size++;
+	}
+
+	/*
+	 * Returns true if the packet with the given sequence number is in the window.
+	 */
+	public boolean contains(int seqNum) {
+		return this.inRange(seqNum) && this.isOccupied(seqNum & this.mask);
+	}
+
+	/*
+	 * The un-ACKed packet with the given sequence number, or null if there is none.
+	 */
+	public ReldatPacket get(int seqNum) {
+		return this.contains(seqNum) ? this.packets[seqNum & this.mask] : null;
+	}
+
+	/*
+	 * Number of times the packet with the given sequence number has been re-sent.
+	 */
+	public int getRetransmissions(int seqNum) {
+		return this.retransmissions[seqNum & this.mask];
+	}
+
+	public void countRetransmission(int seqNum) {
+		this.retransmissions[seqNum & this.mask]++;
+	}
+
+	/*
+	 * When (in System.nanoTime() terms) the packet with the given sequence
+	 * number was first sent.
+	 */
+	public long getSendTime(int seqNum) {
+		return this.sendTimes[seqNum & this.mask];
+	}
+
+	/*
+	 * Remove a packet once it has been acknowledged, moving the base of the
+	 * window up if it was the oldest one. Returns the packet, or null if it
+	 * wasn't in the window.
+	 */
+	public ReldatPacket remove(int seqNum) {
+		if (!this.contains(seqNum))
+			return null;
+
+		int slot = seqNum & this.mask;
+		ReldatPacket pkt = this.packets[slot];
+
+		this.clearSlot(slot);
+		this.size--;
+
+		if (seqNum == this.base)
+			this.base = this.nextOutstanding(seqNum + 1);
+
+		return pkt;
+	}
+
+	/*
+	 * The lowest sequence number at or after the given one that is still
+	 * un-ACKed, or getNext() if there is none.
+	 */
+	public int nextOutstanding(int from) {
+		if (this.size == 0)
+			return this.next;
+
+		if (from - this.base < 0)
+			from = this.base;
+
+		int remaining = this.next - from;
+
+		while (remaining > 0) {
+			int slot = from & this.mask;
+
+			// The bits of this word from the slot on, up to the end of the word
+			long bits = this.occupied[slot >>> 6] >>> (slot & 63);
+
+			if (bits != 0) {
+				int skip = Long.numberOfTrailingZeros(bits);
+				return (skip < remaining) ? from + skip : this.next;
+			}
+
+			int step = 64 - (slot & 63);
+			from += step;
+			remaining -= step;
+		}
+
+		return this.next;
+	}
+
+	private boolean inRange(int seqNum) {
+		int offset = seqNum - this.base;
+		return offset >= 0 && offset < this.next - this.base;
+	}
+
+	private boolean isOccupied(int slot) {
+		return (this.occupied[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	private void clearSlot(int slot) {
+		this.packets[slot] = null;
+		this.occupied[slot >>> 6] &= ~(1L << slot);
+	}
+
+	private void allocate(int slots) {
+		this.packets = new ReldatPacket[slots];
+		this.retransmissions = new int[slots];
+		this.sendTimes = new long[slots];
+		this.occupied = new long[(slots + 63) >>> 6];
+		this.mask = slots - 1;
+	}
+
+	/*
+	 * Double the number of slots, moving every packet to its new slot.
+	 */
+	private void grow() {
+		ReldatPacket[] oldPackets = this.packets;
+		int[] oldRetransmissions = this.retransmissions;
+		long[] oldSendTimes = this.sendTimes;
+		long[] oldOccupied = this.occupied;
+		int oldMask = this.mask;
+
+		this.allocate(oldPackets.length * 2);
+
+		for (int seq = this.base; seq != this.next; seq++) {
+			int oldSlot = seq & oldMask;
+
+			if ((oldOccupied[oldSlot >>> 6] & (1L << oldSlot)) == 0)
+				continue;
+
+			int slot = seq & this.mask;
+			this.packets[slot] = oldPackets[oldSlot];
+			this.retransmissions[slot] = oldRetransmissions[oldSlot];
+			this.sendTimes[slot] = oldSendTimes[oldSlot];
+			this.occupied[slot >>> 6] |= 1L << slot;
+		}
+	}
+}
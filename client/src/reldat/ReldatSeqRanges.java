@@ -0,0 +1,131 @@
+package reldat;
+
+import java.util.Arrays;
+
+/*
+ * A set of sequence numbers, stored as sorted, disjoint, non-adjacent
+ * ranges [start, end). The receive side uses it to remember which packets
+ * it has, so it can describe them in selective acknowledgements.
+ *
+ * Sequence numbers are ordered with serial number arithmetic, so the ranges
+ * may straddle the point where sequence numbers wrap around, as long as the
+ * whole set spans less than 2^31 of them.
+ */
+public class ReldatSeqRanges {
+	private int[] starts = new int[8];
+	private int[] ends = new int[8];
+	private int count = 0;
+
+	/*
+	 * Number of ranges in the set.
+	 */
+	public int size() {
+		return count;
+	}
+
+	public int getStart(int range) {
+		return starts[range];
+	}
+
+	public int getEnd(int range) {
+		return ends[range];
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	public boolean contains(int seq) {
+		int range = this.find(seq);
+		return range < count && ReldatSerial.lessThanOrEqual(starts[range], seq);
+	}
+
+	/*
+	 * Add a sequence number to the set. Returns false if it was already there.
+	 */
+	public boolean add(int seq) {
+		// The first range that ends after seq
+		int range = this.find(seq);
+
+		if (range < count && ReldatSerial.lessThanOrEqual(starts[range], seq))
+			return false;
+
+		boolean joinsPrevious = range > 0 && ends[range - 1] == seq;
+		boolean joinsNext = range < count && starts[range] == seq + 1;
+
+		if (joinsPrevious && joinsNext) {
+			// seq fills the gap between two ranges; merge them
+			ends[range - 1] = ends[range];
+			this.removeRanges(range, 1);
+		} else if (joinsPrevious) {
+			ends[range - 1] = seq + 1;
+		} else if (joinsNext) {
+			starts[range] = seq;
+		} else {
+			this.insertRange(range, seq, seq + 1);
+		}
+
+		return true;
+	}
+
+	/*
+	 * Forget every sequence number below floor.
+	 */
+	public void removeBelow(int floor) {
+		int range = this.find(floor);
+		this.removeRanges(0, range);
+
+		if (count > 0 && ReldatSerial.lessThan(starts[0], floor))
+			starts[0] = floor;
+	}
+
+	/*
+	 * The lowest sequence number at or above from that is not in the set.
+	 */
+	public int firstMissing(int from) {
+		int range = this.find(from);
+
+		if (range < count && ReldatSerial.lessThanOrEqual(starts[range], from))
+			return ends[range];
+
+		return from;
+	}
+
+	/*
+	 * Index of the first range whose end is above seq (count if there is none).
+	 */
+	private int find(int seq) {
+		int low = 0;
+		int high = count;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (ReldatSerial.lessThanOrEqual(ends[mid], seq))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	private void insertRange(int range, int start, int end) {
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			ends = Arrays.copyOf(ends, count * 2);
+		}
+
+		System.arraycopy(starts, range, starts, range + 1, count - range);
+		System.arraycopy(ends, range, ends, range + 1, count - range);
+		starts[range] = start;
+		ends[range] = end;
+		count++;
+	}
+
+	private void removeRanges(int range, int n) {
+		System.arraycopy(starts, range + n, starts, range, count - range - n);
+		System.arraycopy(ends, range + n, ends, range, count - range - n);
+		count -= n;
+	}
+}
@@ -0,0 +1,46 @@
+package reldat;
+
+/*
+ * Serial number arithmetic (RFC 1982) for 32-bit sequence numbers.
+ *
+ * Sequence numbers wrap around from 2^32 - 1 (or, as a Java int, -1) to 0,
+ * so they can't be compared with < and >. Instead, a is before b if b is
+ * less than 2^31 ahead of a going forwards, which in two's complement is
+ * simply (a - b) < 0. This is right as long as the numbers being compared
+ * are less than 2^31 apart, which holds for any two packets in flight or
+ * in a window at the same time.
+ */
+public final class ReldatSerial {
+	private ReldatSerial() {
+	}
+
+	public static boolean lessThan(int a, int b) {
+		return a - b < 0;
+	}
+
+	public static boolean lessThanOrEqual(int a, int b) {
+		return a - b <= 0;
+	}
+
+	public static boolean greaterThan(int a, int b) {
+		return a - b > 0;
+	}
+
+	public static boolean greaterThanOrEqual(int a, int b) {
+		return a - b >= 0;
+	}
+
+	/*
+	 * The later of two sequence numbers.
+	 */
+	public static int max(int a, int b) {
+		return (a - b >= 0) ? a : b;
+	}
+
+	/*
+	 * The earlier of two sequence numbers.
+	 */
+	public static int min(int a, int b) {
+		return (a - b <= 0) ? a : b;
+	}
+}
@@ -0,0 +1,321 @@
+package reldat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+import reldat.congestion.ReldatCongestionControllers;
+
+/*
+ * One client session, run by a ReldatSessionRuntime: open a connection to a
+ * server, hold a conversation with each of the session's payloads in turn,
+ * then close the connection, as a ReldatClient would.
+ *
+ * Nothing in a session blocks. The runtime's loop thread calls advance()
+ * when the session starts and whenever its connection's handshake or
+ * conversation is over, and each call moves the session on to its next
+ * step, so one thread can run thousands of sessions side by side.
+ *
+ * Once a session is finished, its timings and counts say how it went.
+ * Subclasses can look at what the server sent back by overriding
+ * conversationFinished().
+ */
+public class ReldatSession {
+	// Steps of a session
+	private static final int NEW = 0;
+	private static final int CONNECTING = 1;
+	private static final int CONVERSING = 2;
+	private static final int DISCONNECTING = 3;
+	private static final int DONE = 4;
+
+	private final String host;
+	private final int port;
+	private final int windowSize;
+	private final List<byte[]> payloads;
+
+	// Largest datagram to offer the server, and whether to probe for it (see ReldatConnection.setMaxDatagramSize())
+	private int maxDatagramSize = ReldatConnection.DEFAULT_DATAGRAM_SIZE;
+	private boolean probeDatagramSize = false;
+
+	// Whether sources that are files are sent from mappings of them (see ReldatConnection.setMapFiles())
+	private boolean mapFiles = true;
+
+	// Name of the congestion control algorithm to use (see ReldatCongestionControllers.create())
+	private String congestionControl = "reno";
+
+	// Floor of the connection's retransmission timeout, in nanoseconds (see ReldatRtoEstimator)
+	private long minRto = ReldatRtoEstimator.DEFAULT_MIN_RTO;
+
+	private int step = NEW;
+	private ReldatConnection connection;
+
+	// Index of the conversation in progress, when it started, and where the server's data goes
+	private int conversation = 0;
+	private long conversationStart = 0;
+	private ReldatByteSink received = new ReldatByteSink();
+
+	// How the session went
+	private boolean connected = false;
+	private boolean disconnected = false;
+	private IOException error = null;
+	private long startNanos = 0;
+	private long connectNanos = 0;
+	private long totalNanos = 0;
+	private int conversationsCompleted = 0;
+	private long conversationNanos = 0;
+	private long maxConversationNanos = 0;
+	private long bytesSent = 0;
+	private long bytesReceived = 0;
+
+	/*
+	 * Create a session that holds one conversation per payload with the server
+	 * at the given address, over a connection with the given window size.
+	 */
+	public ReldatSession(String host, int port, int windowSize, List<byte[]> payloads) {
+		this.host = host;
+		this.port = port;
+		this.windowSize = windowSize;
+		this.payloads = payloads;
+	}
+
+	/*
+	 * Offer datagrams of up to the given size when the session connects,
+	 * probing for the largest that gets through if probe is true.
+	 */
+	public void setMaxDatagramSize(int size, boolean probe) {
+		this.maxDatagramSize = size;
+		this.probeDatagramSize = probe;
+	}
+
+	public void setMapFiles(boolean mapFiles) {
+		this.mapFiles = mapFiles;
+	}
+
+	/*
+	 * Use the congestion control algorithm with the given name ("reno", the
+	 * default, or "cubic"). Throws an IllegalArgumentException if there's none.
+	 */
+	public void setCongestionControl(String name) {
+		ReldatCongestionControllers.create(name);
+		this.congestionControl = name;
+	}
+
+	/*
+	 * Keep the connection's retransmission timeout at or above the given
+	 * number of nanoseconds, for paths slower than the LANs the default
+	 * floor is meant for.
+	 */
+	public void setMinRto(long minRto) {
+		this.minRto = minRto;
+	}
+
+	/*
+	 * Called on the runtime's loop thread to get the data a conversation
+	 * sends, which is the conversation's payload unless a subclass has it
+	 * come from somewhere else (a file with the same contents, say).
+	 */
+	protected ReadableByteChannel openSource(int index) throws IOException {
+		return Channels.newChannel(new ByteArrayInputStream(this.payloads.get(index)));
+	}
+
+	/*
+	 * Called on the runtime's loop thread when a conversation has finished
+	 * successfully, with everything the server sent back in it. The sink is
+	 * reused for the next conversation.
+	 */
+	protected void conversationFinished(int index, ReldatByteSink received) {
+	}
+
+	/*
+	 * Open the session's connection on the given event loop.
+	 */
+	void start(ReldatEventLoop eventLoop) {
+		this.startNanos = System.nanoTime();
+		this.connection = new ReldatConnection(this.windowSize, eventLoop);
+		this.connection.setMaxDatagramSize(this.maxDatagramSize, this.probeDatagramSize);
+		this.connection.setMapFiles(this.mapFiles);
+		this.connection.setCongestionController(ReldatCongestionControllers.create(this.congestionControl));
+		this.connection.getRtoEstimator().setBounds(this.minRto, ReldatRtoEstimator.DEFAULT_MAX_RTO);
+
+		try {
+			this.connection.startConnect(this.host, this.port);
+			this.step = CONNECTING;
+		} catch (IOException e) {
+			this.error = e;
+			this.finish();
+		}
+	}
+
+	/*
+	 * Move on to the session's next step if the current one is over. Returns
+	 * true once the session is finished.
+	 */
+	boolean advance() {
+		switch (this.step) {
+			case CONNECTING:
+				if (!this.connection.isHandshakeOver())
+					return false;
+
+				this.connectNanos = System.nanoTime() - this.startNanos;
+
+				if (!this.connection.finishConnect()) {
+					this.finish();
+					return true;
+				}
+
+				this.connected = true;
+				this.nextConversation();
+				return false;
+			case CONVERSING:
+				if (!this.connection.isConversationOver())
+					return false;
+
+				boolean serverAlive;
+
+				try {
+					serverAlive = this.connection.finishTransfer();
+				} catch (IOException e) {
+					// The payloads are in memory and so is the sink, so this shouldn't happen
+					this.error = e;
+					serverAlive = true;
+				}
+
+				// If the server became unreachable, there's no one to disconnect from
+				if (!serverAlive) {
+					this.finish();
+					return true;
+				}
+
+				this.onConversationFinished();
+				this.nextConversation();
+				return false;
+			case DISCONNECTING:
+				if (!this.connection.isHandshakeOver())
+					return false;
+
+				this.disconnected = this.connection.finishDisconnect();
+				this.finish();
+				return true;
+			default:
+				return this.step == DONE;
+		}
+	}
+
+	/*
+	 * Returns true while the session's current step is waiting on its
+	 * connection, so advance() would do nothing.
+	 */
+	boolean isWaiting() {
+		return this.step != DONE && this.connection.isWaiting();
+	}
+	
+	ReldatConnection getConnection() {
+		return this.connection;
+	}
+
+	/*
+	 * Start the next conversation, or close the connection once there are none left.
+	 */
+	private void nextConversation() {
+		if (this.conversation < this.payloads.size()) {
+			ReadableByteChannel source;
+
+			try {
+				source = this.openSource(this.conversation);
+			} catch (IOException e) {
+				this.error = e;
+				this.connection.startDisconnect();
+				this.step = DISCONNECTING;
+				return;
+			}
+
+			this.received.clear();
+			this.conversationStart = System.nanoTime();
+			this.connection.startTransfer(source, this.received);
+			this.step = CONVERSING;
+		} else {
+			this.connection.startDisconnect();
+			this.step = DISCONNECTING;
+		}
+	}
+
+	private void onConversationFinished() {
+		long elapsed = System.nanoTime() - this.conversationStart;
+
+		this.conversationsCompleted++;
+		this.conversationNanos += elapsed;
+		this.maxConversationNanos = Math.max(this.maxConversationNanos, elapsed);
+		this.bytesSent += this.payloads.get(this.conversation).length;
+		this.bytesReceived += this.received.size();
+
+		this.conversationFinished(this.conversation, this.received);
+		this.conversation++;
+	}
+
+	private void finish() {
+		this.step = DONE;
+		this.totalNanos = System.nanoTime() - this.startNanos;
+	}
+
+	public boolean isFinished() {
+		return this.step == DONE;
+	}
+
+	/*
+	 * Returns true if the session connected, held all of its conversations and disconnected.
+	 */
+	public boolean isSuccessful() {
+		return this.disconnected && this.conversationsCompleted == this.payloads.size() && this.error == null;
+	}
+
+	public boolean isConnected() {
+		return this.connected;
+	}
+
+	/*
+	 * The error that ended the session early, if any.
+	 */
+	public IOException getError() {
+		return this.error;
+	}
+
+	/*
+	 * How long the open handshake took (or took to fail).
+	 */
+	public long getConnectNanos() {
+		return this.connectNanos;
+	}
+
+	/*
+	 * How long the whole session took, from the start of the open handshake
+	 * to the end of the close handshake.
+	 */
+	public long getTotalNanos() {
+		return this.totalNanos;
+	}
+
+	public int getConversationsCompleted() {
+		return this.conversationsCompleted;
+	}
+
+	/*
+	 * Total and longest time the session's completed conversations took.
+	 */
+	public long getConversationNanos() {
+		return this.conversationNanos;
+	}
+
+	public long getMaxConversationNanos() {
+		return this.maxConversationNanos;
+	}
+
+	public long getBytesSent() {
+		return this.bytesSent;
+	}
+
+	public long getBytesReceived() {
+		return this.bytesReceived;
+	}
+}
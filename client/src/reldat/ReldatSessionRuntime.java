@@ -0,0 +1,190 @@
+package reldat;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Runs many client sessions (see ReldatSession) at once on a small, fixed
+ * set of loop threads.
+ *
+ * Each loop thread has a ReldatEventLoop of its own, and every session
+ * submitted to the runtime is handed to one of them in turn. A loop thread
+ * polls its event loop and then lets the sessions whose connections stopped
+ * waiting (see ReldatEventLoop.takeReady()) take their next steps, so it
+ * drives all of their connections without ever blocking on one of them, and
+ * without looking at the sessions that have nothing to do. A session costs a connection's worth of memory and a channel,
+ * not a thread, so one JVM can run as many sessions as it has file
+ * descriptors for; as many loop threads as there are cores keeps them all
+ * busy. Sessions can be submitted from any thread.
+ */
+public class ReldatSessionRuntime {
+	private final Worker[] workers;
+
+	// Loop thread the next session goes to
+	private int nextWorker = 0;
+
+	// Sessions submitted that haven't finished yet, guarded by this object's monitor
+	private int activeSessions = 0;
+
+	/*
+	 * Start a runtime with one loop thread per available core.
+	 */
+	public ReldatSessionRuntime() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/*
+	 * Start a runtime with the given number of loop threads.
+	 */
+	public ReldatSessionRuntime(int threads) throws IOException {
+		this.workers = new Worker[Math.max(threads, 1)];
+
+		for (int i = 0; i < this.workers.length; i++) {
+			this.workers[i] = new Worker(new ReldatEventLoop());
+
+			Thread thread = new Thread(this.workers[i], "reldat-session-loop-" + i);
+			thread.setDaemon(true);
+			this.workers[i].thread = thread;
+			thread.start();
+		}
+	}
+
+	public int getThreadCount() {
+		return this.workers.length;
+	}
+
+	/*
+	 * Start running a session. It opens its connection on its loop thread,
+	 * shortly after this returns.
+	 */
+	public void submit(ReldatSession session) {
+		Worker worker;
+
+		synchronized (this) {
+			if (this.workers[0].stopping)
+				throw new IllegalStateException("The runtime has been shut down");
+
+			this.activeSessions++;
+			worker = this.workers[this.nextWorker];
+			this.nextWorker = (this.nextWorker + 1) % this.workers.length;
+		}
+
+		worker.incoming.add(session);
+		worker.eventLoop.wakeup();
+	}
+
+	/*
+	 * Number of sessions submitted that haven't finished yet.
+	 */
+	public synchronized int getActiveSessions() {
+		return this.activeSessions;
+	}
+
+	/*
+	 * Wait until every session submitted so far has finished.
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (this.activeSessions > 0)
+			this.wait();
+	}
+
+	/*
+	 * Stop accepting sessions, let the ones running finish, and stop the loop threads.
+	 */
+	public void shutdown() throws InterruptedException {
+		synchronized (this) {
+			for (Worker worker : this.workers)
+				worker.stopping = true;
+		}
+
+		for (Worker worker : this.workers) {
+			worker.eventLoop.wakeup();
+			worker.thread.join();
+		}
+	}
+
+	private synchronized void sessionsFinished(int count) {
+		this.activeSessions -= count;
+
+		if (this.activeSessions == 0)
+			this.notifyAll();
+	}
+
+	/*
+	 * A loop thread: its event loop, the sessions it runs (by connection), and
+	 * the ones submitted to it that it hasn't started yet.
+	 */
+	private class Worker implements Runnable {
+		private final ReldatEventLoop eventLoop;
+		private final ConcurrentLinkedQueue<ReldatSession> incoming = new ConcurrentLinkedQueue<ReldatSession>();
+		private final HashMap<ReldatConnection, ReldatSession> sessions = new HashMap<ReldatConnection, ReldatSession>();
+		private volatile boolean stopping = false;
+		private Thread thread;
+
+		// Sessions that finished since the runtime was last told
+		private int finished = 0;
+
+		public Worker(ReldatEventLoop eventLoop) {
+			this.eventLoop = eventLoop;
+		}
+
+		public void run() {
+			try {
+				while (!this.stopping || !this.sessions.isEmpty() || !this.incoming.isEmpty()) {
+					ReldatSession session;
+
+					while ((session = this.incoming.poll()) != null) {
+						session.start(this.eventLoop);
+						this.sessions.put(session.getConnection(), session);
+						this.advance(session);
+					}
+
+					ReldatConnection connection;
+
+					while ((connection = this.eventLoop.takeReady()) != null) {
+						session = this.sessions.get(connection);
+
+						if (session != null)
+							this.advance(session);
+					}
+
+					if (this.finished > 0) {
+						sessionsFinished(this.finished);
+						this.finished = 0;
+					}
+
+					// Sleep until a connection has something to do, a timer is due or a session is submitted
+					if (!this.sessions.isEmpty() || !this.stopping)
+						this.eventLoop.poll();
+				}
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+
+				// Without its event loop (or after a bug), none of this thread's sessions can go on,
+				// but whoever is waiting for them mustn't wait forever
+				sessionsFinished(this.finished + this.sessions.size() + this.incoming.size());
+			}
+
+			try {
+				this.eventLoop.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/*
+		 * Let a session take as many steps as it can without waiting on its
+		 * connection, and drop it once it has finished.
+		 */
+		private void advance(ReldatSession session) {
+			while (!session.advance()) {
+				if (session.isWaiting())
+					return;
+			}
+
+			this.sessions.remove(session.getConnection());
+			this.finished++;
+		}
+	}
+}
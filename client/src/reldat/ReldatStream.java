@@ -0,0 +1,88 @@
+package reldat;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * One transfer over a ReldatConnection: the data read from a source and sent
+ * to the server, and the data the server sends back, written to a sink.
+ *
+ * If the server accepted multiplexed streams during the handshake (see
+ * ReldatOptions), up to getMaxStreams() streams can be open on a connection
+ * at once, and the payload of every DATA and EOD packet starts with a
+ * stream header:
+ *
+ *   [Stream ID]                  4 bytes
+ *   [Stream sequence number]     4 bytes
+ *
+ * Each end numbers a stream's DATA and EOD packets from 0, separately from
+ * the packet sequence numbers, so each stream puts its data back in order
+ * in a receive window of its own: a lost packet only holds up delivery of
+ * the stream it belongs to. Sequence numbers, ACKs, retransmissions and
+ * congestion control are still per connection, and the connection takes
+ * turns sending a packet from each stream. A stream's EOD goes out right
+ * after its last data packet, and the stream is over once the server's EOD
+ * for it, and everything before that, has arrived.
+ *
+ * Otherwise, one stream is open at a time and its packets carry no header,
+ * as in the original protocol.
+ */
+public class ReldatStream {
+	// Size of the stream header at the start of a multiplexed packet's payload
+	public static final int HEADER_SIZE = 8;
+
+	private final int id;
+
+	// Where the stream's data comes from (read into a buffer, or sent from a mapping of it if
+	// it's a file), whether it has run out, and whether its EOD has been sent
+	ReldatChunkReader sourceReader;
+	ReldatMappedFile mappedSource;
+	boolean sourceExhausted = false;
+	boolean eodSent = false;
+
+	// Stream sequence number of the next packet the stream sends (multiplexed only)
+	int nextSeq = 0;
+
+	// Where the server's data goes, and the window it is put back in order in
+	WritableByteChannel sink;
+	ReldatReceiveRing receiveRing;
+
+	// Stream sequence number of the server's EOD, once it has arrived (multiplexed only)
+	boolean eodReceived = false;
+	int eodSeq = 0;
+
+	// Set once the stream is over, and whether it failed (the server became
+	// unreachable, or the source or sink had an error)
+	boolean finished = false;
+	boolean failed = false;
+
+	// The first error reading the source or writing the sink
+	IOException error = null;
+
+	// When the stream was opened, and how many bytes of data it has sent and received (for ReldatMetrics)
+	long openedAt = 0;
+	long bytesSent = 0;
+	long bytesReceived = 0;
+
+	ReldatStream(int id) {
+		this.id = id;
+	}
+
+	/*
+	 * The ID carried in the stream's packets (0 if the connection isn't multiplexed).
+	 */
+	public int getId() {
+		return this.id;
+	}
+
+	/*
+	 * Returns true once the server has sent all of the stream's data, or the stream has failed.
+	 */
+	public boolean isFinished() {
+		return this.finished;
+	}
+
+	public boolean isFailed() {
+		return this.failed;
+	}
+}
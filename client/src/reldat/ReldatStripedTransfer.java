@@ -0,0 +1,332 @@
+package reldat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/*
+ * Transforms one large file over several connections at once, called stripes.
+ *
+ * The input is cut into chunks of a fixed size. Each stripe has a
+ * ReldatConnection of its own, to one of the given server ports, and a
+ * thread of its own to run it. Several stripes can share a port if the
+ * server there accepts symmetric addressing (see ReldatOptions); an
+ * original-protocol server needs a port per stripe. Whenever a stripe is free, it takes the
+ * next chunk and transforms it in a conversation of its own. Transformed
+ * chunks are written to the output in order: a chunk that finishes early
+ * waits in memory until every chunk before it has been written, and stripes
+ * never get more than CHUNKS_AHEAD chunks per stripe ahead of the oldest
+ * unwritten one, so at most that many chunks are ever held in memory.
+ *
+ * If a stripe's server becomes unreachable, its chunk is handed to another
+ * stripe; the transfer only fails once every stripe has. The server's
+ * transformation must work on any piece of the input on its own, as the
+ * RELDAT server's does.
+ */
+public class ReldatStripedTransfer {
+	// Default size of the chunks the input is cut into
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	// How many chunks per stripe may be started ahead of the oldest chunk not yet written out
+	private static final int CHUNKS_AHEAD = 2;
+
+	// Where the stripes connect to, and the window size of each connection
+	private final String host;
+	private final int[] ports;
+	private final int windowSize;
+
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	// Statistics of the last transfer
+	private long bytesSent = 0;
+	private long bytesReceived = 0;
+	private long elapsedNanos = 0;
+	private long[] stripeBytes;
+
+	// State of the transfer in progress, guarded by this object's monitor
+	private FileChannel input;
+	private FileChannel output;
+	private long inputSize;
+	private long chunkCount;
+	private long nextChunk;
+	private long nextToWrite;
+	private ReldatByteSink[] completed;
+	private ArrayDeque<Long> retries = new ArrayDeque<Long>();
+	private int stripesAlive;
+	private IOException error;
+
+	/*
+	 * Create a transfer with one stripe per server port given (a port may be
+	 * given more than once), all on the same host.
+	 */
+	public ReldatStripedTransfer(String host, int[] ports, int windowSize) {
+		this.host = host;
+		this.ports = ports.clone();
+		this.windowSize = windowSize;
+		this.stripeBytes = new long[ports.length];
+	}
+
+	public int getStripeCount() {
+		return this.ports.length;
+	}
+
+	public int getChunkSize() {
+		return this.chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = Math.max(chunkSize, ReldatPacket.PACKET_PAYLOAD_SIZE);
+	}
+
+	/*
+	 * Transform the input file into the output file. Returns true once the whole
+	 * input has been transformed, or false if every stripe's server became
+	 * unreachable first. Errors reading the input or writing the output are
+	 * rethrown.
+	 */
+	public boolean transfer(Path inputPath, Path outputPath) throws IOException {
+		long start = System.nanoTime();
+
+		this.input = FileChannel.open(inputPath, StandardOpenOption.READ);
+		this.output = FileChannel.open(outputPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+		try {
+			this.inputSize = this.input.size();
+			this.chunkCount = (this.inputSize + this.chunkSize - 1) / this.chunkSize;
+			this.nextChunk = 0;
+			this.nextToWrite = 0;
+			this.completed = new ReldatByteSink[CHUNKS_AHEAD * this.ports.length];
+			this.retries.clear();
+			this.stripesAlive = this.ports.length;
+			this.error = null;
+			this.bytesSent = 0;
+			this.bytesReceived = 0;
+			this.stripeBytes = new long[this.ports.length];
+
+			Thread[] threads = new Thread[this.ports.length];
+
+			for (int i = 0; i < threads.length; i++) {
+				final int stripe = i;
+				threads[i] = new Thread(new Runnable() {
+					public void run() {
+						runStripe(stripe);
+					}
+				}, "reldat-stripe-" + i);
+				threads[i].start();
+			}
+
+			for (Thread thread : threads) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the stripes", e);
+				}
+			}
+
+			if (this.error != null)
+				throw this.error;
+
+			return this.nextToWrite == this.chunkCount;
+		} finally {
+			this.input.close();
+			this.output.close();
+			this.elapsedNanos = System.nanoTime() - start;
+		}
+	}
+
+	/*
+	 * Bytes of input sent in the last transfer.
+	 */
+	public long getBytesSent() {
+		return this.bytesSent;
+	}
+
+	/*
+	 * Bytes of transformed data written out in the last transfer.
+	 */
+	public long getBytesReceived() {
+		return this.bytesReceived;
+	}
+
+	/*
+	 * Bytes of input each stripe transformed in the last transfer.
+	 */
+	public long[] getStripeBytes() {
+		return this.stripeBytes.clone();
+	}
+
+	public long getElapsedNanos() {
+		return this.elapsedNanos;
+	}
+
+	/*
+	 * Aggregate throughput of the last transfer, in bytes of input per second.
+	 */
+	public double getThroughput() {
+		return (this.elapsedNanos == 0) ? 0 : this.bytesSent * 1e9 / this.elapsedNanos;
+	}
+
+	/*
+	 * Connect a stripe's connection and transform chunks with it until there
+	 * are none left, or its server becomes unreachable.
+	 */
+	private void runStripe(int stripe) {
+		ReldatConnection connection = new ReldatConnection(this.windowSize);
+		boolean alive;
+
+		try {
+			alive = connection.connect(this.host, this.ports[stripe]);
+		} catch (IOException e) {
+			e.printStackTrace();
+			alive = false;
+		}
+
+		long chunk = -1;
+
+		while (alive && (chunk = this.takeChunk()) >= 0) {
+			long position = chunk * this.chunkSize;
+			long length = Math.min(this.chunkSize, this.inputSize - position);
+			ReldatByteSink received = new ReldatByteSink();
+
+			// transfer() returns as soon as the server's data is all in, so the stripe goes straight
+			// on to its next chunk; waiting there would add up over a large file's many chunks
+			try {
+				alive = connection.transfer(new ChunkChannel(this.input, position, length), received);
+			} catch (IOException e) {
+				this.fail(e);
+				break;
+			}
+
+			if (alive) {
+				this.completeChunk(chunk, received, stripe, length);
+				chunk = -1;
+			}
+		}
+
+		if (alive)
+			connection.disconnect();
+		else
+			this.failStripe(chunk);
+	}
+
+	/*
+	 * The next chunk for a free stripe to transform, or -1 once there are none
+	 * left. A stripe waits while it is too far ahead of the oldest unwritten
+	 * chunk, or while the last chunks are still being transformed (in case one
+	 * of them is handed back).
+	 */
+	private synchronized long takeChunk() {
+		while (this.error == null && this.stripesAlive > 0) {
+			if (!this.retries.isEmpty())
+				return this.retries.poll();
+
+			if (this.nextChunk < this.chunkCount && this.nextChunk < this.nextToWrite + this.completed.length)
+				return this.nextChunk++;
+
+			if (this.nextToWrite == this.chunkCount)
+				break;
+
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		return -1;
+	}
+
+	/*
+	 * Hold on to a transformed chunk, and write out every chunk that is now in order.
+	 */
+	private synchronized void completeChunk(long chunk, ReldatByteSink received, int stripe, long length) {
+		this.completed[(int) (chunk % this.completed.length)] = received;
+		this.stripeBytes[stripe] += length;
+		this.bytesSent += length;
+
+		try {
+			ReldatByteSink next;
+
+			while (this.nextToWrite < this.chunkCount && (next = this.completed[(int) (this.nextToWrite % this.completed.length)]) != null) {
+				next.writeTo(this.output);
+				this.bytesReceived += next.size();
+				this.completed[(int) (this.nextToWrite % this.completed.length)] = null;
+				this.nextToWrite++;
+			}
+		} catch (IOException e) {
+			if (this.error == null)
+				this.error = e;
+		}
+
+		this.notifyAll();
+	}
+
+	/*
+	 * A stripe's server became unreachable; hand its chunk (if it had one) to another stripe.
+	 */
+	private synchronized void failStripe(long chunk) {
+		if (chunk >= 0)
+			this.retries.add(chunk);
+
+		this.stripesAlive--;
+		this.notifyAll();
+	}
+
+	/*
+	 * End the transfer because of an error reading the input or writing the output.
+	 */
+	private synchronized void fail(IOException e) {
+		if (this.error == null)
+			this.error = e;
+
+		this.notifyAll();
+	}
+
+	/*
+	 * One chunk of a file, read with positional reads so that every stripe can
+	 * read its own chunk of the same FileChannel at once.
+	 */
+	private static class ChunkChannel implements ReadableByteChannel {
+		private final FileChannel file;
+		private long position;
+		private final long end;
+
+		public ChunkChannel(FileChannel file, long position, long length) {
+			this.file = file;
+			this.position = position;
+			this.end = position + length;
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			if (this.position >= this.end)
+				return -1;
+
+			int limit = dst.limit();
+			dst.limit((int) Math.min(limit, dst.position() + (this.end - this.position)));
+
+			try {
+				int read = this.file.read(dst, this.position);
+
+				if (read > 0)
+					this.position += read;
+
+				return read;
+			} finally {
+				dst.limit(limit);
+			}
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package reldat;
+
+import java.util.Arrays;
+
+/*
+ * A hashed timing wheel of retransmission timers, keyed by sequence number.
+ *
+ * Time (System.nanoTime()) is divided into ticks of a fixed length, and the
+ * wheel has a power-of-two number of slots; a timer due in tick t lives in
+ * slot (t mod slots). Scheduling and cancelling a timer are O(1), and
+ * expire() only looks at the slots of the ticks that have passed since it
+ * was last called, so its cost doesn't depend on how many timers are
+ * pending. A timer due more than one revolution ahead simply stays in its
+ * slot until the wheel comes round to it again.
+ *
+ * Everything is kept in primitive arrays: each slot is a doubly-linked list
+ * of entry indexes, and a small open-addressed table maps sequence numbers
+ * to entries. Nothing is allocated once the wheel has grown to the number
+ * of timers in flight. A wheel is not thread-safe.
+ */
+public class ReldatTimerWheel {
+	// Marks the end of a list, or an empty slot in the sequence number index
+	private static final int NONE = -1;
+
+	// Length of a tick, and the time tick 0 started
+	private final long tickNanos;
+	private final long origin;
+
+	// Head entry of each slot's list, and slots - 1 (slots is a power of two)
+	private final int[] slotHeads;
+	private final int slotMask;
+
+	// Per-entry state; free entries are chained through entryNext
+	private int[] entrySeq;
+	private long[] entryDeadline;
+	private int[] entryNext;
+	private int[] entryPrev;
+	private int[] entrySlot;
+	private int freeHead;
+
+	// Open-addressed (linear probing) index from sequence number to entry
+	private int[] indexKeys;
+	private int[] indexEntries;
+
+	// Number of pending timers
+	private int size = 0;
+
+	// The earliest tick whose slot may still hold timers that are due
+	private long currentTick;
+
+	/*
+	 * Create a wheel with the given tick length and (at least) the given
+	 * number of slots. A revolution should span the usual timeout, so that
+	 * most timers expire on their first pass.
+	 */
+	public ReldatTimerWheel(long tickNanos, int slots) {
+		this.tickNanos = tickNanos;
+		this.origin = System.nanoTime();
+
+		int slotCount = Integer.highestOneBit(Math.max(slots - 1, 1)) << 1;
+		this.slotHeads = new int[slotCount];
+		this.slotMask = slotCount - 1;
+		Arrays.fill(this.slotHeads, NONE);
+
+		this.entrySeq = new int[0];
+		this.entryDeadline = new long[0];
+		this.entryNext = new int[0];
+		this.entryPrev = new int[0];
+		this.entrySlot = new int[0];
+		this.freeHead = NONE;
+		this.growEntries(16);
+
+		this.indexKeys = new int[32];
+		this.indexEntries = new int[32];
+		Arrays.fill(this.indexEntries, NONE);
+
+		this.currentTick = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isScheduled(int seq) {
+		return this.find(seq) != NONE;
+	}
+
+	/*
+	 * Start (or restart) the timer for a sequence number, to expire at the
+	 * given System.nanoTime() deadline.
+	 */
+	public void schedule(int seq, long deadline) {
+		int entry = this.find(seq);
+
+		if (entry != NONE) {
+			this.unlink(entry);
+		} else {
+			if (freeHead == NONE)
+				this.growEntries(entrySeq.length * 2);
+
+			entry = freeHead;
+			freeHead = entryNext[entry];
+			entrySeq[entry] = seq;
+			this.indexPut(seq, entry);
+			size++;
+		}
+
+		entryDeadline[entry] = deadline;
+		this.link(entry);
+	}
+
+	/*
+	 * Stop the timer for a sequence number. Returns false if there was none.
+	 */
+	public boolean cancel(int seq) {
+		int entry = this.find(seq);
+
+		if (entry == NONE)
+			return false;
+
+		this.unlink(entry);
+		this.indexRemove(seq);
+		this.release(entry);
+		return true;
+	}
+
+	/*
+	 * Stop every timer.
+	 */
+	public void clear() {
+		for (int slot = 0; slot < slotHeads.length; slot++) {
+			while (slotHeads[slot] != NONE) {
+				int entry = slotHeads[slot];
+				this.unlink(entry);
+				this.indexRemove(entrySeq[entry]);
+				this.release(entry);
+			}
+		}
+	}
+
+	/*
+	 * Remove the timers that are due at the given time, and write their
+	 * sequence numbers into the batch array. Returns how many were written;
+	 * if the batch fills up, the remaining due timers are left for the next
+	 * call.
+	 */
+	public int expire(long now, int[] batch) {
+		long nowTick = this.tickOf(now);
+		int count = 0;
+
+		// After a long gap, one pass over every slot is enough
+		long firstTick = Math.max(currentTick, nowTick - slotMask);
+
+		for (long tick = firstTick; tick <= nowTick; tick++) {
+			int entry = slotHeads[(int) (tick & slotMask)];
+
+			while (entry != NONE) {
+				int next = entryNext[entry];
+
+				if (entryDeadline[entry] <= now) {
+					if (count == batch.length) {
+						// Pick up where we left off next time
+						currentTick = tick;
+						return count;
+					}
+
+					batch[count++] = entrySeq[entry];
+					this.unlink(entry);
+					this.indexRemove(entrySeq[entry]);
+					this.release(entry);
+				}
+
+				entry = next;
+			}
+		}
+
+		// The current tick's slot may still hold timers due later in the tick
+		currentTick = nowTick;
+		return count;
+	}
+
+	/*
+	 * When expire() should next be called: the end of the first tick whose
+	 * slot holds a timer, or Long.MAX_VALUE if there are none. Timers are
+	 * only told apart by tick here, so a timer may expire up to a tick late,
+	 * but this costs the same however many timers share a slot (a whole
+	 * window sent within one tick does). A slot holding only timers due on
+	 * a later revolution gives an early answer, and expire() then finds
+	 * nothing due.
+	 */
+	public long nextDeadline() {
+		if (size == 0)
+			return Long.MAX_VALUE;
+
+		for (long tick = currentTick; tick <= currentTick + slotMask; tick++) {
+			if (slotHeads[(int) (tick & slotMask)] != NONE)
+				return origin + (tick + 1) * tickNanos;
+		}
+
+		return Long.MAX_VALUE;
+	}
+
+	private long tickOf(long time) {
+		return Math.max(time - origin, 0) / tickNanos;
+	}
+
+	/*
+	 * Put an entry at the head of the list for its deadline's slot. A
+	 * deadline that has already passed goes in the current tick's slot.
+	 */
+	private void link(int entry) {
+		long tick = Math.max(this.tickOf(entryDeadline[entry]), currentTick);
+		int slot = (int) (tick & slotMask);
+		int head = slotHeads[slot];
+
+		entrySlot[entry] = slot;
+		entryPrev[entry] = NONE;
+		entryNext[entry] = head;
+
+		if (head != NONE)
+			entryPrev[head] = entry;
+
+		slotHeads[slot] = entry;
+	}
+
+	private void unlink(int entry) {
+		int prev = entryPrev[entry];
+		int next = entryNext[entry];
+
+		if (prev != NONE)
+			entryNext[prev] = next;
+		else
+			slotHeads[entrySlot[entry]] = next;
+
+		if (next != NONE)
+			entryPrev[next] = prev;
+	}
+
+	private void release(int entry) {
+		entryNext[entry] = freeHead;
+		freeHead = entry;
+		size--;
+	}
+
+	private void growEntries(int capacity) {
+		int oldCapacity = entrySeq.length;
+
+		entrySeq = Arrays.copyOf(entrySeq, capacity);
+		entryDeadline = Arrays.copyOf(entryDeadline, capacity);
+		entryNext = Arrays.copyOf(entryNext, capacity);
+		entryPrev = Arrays.copyOf(entryPrev, capacity);
+		entrySlot = Arrays.copyOf(entrySlot, capacity);
+
+		for (int entry = capacity - 1; entry >= oldCapacity; entry--) {
+			entryNext[entry] = freeHead;
+			freeHead = entry;
+		}
+	}
+
+	private static int hash(int seq) {
+		// Fibonacci hashing spreads consecutive sequence numbers across the table
+		return seq * 0x9E3779B9;
+	}
+
+	private int find(int seq) {
+		int mask = indexKeys.length - 1;
+
+		for (int i = hash(seq) & mask; indexEntries[i] != NONE; i = (i + 1) & mask) {
+			if (indexKeys[i] == seq)
+				return indexEntries[i];
+		}
+
+		return NONE;
+	}
+
+	private void indexPut(int seq, int entry) {
+		// Keep the table at most half full
+		if ((size + 1) * 2 > indexKeys.length)
+			this.growIndex();
+
+		int mask = indexKeys.length - 1;
+		int i = hash(seq) & mask;
+
+		while (indexEntries[i] != NONE)
+			i = (i + 1) & mask;
+
+		indexKeys[i] = seq;
+		indexEntries[i] = entry;
+	}
+
+	/*
+	 * Remove a key, shifting later keys of the same probe run back so that
+	 * no tombstones are needed.
+	 */
+	private void indexRemove(int seq) {
+		int mask = indexKeys.length - 1;
+		int i = hash(seq) & mask;
+
+		while (indexKeys[i] != seq || indexEntries[i] == NONE)
+			i = (i + 1) & mask;
+
+		int hole = i;
+
+		for (i = (hole + 1) & mask; indexEntries[i] != NONE; i = (i + 1) & mask) {
+			int home = hash(indexKeys[i]) & mask;
+
+			// Move the key into the hole unless its home lies cyclically in (hole, i]
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				indexKeys[hole] = indexKeys[i];
+				indexEntries[hole] = indexEntries[i];
+				hole = i;
+			}
+		}
+
+		indexEntries[hole] = NONE;
+	}
+
+	private void growIndex() {
+		int[] oldKeys = indexKeys;
+		int[] oldEntries = indexEntries;
+
+		indexKeys = new int[oldKeys.length * 2];
+		indexEntries = new int[oldKeys.length * 2];
+		Arrays.fill(indexEntries, NONE);
+
+		int mask = indexKeys.length - 1;
+
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldEntries[j] == NONE)
+				continue;
+
+			int i = hash(oldKeys[j]) & mask;
+
+			while (indexEntries[i] != NONE)
+				i = (i + 1) & mask;
+
+			indexKeys[i] = oldKeys[j];
+			indexEntries[i] = oldEntries[j];
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package reldat.checksum;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import reldat.ReldatHeader;
+
+/*
+ * The original RELDAT checksum: a 128-bit MD5 digest. It fills the whole
+ * checksum field and is what the Python server speaks, so it's always
+ * available and is used whenever a faster algorithm can't be negotiated.
+ */
+public class Md5Checksum implements ReldatChecksum {
+	private MessageDigest checksumGenerator;
+
+	public Md5Checksum() {
+		try {
+			this.checksumGenerator = MessageDigest.getInstance( "MD5" );
+		}
+		catch (NoSuchAlgorithmException e) {
+			System.out.println("An MD5 algorithm implementation does not exist on your machine.");
+			System.exit(-1);
+		}
+	}
+
+	@Override
+	public byte getId() {
+		return ReldatChecksums.MD5;
+	}
+
+	@Override
+	public String getName() {
+		return "MD5";
+	}
+
+	@Override
+	public void checksum(ByteBuffer buffer, int offset, int length, byte[] checksum) {
+		this.update( buffer, offset, length );
+		this.finish( checksum );
+	}
+
+	@Override
+	public void checksum(ByteBuffer first, int firstOffset, int firstLength, ByteBuffer second, int secondOffset, int secondLength, byte[] checksum) {
+		this.update( first, firstOffset, firstLength );
+		this.update( second, secondOffset, secondLength );
+		this.finish( checksum );
+	}
+
+	@Override
+	public void update(ByteBuffer buffer, int offset, int length) {
+		if (buffer.hasArray()) {
+			checksumGenerator.update( buffer.array(), buffer.arrayOffset() + offset, length );
+		}
+		else {
+			int position = buffer.position();
+			int limit = buffer.limit();
+
+			buffer.limit( offset + length ).position( offset );
+			checksumGenerator.update( buffer );
+			buffer.limit( limit ).position( position );
+		}
+	}
+
+	@Override
+	public void finish(byte[] checksum) {
+		try {
+			checksumGenerator.digest( checksum, 0, ReldatHeader.CHECKSUM_SIZE );
+		}
+		catch (DigestException e) {
+			// Can't happen; an MD5 digest is exactly one checksum field long
+			throw new IllegalStateException( e );
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package reldat.checksum;
+
+import java.nio.ByteBuffer;
+
+/*
+ * A checksum algorithm used to protect RELDAT packet headers and payloads.
+ *
+ * Both checksum fields in the packet header are ReldatHeader.CHECKSUM_SIZE
+ * bytes wide; algorithms that produce shorter checksums zero-pad them to
+ * fill the field. Implementations keep internal state between calls and are
+ * not thread-safe: use one instance per thread, or ReldatChecksums.get().
+ */
+public interface ReldatChecksum {
+	/*
+	 * The identifier of this algorithm, as exchanged during the
+	 * connection open handshake.
+	 */
+	byte getId();
+
+	String getName();
+
+	/*
+	 * Checksum length bytes of the buffer, starting at the given absolute
+	 * offset, and write the result into the first ReldatHeader.CHECKSUM_SIZE
+	 * bytes of checksum. The buffer's position and limit are not modified.
+	 */
+	void checksum(ByteBuffer buffer, int offset, int length, byte[] checksum);
+
+	/*
+	 * Checksum two ranges, one after the other, as if they were one: the
+	 * fields of a compact header before its checksum, and the payload after
+	 * it, say. The ranges may be in the same buffer or in two. The result is
+	 * written as by checksum().
+	 */
+	void checksum(ByteBuffer first, int firstOffset, int firstLength, ByteBuffer second, int secondOffset, int secondLength, byte[] checksum);
+
+	/*
+	 * Checksum any number of ranges as if they were one, a range at a time:
+	 * call update() with each in turn, then finish() to write the result (as
+	 * checksum() does) and start over. The buffers' positions and limits are
+	 * not modified.
+	 */
+	void update(ByteBuffer buffer, int offset, int length);
+
+	void finish(byte[] checksum);
+}
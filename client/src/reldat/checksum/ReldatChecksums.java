@@ -0,0 +1,65 @@
+package reldat.checksum;
+
+/*
+ * Registry of the checksum algorithms this client supports, keyed by the
+ * identifiers exchanged during the connection open handshake.
+ */
+public class ReldatChecksums {
+	// Algorithm identifiers. MD5 is the original algorithm and must stay 0.
+	public static final byte MD5    = 0;
+	public static final byte CRC32C = 1;
+
+	// Per-thread instances for callers that don't own one (e.g. ReldatPacket's constructors)
+	private static final ThreadLocal<ReldatChecksum[]> instances = new ThreadLocal<ReldatChecksum[]>() {
+		@Override
+		protected ReldatChecksum[] initialValue() {
+			return new ReldatChecksum[] { new Md5Checksum(), new Crc32cChecksum() };
+		}
+	};
+
+	private ReldatChecksums() {
+		return;
+	}
+
+	/*
+	 * Create a new instance of the algorithm with the given identifier.
+	 */
+	public static ReldatChecksum create(byte id) {
+		switch (id) {
+			case MD5:
+				return new Md5Checksum();
+			case CRC32C:
+				return new Crc32cChecksum();
+			default:
+				throw new IllegalArgumentException( "Unknown checksum algorithm " + id );
+		}
+	}
+
+	/*
+	 * Get the calling thread's instance of the algorithm with the given identifier.
+	 */
+	public static ReldatChecksum get(byte id) {
+		if (id < 0 || id >= instances.get().length)
+			throw new IllegalArgumentException( "Unknown checksum algorithm " + id );
+
+		return instances.get()[id];
+	}
+
+	/*
+	 * Bit mask of every algorithm we support, one bit per identifier.
+	 */
+	public static int supportedMask() {
+		return (1 << MD5) | (1 << CRC32C);
+	}
+
+	/*
+	 * Pick the algorithm to use out of a peer's offer mask. CRC32C is
+	 * preferred; MD5 is the fallback every peer supports.
+	 */
+	public static byte choose(int offerMask) {
+		if ((offerMask & supportedMask() & (1 << CRC32C)) != 0)
+			return CRC32C;
+
+		return MD5;
+	}
+}
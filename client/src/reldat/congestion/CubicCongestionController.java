@@ -0,0 +1,158 @@
+package reldat.congestion;
+
+/*
+ * CUBIC (RFC 8312). After a loss, the window grows as a cubic function of
+ * the time since the loss: quickly at first, flattening out as it gets back
+ * to the window where the loss happened (W_max), then probing beyond it.
+ * Because growth depends on time rather than on the ACK rate, the window
+ * recovers as fast on long paths as on short ones. A loss cuts the window
+ * to 70% of its size.
+ *
+ *   W(t) = C (t - K)^3 + W_max,    K = cbrt(W_max (1 - beta) / C)
+ *
+ * The window never grows slower than Reno's would (the "TCP-friendly"
+ * region), and slow start works as in Reno. A retransmission timeout
+ * updates W_max and the threshold as a loss does, then drops the window to
+ * one packet (RFC 8312, section 4.7). A cut for packets that turn out to
+ * have only been late is undone.
+ */
+public class CubicCongestionController implements ReldatCongestionController {
+	// Scaling constant and multiplicative decrease factor from RFC 8312
+	private static final double C = 0.4;
+	private static final double BETA = 0.7;
+
+	private double cwnd;
+	private double ssthresh;
+	private int maxWindow = Integer.MAX_VALUE;
+
+	// Window the cubic curve plateaus at, and the window when the last loss happened
+	private double wMax;
+	private double lastWMax;
+
+	// Start (System.nanoTime()) of the current congestion avoidance epoch, or 0 if there is none
+	private long epochStart;
+
+	// Time (in seconds) from the start of the epoch until the window is back at wMax
+	private double k;
+
+	// Estimate of the window Reno would have, for the TCP-friendly region
+	private double wEst;
+
+	// The state the last cut changed, as it was before it, for undo()
+	private double priorCwnd;
+	private double priorSsthresh;
+	private double priorWMax;
+	private double priorLastWMax;
+
+	public CubicCongestionController() {
+		this.reset();
+	}
+
+	@Override
+	public byte getId() {
+		return ReldatCongestionControllers.CUBIC;
+	}
+
+	@Override
+	public String getName() {
+		return "CUBIC";
+	}
+
+	@Override
+	public void reset() {
+		this.cwnd = Math.min(ReldatCongestionControllers.INITIAL_WINDOW, this.maxWindow);
+		this.ssthresh = Double.MAX_VALUE;
+		this.wMax = 0;
+		this.lastWMax = 0;
+		this.epochStart = 0;
+	}
+
+	@Override
+	public void onIdle() {
+		this.cwnd = Math.min(this.cwnd, Math.min(ReldatCongestionControllers.INITIAL_WINDOW, this.maxWindow));
+		this.epochStart = 0;
+	}
+
+	@Override
+	public void setMaxWindow(int maxWindow) {
+		this.maxWindow = Math.max(maxWindow, 1);
+		this.cwnd = Math.min(this.cwnd, this.maxWindow);
+	}
+
+	@Override
+	public int getWindow() {
+		return Math.max((int) this.cwnd, 1);
+	}
+
+	@Override
+	public void onAck(long now, long rtt) {
+		if (this.cwnd < this.ssthresh) {
+			this.cwnd = Math.min(this.cwnd + 1, this.maxWindow);
+			return;
+		}
+
+		if (this.epochStart == 0) {
+			this.epochStart = now;
+
+			if (this.cwnd < this.wMax) {
+				this.k = Math.cbrt((this.wMax - this.cwnd) / C);
+			} else {
+				this.k = 0;
+				this.wMax = this.cwnd;
+			}
+
+			this.wEst = this.cwnd;
+		}
+
+		// Aim for where the cubic curve will be one round trip from now
+		double t = (now - this.epochStart + rtt) / 1e9;
+		double target = C * Math.pow(t - this.k, 3) + this.wMax;
+
+		if (target > this.cwnd)
+			this.cwnd += (target - this.cwnd) / this.cwnd;
+		else
+			this.cwnd += 0.01 / this.cwnd;
+
+		// Reno grows by 3 (1 - beta) / (1 + beta) packets per round trip at this beta
+		this.wEst += 3 * (1 - BETA) / (1 + BETA) / this.cwnd;
+
+		if (this.wEst > this.cwnd)
+			this.cwnd = this.wEst;
+
+		this.cwnd = Math.min(this.cwnd, this.maxWindow);
+	}
+
+	@Override
+	public void onLoss(long now) {
+		this.priorCwnd = this.cwnd;
+		this.priorSsthresh = this.ssthresh;
+		this.priorWMax = this.wMax;
+		this.priorLastWMax = this.lastWMax;
+		this.epochStart = 0;
+
+		// Fast convergence: if we lost before reaching the last W_max, release bandwidth sooner
+		if (this.cwnd < this.lastWMax)
+			this.wMax = this.cwnd * (1 + BETA) / 2;
+		else
+			this.wMax = this.cwnd;
+
+		this.lastWMax = this.cwnd;
+		this.cwnd = Math.max(this.cwnd * BETA, ReldatCongestionControllers.MIN_WINDOW);
+		this.ssthresh = this.cwnd;
+	}
+
+	@Override
+	public void onTimeout(long now, int inFlight) {
+		this.onLoss(now);
+		this.cwnd = ReldatCongestionControllers.LOSS_WINDOW;
+	}
+
+	@Override
+	public void undo() {
+		this.cwnd = Math.min(Math.max(this.cwnd, this.priorCwnd), this.maxWindow);
+		this.ssthresh = Math.max(this.ssthresh, this.priorSsthresh);
+		this.wMax = this.priorWMax;
+		this.lastWMax = this.priorLastWMax;
+		this.epochStart = 0;
+	}
+}
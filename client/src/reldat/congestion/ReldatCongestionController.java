@@ -0,0 +1,70 @@
+package reldat.congestion;
+
+/*
+ * A congestion control algorithm. It decides how many data packets may be
+ * in flight (sent but not yet acknowledged) at once, based on the ACKs and
+ * losses the connection reports to it.
+ *
+ * The window never exceeds the peer's advertised window, given to
+ * setMaxWindow(). Windows are counted in packets. Times are
+ * System.nanoTime() values. Controllers are not thread-safe; each
+ * connection needs an instance of its own.
+ */
+public interface ReldatCongestionController {
+	byte getId();
+
+	String getName();
+
+	/*
+	 * Go back to slow start at the initial window, forgetting everything
+	 * learned about the path.
+	 */
+	void reset();
+
+	/*
+	 * The connection hasn't sent data for longer than its retransmission
+	 * timeout, so there is no ACK clock left and the window may no longer
+	 * fit the path. As in RFC 5681 (section 4.1), the window goes back to
+	 * no more than the initial window; the threshold is kept, so slow start
+	 * takes it back up to where it was.
+	 */
+	void onIdle();
+
+	/*
+	 * Set the peer's advertised window, which caps the congestion window.
+	 */
+	void setMaxWindow(int maxWindow);
+
+	/*
+	 * The number of packets that may currently be in flight; at least one.
+	 */
+	int getWindow();
+
+	/*
+	 * A packet was newly acknowledged. rtt is the connection's smoothed
+	 * round-trip time in nanoseconds, or 0 if it hasn't been measured yet.
+	 */
+	void onAck(long now, long rtt);
+
+	/*
+	 * Packets were lost. The connection reports each loss episode once
+	 * (at most once per window of data), so every call should cut the window.
+	 */
+	void onLoss(long now);
+
+	/*
+	 * A retransmission timer expired, which means the ACK clock has stopped:
+	 * the window falls back to the loss window, and slow start begins again.
+	 * inFlight is the number of packets in flight when the timer expired.
+	 * The connection reports at most one timeout per loss episode, even if
+	 * onLoss() has already been called for it.
+	 */
+	void onTimeout(long now, int inFlight);
+
+	/*
+	 * The last cut (by onLoss() or onTimeout()) was for packets that turned
+	 * out not to have been lost, only late: put the window and threshold
+	 * back to what they were before it, unless they've grown past that since.
+	 */
+	void undo();
+}
@@ -0,0 +1,50 @@
+package reldat.congestion;
+
+/*
+ * Registry of the congestion control algorithms this client supports.
+ */
+public class ReldatCongestionControllers {
+	// Algorithm identifiers
+	public static final byte RENO  = 0;
+	public static final byte CUBIC = 1;
+
+	// Window every algorithm starts (and restarts) slow start with, in packets (RFC 6928)
+	public static final int INITIAL_WINDOW = 10;
+
+	// Smallest window a loss can cut the congestion window down to, in packets
+	public static final int MIN_WINDOW = 2;
+
+	// Window after a retransmission timeout (the loss window of RFC 5681), in packets
+	public static final int LOSS_WINDOW = 1;
+
+	private ReldatCongestionControllers() {
+		return;
+	}
+
+	/*
+	 * Create a new instance of the algorithm with the given identifier.
+	 */
+	public static ReldatCongestionController create(byte id) {
+		switch (id) {
+			case RENO:
+				return new RenoCongestionController();
+			case CUBIC:
+				return new CubicCongestionController();
+			default:
+				throw new IllegalArgumentException( "Unknown congestion control algorithm " + id );
+		}
+	}
+
+	/*
+	 * Create a new instance of the algorithm with the given name (case-insensitive).
+	 */
+	public static ReldatCongestionController create(String name) {
+		if (name.equalsIgnoreCase("reno"))
+			return create(RENO);
+
+		if (name.equalsIgnoreCase("cubic"))
+			return create(CUBIC);
+
+		throw new IllegalArgumentException( "Unknown congestion control algorithm " + name );
+	}
+}
@@ -0,0 +1,91 @@
+package reldat.congestion;
+
+/*
+ * Slow start plus additive-increase/multiplicative-decrease, as in TCP Reno
+ * (RFC 5681).
+ *
+ * Below the slow start threshold the window grows by one packet per ACK,
+ * doubling every round trip. Above it, the window grows by about one packet
+ * per round trip. A loss halves the window, and the threshold is set to
+ * the halved window. A retransmission timeout sets the threshold to half
+ * the packets in flight and drops the window to one packet, so the window
+ * slow-starts back up to the threshold. A cut for packets that turn out to
+ * have only been late is undone.
+ */
+public class RenoCongestionController implements ReldatCongestionController {
+	private double cwnd;
+	private double ssthresh;
+	private int maxWindow = Integer.MAX_VALUE;
+
+	// The window and threshold before the last cut, for undo()
+	private double priorCwnd;
+	private double priorSsthresh;
+
+	public RenoCongestionController() {
+		this.reset();
+	}
+
+	@Override
+	public byte getId() {
+		return ReldatCongestionControllers.RENO;
+	}
+
+	@Override
+	public String getName() {
+		return "Reno";
+	}
+
+	@Override
+	public void reset() {
+		this.cwnd = Math.min(ReldatCongestionControllers.INITIAL_WINDOW, this.maxWindow);
+		this.ssthresh = Double.MAX_VALUE;
+	}
+
+	@Override
+	public void onIdle() {
+		this.cwnd = Math.min(this.cwnd, Math.min(ReldatCongestionControllers.INITIAL_WINDOW, this.maxWindow));
+	}
+
+	@Override
+	public void setMaxWindow(int maxWindow) {
+		this.maxWindow = Math.max(maxWindow, 1);
+		this.cwnd = Math.min(this.cwnd, this.maxWindow);
+	}
+
+	@Override
+	public int getWindow() {
+		return Math.max((int) this.cwnd, 1);
+	}
+
+	@Override
+	public void onAck(long now, long rtt) {
+		if (this.cwnd < this.ssthresh)
+			this.cwnd += 1;
+		else
+			this.cwnd += 1 / this.cwnd;
+
+		this.cwnd = Math.min(this.cwnd, this.maxWindow);
+	}
+
+	@Override
+	public void onLoss(long now) {
+		this.priorCwnd = this.cwnd;
+		this.priorSsthresh = this.ssthresh;
+		this.ssthresh = Math.max(this.cwnd / 2, ReldatCongestionControllers.MIN_WINDOW);
+		this.cwnd = this.ssthresh;
+	}
+
+	@Override
+	public void onTimeout(long now, int inFlight) {
+		this.priorCwnd = this.cwnd;
+		this.priorSsthresh = this.ssthresh;
+		this.ssthresh = Math.max(inFlight / 2.0, ReldatCongestionControllers.MIN_WINDOW);
+		this.cwnd = ReldatCongestionControllers.LOSS_WINDOW;
+	}
+
+	@Override
+	public void undo() {
+		this.cwnd = Math.min(Math.max(this.cwnd, this.priorCwnd), this.maxWindow);
+		this.ssthresh = Math.max(this.ssthresh, this.priorSsthresh);
+	}
+}
@@ -0,0 +1,158 @@
+package reldat.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A histogram of non-negative values with a fixed set of power-of-two
+ * buckets, so recording a value is a bit count and an increment, and the
+ * histogram never allocates or grows:
+ *
+ *   bucket 0        values below 1
+ *   bucket i        values from 2^(i-1) up to, but not including, 2^i
+ *   last bucket     everything from 2^(BUCKETS - 2) up
+ *
+ * The histogram doesn't know what its values are; ReldatMetrics records
+ * times in microseconds (bucket 20 starts at about half a second) and
+ * goodput in kilobytes per second. Percentiles are read off the buckets,
+ * so they are an upper bound on the true value, at most twice it.
+ *
+ * One thread records while any number read: each bucket is updated
+ * atomically, and snapshot() copies them all for a consistent-enough view
+ * (a value recorded during the copy may or may not be in it).
+ */
+public class ReldatHistogram {
+	public static final int BUCKETS = 40;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong(0);
+
+	/*
+	 * Count one value (negative values count as 0).
+	 */
+	public void record(long value) {
+		value = Math.max(value, 0);
+
+		this.counts.incrementAndGet(bucketOf(value));
+		this.sum.add(value);
+
+		long currentMax = this.max.get();
+
+		while (value > currentMax && !this.max.compareAndSet(currentMax, value))
+			currentMax = this.max.get();
+	}
+
+	/*
+	 * Copy the histogram as it is now.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = this.counts.get(i);
+
+		return new Snapshot(counts, this.sum.sum(), this.max.get());
+	}
+
+	/*
+	 * The bucket a value is counted in.
+	 */
+	public static int bucketOf(long value) {
+		return Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+	}
+
+	/*
+	 * The smallest value counted in the bucket after the given one, which is
+	 * the upper bound of the bucket's values (Long.MAX_VALUE for the last one).
+	 */
+	public static long getBucketLimit(int bucket) {
+		return (bucket >= BUCKETS - 1) ? Long.MAX_VALUE : 1L << bucket;
+	}
+
+	/*
+	 * The counts of a histogram at one point in time.
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long sum, long max) {
+			long count = 0;
+
+			for (long bucketCount : counts)
+				count += bucketCount;
+
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/*
+		 * Number of values recorded.
+		 */
+		public long getCount() {
+			return this.count;
+		}
+
+		public long getBucketCount(int bucket) {
+			return this.counts[bucket];
+		}
+
+		public long getMax() {
+			return this.max;
+		}
+
+		public double getMean() {
+			return (this.count == 0) ? 0 : (double) this.sum / this.count;
+		}
+
+		/*
+		 * An upper bound on the given percentile (between 0 and 1) of the values
+		 * recorded: the limit of the bucket it falls in, or the largest value
+		 * recorded if that's lower. 0 if nothing has been recorded.
+		 */
+		public long getPercentile(double p) {
+			if (this.count == 0)
+				return 0;
+
+			long rank = Math.max((long) Math.ceil(p * this.count), 1);
+			long seen = 0;
+
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += this.counts[i];
+
+				if (seen >= rank)
+					return Math.min(getBucketLimit(i), this.max);
+			}
+
+			return this.max;
+		}
+
+		/*
+		 * The difference between this snapshot and an earlier one of the same
+		 * histogram: what was recorded in between. The maximum is this one's.
+		 */
+		public Snapshot since(Snapshot earlier) {
+			long[] counts = new long[BUCKETS];
+
+			for (int i = 0; i < BUCKETS; i++)
+				counts[i] = this.counts[i] - earlier.counts[i];
+
+			return new Snapshot(counts, this.sum - earlier.sum, this.max);
+		}
+
+		/*
+		 * Count, mean and percentiles, e.g. "n=120 mean=812 p50=1024 p90=2048 p99=4096 max=3977".
+		 */
+		@Override
+		public String toString() {
+			return String.format("n=%d mean=%.0f p50=%d p90=%d p99=%d max=%d", this.count, this.getMean(),
+					this.getPercentile(0.5), this.getPercentile(0.9), this.getPercentile(0.99), this.max);
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package reldat.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * A connection's metrics: counters of the packets and bytes it sends and
+ * receives, and of what goes wrong with them (retransmissions, duplicates,
+ * corrupted and dropped packets, transfers that fail); gauges of its send
+ * window and round-trip time; and histograms (see ReldatHistogram) of
+ *
+ *   RTT             round-trip time samples, as fed to the RTO estimator, in microseconds
+ *   time to ACK     from a data packet's first sending to its ACK, retransmissions
+ *                   and all, in microseconds
+ *   transfer time   from opening a stream to the server's last byte of it, in microseconds
+ *   goodput         bytes of a completed stream's data, both ways, per second of its
+ *                   transfer time, in kilobytes per second
+ *
+ * Metrics are cumulative over the life of the connection. The connection
+ * updates them from its event loop's thread; counters are LongAdders and
+ * histogram buckets atomic longs, so recording costs no more than an
+ * uncontended increment, and they can be read from any thread at any time:
+ * with snapshot(), which copies everything into a ReldatMetricsSnapshot, or
+ * over JMX, once register() has made them an MXBean.
+ *
+ * A connection registers its metrics itself if the reldat.jmx system
+ * property is true (java -Dreldat.jmx=true ...), as
+ * reldat:type=Connection,id=<n>, and unregisters them when it closes.
+ */
+public class ReldatMetrics implements ReldatMetricsMXBean {
+	// Counters, by index
+	public static final int PACKETS_SENT = 0;
+	public static final int BYTES_SENT = 1;
+	public static final int DATA_PACKETS_SENT = 2;
+	public static final int PAYLOAD_BYTES_SENT = 3;
+	public static final int RETRANSMISSIONS = 4;
+	public static final int FAST_RETRANSMISSIONS = 5;
+	public static final int PACKETS_RECEIVED = 6;
+	public static final int BYTES_RECEIVED = 7;
+	public static final int DATA_PACKETS_RECEIVED = 8;
+	public static final int PAYLOAD_BYTES_RECEIVED = 9;
+	public static final int DUPLICATE_PACKETS = 10;
+	public static final int DROPPED_PACKETS = 11;
+	public static final int CORRUPTED_HEADERS = 12;
+	public static final int CORRUPTED_PAYLOADS = 13;
+	public static final int ACKS_SENT = 14;
+	public static final int ACKS_SAVED = 15;
+	public static final int ACKS_RECEIVED = 16;
+	public static final int TRANSFERS_COMPLETED = 17;
+	public static final int TRANSFERS_FAILED = 18;
+	public static final int CONNECTION_FAILURES = 19;
+
+	public static final String[] COUNTER_NAMES = {
+		"packets sent", "bytes sent", "data packets sent", "payload bytes sent", "retransmissions", "fast retransmissions",
+		"packets received", "bytes received", "data packets received", "payload bytes received", "duplicate packets", "dropped packets",
+		"corrupted headers", "corrupted payloads", "ACKs sent", "ACKs saved", "ACKs received",
+		"transfers completed", "transfers failed", "connection failures"
+	};
+
+	// System property that makes every connection register its metrics over JMX
+	public static final String JMX_PROPERTY = "reldat.jmx";
+
+	// Number of connections whose metrics have been registered, for their names
+	private static final AtomicInteger registrations = new AtomicInteger(0);
+
+	private final LongAdder[] counters = new LongAdder[COUNTER_NAMES.length];
+
+	// Gauges: packets in flight, the most there have been, the congestion window,
+	// and the smoothed RTT and retransmission timeout (in microseconds)
+	private volatile int windowOccupancy = 0;
+	private volatile int maxWindowOccupancy = 0;
+	private volatile int congestionWindow = 0;
+	private volatile long smoothedRtt = 0;
+	private volatile long rto = 0;
+
+	private final ReldatHistogram rtt = new ReldatHistogram();
+	private final ReldatHistogram timeToAck = new ReldatHistogram();
+	private final ReldatHistogram transferTime = new ReldatHistogram();
+	private final ReldatHistogram goodput = new ReldatHistogram();
+
+	// The server's address, and the name we're registered under over JMX (null if we aren't)
+	private volatile String peer = "";
+	private ObjectName objectName = null;
+
+	public ReldatMetrics() {
+		for (int i = 0; i < this.counters.length; i++)
+			this.counters[i] = new LongAdder();
+	}
+
+	/*
+	 * Returns true if connections should register their metrics over JMX.
+	 */
+	public static boolean isJmxEnabled() {
+		return Boolean.getBoolean(JMX_PROPERTY);
+	}
+
+	public void setPeer(String peer) {
+		this.peer = peer;
+	}
+
+	public void count(int counter) {
+		this.counters[counter].increment();
+	}
+
+	public void count(int counter, long amount) {
+		this.counters[counter].add(amount);
+	}
+
+	public long getCounter(int counter) {
+		return this.counters[counter].sum();
+	}
+
+	/*
+	 * Record a round-trip time sample, and the estimator's smoothed RTT and
+	 * timeout after taking it, all in nanoseconds.
+	 */
+	public void recordRtt(long sample, long smoothedRtt, long rto) {
+		this.rtt.record(sample / 1000);
+		this.smoothedRtt = smoothedRtt / 1000;
+		this.rto = rto / 1000;
+	}
+
+	/*
+	 * Record how long a data packet took to be ACKed, in nanoseconds.
+	 */
+	public void recordTimeToAck(long nanos) {
+		this.timeToAck.record(nanos / 1000);
+	}
+
+	/*
+	 * Record the number of packets in flight and the congestion window.
+	 */
+	public void recordWindow(int occupancy, int congestionWindow) {
+		this.windowOccupancy = occupancy;
+		this.congestionWindow = congestionWindow;
+
+		if (occupancy > this.maxWindowOccupancy)
+			this.maxWindowOccupancy = occupancy;
+	}
+
+	/*
+	 * Record a finished transfer (a stream): how long it took, in nanoseconds,
+	 * and how many bytes of data it moved both ways. Only transfers that
+	 * completed count towards the transfer time and goodput histograms.
+	 */
+	public void recordTransfer(long nanos, long bytes, boolean failed) {
+		if (failed) {
+			this.count(TRANSFERS_FAILED);
+			return;
+		}
+
+		this.count(TRANSFERS_COMPLETED);
+		this.transferTime.record(nanos / 1000);
+
+		if (nanos > 0)
+			this.goodput.record((long) (bytes / (nanos / 1e9) / 1024));
+	}
+
+	/*
+	 * Copy every metric as it is now.
+	 */
+	public ReldatMetricsSnapshot snapshot() {
+		long[] counters = new long[this.counters.length];
+
+		for (int i = 0; i < counters.length; i++)
+			counters[i] = this.counters[i].sum();
+
+		long[] gauges = { this.windowOccupancy, this.maxWindowOccupancy, this.congestionWindow, this.smoothedRtt, this.rto };
+
+		return new ReldatMetricsSnapshot(System.currentTimeMillis(), this.peer, counters, gauges,
+				this.rtt.snapshot(), this.timeToAck.snapshot(), this.transferTime.snapshot(), this.goodput.snapshot());
+	}
+
+	/*
+	 * Register these metrics with the platform MBean server, as
+	 * reldat:type=Connection,id=<n>. Does nothing if they already are.
+	 */
+	public synchronized void register() {
+		if (this.objectName != null)
+			return;
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("reldat:type=Connection,id=" + registrations.incrementAndGet());
+
+			server.registerMBean(this, name);
+			this.objectName = name;
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Remove these metrics from the platform MBean server, if they're registered.
+	 */
+	public synchronized void unregister() {
+		if (this.objectName == null)
+			return;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+
+		this.objectName = null;
+	}
+
+	// ReldatMetricsMXBean
+
+	public String getPeer() {
+		return this.peer;
+	}
+
+	public long getPacketsSent() {
+		return this.getCounter(PACKETS_SENT);
+	}
+
+	public long getBytesSent() {
+		return this.getCounter(BYTES_SENT);
+	}
+
+	public long getDataPacketsSent() {
+		return this.getCounter(DATA_PACKETS_SENT);
+	}
+
+	public long getRetransmissions() {
+		return this.getCounter(RETRANSMISSIONS);
+	}
+
+	public long getFastRetransmissions() {
+		return this.getCounter(FAST_RETRANSMISSIONS);
+	}
+
+	public long getPacketsReceived() {
+		return this.getCounter(PACKETS_RECEIVED);
+	}
+
+	public long getBytesReceived() {
+		return this.getCounter(BYTES_RECEIVED);
+	}
+
+	public long getDataPacketsReceived() {
+		return this.getCounter(DATA_PACKETS_RECEIVED);
+	}
+
+	public long getDuplicatePackets() {
+		return this.getCounter(DUPLICATE_PACKETS);
+	}
+
+	public long getDroppedPackets() {
+		return this.getCounter(DROPPED_PACKETS);
+	}
+
+	public long getCorruptedPackets() {
+		return this.getCounter(CORRUPTED_HEADERS) + this.getCounter(CORRUPTED_PAYLOADS);
+	}
+
+	public long getAcksSent() {
+		return this.getCounter(ACKS_SENT);
+	}
+
+	public long getAcksSaved() {
+		return this.getCounter(ACKS_SAVED);
+	}
+
+	public long getAcksReceived() {
+		return this.getCounter(ACKS_RECEIVED);
+	}
+
+	public long getTransfersCompleted() {
+		return this.getCounter(TRANSFERS_COMPLETED);
+	}
+
+	public long getTransfersFailed() {
+		return this.getCounter(TRANSFERS_FAILED);
+	}
+
+	public long getConnectionFailures() {
+		return this.getCounter(CONNECTION_FAILURES);
+	}
+
+	public double getRetransmissionRate() {
+		long sent = this.getCounter(DATA_PACKETS_SENT);
+		return (sent == 0) ? 0 : (double) this.getCounter(RETRANSMISSIONS) / sent;
+	}
+
+	public int getWindowOccupancy() {
+		return this.windowOccupancy;
+	}
+
+	public int getMaxWindowOccupancy() {
+		return this.maxWindowOccupancy;
+	}
+
+	public int getCongestionWindow() {
+		return this.congestionWindow;
+	}
+
+	public long getSmoothedRttMicros() {
+		return this.smoothedRtt;
+	}
+
+	public long getRtoMicros() {
+		return this.rto;
+	}
+
+	public long getRttP50Micros() {
+		return this.rtt.snapshot().getPercentile(0.5);
+	}
+
+	public long getRttP99Micros() {
+		return this.rtt.snapshot().getPercentile(0.99);
+	}
+
+	public long getTimeToAckP50Micros() {
+		return this.timeToAck.snapshot().getPercentile(0.5);
+	}
+
+	public long getTimeToAckP99Micros() {
+		return this.timeToAck.snapshot().getPercentile(0.99);
+	}
+
+	public long getTransferTimeP50Micros() {
+		return this.transferTime.snapshot().getPercentile(0.5);
+	}
+
+	public long getTransferTimeP99Micros() {
+		return this.transferTime.snapshot().getPercentile(0.99);
+	}
+
+	public long getGoodputP50KBps() {
+		return this.goodput.snapshot().getPercentile(0.5);
+	}
+}
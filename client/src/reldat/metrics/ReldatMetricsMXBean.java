@@ -0,0 +1,72 @@
+package reldat.metrics;
+
+/*
+ * A connection's metrics (see ReldatMetrics) as JMX attributes. Counters are
+ * totals since the connection was created; gauges are as of the last packet
+ * sent or ACKed; percentiles are upper bounds read off the histograms'
+ * power-of-two buckets.
+ */
+public interface ReldatMetricsMXBean {
+	String getPeer();
+
+	long getPacketsSent();
+
+	long getBytesSent();
+
+	long getDataPacketsSent();
+
+	long getRetransmissions();
+
+	long getFastRetransmissions();
+
+	long getPacketsReceived();
+
+	long getBytesReceived();
+
+	long getDataPacketsReceived();
+
+	long getDuplicatePackets();
+
+	long getDroppedPackets();
+
+	long getCorruptedPackets();
+
+	long getAcksSent();
+
+	long getAcksSaved();
+
+	long getAcksReceived();
+
+	long getTransfersCompleted();
+
+	long getTransfersFailed();
+
+	long getConnectionFailures();
+
+	// Retransmissions as a share of the data packets sent
+	double getRetransmissionRate();
+
+	int getWindowOccupancy();
+
+	int getMaxWindowOccupancy();
+
+	int getCongestionWindow();
+
+	long getSmoothedRttMicros();
+
+	long getRtoMicros();
+
+	long getRttP50Micros();
+
+	long getRttP99Micros();
+
+	long getTimeToAckP50Micros();
+
+	long getTimeToAckP99Micros();
+
+	long getTransferTimeP50Micros();
+
+	long getTransferTimeP99Micros();
+
+	long getGoodputP50KBps();
+}
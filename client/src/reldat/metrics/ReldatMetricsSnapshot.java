@@ -0,0 +1,148 @@
+package reldat.metrics;
+
+/*
+ * A connection's metrics at one point in time (see ReldatMetrics.snapshot()).
+ * Monitoring that polls a connection can compare two snapshots with since()
+ * to see what happened in between: a retransmission rate or an RTT that is
+ * climbing is a link that is getting worse.
+ */
+public class ReldatMetricsSnapshot {
+	// Gauges, by index
+	private static final int WINDOW_OCCUPANCY = 0;
+	private static final int MAX_WINDOW_OCCUPANCY = 1;
+	private static final int CONGESTION_WINDOW = 2;
+	private static final int SMOOTHED_RTT = 3;
+	private static final int RTO = 4;
+
+	private final long time;
+	private final String peer;
+	private final long[] counters;
+	private final long[] gauges;
+
+	private final ReldatHistogram.Snapshot rtt;
+	private final ReldatHistogram.Snapshot timeToAck;
+	private final ReldatHistogram.Snapshot transferTime;
+	private final ReldatHistogram.Snapshot goodput;
+
+	ReldatMetricsSnapshot(long time, String peer, long[] counters, long[] gauges, ReldatHistogram.Snapshot rtt,
+			ReldatHistogram.Snapshot timeToAck, ReldatHistogram.Snapshot transferTime, ReldatHistogram.Snapshot goodput) {
+		this.time = time;
+		this.peer = peer;
+		this.counters = counters;
+		this.gauges = gauges;
+		this.rtt = rtt;
+		this.timeToAck = timeToAck;
+		this.transferTime = transferTime;
+		this.goodput = goodput;
+	}
+
+	/*
+	 * When the snapshot was taken (System.currentTimeMillis()).
+	 */
+	public long getTime() {
+		return this.time;
+	}
+
+	public String getPeer() {
+		return this.peer;
+	}
+
+	/*
+	 * The value of one of ReldatMetrics' counters (e.g. ReldatMetrics.RETRANSMISSIONS).
+	 */
+	public long getCounter(int counter) {
+		return this.counters[counter];
+	}
+
+	public double getRetransmissionRate() {
+		long sent = this.counters[ReldatMetrics.DATA_PACKETS_SENT];
+		return (sent == 0) ? 0 : (double) this.counters[ReldatMetrics.RETRANSMISSIONS] / sent;
+	}
+
+	public int getWindowOccupancy() {
+		return (int) this.gauges[WINDOW_OCCUPANCY];
+	}
+
+	public int getMaxWindowOccupancy() {
+		return (int) this.gauges[MAX_WINDOW_OCCUPANCY];
+	}
+
+	public int getCongestionWindow() {
+		return (int) this.gauges[CONGESTION_WINDOW];
+	}
+
+	public long getSmoothedRttMicros() {
+		return this.gauges[SMOOTHED_RTT];
+	}
+
+	public long getRtoMicros() {
+		return this.gauges[RTO];
+	}
+
+	/*
+	 * Round-trip time samples, in microseconds.
+	 */
+	public ReldatHistogram.Snapshot getRtt() {
+		return this.rtt;
+	}
+
+	/*
+	 * Times from sending data packets to their ACKs, in microseconds.
+	 */
+	public ReldatHistogram.Snapshot getTimeToAck() {
+		return this.timeToAck;
+	}
+
+	/*
+	 * Times of completed transfers, in microseconds.
+	 */
+	public ReldatHistogram.Snapshot getTransferTime() {
+		return this.transferTime;
+	}
+
+	/*
+	 * Goodput of completed transfers, in kilobytes per second.
+	 */
+	public ReldatHistogram.Snapshot getGoodput() {
+		return this.goodput;
+	}
+
+	/*
+	 * What changed between an earlier snapshot of the same connection and this
+	 * one: counters and histograms count only what happened in between, and
+	 * gauges are this snapshot's.
+	 */
+	public ReldatMetricsSnapshot since(ReldatMetricsSnapshot earlier) {
+		long[] counters = new long[this.counters.length];
+
+		for (int i = 0; i < counters.length; i++)
+			counters[i] = this.counters[i] - earlier.counters[i];
+
+		return new ReldatMetricsSnapshot(this.time, this.peer, counters, this.gauges, this.rtt.since(earlier.rtt),
+				this.timeToAck.since(earlier.timeToAck), this.transferTime.since(earlier.transferTime), this.goodput.since(earlier.goodput));
+	}
+
+	/*
+	 * Every metric, one per line.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+
+		out.append(String.format("%-24s %s%n", "peer", this.peer));
+
+		for (int i = 0; i < this.counters.length; i++)
+			out.append(String.format("%-24s %d%n", ReldatMetrics.COUNTER_NAMES[i], this.counters[i]));
+
+		out.append(String.format("%-24s %.2f%%%n", "retransmission rate", this.getRetransmissionRate() * 100));
+		out.append(String.format("%-24s %d (max %d)%n", "window occupancy", this.getWindowOccupancy(), this.getMaxWindowOccupancy()));
+		out.append(String.format("%-24s %d%n", "congestion window", this.getCongestionWindow()));
+		out.append(String.format("%-24s %d us (RTO %d us)%n", "smoothed RTT", this.getSmoothedRttMicros(), this.getRtoMicros()));
+		out.append(String.format("%-24s %s%n", "RTT (us)", this.rtt));
+		out.append(String.format("%-24s %s%n", "time to ACK (us)", this.timeToAck));
+		out.append(String.format("%-24s %s%n", "transfer time (us)", this.transferTime));
+		out.append(String.format("%-24s %s", "goodput (KB/s)", this.goodput));
+
+		return out.toString();
+	}
+}
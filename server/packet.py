@@ -173,6 +173,9 @@ EOD_FLAG        = 0b00100000
 NUDGE_FLAG      = 0b01000000
 RESERVE_FLAG_4  = 0b10000000
 
+# Bit of an OPEN packet's ACK number with which the client offers symmetric addressing
+SYMMETRIC_OFFER = 1 << 10
+
 
 class Packet:
     '''
@@ -2,7 +2,7 @@ import datetime
 import socket
 from time import sleep
 
-from packet import PacketIterator, Packet, ACK, SYNACK, CLOSEACK, CLOSE, EODACK, DATA_FLAG, EOD_FLAG, RETRANSMIT_FLAG, construct_packet, NUDGE_FLAG
+from packet import PacketIterator, Packet, ACK, SYNACK, CLOSEACK, CLOSE, EODACK, DATA_FLAG, EOD_FLAG, RETRANSMIT_FLAG, construct_packet, NUDGE_FLAG, SYMMETRIC_OFFER
 
 
 class Reldat( object ):
@@ -18,6 +18,10 @@ class Reldat( object ):
         self.on_handshake        = 0
         self.on_teardown         = 0
 
+        # Whether the client offered symmetric addressing (and we accepted it): then
+        # we reply from the in socket to the address its packets come from
+        self.symmetric = False
+
         self.port       = None
         self.in_socket  = None
         self.out_socket = None
@@ -52,7 +56,7 @@ class Reldat( object ):
             print 'Acknowledging received SEQ ' + str(packet.seq_num) + '.'
             ack_pkt = ACK(packet.seq_num)
 
-        self.out_socket.sendto(ack_pkt, self.dst_ip_address)
+        self._send_to_client(ack_pkt)
 
     def get_seq_num(self):
         '''
@@ -87,6 +91,12 @@ class Reldat( object ):
     def listen( self ):
         try:
             data, address = self.in_socket.recvfrom( 1024 )
+
+            # With symmetric addressing, other clients on the same host send from other ports;
+            # they have to wait their turn
+            if self.symmetric and address != self.dst_ip_address:
+                return
+
             packet        = Packet( data )
 
             self.last_recieved = datetime.datetime.now()
@@ -190,12 +200,19 @@ class Reldat( object ):
         '''
         if self.on_handshake is 0:
             if packet.is_open():
-                print 'Attempting to establish connection with ' + str( dst_ip_address[0] ) + ':' + str( self.port ) + '...'
-
-                self.dst_ip_address      = ( dst_ip_address[0], self.port )
                 self.dst_max_window_size = int( packet.payload )
 
-                synack = SYNACK(str(self.src_max_window_size), packet.seq_num)
+                if packet.ack_num & SYMMETRIC_OFFER:
+                    # Reply to the port the OPEN came from, so any number of clients on one host can use this port
+                    self.symmetric      = True
+                    self.dst_ip_address = dst_ip_address
+                    synack = SYNACK(str(self.src_max_window_size) + ';symmetric=1', packet.seq_num)
+                else:
+                    self.dst_ip_address = ( dst_ip_address[0], self.port )
+                    synack = SYNACK(str(self.src_max_window_size), packet.seq_num)
+
+                print 'Attempting to establish connection with ' + str( self.dst_ip_address[0] ) + ':' + str( self.dst_ip_address[1] ) + '...'
+
                 self._send_raw_packet(synack)
                 self.on_handshake = 1
         elif self.on_handshake is 1:
@@ -286,7 +303,7 @@ class Reldat( object ):
         :param retransmit:
         :return:
         '''
-        self.out_socket.sendto(packet, self.dst_ip_address)
+        self._send_to_client(packet)
         sent = Packet(packet)
 
         if retransmit:
@@ -308,6 +325,18 @@ class Reldat( object ):
                 'retransmissions' : 0
             }
 
+    def _send_to_client(self, packet):
+        '''
+        Sends a ready-to-send packet to the client: from the in socket with symmetric addressing, so it comes from the
+        port the client sends to, and from the out socket otherwise.
+        :param packet: str
+        :return: None
+        '''
+        if self.symmetric:
+            self.in_socket.sendto(packet, self.dst_ip_address)
+        else:
+            self.out_socket.sendto(packet, self.dst_ip_address)
+
     def disconnect( self, packet ):
         '''
         Should be called on every step of the teardown process, will handle resetting the servers properties and
@@ -321,7 +350,7 @@ class Reldat( object ):
                 print 'Attempting to disconnect from ' + str( self.dst_ip_address ) + ':' + str( self.port ) + '...'
               
                 closeack = CLOSEACK(packet.seq_num)
-                self.out_socket.sendto(closeack, self.dst_ip_address)
+                self._send_to_client(closeack)
                 
                 close = CLOSE(self.get_seq_num())
                 self._send_raw_packet(close)
@@ -342,6 +371,7 @@ class Reldat( object ):
         self.dst_max_window_size = None
         self.on_handshake = 0
         self.on_teardown  = 0
+        self.symmetric    = False
 
         self.seqs_recd = []
 